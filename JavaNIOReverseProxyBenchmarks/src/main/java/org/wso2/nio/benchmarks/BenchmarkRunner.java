@@ -0,0 +1,31 @@
+package org.wso2.nio.benchmarks;
+
+import java.util.Arrays;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Entry point of the benchmarks jar. Takes the usual JMH command line, but
+ * writes the results as JSON to <code>jmh-result.json</code> unless another
+ * format or file is asked for with <code>-rf</code> or <code>-rff</code>, so
+ * that runs can be compared by tools rather than by eye.
+ *
+ * @author ravindra
+ *
+ */
+public class BenchmarkRunner {
+	public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception {
+		if (!Arrays.asList(args).contains("-rf") && !Arrays.asList(args).contains("-rff")) {
+			String[] withResults = Arrays.copyOf(args, args.length + 4);
+			withResults[args.length] = "-rf";
+			withResults[args.length + 1] = "json";
+			withResults[args.length + 2] = "-rff";
+			withResults[args.length + 3] = DEFAULT_RESULT_FILE;
+			args = withResults;
+		}
+		Main.main(args);
+	}
+
+}
@@ -0,0 +1,93 @@
+package org.wso2.nio.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.nio.BufferPool;
+import org.wso2.nio.OutboundQueue;
+import org.wso2.nio.PooledBuffer;
+
+/**
+ * Cost of moving a chunk of data from the buffer it was read into onto the
+ * socket of the other side: copying it into a buffer of its own, or handing
+ * over a slice sharing the read buffer, each followed by the gathering write
+ * of the {@link OutboundQueue}. The writes go to a channel which takes
+ * everything, so only the proxy's own work is measured.
+ *
+ * @author ravindra
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferBenchmark {
+	@Param({ "256", "4096", "65536" })
+	public int size;
+
+	private BufferPool pool;
+	private PooledBuffer readBuffer;
+	private OutboundQueue queue;
+	private ByteBuffer[] vector;
+	private final NullChannel channel = new NullChannel();
+
+	@Setup
+	public void setUp() {
+		pool = new BufferPool(false);
+		readBuffer = pool.acquire(size);
+		readBuffer.buffer().put(new byte[size]).flip();
+		queue = new OutboundQueue();
+		vector = new ByteBuffer[OutboundQueue.DEFAULT_MAX_BUFFERS_PER_WRITE];
+	}
+
+	@TearDown
+	public void tearDown() {
+		queue.clear();
+		readBuffer.release();
+	}
+
+	@Benchmark
+	public PooledBuffer acquireAndRelease() {
+		PooledBuffer buffer = pool.acquire(size);
+		buffer.release();
+		return buffer;
+	}
+
+	@Benchmark
+	public ByteBuffer copyToHeapBuffer() {
+		ByteBuffer copy = ByteBuffer.allocate(size);
+		copy.put(readBuffer.buffer().duplicate());
+		return copy;
+	}
+
+	@Benchmark
+	public boolean copyHandoff() throws IOException {
+		PooledBuffer copy = pool.acquire(size);
+		copy.buffer().put(readBuffer.buffer().duplicate()).flip();
+		queue.add(copy, null);
+		return queue.writeTo(channel, vector);
+	}
+
+	@Benchmark
+	public boolean sliceHandoff() throws IOException {
+		ByteBuffer data = readBuffer.buffer();
+		queue.add(readBuffer.retainedSlice(data.position(), data.limit()), null);
+		return queue.writeTo(channel, vector);
+	}
+
+}
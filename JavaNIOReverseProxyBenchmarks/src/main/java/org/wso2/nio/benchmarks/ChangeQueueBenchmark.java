@@ -0,0 +1,131 @@
+package org.wso2.nio.benchmarks;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.wso2.nio.ChangeQueue;
+
+/**
+ * Cost of handing changes to a reactor through its {@link ChangeQueue}, with
+ * a {@link ConcurrentLinkedQueue} plus an unconditional
+ * {@link Selector#wakeup()} per change as the baseline, which is what the
+ * reactors did before.
+ *
+ * The <code>roundTrip</code> benchmarks queue a batch and drain it on one
+ * thread. The <code>contended</code> groups have producers adding while a
+ * consumer drains, as the listening ioReactors do to a connecting ioReactor.
+ *
+ * @author ravindra
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangeQueueBenchmark {
+	private static final int BATCH = 64;
+
+	private static final Object CHANGE = new Object();
+
+	private Selector selector;
+	private ChangeQueue<Object> changeQueue;
+	private Queue<Object> baselineQueue;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		selector = Selector.open();
+		changeQueue = new ChangeQueue<Object>(selector);
+		baselineQueue = new ConcurrentLinkedQueue<Object>();
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		selector.close();
+	}
+
+	@Benchmark
+	@Group("roundTrip")
+	@OperationsPerInvocation(BATCH)
+	public void roundTrip(Blackhole blackhole) {
+		for (int i = 0; i < BATCH; i++) {
+			changeQueue.add(CHANGE);
+		}
+		changeQueue.beforeDrain();
+		Object change;
+		while ((change = changeQueue.poll()) != null) {
+			blackhole.consume(change);
+		}
+	}
+
+	@Benchmark
+	@Group("roundTripBaseline")
+	@OperationsPerInvocation(BATCH)
+	public void roundTripBaseline(Blackhole blackhole) {
+		for (int i = 0; i < BATCH; i++) {
+			baselineQueue.add(CHANGE);
+			selector.wakeup();
+		}
+		Object change;
+		while ((change = baselineQueue.poll()) != null) {
+			blackhole.consume(change);
+		}
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public void add() {
+		changeQueue.add(CHANGE);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void drain(Blackhole blackhole) {
+		changeQueue.beforeDrain();
+		Object change;
+		for (int i = 0; i < ChangeQueue.DRAIN_BATCH_SIZE && (change = changeQueue.poll()) != null; i++) {
+			blackhole.consume(change);
+		}
+	}
+
+	@Benchmark
+	@Group("contendedBaseline")
+	@GroupThreads(3)
+	public void addBaseline() {
+		baselineQueue.add(CHANGE);
+		selector.wakeup();
+	}
+
+	@Benchmark
+	@Group("contendedBaseline")
+	@GroupThreads(1)
+	public void drainBaseline(Blackhole blackhole) {
+		Object change;
+		for (int i = 0; i < ChangeQueue.DRAIN_BATCH_SIZE && (change = baselineQueue.poll()) != null; i++) {
+			blackhole.consume(change);
+		}
+	}
+
+}
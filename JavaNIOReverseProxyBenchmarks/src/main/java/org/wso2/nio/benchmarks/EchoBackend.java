@@ -0,0 +1,106 @@
+package org.wso2.nio.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.wso2.nio.HttpMessageParser;
+
+/**
+ * An HTTP backend answering each request with its own body, served by a
+ * thread per connection so that it adds as little latency of its own as
+ * possible. Connections are kept alive until the proxy closes them.
+ *
+ * @author ravindra
+ *
+ */
+class EchoBackend implements Runnable {
+	private final ServerSocketChannel serverChannel;
+
+	EchoBackend() throws IOException {
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	}
+
+	int getPort() {
+		return this.serverChannel.socket().getLocalPort();
+	}
+
+	void close() throws IOException {
+		this.serverChannel.close();
+	}
+
+	public void run() {
+		while (true) {
+			final SocketChannel channel;
+			try {
+				channel = this.serverChannel.accept();
+			} catch (IOException e) {
+				// Closed
+				return;
+			}
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						serve(channel);
+					} catch (IOException e) {
+						// The proxy went away
+					} finally {
+						try {
+							channel.close();
+						} catch (IOException e) {
+							// Ignore
+						}
+					}
+				}
+			}, "echo-backend");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private static void serve(SocketChannel channel) throws IOException {
+		channel.socket().setTcpNoDelay(true);
+		HttpMessageParser parser = new HttpMessageParser(true);
+		ByteBuffer in = ByteBuffer.allocate(65536);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		boolean inBody = false;
+		while (channel.read(in) != -1) {
+			in.flip();
+			while (true) {
+				int start = in.position();
+				int state = parser.parse(in);
+				if (inBody) {
+					body.write(in.array(), start, in.position() - start);
+				}
+				if (state == HttpMessageParser.HEAD_COMPLETE) {
+					inBody = true;
+				} else if (state == HttpMessageParser.MESSAGE_COMPLETE) {
+					respond(channel, body);
+					parser.reset();
+					body.reset();
+					inBody = false;
+				} else {
+					break;
+				}
+			}
+			in.compact();
+		}
+	}
+
+	private static void respond(SocketChannel channel, ByteArrayOutputStream body) throws IOException {
+		byte[] head =
+		              ("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: " +
+		               body.size() + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer[] response = { ByteBuffer.wrap(head), ByteBuffer.wrap(body.toByteArray()) };
+		while (response[0].hasRemaining() || response[1].hasRemaining()) {
+			channel.write(response);
+		}
+	}
+
+}
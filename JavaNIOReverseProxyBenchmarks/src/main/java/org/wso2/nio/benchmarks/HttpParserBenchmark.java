@@ -0,0 +1,90 @@
+package org.wso2.nio.benchmarks;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.nio.HttpMessageHead;
+import org.wso2.nio.HttpMessageParser;
+
+/**
+ * Cost of framing messages with the {@link HttpMessageParser}: the head of a
+ * typical browser request, and a 16KB response body sent in 1KB chunks. The
+ * chunked response is fed in reads of 4KB, as it comes off the socket.
+ *
+ * @author ravindra
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpParserBenchmark {
+	private static final int READ_SIZE = 4096;
+
+	private final HttpMessageParser requestParser = new HttpMessageParser(true);
+	private final HttpMessageParser responseParser = new HttpMessageParser(false);
+
+	private ByteBuffer request;
+	private ByteBuffer chunkedResponse;
+
+	@Setup
+	public void setUp() {
+		String head =
+		              "GET /catalog/items?category=books&page=2 HTTP/1.1\r\n" + "Host: shop.example.com\r\n" +
+		                      "User-Agent: Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/118.0\r\n" +
+		                      "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+		                      "Accept-Language: en-US,en;q=0.5\r\n" + "Accept-Encoding: gzip, deflate, br\r\n" +
+		                      "Referer: https://shop.example.com/catalog/items?category=books\r\n" +
+		                      "Cookie: session=4f2a9c1e7b3d; theme=dark\r\n" + "Connection: keep-alive\r\n\r\n";
+		request = ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1));
+
+		StringBuilder sb = new StringBuilder("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n");
+		sb.append("Transfer-Encoding: chunked\r\n\r\n");
+		char[] chunk = new char[1024];
+		Arrays.fill(chunk, 'x');
+		for (int i = 0; i < 16; i++) {
+			sb.append("400\r\n").append(chunk).append("\r\n");
+		}
+		sb.append("0\r\n\r\n");
+		chunkedResponse = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Benchmark
+	public HttpMessageHead parseRequestHead() throws ProtocolException {
+		requestParser.reset();
+		ByteBuffer src = request.duplicate();
+		requestParser.parse(src);
+		return requestParser.getHead();
+	}
+
+	@Benchmark
+	public int parseChunkedResponse() throws ProtocolException {
+		responseParser.reset();
+		responseParser.setRequestMethod("GET");
+		ByteBuffer src = chunkedResponse.duplicate();
+		int state = HttpMessageParser.NEED_MORE;
+		while (state != HttpMessageParser.MESSAGE_COMPLETE) {
+			ByteBuffer read = src.duplicate();
+			read.limit(Math.min(src.limit(), src.position() + READ_SIZE));
+			state = responseParser.parse(read);
+			src.position(read.position());
+		}
+		return src.position();
+	}
+
+}
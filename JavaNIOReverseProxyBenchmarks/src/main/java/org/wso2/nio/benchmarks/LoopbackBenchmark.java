@@ -0,0 +1,152 @@
+package org.wso2.nio.benchmarks;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.nio.HttpMessageHead;
+import org.wso2.nio.HttpMessageParser;
+import org.wso2.nio.ReactorGroup;
+
+/**
+ * End to end round trips through the proxy over loopback, against an
+ * in-process {@link EchoBackend}. Each benchmark thread is a client sending
+ * POST requests over a connection of its own, which it keeps alive; run with
+ * <code>-t</code> to have several clients.
+ *
+ * The proxy is started on either engine, the ioReactors or the
+ * {@link org.wso2.nio.VirtualThreadEngine}, in http and in tcp mode, with
+ * logging turned down to warnings so that the per-request log lines do not
+ * dominate. Its threads never end, so the forked VM is told not to wait
+ * for them once the benchmark is done.
+ *
+ * @author ravindra
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class LoopbackBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Proxy {
+		@Param({ "http", "tcp" })
+		public String mode;
+
+		@Param({ ReactorGroup.ENGINE_NIO, ReactorGroup.ENGINE_VIRTUAL })
+		public String engine;
+
+		@Param({ "2" })
+		public int ioThreads;
+
+		int port;
+		private EchoBackend backend;
+
+		@Setup
+		public void start() throws IOException {
+			Logger.getRootLogger().setLevel(Level.WARN);
+
+			backend = new EchoBackend();
+			Thread t = new Thread(backend, "echo-backend-acceptor");
+			t.setDaemon(true);
+			t.start();
+
+			ServerSocket probe = new ServerSocket(0);
+			port = probe.getLocalPort();
+			probe.close();
+
+			Properties prop = new Properties();
+			prop.setProperty("localPort", String.valueOf(port));
+			prop.setProperty("remoteHost", "127.0.0.1");
+			prop.setProperty("remotePort", String.valueOf(backend.getPort()));
+			prop.setProperty("mode", mode);
+			prop.setProperty("engine", engine);
+			prop.setProperty("ioThreads", String.valueOf(ioThreads));
+			ReactorGroup.startEngine(prop);
+		}
+
+		@TearDown
+		public void stop() throws IOException {
+			backend.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		@Param({ "128", "16384" })
+		public int payloadSize;
+
+		private SocketChannel channel;
+		private ByteBuffer request;
+		private final ByteBuffer in = ByteBuffer.allocate(65536);
+		private final HttpMessageParser parser = new HttpMessageParser(false);
+
+		@Setup
+		public void connect(Proxy proxy) throws IOException {
+			channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxy.port));
+			channel.socket().setTcpNoDelay(true);
+			byte[] head =
+			              ("POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/octet-stream\r\n" +
+			               "Content-Length: " + payloadSize + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			request = ByteBuffer.allocate(head.length + payloadSize);
+			request.put(head).put(new byte[payloadSize]).flip();
+		}
+
+		@TearDown
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		HttpMessageHead exchange() throws IOException {
+			ByteBuffer src = request.duplicate();
+			while (src.hasRemaining()) {
+				channel.write(src);
+			}
+
+			parser.reset();
+			parser.setRequestMethod("POST");
+			HttpMessageHead head = null;
+			while (true) {
+				in.flip();
+				int state = parser.parse(in);
+				in.compact();
+				if (state == HttpMessageParser.HEAD_COMPLETE) {
+					head = parser.getHead();
+				} else if (state == HttpMessageParser.MESSAGE_COMPLETE) {
+					return head;
+				} else if (channel.read(in) == -1) {
+					throw new EOFException("The proxy closed the connection");
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public HttpMessageHead roundTrip(Client client) throws IOException {
+		return client.exchange();
+	}
+
+}
@@ -0,0 +1,41 @@
+package org.wso2.nio.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A channel taking every byte written to it, standing in for a socket with
+ * room in its send buffer.
+ *
+ * @author ravindra
+ *
+ */
+class NullChannel implements GatheringByteChannel {
+
+	public long write(ByteBuffer[] srcs, int offset, int length) {
+		long written = 0;
+		for (int i = offset; i < offset + length; i++) {
+			written += srcs[i].remaining();
+			srcs[i].position(srcs[i].limit());
+		}
+		return written;
+	}
+
+	public long write(ByteBuffer[] srcs) {
+		return write(srcs, 0, srcs.length);
+	}
+
+	public int write(ByteBuffer src) {
+		int written = src.remaining();
+		src.position(src.limit());
+		return written;
+	}
+
+	public boolean isOpen() {
+		return true;
+	}
+
+	public void close() {
+	}
+
+}
@@ -0,0 +1,376 @@
+package org.wso2.nio.load;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.wso2.nio.Histogram;
+import org.wso2.nio.HttpMessageHead;
+import org.wso2.nio.HttpMessageParser;
+
+/**
+ * Drives HTTP traffic at a target over many keep-alive connections, spread
+ * over a few selector threads, and measures the latency of every request.
+ *
+ * In a closed loop every connection sends its next request as soon as the
+ * response to the previous one is in, so the load backs off when the target
+ * slows down and the plain latencies understate what a steady stream of users
+ * would see. They are corrected the way HdrHistogram does: a request taking k
+ * times the expected interval between requests also stands for the k - 1
+ * requests which would have been sent meanwhile. The expected interval is the
+ * median latency seen during the warm up.
+ *
+ * In an open loop requests are due at a constant rate whatever the target
+ * does. A request due while all connections are busy waits for one, and its
+ * response time is counted from when it was due, which is what a client
+ * would see; the service time counts from when it was actually sent.
+ *
+ * @author ravindra
+ *
+ */
+public class LoadGenerator {
+	private static final int READ_BUFFER_SIZE = 65536;
+
+	private final InetSocketAddress target;
+	private final int connections;
+	private final int threads;
+	private final byte[] request;
+
+	/**
+	 * @param target
+	 *            the proxy or service to drive
+	 * @param connections
+	 *            number of connections kept open to the target
+	 * @param threads
+	 *            number of selector threads the connections are spread over
+	 * @param path
+	 *            requested on the target
+	 * @param requestSize
+	 *            bytes in the body of each request, sent as a POST, or 0 to
+	 *            send GET requests
+	 */
+	public LoadGenerator(InetSocketAddress target, int connections, int threads, String path, int requestSize) {
+		if (connections < 1 || threads < 1 || threads > connections) {
+			throw new IllegalArgumentException("There must be at least one connection per thread");
+		}
+		if (requestSize < 0) {
+			throw new IllegalArgumentException("The request size must not be negative");
+		}
+		this.target = target;
+		this.connections = connections;
+		this.threads = threads;
+
+		String head =
+		              (requestSize == 0 ? "GET " : "POST ") + path + " HTTP/1.1\r\nHost: " + target.getHostString() +
+		                      ":" + target.getPort() + "\r\n";
+		if (requestSize > 0) {
+			head += "Content-Type: application/octet-stream\r\nContent-Length: " + requestSize + "\r\n";
+		}
+		byte[] headBytes = (head + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		this.request = new byte[headBytes.length + requestSize];
+		System.arraycopy(headBytes, 0, this.request, 0, headBytes.length);
+	}
+
+	/**
+	 * Drives the target for the warm up and then for the measured duration.
+	 *
+	 * @param rate
+	 *            requests per second in an open loop, or 0 for a closed loop
+	 * @return what was measured after the warm up
+	 */
+	public Result run(double rate, long warmup, long duration, TimeUnit unit) throws InterruptedException {
+		if (rate < 0) {
+			throw new IllegalArgumentException("The rate must not be negative");
+		}
+		long start = System.nanoTime();
+		long measureFrom = start + unit.toNanos(warmup);
+		long measureTo = measureFrom + unit.toNanos(duration);
+		Result result = new Result(rate, unit.toNanos(duration));
+
+		Thread[] drivers = new Thread[this.threads];
+		for (int i = 0; i < this.threads; i++) {
+			int share = this.connections / this.threads + (i < this.connections % this.threads ? 1 : 0);
+			drivers[i] =
+			             new Thread(new Driver(share, rate / this.threads, start, measureFrom, measureTo, result),
+			                        "load-generator-" + i);
+			drivers[i].start();
+		}
+		for (Thread driver : drivers) {
+			driver.join();
+		}
+		return result;
+	}
+
+	/**
+	 * Records a latency measured in a closed loop along with the latencies of
+	 * the requests it held up, given the expected interval between requests.
+	 */
+	static void recordCorrected(Histogram histogram, long value, long expectedInterval) {
+		histogram.record(value);
+		if (expectedInterval <= 0) {
+			return;
+		}
+		for (long missed = value - expectedInterval; missed >= expectedInterval; missed -= expectedInterval) {
+			histogram.record(missed);
+		}
+	}
+
+	/**
+	 * Throughput and latencies measured in one run.
+	 */
+	public static class Result {
+		public final double rate;
+		public final long durationNanos;
+
+		/** Latency as a client would see it, corrected for coordinated omission */
+		public final Histogram responseTime = new Histogram();
+		/** Latency from sending a request to receiving its response */
+		public final Histogram serviceTime = new Histogram();
+
+		public final LongAdder completed = new LongAdder();
+		public final LongAdder errors = new LongAdder();
+		public final LongAdder unsuccessful = new LongAdder();
+		/** Requests of an open loop which were due but never got a connection */
+		public final LongAdder unsent = new LongAdder();
+
+		final Histogram warmup = new Histogram();
+
+		Result(double rate, long durationNanos) {
+			this.rate = rate;
+			this.durationNanos = durationNanos;
+		}
+
+		public double getThroughput() {
+			return this.completed.sum() * (double) TimeUnit.SECONDS.toNanos(1) / this.durationNanos;
+		}
+	}
+
+	/**
+	 * Drives a share of the connections on one selector thread.
+	 */
+	private class Driver implements Runnable {
+		private final int connectionCount;
+		private final double rate;
+		private final long start;
+		private final long measureFrom;
+		private final long measureTo;
+		private final Result result;
+
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final ArrayDeque<Client> idle = new ArrayDeque<Client>();
+		// Times the requests of an open loop became due at, waiting for a
+		// connection
+		private final ArrayDeque<Long> backlog = new ArrayDeque<Long>();
+		private Selector selector;
+		private long expectedInterval = -1;
+
+		Driver(int connectionCount, double rate, long start, long measureFrom, long measureTo, Result result) {
+			this.connectionCount = connectionCount;
+			this.rate = rate;
+			this.start = start;
+			this.measureFrom = measureFrom;
+			this.measureTo = measureTo;
+			this.result = result;
+		}
+
+		public void run() {
+			try {
+				this.selector = Selector.open();
+				try {
+					for (int i = 0; i < this.connectionCount; i++) {
+						connect(new Client());
+					}
+					drive();
+				} finally {
+					for (SelectionKey key : this.selector.keys()) {
+						key.channel().close();
+					}
+					this.selector.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("The load generator failed", e);
+			}
+		}
+
+		private void drive() throws IOException {
+			boolean open = this.rate > 0;
+			double interval = open ? TimeUnit.SECONDS.toNanos(1) / this.rate : 0;
+			long sent = 0;
+			long nextDue = this.start;
+
+			long now = System.nanoTime();
+			while (now < this.measureTo) {
+				if (open) {
+					while (nextDue <= now) {
+						this.backlog.add(nextDue);
+						nextDue = this.start + (long) (++sent * interval);
+					}
+				}
+				while (!this.idle.isEmpty() && (!open || !this.backlog.isEmpty())) {
+					send(this.idle.poll(), open ? this.backlog.poll() : now, now);
+				}
+
+				// Spins through the last millisecond before a request is due,
+				// so that it goes out on time
+				long until = open ? Math.min(nextDue, this.measureTo) : this.measureTo;
+				long wait = TimeUnit.NANOSECONDS.toMillis(until - now);
+				if (wait > 0) {
+					this.selector.select(wait);
+				} else {
+					this.selector.selectNow();
+				}
+
+				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					Client client = (Client) key.attachment();
+					try {
+						if (key.isConnectable()) {
+							((SocketChannel) key.channel()).finishConnect();
+							key.interestOps(SelectionKey.OP_READ);
+							this.idle.add(client);
+						} else {
+							if (key.isWritable()) {
+								write(client);
+							}
+							if (key.isValid() && key.isReadable()) {
+								read(client);
+							}
+						}
+					} catch (IOException e) {
+						fail(client);
+					}
+				}
+				now = System.nanoTime();
+			}
+
+			for (Long due : this.backlog) {
+				if (due >= this.measureFrom) {
+					this.result.unsent.increment();
+				}
+			}
+		}
+
+		private void connect(Client client) throws IOException {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			client.channel = channel;
+			client.parser.reset();
+			client.inFlight = false;
+			if (channel.connect(target)) {
+				client.key = channel.register(this.selector, SelectionKey.OP_READ, client);
+				this.idle.add(client);
+			} else {
+				client.key = channel.register(this.selector, SelectionKey.OP_CONNECT, client);
+			}
+		}
+
+		private void send(Client client, long due, long now) throws IOException {
+			client.due = due;
+			client.sent = now;
+			client.inFlight = true;
+			client.parser.reset();
+			client.request.clear();
+			try {
+				write(client);
+			} catch (IOException e) {
+				fail(client);
+			}
+		}
+
+		private void write(Client client) throws IOException {
+			client.channel.write(client.request);
+			client.key.interestOps(client.request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		private void read(Client client) throws IOException {
+			this.readBuffer.clear();
+			if (client.channel.read(this.readBuffer) == -1) {
+				fail(client);
+				return;
+			}
+			this.readBuffer.flip();
+			if (!client.inFlight) {
+				// Nothing was asked for
+				fail(client);
+				return;
+			}
+			while (true) {
+				int state = client.parser.parse(this.readBuffer);
+				if (state == HttpMessageParser.MESSAGE_COMPLETE) {
+					break;
+				} else if (state == HttpMessageParser.NEED_MORE) {
+					return;
+				}
+			}
+			if (this.readBuffer.hasRemaining()) {
+				throw new ProtocolException("Data received after the response");
+			}
+			completed(client, client.parser.getHead(), System.nanoTime());
+		}
+
+		private void completed(Client client, HttpMessageHead head, long now) throws IOException {
+			client.inFlight = false;
+			if (client.sent < this.measureFrom) {
+				this.result.warmup.record(now - client.sent);
+			} else if (now <= this.measureTo) {
+				this.result.completed.increment();
+				if (head.status < 200 || head.status >= 300) {
+					this.result.unsuccessful.increment();
+				}
+				this.result.serviceTime.record(now - client.sent);
+				if (this.rate > 0) {
+					this.result.responseTime.record(now - client.due);
+				} else {
+					if (this.expectedInterval < 0) {
+						this.expectedInterval = this.result.warmup.getValueAtPercentile(50);
+					}
+					recordCorrected(this.result.responseTime, now - client.sent, this.expectedInterval);
+				}
+			}
+
+			if (head.isKeepAlive()) {
+				this.idle.add(client);
+			} else {
+				client.channel.close();
+				connect(client);
+			}
+		}
+
+		private void fail(Client client) {
+			if (client.inFlight && client.sent >= this.measureFrom) {
+				this.result.errors.increment();
+			}
+			this.idle.remove(client);
+			try {
+				client.channel.close();
+				connect(client);
+			} catch (IOException e) {
+				// Left closed; the other connections carry on
+				this.result.errors.increment();
+			}
+		}
+	}
+
+	private class Client {
+		final ByteBuffer request = ByteBuffer.wrap(LoadGenerator.this.request);
+		final HttpMessageParser parser = new HttpMessageParser(false);
+		SocketChannel channel;
+		SelectionKey key;
+		boolean inFlight;
+		long due;
+		long sent;
+	}
+
+}
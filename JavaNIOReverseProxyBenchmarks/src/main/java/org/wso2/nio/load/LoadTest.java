@@ -0,0 +1,167 @@
+package org.wso2.nio.load;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.wso2.nio.Histogram;
+import org.wso2.nio.ReactorGroup;
+
+/**
+ * Finds the saturation point of the proxy: starts a {@link StubBackend} and
+ * the proxy in-process, drives the proxy with a {@link LoadGenerator} at each
+ * of the given rates in turn and prints the throughput and latency
+ * percentiles of every step. The latencies grow without bound once the rate
+ * is beyond what the proxy sustains, and the throughput stops following the
+ * rate.
+ *
+ * Arguments are <code>name=value</code> pairs:
+ * <ul>
+ * <li>rate - comma separated requests per second of each step, 0 for a
+ * closed loop. Defaults to 0.</li>
+ * <li>connections, threads - connections kept open to the proxy and the
+ * threads driving them. Default to 64 and 2.</li>
+ * <li>warmup, duration - seconds of each step spent warming up and measuring.
+ * Default to 2 and 10.</li>
+ * <li>path, requestSize - requested path, and bytes of the POST body or 0 for
+ * GET requests. Default to / and 0.</li>
+ * <li>backendLatencyMin, backendLatencyMax, backendResponseSize,
+ * backendChunkSize - behaviour of the stub backend, see
+ * {@link StubBackend#load(Properties)}.</li>
+ * <li>proxy.* - configuration of the proxy, as in config.properties without
+ * the prefix. The proxy listens on a free port and talks to the stub backend
+ * unless told otherwise.</li>
+ * <li>targetHost, targetPort - drive a proxy running elsewhere instead, in
+ * which case neither the proxy nor the stub backend is started.</li>
+ * </ul>
+ *
+ * The results are printed one sample per line, labelled with the rate of the
+ * step, in the format of the metrics endpoint of the proxy.
+ *
+ * @author ravindra
+ *
+ */
+public class LoadTest {
+	private static final String PROXY_PREFIX = "proxy.";
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Properties prop = parseArguments(args);
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		InetSocketAddress target;
+		if (prop.getProperty("targetPort") != null) {
+			target =
+			         new InetSocketAddress(prop.getProperty("targetHost", "127.0.0.1"),
+			                               Integer.parseInt(prop.getProperty("targetPort")));
+		} else {
+			StubBackend backend = StubBackend.load(prop);
+			startThread(backend, "stub-backend");
+			target = new InetSocketAddress("127.0.0.1", startProxy(prop, backend.getPort()));
+		}
+
+		int connections = Integer.parseInt(prop.getProperty("connections", "64"));
+		int threads = Integer.parseInt(prop.getProperty("threads", "2"));
+		long warmup = Long.parseLong(prop.getProperty("warmup", "2"));
+		long duration = Long.parseLong(prop.getProperty("duration", "10"));
+		if (duration < 1 || warmup < 0) {
+			throw new IllegalArgumentException("The duration must be at least a second, the warmup not negative");
+		}
+		LoadGenerator generator =
+		                          new LoadGenerator(target, connections, threads, prop.getProperty("path", "/"),
+		                                            Integer.parseInt(prop.getProperty("requestSize", "0")));
+
+		for (String rate : prop.getProperty("rate", "0").split(",")) {
+			LoadGenerator.Result result =
+			                              generator.run(Double.parseDouble(rate.trim()), warmup, duration,
+			                                            TimeUnit.SECONDS);
+			print(result, System.out);
+		}
+		// The proxy threads never end on their own
+		System.exit(0);
+	}
+
+	static void print(LoadGenerator.Result result, PrintStream out) {
+		String step = "{rate=\"" + (result.rate > 0 ? format(result.rate) : "closed") + "\"";
+		out.println("loadtest_throughput" + step + "} " + format(result.getThroughput()));
+		out.println("loadtest_completed_total" + step + "} " + result.completed.sum());
+		out.println("loadtest_unsuccessful_total" + step + "} " + result.unsuccessful.sum());
+		out.println("loadtest_errors_total" + step + "} " + result.errors.sum());
+		out.println("loadtest_unsent_total" + step + "} " + result.unsent.sum());
+		printLatencies("loadtest_response_time_us", step, result.responseTime, out);
+		printLatencies("loadtest_service_time_us", step, result.serviceTime, out);
+		out.flush();
+	}
+
+	private static void printLatencies(String name, String step, Histogram histogram, PrintStream out) {
+		long[] values = histogram.getValuesAtPercentiles(PERCENTILES);
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			out.println(name + step + ",quantile=\"" + format(PERCENTILES[i] / 100) + "\"} " +
+			            TimeUnit.NANOSECONDS.toMicros(values[i]));
+		}
+		out.println(name + "_max" + step + "} " + TimeUnit.NANOSECONDS.toMicros(histogram.getMax()));
+	}
+
+	private static String format(double value) {
+		if (value == Math.rint(value)) {
+			return String.valueOf((long) value);
+		}
+		return String.format(Locale.ROOT, "%.4f", value).replaceAll("0+$", "");
+	}
+
+	/**
+	 * Starts the proxy with the <code>proxy.</code> properties, in front of
+	 * the stub backend unless they say otherwise.
+	 *
+	 * @return the port the proxy listens on
+	 */
+	private static int startProxy(Properties prop, int backendPort) throws IOException {
+		Properties proxyProp = new Properties();
+		proxyProp.setProperty("remoteHost", "127.0.0.1");
+		proxyProp.setProperty("remotePort", String.valueOf(backendPort));
+		Enumeration<?> names = prop.propertyNames();
+		while (names.hasMoreElements()) {
+			String name = (String) names.nextElement();
+			if (name.startsWith(PROXY_PREFIX)) {
+				proxyProp.setProperty(name.substring(PROXY_PREFIX.length()), prop.getProperty(name));
+			}
+		}
+		if (proxyProp.getProperty("localPort") == null) {
+			ServerSocket probe = new ServerSocket(0);
+			proxyProp.setProperty("localPort", String.valueOf(probe.getLocalPort()));
+			probe.close();
+		}
+		ReactorGroup.startEngine(proxyProp);
+		return Integer.parseInt(proxyProp.getProperty("localPort"));
+	}
+
+	/**
+	 * Reads <code>name=value</code> arguments.
+	 */
+	static Properties parseArguments(String[] args) {
+		Properties prop = new Properties();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("Arguments must be given as name=value: " + arg);
+			}
+			prop.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		return prop;
+	}
+
+	private static void startThread(Runnable runnable, String name) {
+		Thread t = new Thread(runnable, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+}
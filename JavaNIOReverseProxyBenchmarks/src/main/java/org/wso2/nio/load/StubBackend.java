@@ -0,0 +1,308 @@
+package org.wso2.nio.load;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.wso2.nio.HttpMessageParser;
+
+/**
+ * A stand-in backend answering every request with the same response after a
+ * fixed or uniformly random latency, so that the proxy can be measured
+ * against a backend of known behaviour. It runs on a single selector thread;
+ * the latency is waited out on a timer queue, not by blocking, so any number
+ * of requests may be waiting at once.
+ *
+ * Responses on a connection go out in the order of the requests, each no
+ * earlier than its latency after its request arrived.
+ *
+ * @author ravindra
+ *
+ */
+public class StubBackend implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(StubBackend.class);
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final long minLatencyNanos;
+	private final long maxLatencyNanos;
+	private final byte[] response;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(65536);
+	private final PriorityQueue<Pending> pending = new PriorityQueue<Pending>();
+	private volatile boolean closed;
+
+	/**
+	 * @param port
+	 *            to listen on, 0 for any free port
+	 * @param minLatencyMicros
+	 *            lowest latency of a response
+	 * @param maxLatencyMicros
+	 *            highest latency of a response, equal to the lowest for a
+	 *            fixed latency
+	 * @param responseSize
+	 *            bytes in the body of each response
+	 * @param chunkSize
+	 *            bytes in each chunk of a chunked body, 0 to send the body
+	 *            with a Content-Length
+	 */
+	public StubBackend(int port, long minLatencyMicros, long maxLatencyMicros, int responseSize, int chunkSize)
+	        throws IOException {
+		if (minLatencyMicros < 0 || maxLatencyMicros < minLatencyMicros) {
+			throw new IllegalArgumentException("The latency must satisfy 0 <= min <= max");
+		}
+		if (responseSize < 0 || chunkSize < 0) {
+			throw new IllegalArgumentException("The response and chunk sizes must not be negative");
+		}
+		this.minLatencyNanos = TimeUnit.MICROSECONDS.toNanos(minLatencyMicros);
+		this.maxLatencyNanos = TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros);
+		this.response = buildResponse(responseSize, chunkSize);
+
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.configureBlocking(false);
+		this.serverChannel.socket().bind(new InetSocketAddress((InetAddress) null, port));
+		this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Creates a backend from the <code>backendPort</code>,
+	 * <code>backendLatencyMin</code> and <code>backendLatencyMax</code> (in
+	 * microseconds), <code>backendResponseSize</code> and
+	 * <code>backendChunkSize</code> properties.
+	 */
+	public static StubBackend load(Properties prop) throws IOException {
+		int port = Integer.parseInt(prop.getProperty("backendPort", "0"));
+		long minLatency = Long.parseLong(prop.getProperty("backendLatencyMin", "0"));
+		long maxLatency = Long.parseLong(prop.getProperty("backendLatencyMax", String.valueOf(minLatency)));
+		int responseSize = Integer.parseInt(prop.getProperty("backendResponseSize", "1024"));
+		int chunkSize = Integer.parseInt(prop.getProperty("backendChunkSize", "0"));
+		return new StubBackend(port, minLatency, maxLatency, responseSize, chunkSize);
+	}
+
+	public int getPort() {
+		return this.serverChannel.socket().getLocalPort();
+	}
+
+	public void close() {
+		this.closed = true;
+		this.selector.wakeup();
+	}
+
+	public void run() {
+		try {
+			while (!this.closed) {
+				Pending next = this.pending.peek();
+				if (next == null) {
+					this.selector.select();
+				} else {
+					long wait = TimeUnit.NANOSECONDS.toMillis(next.due - System.nanoTime());
+					if (wait > 0) {
+						this.selector.select(wait);
+					} else {
+						this.selector.selectNow();
+					}
+				}
+
+				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							if (key.isReadable()) {
+								read(key);
+							}
+							if (key.isValid() && key.isWritable()) {
+								write(key);
+							}
+						}
+					} catch (IOException e) {
+						close(key);
+					}
+				}
+
+				respondToDue();
+			}
+		} catch (IOException e) {
+			LOGGER.error("The stub backend stopped.", e);
+		} finally {
+			for (SelectionKey key : this.selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = this.serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.register(this.selector, SelectionKey.OP_READ, new StubConnection());
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		StubConnection connection = (StubConnection) key.attachment();
+		this.readBuffer.clear();
+		if (channel.read(this.readBuffer) == -1) {
+			close(key);
+			return;
+		}
+		this.readBuffer.flip();
+		try {
+			while (true) {
+				int state = connection.parser.parse(this.readBuffer);
+				if (state == HttpMessageParser.MESSAGE_COMPLETE) {
+					connection.parser.reset();
+					schedule(key, connection);
+				} else if (state == HttpMessageParser.NEED_MORE) {
+					break;
+				}
+			}
+		} catch (ProtocolException e) {
+			LOGGER.warn("Closing a connection sending a malformed request: " + e.getMessage());
+			close(key);
+		}
+	}
+
+	private void schedule(SelectionKey key, StubConnection connection) {
+		long latency = this.minLatencyNanos;
+		if (this.maxLatencyNanos > this.minLatencyNanos) {
+			latency += ThreadLocalRandom.current().nextLong(this.maxLatencyNanos - this.minLatencyNanos + 1);
+		}
+		// Never ahead of the response to the previous request
+		long due = Math.max(System.nanoTime() + latency, connection.lastDue);
+		connection.lastDue = due;
+		this.pending.add(new Pending(key, due));
+	}
+
+	private void respondToDue() {
+		long now = System.nanoTime();
+		Pending next;
+		while ((next = this.pending.peek()) != null && next.due <= now) {
+			this.pending.poll();
+			SelectionKey key = next.key;
+			if (!key.isValid()) {
+				continue;
+			}
+			StubConnection connection = (StubConnection) key.attachment();
+			connection.outbound.add(ByteBuffer.wrap(this.response));
+			try {
+				write(key);
+			} catch (IOException e) {
+				close(key);
+			}
+		}
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ArrayDeque<ByteBuffer> outbound = ((StubConnection) key.attachment()).outbound;
+		while (!outbound.isEmpty()) {
+			ByteBuffer buffer = outbound.peek();
+			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			outbound.poll();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private static void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	private static byte[] buildResponse(int responseSize, int chunkSize) {
+		StringBuilder sb = new StringBuilder("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n");
+		if (chunkSize == 0) {
+			sb.append("Content-Length: ").append(responseSize).append("\r\n\r\n");
+			appendBody(sb, responseSize);
+		} else {
+			sb.append("Transfer-Encoding: chunked\r\n\r\n");
+			for (int sent = 0; sent < responseSize; sent += chunkSize) {
+				int size = Math.min(chunkSize, responseSize - sent);
+				sb.append(Integer.toHexString(size)).append("\r\n");
+				appendBody(sb, size);
+				sb.append("\r\n");
+			}
+			sb.append("0\r\n\r\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static void appendBody(StringBuilder sb, int size) {
+		for (int i = 0; i < size; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+	}
+
+	/**
+	 * Runs a stub backend on its own, for a proxy started elsewhere. Takes the
+	 * properties described at {@link #load(Properties)} as
+	 * <code>name=value</code> arguments.
+	 */
+	public static void main(String[] args) throws IOException {
+		StubBackend backend = load(LoadTest.parseArguments(args));
+		LOGGER.info("Stub backend listening on port " + backend.getPort() + ".");
+		backend.run();
+	}
+
+	private static class StubConnection {
+		final HttpMessageParser parser = new HttpMessageParser(true);
+		final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+		long lastDue = Long.MIN_VALUE;
+	}
+
+	private static class Pending implements Comparable<Pending> {
+		final SelectionKey key;
+		final long due;
+
+		Pending(SelectionKey key, long due) {
+			this.key = key;
+			this.due = due;
+		}
+
+		public int compareTo(Pending other) {
+			return Long.compare(this.due, other.due);
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Accepts the incoming client connections and hands each of them over to one
+ * of the listening ioReactors of a {@link ReactorGroup}. Several acceptors may
+ * share the same server socket channel, in which case only one of them gets to
+ * accept a given connection.
+ * 
+ * @author ravindra
+ *
+ */
+public class Acceptor implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(Acceptor.class);
+
+	private final ReactorGroup group;
+
+	// The selector we'll be monitoring
+	private final Selector selector;
+
+	public Acceptor(ServerSocketChannel serverChannel, ReactorGroup group) throws IOException {
+		this.group = group;
+		this.selector = SelectorProvider.provider().openSelector();
+
+		// Register the server socket channel, indicating an interest in
+		// accepting new connections
+		serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				// Wait for a client to connect
+				this.selector.select();
+				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+
+					if (key.isValid() && key.isAcceptable()) {
+						this.accept(key);
+					}
+				}
+			} catch (Exception e) {
+				LOGGER.error("Exception was thrown while accepting client connections.", e);
+			}
+		}
+	}
+
+	private void accept(SelectionKey key) throws IOException {
+		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+		// Accept the connection and make it non-blocking. Another acceptor
+		// may have taken it already.
+		SocketChannel socketChannel = serverSocketChannel.accept();
+		if (socketChannel == null) {
+			return;
+		}
+		Metrics.getDefault().accepted.mark();
+		socketChannel.configureBlocking(false);
+
+		// The connection is served by the chosen reactor from now on
+		this.group.next().register(socketChannel);
+	}
+
+}
@@ -0,0 +1,279 @@
+package org.wso2.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Binary access log with one fixed size record per exchange. The reactors
+ * write the records into a ring preallocated off-heap, claiming a slot with a
+ * compare-and-set and publishing it with an ordered store, so that logging
+ * an exchange neither locks, allocates nor formats anything. A background
+ * thread copies the published records to the file in batches.
+ *
+ * When the writer falls behind by a whole ring, records are dropped and
+ * counted rather than holding up a reactor.
+ *
+ * The file starts with a header of {@link #MAGIC}, the format version and
+ * the record size, followed by the records as laid out by the offsets below,
+ * big-endian. {@link AccessLogReader} renders them as text.
+ *
+ * @author ravindra
+ *
+ */
+public class AccessLog implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(AccessLog.class);
+
+	public static final long MAGIC = 0x4e494f4143434c47L; // "NIOACCLG"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 16;
+	public static final int RECORD_SIZE = 128;
+
+	// Layout of a record
+	static final int TIME = 0; // epoch milliseconds the exchange ended at
+	static final int TOTAL_TIME = 8; // nanoseconds from reading the request
+	static final int FIRST_BYTE_TIME = 16; // nanoseconds to the first response byte, -1 if none
+	static final int RESPONSE_BYTES = 24;
+	static final int CLIENT_ADDRESS = 32; // 16 bytes, IPv4 addresses mapped
+	static final int CLIENT_PORT = 48; // unsigned short
+	static final int STATUS = 50; // short
+	static final int METHOD = 52; // byte, an index into METHODS
+	static final int FLAGS = 53; // byte
+	static final int BACKEND = 54; // short, -1 if none
+	static final int URI_LENGTH = 56; // unsigned byte
+	static final int URI = 57;
+	static final int MAX_URI_LENGTH = RECORD_SIZE - URI;
+
+	public static final int FLAG_CACHE_HIT = 1;
+	public static final int FLAG_COALESCED = 2;
+	public static final int FLAG_FAILED = 4;
+	public static final int FLAG_TIMED_OUT = 8;
+	public static final int FLAG_URI_TRUNCATED = 16;
+	public static final int FLAG_REJECTED = 32;
+
+	static final String[] METHODS =
+	                                { "OTHER", "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE",
+	                                 "CONNECT" };
+
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	// How long the writer sleeps when there is nothing to write, in
+	// milliseconds
+	private static final long FLUSH_INTERVAL = 10;
+
+	private final ByteBuffer ring;
+	// The sequence number of the record each slot holds, once published
+	private final AtomicLongArray published;
+	private final int capacity;
+	private final int mask;
+
+	// Records claimed by the reactors, and taken by the writer
+	private final AtomicLong claimed = new AtomicLong();
+	private volatile long consumed;
+	private final LongAdder dropped = new LongAdder();
+
+	private final FileChannel file;
+	private final ByteBuffer ringView;
+	private final ByteBuffer batch;
+	private volatile boolean closed;
+
+	/**
+	 * @param bufferSize
+	 *            records held in the ring, rounded up to a power of two
+	 */
+	public AccessLog(File path, int bufferSize) throws IOException {
+		if (bufferSize < 1 || bufferSize > 1 << 24) {
+			throw new IllegalArgumentException("accessLogBufferSize must be between 1 and 16777216");
+		}
+		int capacity = Integer.highestOneBit(bufferSize);
+		if (capacity < bufferSize) {
+			capacity <<= 1;
+		}
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.ring = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+		this.ringView = this.ring.duplicate();
+		this.published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			this.published.set(i, -1);
+		}
+		this.batch = ByteBuffer.allocateDirect(Math.min(capacity, 512) * RECORD_SIZE);
+
+		this.file =
+		            FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		                             StandardOpenOption.APPEND);
+		if (this.file.size() == 0) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putLong(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).flip();
+			while (header.hasRemaining()) {
+				this.file.write(header);
+			}
+		}
+	}
+
+	/**
+	 * @return the access log the <code>accessLog</code> property asks for, or
+	 *         <code>null</code> if it is not set
+	 */
+	public static AccessLog load(Properties prop) throws IOException {
+		String path = prop.getProperty("accessLog");
+		if (path == null || path.isEmpty()) {
+			return null;
+		}
+		int bufferSize =
+		                 Integer.parseInt(prop.getProperty("accessLogBufferSize", String.valueOf(DEFAULT_BUFFER_SIZE)));
+		return new AccessLog(new File(path), bufferSize);
+	}
+
+	/**
+	 * Records an exchange. May be called from any thread.
+	 *
+	 * @param client
+	 *            the address of the client, <code>null</code> if unknown
+	 * @param backend
+	 *            index of the backend which answered, -1 if none
+	 * @param firstByteTime
+	 *            nanoseconds to the first byte of the response, -1 if none
+	 * @return <code>false</code> if the record has been dropped
+	 */
+	public boolean log(InetSocketAddress client, String method, String uri, int status, long responseBytes,
+	                   int backend, long firstByteTime, long totalTime, int flags) {
+		long sequence;
+		do {
+			sequence = this.claimed.get();
+			if (sequence - this.consumed >= this.capacity) {
+				this.dropped.increment();
+				return false;
+			}
+		} while (!this.claimed.compareAndSet(sequence, sequence + 1));
+
+		int slot = (int) (sequence & this.mask);
+		int offset = slot * RECORD_SIZE;
+		ByteBuffer ring = this.ring;
+		ring.putLong(offset + TIME, System.currentTimeMillis());
+		ring.putLong(offset + TOTAL_TIME, totalTime);
+		ring.putLong(offset + FIRST_BYTE_TIME, firstByteTime);
+		ring.putLong(offset + RESPONSE_BYTES, responseBytes);
+		putAddress(ring, offset, client);
+		ring.putShort(offset + STATUS, (short) status);
+		ring.put(offset + METHOD, (byte) methodCode(method));
+		ring.putShort(offset + BACKEND, (short) backend);
+
+		int length = uri == null ? 0 : Math.min(uri.length(), MAX_URI_LENGTH);
+		if (uri != null && uri.length() > MAX_URI_LENGTH) {
+			flags |= FLAG_URI_TRUNCATED;
+		}
+		ring.put(offset + FLAGS, (byte) flags);
+		ring.put(offset + URI_LENGTH, (byte) length);
+		for (int i = 0; i < length; i++) {
+			ring.put(offset + URI + i, (byte) uri.charAt(i));
+		}
+
+		// Orders the writes above before the writer sees the record
+		this.published.lazySet(slot, sequence);
+		return true;
+	}
+
+	private static void putAddress(ByteBuffer ring, int offset, InetSocketAddress client) {
+		InetAddress address = client != null ? client.getAddress() : null;
+		byte[] bytes = address != null ? address.getAddress() : null;
+		for (int i = 0; i < 16; i++) {
+			ring.put(offset + CLIENT_ADDRESS + i, (byte) 0);
+		}
+		if (bytes != null && bytes.length == 4) {
+			ring.putShort(offset + CLIENT_ADDRESS + 10, (short) 0xffff);
+			for (int i = 0; i < 4; i++) {
+				ring.put(offset + CLIENT_ADDRESS + 12 + i, bytes[i]);
+			}
+		} else if (bytes != null) {
+			for (int i = 0; i < 16; i++) {
+				ring.put(offset + CLIENT_ADDRESS + i, bytes[i]);
+			}
+		}
+		ring.putShort(offset + CLIENT_PORT, (short) (client != null ? client.getPort() : 0));
+	}
+
+	static int methodCode(String method) {
+		for (int i = 1; i < METHODS.length; i++) {
+			if (METHODS[i].equals(method)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return number of records dropped because the writer fell behind
+	 */
+	public long getDroppedCount() {
+		return this.dropped.sum();
+	}
+
+	/**
+	 * Copies the published records to the file until the log is closed.
+	 */
+	public void run() {
+		try {
+			while (!this.closed) {
+				if (this.drain() == 0) {
+					Thread.sleep(FLUSH_INTERVAL);
+				}
+			}
+			while (this.drain() > 0) {
+				// Write out what was logged before closing
+			}
+			this.file.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			LOGGER.error("The access log could not be written, it is disabled from now on.", e);
+			this.closed = true;
+		}
+	}
+
+	/**
+	 * Writes the records published so far, up to a batch.
+	 *
+	 * @return number of records written
+	 */
+	int drain() throws IOException {
+		int count = 0;
+		this.batch.clear();
+		while (this.batch.remaining() >= RECORD_SIZE) {
+			long sequence = this.consumed;
+			int slot = (int) (sequence & this.mask);
+			if (this.published.get(slot) != sequence) {
+				break;
+			}
+			this.ringView.clear();
+			this.ringView.position(slot * RECORD_SIZE).limit(slot * RECORD_SIZE + RECORD_SIZE);
+			this.batch.put(this.ringView);
+			// Hands the slot back to the reactors
+			this.consumed = sequence + 1;
+			count++;
+		}
+		this.batch.flip();
+		while (this.batch.hasRemaining()) {
+			this.file.write(this.batch);
+		}
+		return count;
+	}
+
+	/**
+	 * Makes the writer write out what has been logged so far and stop.
+	 */
+	public void close() {
+		this.closed = true;
+	}
+
+}
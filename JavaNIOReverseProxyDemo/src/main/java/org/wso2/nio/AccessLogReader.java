@@ -0,0 +1,151 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a file written by {@link AccessLog} as text, one line per exchange:
+ *
+ * <pre>
+ * 2026-10-17T09:15:02.123Z 127.0.0.1:50312 "GET /index.html" 200 5120 backend=0 ttfb=1.204ms total=3.877ms
+ * </pre>
+ *
+ * followed by the flags of the exchange, if any: cache-hit, coalesced,
+ * failed, timed-out or rejected. Run it with the file as the only argument.
+ *
+ * @author ravindra
+ *
+ */
+public class AccessLogReader {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: AccessLogReader <access log file>");
+			System.exit(1);
+		}
+		print(args[0], System.out);
+	}
+
+	/**
+	 * Prints the records of the file.
+	 *
+	 * @return number of records printed
+	 */
+	public static long print(String path, PrintStream out) throws IOException {
+		FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(AccessLog.HEADER_SIZE);
+			readFully(file, header);
+			header.flip();
+			if (header.remaining() < AccessLog.HEADER_SIZE || header.getLong() != AccessLog.MAGIC) {
+				throw new IOException(path + " is not an access log");
+			}
+			int version = header.getInt();
+			int recordSize = header.getInt();
+			if (version != AccessLog.VERSION || recordSize != AccessLog.RECORD_SIZE) {
+				throw new IOException("Unsupported access log version " + version + " with records of " + recordSize +
+				                      " bytes");
+			}
+
+			long count = 0;
+			ByteBuffer records = ByteBuffer.allocate(AccessLog.RECORD_SIZE * 1024);
+			StringBuilder sb = new StringBuilder();
+			while (readFully(file, records)) {
+				records.flip();
+				while (records.remaining() >= AccessLog.RECORD_SIZE) {
+					sb.setLength(0);
+					render(records, records.position(), sb);
+					out.println(sb);
+					records.position(records.position() + AccessLog.RECORD_SIZE);
+					count++;
+				}
+				// A record cut short by a crash is left out
+				records.compact();
+			}
+			return count;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Renders the record at the offset of the buffer.
+	 */
+	static void render(ByteBuffer record, int offset, StringBuilder sb) throws IOException {
+		sb.append(Instant.ofEpochMilli(record.getLong(offset + AccessLog.TIME))).append(' ');
+
+		byte[] address = new byte[16];
+		for (int i = 0; i < 16; i++) {
+			address[i] = record.get(offset + AccessLog.CLIENT_ADDRESS + i);
+		}
+		// Mapped IPv4 addresses come back as Inet4Address
+		String host = InetAddress.getByAddress(address).getHostAddress();
+		if (host.indexOf(':') >= 0) {
+			sb.append('[').append(host).append(']');
+		} else {
+			sb.append(host);
+		}
+		sb.append(':').append(record.getShort(offset + AccessLog.CLIENT_PORT) & 0xffff);
+
+		int method = record.get(offset + AccessLog.METHOD) & 0xff;
+		sb.append(" \"").append(method < AccessLog.METHODS.length ? AccessLog.METHODS[method] : "OTHER").append(' ');
+		int uriLength = record.get(offset + AccessLog.URI_LENGTH) & 0xff;
+		for (int i = 0; i < uriLength; i++) {
+			sb.append((char) (record.get(offset + AccessLog.URI + i) & 0xff));
+		}
+		int flags = record.get(offset + AccessLog.FLAGS) & 0xff;
+		if ((flags & AccessLog.FLAG_URI_TRUNCATED) != 0) {
+			sb.append("...");
+		}
+		sb.append("\" ").append(record.getShort(offset + AccessLog.STATUS));
+		sb.append(' ').append(record.getLong(offset + AccessLog.RESPONSE_BYTES));
+
+		short backend = record.getShort(offset + AccessLog.BACKEND);
+		sb.append(" backend=").append(backend >= 0 ? String.valueOf(backend) : "-");
+		long firstByte = record.getLong(offset + AccessLog.FIRST_BYTE_TIME);
+		sb.append(" ttfb=").append(firstByte >= 0 ? millis(firstByte) : "-");
+		sb.append(" total=").append(millis(record.getLong(offset + AccessLog.TOTAL_TIME)));
+
+		if ((flags & AccessLog.FLAG_CACHE_HIT) != 0) {
+			sb.append(" cache-hit");
+		}
+		if ((flags & AccessLog.FLAG_COALESCED) != 0) {
+			sb.append(" coalesced");
+		}
+		if ((flags & AccessLog.FLAG_FAILED) != 0) {
+			sb.append(" failed");
+		}
+		if ((flags & AccessLog.FLAG_TIMED_OUT) != 0) {
+			sb.append(" timed-out");
+		}
+		if ((flags & AccessLog.FLAG_REJECTED) != 0) {
+			sb.append(" rejected");
+		}
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3fms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	/**
+	 * Reads until the buffer is full or the file ends.
+	 *
+	 * @return <code>false</code> if nothing was read
+	 */
+	private static boolean readFully(FileChannel file, ByteBuffer dst) throws IOException {
+		int start = dst.position();
+		while (dst.hasRemaining() && file.read(dst) != -1) {
+			// Keep going
+		}
+		return dst.position() > start;
+	}
+
+}
@@ -0,0 +1,103 @@
+package org.wso2.nio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves the {@link Metrics} as plain text on a port of their own, at
+ * <code>GET /metrics</code>. The port is meant for monitoring systems
+ * scraping the proxy every few seconds, so a single thread answering one
+ * request per connection is enough, and it keeps the scrapes off the
+ * ioReactors.
+ *
+ * @author ravindra
+ *
+ */
+public class AdminServer implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(AdminServer.class);
+
+	// Time a scraper gets to send its request, in milliseconds
+	private static final int READ_TIMEOUT = 5000;
+
+	private final ServerSocket serverSocket;
+	private final Metrics metrics;
+
+	public AdminServer(int port, Metrics metrics) throws IOException {
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.setReuseAddress(true);
+		this.serverSocket.bind(new InetSocketAddress(port));
+		this.metrics = metrics;
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				try {
+					serve(socket);
+				} finally {
+					socket.close();
+				}
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					LOGGER.error("Exception was thrown while serving a metrics request.", e);
+				}
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+	private void serve(Socket socket) throws IOException {
+		socket.setSoTimeout(READ_TIMEOUT);
+		BufferedReader reader =
+		                        new BufferedReader(new InputStreamReader(socket.getInputStream(),
+		                                                                 StandardCharsets.ISO_8859_1));
+		String requestLine = reader.readLine();
+		if (requestLine == null) {
+			return;
+		}
+		// The headers are of no interest, but are read so that the client is
+		// not reset while it is still sending them
+		String line;
+		while ((line = reader.readLine()) != null && !line.isEmpty()) {
+		}
+
+		String[] parts = requestLine.split(" ");
+		String status;
+		byte[] body;
+		if (parts.length < 2 || !"GET".equals(parts[0])) {
+			status = "405 Method Not Allowed";
+			body = new byte[0];
+		} else if (!"/metrics".equals(parts[1]) && !"/".equals(parts[1])) {
+			status = "404 Not Found";
+			body = new byte[0];
+		} else {
+			status = "200 OK";
+			body = metrics.toText().getBytes(StandardCharsets.ISO_8859_1);
+		}
+
+		String head =
+		              "HTTP/1.1 " + status + "\r\nContent-Type: text/plain; charset=us-ascii\r\nContent-Length: " +
+		                      body.length + "\r\nConnection: close\r\n\r\n";
+		OutputStream out = socket.getOutputStream();
+		out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+		out.write(body);
+		out.flush();
+	}
+
+}
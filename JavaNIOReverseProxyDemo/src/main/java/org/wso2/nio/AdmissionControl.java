@@ -0,0 +1,171 @@
+package org.wso2.nio;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether the listening ioReactors take on a request, so that an
+ * overload is turned away at the door instead of piling up inside the proxy.
+ * A request is rejected when
+ *
+ * <ul>
+ * <li>its client has more than <code>maxPipelinedRequests</code> requests
+ * waiting for their responses on the same connection,</li>
+ * <li>its client address has used up its <code>clientRateLimit</code>, see
+ * {@link ClientRateLimiter}, or</li>
+ * <li>as many requests are in flight as the {@link ConcurrencyLimiter}
+ * allows, either <code>maxConcurrentRequests</code> or a limit adapting to
+ * the latency of the backends with <code>adaptiveConcurrency</code>.</li>
+ * </ul>
+ *
+ * A rejected request is answered right away with a 429 Too Many Requests for
+ * the rate limit, or a 503 Service Unavailable otherwise, without touching a
+ * backend. An admitted request holds its place in the limiter until its
+ * response is over.
+ *
+ * @author ravindra
+ *
+ */
+public class AdmissionControl {
+	public static final int ADMITTED = 0;
+
+	public static final int DEFAULT_MAX_PIPELINED_REQUESTS = 32;
+	public static final int DEFAULT_MAX_LIMIT = 1000;
+
+	private final int maxPipelinedRequests;
+	// Null if the requests in flight or the rate of the clients are not
+	// limited
+	private final ConcurrencyLimiter limiter;
+	private final ClientRateLimiter rateLimiter;
+
+	private final LongAdder rejectedPipelined = new LongAdder();
+	private final LongAdder rejectedRate = new LongAdder();
+	private final LongAdder rejectedConcurrency = new LongAdder();
+
+	public AdmissionControl(int maxPipelinedRequests, ConcurrencyLimiter limiter, ClientRateLimiter rateLimiter) {
+		this.maxPipelinedRequests = maxPipelinedRequests;
+		this.limiter = limiter;
+		this.rateLimiter = rateLimiter;
+	}
+
+	public static AdmissionControl load(Properties prop) {
+		int maxPipelined =
+		                   parse(prop, "maxPipelinedRequests", DEFAULT_MAX_PIPELINED_REQUESTS);
+		int maxConcurrent = parse(prop, "maxConcurrentRequests", 0);
+		boolean adaptive = Boolean.parseBoolean(prop.getProperty("adaptiveConcurrency", "false"));
+
+		ConcurrencyLimiter limiter = null;
+		if (adaptive) {
+			int maxLimit = maxConcurrent > 0 ? maxConcurrent : DEFAULT_MAX_LIMIT;
+			int minLimit = parse(prop, "adaptiveConcurrencyMinLimit", Math.min(8, maxLimit));
+			int initialLimit =
+			                   parse(prop, "adaptiveConcurrencyInitialLimit",
+			                         Math.max(minLimit, Math.min(20, maxLimit)));
+			limiter = new ConcurrencyLimiter(initialLimit, minLimit, maxLimit);
+		} else if (maxConcurrent > 0) {
+			limiter = new ConcurrencyLimiter(maxConcurrent);
+		}
+
+		ClientRateLimiter rateLimiter = null;
+		double rate = Double.parseDouble(prop.getProperty("clientRateLimit", "0"));
+		if (rate > 0) {
+			double burst = Double.parseDouble(prop.getProperty("clientRateBurst", String.valueOf(Math.max(1, rate))));
+			rateLimiter = new ClientRateLimiter(rate, burst);
+		} else if (rate < 0) {
+			throw new IllegalArgumentException("clientRateLimit must not be negative");
+		}
+		return new AdmissionControl(maxPipelined, limiter, rateLimiter);
+	}
+
+	private static int parse(Properties prop, String name, int defaultValue) {
+		int value = Integer.parseInt(prop.getProperty(name, String.valueOf(defaultValue)));
+		if (value < 0) {
+			throw new IllegalArgumentException(name + " must not be negative");
+		}
+		return value;
+	}
+
+	/**
+	 * Decides on a request whose head has been read from a client
+	 * connection. Called by the selecting thread of the listening ioReactor
+	 * serving the client.
+	 *
+	 * @return {@link #ADMITTED}, or the status the request is to be rejected
+	 *         with
+	 */
+	public int admit(Connection connection) {
+		InetAddress client = null;
+		if (this.rateLimiter != null) {
+			InetSocketAddress address = RspHandler.remoteAddress(connection);
+			client = address != null ? address.getAddress() : null;
+		}
+		return this.admit(client, connection.pendingResponses);
+	}
+
+	/**
+	 * Decides on a request whose head has been read. May be called from any
+	 * thread.
+	 *
+	 * @param client
+	 *            address of the client, <code>null</code> if unknown
+	 * @param pipelined
+	 *            requests of the connection still waiting for their responses
+	 * @return {@link #ADMITTED}, or the status the request is to be rejected
+	 *         with
+	 */
+	public int admit(InetAddress client, int pipelined) {
+		if (this.maxPipelinedRequests > 0 && pipelined >= this.maxPipelinedRequests) {
+			this.rejectedPipelined.increment();
+			return 503;
+		}
+		if (this.rateLimiter != null && client != null && !this.rateLimiter.tryAcquire(client, System.nanoTime())) {
+			this.rejectedRate.increment();
+			return 429;
+		}
+		if (this.limiter != null && !this.limiter.tryAcquire()) {
+			this.rejectedConcurrency.increment();
+			return 503;
+		}
+		return ADMITTED;
+	}
+
+	/**
+	 * @return <code>true</code> if admitted requests hold a place which has
+	 *         to be released
+	 */
+	public boolean isLimited() {
+		return this.limiter != null;
+	}
+
+	/**
+	 * Gives back the place of an admitted request once its response is over.
+	 *
+	 * @param latency
+	 *            nanoseconds the request took, -1 if it did not go to a
+	 *            backend
+	 */
+	public void release(long latency) {
+		if (this.limiter != null) {
+			this.limiter.release(latency);
+		}
+	}
+
+	public ConcurrencyLimiter getLimiter() {
+		return this.limiter;
+	}
+
+	public long getRejectedPipelinedCount() {
+		return this.rejectedPipelined.sum();
+	}
+
+	public long getRejectedRateCount() {
+		return this.rejectedRate.sum();
+	}
+
+	public long getRejectedConcurrencyCount() {
+		return this.rejectedConcurrency.sum();
+	}
+
+}
@@ -0,0 +1,223 @@
+package org.wso2.nio;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One member of an {@link UpstreamGroup}, together with the statistics the
+ * group balances on: the number of requests outstanding on it and a peak
+ * sensitive moving average of its latency.
+ *
+ * The statistics are updated by every connecting ioReactor sending requests to
+ * the backend, so they are kept in atomics and updated without locks. A slower
+ * response raises the average right away, while faster ones pull it down over
+ * {@link #DECAY_NANOS}. The average also decays while no responses come in, so
+ * a backend which has been avoided for being slow gets tried again.
+ *
+ * The same samples judge the health of the backend, as its
+ * {@link UpstreamGroup} has it configured: they drive its
+ * {@link CircuitBreaker}, and failures in a row eject it for a while. A
+ * backend failing its health probes is out of rotation as well. Requests are
+ * only sent to a backend which {@link #tryAcquire(long)} lets through.
+ *
+ * @author ravindra
+ *
+ */
+public class Backend {
+	private static final Logger LOGGER = Logger.getLogger(Backend.class);
+
+	// Time constant of the moving average, in nanoseconds
+	static final double DECAY_NANOS = 10e9;
+
+	// Latency a failed request counts as, in nanoseconds
+	static final long FAILURE_PENALTY_NANOS = 1000000000L;
+
+	// Position of the backend in its group
+	public final int index;
+	public final String host;
+	public final int port;
+	public final InetSocketAddress address;
+
+	// Requests dispatched to the backend which have not finished yet
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	// Bits of the latency average in nanoseconds, and the time it was last
+	// updated
+	private final AtomicLong latency = new AtomicLong(Double.doubleToLongBits(0));
+	private volatile long lastUpdate = System.nanoTime();
+
+	// The group judging the health of the backend, its circuit, null if
+	// there is no circuit breaker, whether it passes its health probes,
+	// its failures in a row and until when it is ejected
+	private UpstreamGroup group;
+	private HealthConfig healthConfig = new HealthConfig();
+	private CircuitBreaker breaker;
+	private volatile boolean healthy = true;
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile boolean ejected;
+	private volatile long ejectedUntil;
+
+	public Backend(int index, String host, int port, InetSocketAddress address) {
+		this.index = index;
+		this.host = host;
+		this.port = port;
+		this.address = address;
+	}
+
+	/**
+	 * Makes the group judge the health of the backend. Called before any
+	 * request is sent to it.
+	 */
+	void setHealth(UpstreamGroup group, HealthConfig config) {
+		this.group = group;
+		this.healthConfig = config;
+		this.breaker = config.isCircuitBreakerEnabled() ? new CircuitBreaker(config) : null;
+	}
+
+	void requestStarted() {
+		outstanding.incrementAndGet();
+	}
+
+	void requestFinished() {
+		outstanding.decrementAndGet();
+	}
+
+	/**
+	 * Adds a latency sample to the moving average, and records a response
+	 * with the circuit breaker.
+	 */
+	void recordLatency(long nanos) {
+		long now = System.nanoTime();
+		consecutiveFailures.set(0);
+		if (breaker != null) {
+			breaker.onSuccess(nanos, now);
+		}
+		updateLatency(nanos, now);
+	}
+
+	private void updateLatency(long nanos, long now) {
+		while (true) {
+			long bits = latency.get();
+			double current = decayed(Double.longBitsToDouble(bits), now);
+			double next;
+			if (nanos > current) {
+				// Slow responses count in full right away
+				next = nanos;
+			} else {
+				double weight = Math.exp(-Math.max(0, now - lastUpdate) / DECAY_NANOS);
+				next = current * weight + nanos * (1 - weight);
+			}
+			if (latency.compareAndSet(bits, Double.doubleToLongBits(next))) {
+				break;
+			}
+		}
+		lastUpdate = now;
+	}
+
+	/**
+	 * Counts a failed request as a slow response, records it with the circuit
+	 * breaker and ejects the backend once enough have failed in a row.
+	 */
+	void recordFailure() {
+		long now = System.nanoTime();
+		if (breaker != null) {
+			breaker.onFailure(now);
+		}
+		int threshold = healthConfig.consecutiveFailures;
+		if (threshold > 0 && consecutiveFailures.incrementAndGet() >= threshold && group != null &&
+		    group.eject(this, now)) {
+			consecutiveFailures.set(0);
+		}
+		updateLatency(FAILURE_PENALTY_NANOS, now);
+	}
+
+	/**
+	 * @return <code>true</code> if requests may be sent to the backend, as
+	 *         far as its health goes
+	 */
+	public boolean isAvailable(long now) {
+		return healthy && !isEjected(now) && (breaker == null || breaker.isAvailable(now));
+	}
+
+	/**
+	 * Takes the backend for a request if its health allows, which may make
+	 * the request the trial of its half open circuit.
+	 */
+	boolean tryAcquire(long now) {
+		return healthy && !isEjected(now) && (breaker == null || breaker.allowRequest(now));
+	}
+
+	boolean isEjected(long now) {
+		return ejected && now - ejectedUntil < 0;
+	}
+
+	/**
+	 * Takes the backend out of rotation for the ejection time. Called by the
+	 * group, which limits how many backends are ejected at once.
+	 */
+	void eject(long now) {
+		LOGGER.warn("Ejecting backend " + this + " for " + healthConfig.ejectionTime + " ms after " +
+		            healthConfig.consecutiveFailures + " failures in a row.");
+		ejectedUntil = now + TimeUnit.MILLISECONDS.toNanos(healthConfig.ejectionTime);
+		ejected = true;
+	}
+
+	/**
+	 * Records the verdict of the health probes.
+	 */
+	void setHealthy(boolean healthy) {
+		if (healthy != this.healthy) {
+			if (healthy) {
+				LOGGER.info("Backend " + this + " passes its health checks again.");
+			} else {
+				LOGGER.warn("Backend " + this + " fails its health checks, taking it out of rotation.");
+			}
+		}
+		this.healthy = healthy;
+	}
+
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * @return the state of the circuit, {@link CircuitBreaker#CLOSED} if
+	 *         there is no circuit breaker
+	 */
+	public int getCircuitState() {
+		return breaker != null ? breaker.getState() : CircuitBreaker.CLOSED;
+	}
+
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * @return the latency average in nanoseconds
+	 */
+	public double getLatency(long now) {
+		return decayed(Double.longBitsToDouble(latency.get()), now);
+	}
+
+	/**
+	 * @return the cost of sending one more request to the backend: its
+	 *         latency, scaled by the requests it is serving already
+	 */
+	double cost(long now) {
+		return (getLatency(now) + 1) * (outstanding.get() + 1);
+	}
+
+	private double decayed(double value, long now) {
+		long idle = now - lastUpdate;
+		return idle <= 0 ? value : value * Math.exp(-idle / DECAY_NANOS);
+	}
+
+	public String toString() {
+		return host + ":" + port;
+	}
+
+}
@@ -0,0 +1,255 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of persistent HTTP/1.1 connections to a single backend. Connections are
+ * leased to a request, returned once its response has been read and handed
+ * out again to the next request, so a TCP handshake is only paid when the pool
+ * has no idle connection left. Requests which arrive while all
+ * <code>maxTotal</code> connections are in use wait in a FIFO queue until a
+ * connection is returned. The queue holds up to <code>maxWaiters</code>
+ * requests, so that a backend which can not keep up sheds the excess rather
+ * than letting it pile up.
+ *
+ * Idle connections are checked and closed through a {@link Channels}, which
+ * the connecting ioReactor provides so that a TLS connection is read through
+ * its {@link TlsChannel}, and says goodbye with a close_notify.
+ *
+ * The pool is owned by the connecting ioReactor and must only be used from its
+ * selecting thread.
+ *
+ * @author ravindra
+ *
+ */
+public class BackendConnectionPool {
+	private static final Logger LOGGER = Logger.getLogger(BackendConnectionPool.class);
+
+	private final InetSocketAddress address;
+	private final ConnectionPoolConfig config;
+	private final Channels channels;
+
+	// Idle connections, the most recently returned one at the head
+	private final Deque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+
+	// Requests waiting for a connection to become available
+	private final Deque<BackendRequest> waiters = new ArrayDeque<BackendRequest>();
+
+	// Open connections owned by this pool, including the connecting ones
+	private int total;
+
+	// Connections opened only to satisfy minIdle which are still connecting
+	private int warming;
+
+	public BackendConnectionPool(InetSocketAddress address, ConnectionPoolConfig config) {
+		this(address, config, new PlainChannels());
+	}
+
+	public BackendConnectionPool(InetSocketAddress address, ConnectionPoolConfig config, Channels channels) {
+		this.address = address;
+		this.config = config;
+		this.channels = channels;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Leases an idle connection. Connections which have been closed by the
+	 * backend while sitting in the pool are discarded on the way.
+	 *
+	 * @return a connected channel or <code>null</code> if no idle connection
+	 *         is available
+	 */
+	public SocketChannel lease() {
+		IdleConnection connection;
+		while ((connection = idle.pollFirst()) != null) {
+			if (connection.channel.isOpen() && !channels.isStale(connection.channel)) {
+				return connection.channel;
+			}
+			LOGGER.info("Discarding a stale connection to " + address);
+			close(connection.channel);
+		}
+		return null;
+	}
+
+	/**
+	 * Reserves room for a new connection.
+	 *
+	 * @return <code>true</code> if the caller may open a new connection
+	 */
+	public boolean reserve() {
+		if (total >= config.maxTotal) {
+			return false;
+		}
+		total++;
+		return true;
+	}
+
+	/**
+	 * Returns a leased connection back to the pool. The connection is closed
+	 * instead if the pool already holds <code>maxIdle</code> idle connections.
+	 *
+	 * @return <code>true</code> if the connection was kept open
+	 */
+	public boolean release(SocketChannel channel) {
+		if (!channel.isOpen() || idle.size() >= config.maxIdle) {
+			close(channel);
+			return false;
+		}
+		idle.addFirst(new IdleConnection(channel, System.currentTimeMillis()));
+		return true;
+	}
+
+	/**
+	 * Drops a broken connection, or a reservation which could not be turned
+	 * into a connection, from the pool.
+	 */
+	public void discard(SocketChannel channel) {
+		if (channel != null) {
+			Iterator<IdleConnection> it = idle.iterator();
+			while (it.hasNext()) {
+				if (it.next().channel == channel) {
+					it.remove();
+					break;
+				}
+			}
+		}
+		close(channel);
+	}
+
+	/**
+	 * @return <code>false</code> if the request can not wait, as the queue is
+	 *         full
+	 */
+	public boolean addWaiter(BackendRequest request) {
+		if (waiters.size() >= config.maxWaiters) {
+			return false;
+		}
+		waiters.add(request);
+		return true;
+	}
+
+	public BackendRequest pollWaiter() {
+		return waiters.poll();
+	}
+
+	public boolean hasWaiters() {
+		return !waiters.isEmpty();
+	}
+
+	/**
+	 * Closes the connections which have been idle for longer than the idle
+	 * timeout, keeping at least <code>minIdle</code> of them open.
+	 */
+	public void evictExpired(long now) {
+		Iterator<IdleConnection> it = idle.descendingIterator();
+		while (it.hasNext() && idle.size() > config.minIdle) {
+			IdleConnection connection = it.next();
+			if (now - connection.since < config.idleTimeout) {
+				// Everything closer to the head was returned even later
+				break;
+			}
+			it.remove();
+			LOGGER.info("Evicting an idle connection to " + address);
+			close(connection.channel);
+		}
+	}
+
+	/**
+	 * @return number of connections that have to be opened so that
+	 *         <code>minIdle</code> idle connections are available
+	 */
+	public int idleDeficit() {
+		int deficit = config.minIdle - idle.size() - warming;
+		return Math.max(0, Math.min(deficit, config.maxTotal - total));
+	}
+
+	public void warmingStarted() {
+		warming++;
+	}
+
+	public void warmingFinished() {
+		warming--;
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public int getTotalCount() {
+		return total;
+	}
+
+	private void close(SocketChannel channel) {
+		total--;
+		if (channel == null) {
+			return;
+		}
+		channels.close(channel);
+	}
+
+	/**
+	 * Checks and closes the connections of a pool.
+	 */
+	public interface Channels {
+		/**
+		 * An idle connection is expected to be silent. If a non-blocking read
+		 * returns end-of-stream the backend has closed it, and if it returns
+		 * data the connection is out of sync with the HTTP exchange. Either
+		 * way it can not be reused.
+		 *
+		 * @return <code>true</code> if an open idle connection can not be
+		 *         reused
+		 */
+		boolean isStale(SocketChannel channel);
+
+		void close(SocketChannel channel);
+	}
+
+	/**
+	 * Reads and closes the sockets as they are.
+	 */
+	static class PlainChannels implements Channels {
+		// Scratch buffer used to probe idle connections before they are leased
+		private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+		public boolean isStale(SocketChannel channel) {
+			probe.clear();
+			try {
+				return channel.read(probe) != 0;
+			} catch (IOException e) {
+				return true;
+			}
+		}
+
+		public void close(SocketChannel channel) {
+			try {
+				// Closing the channel cancels its selection key as well
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.error("IOException was thrown while closing a backend connection.", e);
+			}
+		}
+	}
+
+	private static class IdleConnection {
+		final SocketChannel channel;
+		final long since;
+
+		IdleConnection(SocketChannel channel, long since) {
+			this.channel = channel;
+			this.since = since;
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.wso2.nio;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A request relayed to the backend by the connecting ioReactor. The request
+ * bytes are streamed into {@link #data} by the listening ioReactor as they
+ * arrive from the client, and written to the backend connection the request
+ * gets assigned to.
+ *
+ * A hedged request is sent as two attempts sharing the same handler, each a
+ * request of its own, until the response to one of them starts.
+ *
+ * @author ravindra
+ *
+ */
+public class BackendRequest {
+	public final RspHandler handler;
+
+	// Request data still to be written to the backend
+	public final OutboundQueue data = new OutboundQueue();
+
+	// Set by the listening ioReactor when the client connection is gone.
+	// Also set by the connecting ioReactor on a request it gives up on.
+	public volatile boolean aborted;
+
+	// Set by the listening ioReactor once the client has drained the response
+	// data queued for it
+	volatile boolean resumeRequested;
+
+	// Whether the request is waiting in the connecting ioReactor's queue
+	final AtomicBoolean scheduled = new AtomicBoolean();
+
+	// State only touched by the selecting thread of the connecting ioReactor
+	boolean dispatched;
+	boolean finished;
+	boolean readPaused;
+	Connection connection;
+
+	// The backend the request was sent to, when it was dispatched and whether
+	// its response has started to arrive
+	Backend backend;
+	long dispatchTime;
+	boolean responseStarted;
+
+	// Fire when the backend has been silent for too long, and when the whole
+	// response has taken too long. Null if not timed.
+	TimingWheel.Timeout timeout;
+	TimingWheel.Timeout deadline;
+
+	// The whole request for a hedge to send, null if the request may not be
+	// sent twice or has been already, and when the hedge is due
+	PooledBuffer replay;
+	TimingWheel.Timeout hedgeTimer;
+	// The other attempt at the same request while both are in flight
+	BackendRequest sibling;
+	// Set on the attempt which lost to its sibling, or left the request to it
+	// after failing, and then the sibling which carries on. An abort from the
+	// client, which only knows the first attempt, is meant for that one.
+	boolean cancelled;
+	BackendRequest successor;
+	// Times the request has been sent again after failing to connect
+	int retries;
+
+	public BackendRequest(RspHandler handler) {
+		this.handler = handler;
+	}
+
+}
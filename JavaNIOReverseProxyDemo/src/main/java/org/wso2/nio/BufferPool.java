@@ -0,0 +1,226 @@
+package org.wso2.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Size classed pool of direct buffers used for all socket I/O. Reading into a
+ * direct buffer saves the JDK from copying through a temporary direct buffer
+ * of its own, and pooling them keeps the steady state free of buffer
+ * allocations.
+ *
+ * Buffers come in power of two sizes from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}. Each thread keeps a small cache per size class and only
+ * goes to the shared stash, in batches, when its cache runs empty or full. As
+ * the reactors usually release buffers acquired by another reactor, the stash
+ * is what moves buffers back to the thread reading into them.
+ *
+ * Setting the <code>org.wso2.nio.bufferPool.leakDetection</code> system
+ * property records where every outstanding buffer has been acquired, see
+ * {@link #getLeaks()}.
+ *
+ * @author ravindra
+ *
+ */
+public class BufferPool {
+	private static final Logger LOGGER = Logger.getLogger(BufferPool.class);
+
+	public static final String LEAK_DETECTION_PROPERTY = "org.wso2.nio.bufferPool.leakDetection";
+
+	public static final int MIN_SIZE = 256;
+	public static final int MAX_SIZE = 65536;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+	private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+	// Buffers kept per size class in each thread's cache and in the stash
+	private static final int THREAD_CACHE_SIZE = 64;
+	private static final int STASH_SIZE = 1024;
+
+	// Size class of the buffers too large to be pooled
+	private static final int UNPOOLED = -1;
+
+	private static final BufferPool DEFAULT = new BufferPool(Boolean.getBoolean(LEAK_DETECTION_PROPERTY));
+
+	private final Stash[] stashes = new Stash[SIZE_CLASSES];
+
+	private final ThreadLocal<PooledBuffer[][]> caches = new ThreadLocal<PooledBuffer[][]>() {
+		protected PooledBuffer[][] initialValue() {
+			return new PooledBuffer[SIZE_CLASSES][THREAD_CACHE_SIZE + 1];
+		}
+	};
+	private final ThreadLocal<int[]> cacheCounts = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[SIZE_CLASSES];
+		}
+	};
+
+	private final boolean leakDetection;
+	private final Set<PooledBuffer> outstanding =
+	                                              Collections.newSetFromMap(new ConcurrentHashMap<PooledBuffer, Boolean>());
+
+	public BufferPool(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			stashes[i] = new Stash();
+		}
+	}
+
+	/**
+	 * @return the pool shared by the reactors
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return a cleared buffer of at least the given capacity, holding a
+	 *         single reference
+	 */
+	public PooledBuffer acquire(int capacity) {
+		int sizeClass = sizeClass(capacity);
+		PooledBuffer buffer = null;
+		if (sizeClass == UNPOOLED) {
+			buffer = new PooledBuffer(this, UNPOOLED, ByteBuffer.allocateDirect(capacity));
+		} else {
+			PooledBuffer[] cache = caches.get()[sizeClass];
+			int[] counts = cacheCounts.get();
+			if (counts[sizeClass] == 0) {
+				counts[sizeClass] = stashes[sizeClass].take(cache, THREAD_CACHE_SIZE / 2);
+			}
+			if (counts[sizeClass] > 0) {
+				buffer = cache[--counts[sizeClass]];
+				cache[counts[sizeClass]] = null;
+			} else {
+				buffer = new PooledBuffer(this, sizeClass, ByteBuffer.allocateDirect(MIN_SIZE << sizeClass));
+			}
+		}
+
+		buffer.acquired();
+		if (leakDetection) {
+			buffer.allocationTrace = new Throwable("Buffer acquired here");
+			outstanding.add(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return a buffer holding a copy of the given bytes, flipped for reading
+	 */
+	public PooledBuffer wrap(byte[] data) {
+		PooledBuffer buffer = acquire(data.length);
+		buffer.buffer().put(data).flip();
+		return buffer;
+	}
+
+	/**
+	 * Called once the last reference to a buffer has been released.
+	 */
+	void recycle(PooledBuffer buffer) {
+		if (leakDetection) {
+			outstanding.remove(buffer);
+			buffer.allocationTrace = null;
+		}
+		int sizeClass = buffer.sizeClass();
+		if (sizeClass == UNPOOLED) {
+			return;
+		}
+
+		PooledBuffer[] cache = caches.get()[sizeClass];
+		int[] counts = cacheCounts.get();
+		cache[counts[sizeClass]++] = buffer;
+		if (counts[sizeClass] > THREAD_CACHE_SIZE) {
+			// Hand half of the cache over to the threads which are short of
+			// buffers
+			counts[sizeClass] = stashes[sizeClass].give(cache, counts[sizeClass], THREAD_CACHE_SIZE / 2);
+		}
+	}
+
+	/**
+	 * @return number of buffers acquired and not yet released; only tracked in
+	 *         leak detection mode
+	 */
+	public int getOutstandingCount() {
+		return outstanding.size();
+	}
+
+	/**
+	 * @return where each of the outstanding buffers has been acquired; only
+	 *         tracked in leak detection mode
+	 */
+	public List<Throwable> getLeaks() {
+		List<Throwable> leaks = new ArrayList<Throwable>();
+		for (PooledBuffer buffer : outstanding) {
+			Throwable trace = buffer.allocationTrace;
+			if (trace != null) {
+				leaks.add(trace);
+			}
+		}
+		return leaks;
+	}
+
+	/**
+	 * Logs the outstanding buffers; only tracked in leak detection mode.
+	 */
+	public void reportLeaks() {
+		for (Throwable trace : getLeaks()) {
+			LOGGER.error("Pooled buffer was never released.", trace);
+		}
+	}
+
+	private static int sizeClass(int capacity) {
+		if (capacity > MAX_SIZE) {
+			return UNPOOLED;
+		}
+		if (capacity <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+	}
+
+	/**
+	 * Buffers of one size class shared between the threads.
+	 */
+	private static class Stash {
+		private final PooledBuffer[] buffers = new PooledBuffer[STASH_SIZE];
+		private int count;
+
+		/**
+		 * Moves up to <code>max</code> buffers into an empty cache.
+		 *
+		 * @return number of buffers moved
+		 */
+		synchronized int take(PooledBuffer[] cache, int max) {
+			int n = Math.min(max, count);
+			for (int i = 0; i < n; i++) {
+				cache[i] = buffers[--count];
+				buffers[count] = null;
+			}
+			return n;
+		}
+
+		/**
+		 * Moves <code>n</code> buffers off the top of a cache. Buffers which
+		 * do not fit are left to the garbage collector.
+		 *
+		 * @return number of buffers left in the cache
+		 */
+		synchronized int give(PooledBuffer[] cache, int cached, int n) {
+			for (int i = 0; i < n; i++) {
+				PooledBuffer buffer = cache[--cached];
+				cache[cached] = null;
+				if (count < STASH_SIZE) {
+					buffers[count++] = buffer;
+				}
+			}
+			return cached;
+		}
+	}
+
+}
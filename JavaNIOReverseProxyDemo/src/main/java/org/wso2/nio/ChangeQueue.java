@@ -0,0 +1,129 @@
+package org.wso2.nio;
+
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free queue of the changes other threads hand to a reactor. Any number of
+ * threads may add to it, only the reactor's selecting thread takes from it.
+ *
+ * Adding wakes up the selector, but only if no wakeup is pending already: the
+ * reactor calls {@link #beforeDrain()} before it takes the queued changes, and
+ * all changes added from then until it selects again share a single
+ * {@link Selector#wakeup()}.
+ *
+ * A typical loop of the selecting thread looks like:
+ *
+ * <pre>
+ * queue.beforeDrain();
+ * for (int i = 0; i &lt; DRAIN_BATCH_SIZE &amp;&amp; (change = queue.poll()) != null; i++) {
+ * 	...
+ * }
+ * if (queue.isEmpty()) {
+ * 	selector.select();
+ * } else {
+ * 	selector.selectNow();
+ * }
+ * </pre>
+ *
+ * @author ravindra
+ *
+ */
+public class ChangeQueue<E> {
+	// Changes applied per round of a reactor loop, so that a flood of them does
+	// not hold up the I/O of the registered channels
+	public static final int DRAIN_BATCH_SIZE = 1024;
+
+	// The selector of the reactor draining the queue
+	private final Selector selector;
+
+	// Producers swing the tail, the consumer follows the links from the head,
+	// which always points to the node holding the last item taken
+	private final AtomicReference<Node<E>> tail;
+	private Node<E> head;
+
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	// Items added by all producers and taken by the consumer, for the metrics
+	private final LongAdder added = new LongAdder();
+	private final AtomicLong taken = new AtomicLong();
+
+	public ChangeQueue(Selector selector) {
+		this.selector = selector;
+		this.head = new Node<E>(null);
+		this.tail = new AtomicReference<Node<E>>(this.head);
+	}
+
+	/**
+	 * Queues a change and wakes up the selector unless a wakeup is pending
+	 * already. May be called from any thread.
+	 */
+	public void add(E item) {
+		Node<E> node = new Node<E>(item);
+		Node<E> previous = this.tail.getAndSet(node);
+		previous.next = node;
+		this.added.increment();
+
+		if (!this.wakeupPending.get() && this.wakeupPending.compareAndSet(false, true)) {
+			this.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Called by the selecting thread before it drains the queue, so that
+	 * changes added from now on wake it up again.
+	 */
+	public void beforeDrain() {
+		this.wakeupPending.set(false);
+	}
+
+	/**
+	 * Takes the oldest change. Only called by the selecting thread.
+	 *
+	 * @return the change, or <code>null</code> if there is none
+	 */
+	public E poll() {
+		Node<E> next = this.head.next;
+		if (next == null) {
+			// Empty, or a producer has swung the tail but not linked its node
+			// yet; the item is picked up on the next drain
+			return null;
+		}
+		E item = next.item;
+		next.item = null;
+		this.head = next;
+		// Only the consumer writes the count, so an ordered store will do
+		this.taken.lazySet(this.taken.get() + 1);
+		return item;
+	}
+
+	/**
+	 * @return <code>true</code> if there is no change left to be taken. Only
+	 *         called by the selecting thread.
+	 */
+	public boolean isEmpty() {
+		return this.head == this.tail.get();
+	}
+
+	/**
+	 * @return the number of changes waiting to be taken, which may be off by
+	 *         the changes being added or taken meanwhile. May be called from
+	 *         any thread.
+	 */
+	public long size() {
+		return Math.max(0, this.added.sum() - this.taken.get());
+	}
+
+	private static class Node<E> {
+		E item;
+		volatile Node<E> next;
+
+		Node(E item) {
+			this.item = item;
+		}
+	}
+
+}
@@ -1,10 +1,8 @@
 package org.wso2.nio;
 
-import java.nio.channels.SocketChannel;
-
 /**
  * Used to change our interest in connection events on a given
- * {@link SocketChannel}
+ * {@link Connection}
  * 
  * @author ravindra
  *
@@ -12,13 +10,19 @@ import java.nio.channels.SocketChannel;
 public class ChangeRequest {
 	public static final int REGISTER = 1;
 	public static final int CHANGEOPS = 2;
+	// Adds to the interest set instead of replacing it
+	public static final int ADDOPS = 3;
+	// The delegated tasks of a TLS handshake have completed
+	public static final int HANDSHAKE = 4;
+	// A response to the client is over
+	public static final int RESPONDED = 5;
 
-	public SocketChannel socket;
+	public Connection connection;
 	public int type;
 	public int ops;
 
-	public ChangeRequest(SocketChannel socket, int type, int ops) {
-		this.socket = socket;
+	public ChangeRequest(Connection connection, int type, int ops) {
+		this.connection = connection;
 		this.type = type;
 		this.ops = ops;
 	}
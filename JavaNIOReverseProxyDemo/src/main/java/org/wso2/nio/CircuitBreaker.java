@@ -0,0 +1,162 @@
+package org.wso2.nio;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The circuit of a {@link Backend}, judged on the outcomes of its requests
+ * over a sliding window. The window is split into {@link #BUCKETS} buckets of
+ * counts, the oldest of which is dropped as time moves on.
+ *
+ * <ul>
+ * <li>A closed circuit lets every request through, and opens once enough of
+ * the requests in the window have failed or been slow.</li>
+ * <li>An open circuit fails requests right away for <code>openTime</code>, and
+ * then half opens.</li>
+ * <li>A half open circuit lets a single trial request through. Its outcome
+ * closes the circuit or opens it again. A trial which never comes back, as
+ * its client went away, is replaced after another <code>openTime</code>.</li>
+ * </ul>
+ *
+ * Shared by the threads sending requests to the backend, under the lock of
+ * the breaker, which is only held to update a few counters.
+ *
+ * @author ravindra
+ *
+ */
+public class CircuitBreaker {
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+
+	static final int BUCKETS = 10;
+
+	private final HealthConfig config;
+	private final long bucketNanos;
+	private final long slowCallNanos;
+	private final long openNanos;
+
+	// The counts of each bucket, and the number of the bucket period they
+	// are for
+	private final long[] periods = new long[BUCKETS];
+	private final int[] requests = new int[BUCKETS];
+	private final int[] failures = new int[BUCKETS];
+	private final int[] slowCalls = new int[BUCKETS];
+
+	private int state = CLOSED;
+	// When the circuit opened, or let the current trial through
+	private long since;
+
+	public CircuitBreaker(HealthConfig config) {
+		this.config = config;
+		this.bucketNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(config.window) / BUCKETS);
+		this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(config.slowCallTime);
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(config.openTime);
+		for (int i = 0; i < BUCKETS; i++) {
+			this.periods[i] = Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if a request may be sent now, without taking
+	 *         the trial of a half open circuit
+	 */
+	public synchronized boolean isAvailable(long now) {
+		return this.state == CLOSED || now - this.since >= this.openNanos;
+	}
+
+	/**
+	 * Lets a request through, taking the trial if the circuit is due to half
+	 * open.
+	 */
+	public synchronized boolean allowRequest(long now) {
+		if (this.state == CLOSED) {
+			return true;
+		}
+		if (now - this.since < this.openNanos) {
+			return false;
+		}
+		this.state = HALF_OPEN;
+		this.since = now;
+		return true;
+	}
+
+	/**
+	 * Records a response which started after the given time to first byte.
+	 */
+	public synchronized void onSuccess(long latency, long now) {
+		boolean slow = this.slowCallNanos > 0 && latency > this.slowCallNanos;
+		if (this.state == HALF_OPEN) {
+			if (slow) {
+				this.open(now);
+			} else {
+				this.close();
+			}
+		} else if (this.state == CLOSED) {
+			this.record(now, false, slow);
+		}
+	}
+
+	public synchronized void onFailure(long now) {
+		if (this.state == HALF_OPEN) {
+			this.open(now);
+		} else if (this.state == CLOSED) {
+			this.record(now, true, false);
+		}
+	}
+
+	public synchronized int getState() {
+		return this.state;
+	}
+
+	private void record(long now, boolean failed, boolean slow) {
+		long period = now / this.bucketNanos;
+		int bucket = (int) Math.floorMod(period, (long) BUCKETS);
+		if (this.periods[bucket] != period) {
+			this.periods[bucket] = period;
+			this.requests[bucket] = 0;
+			this.failures[bucket] = 0;
+			this.slowCalls[bucket] = 0;
+		}
+		this.requests[bucket]++;
+		if (failed) {
+			this.failures[bucket]++;
+		}
+		if (slow) {
+			this.slowCalls[bucket]++;
+		}
+
+		// Sum up the buckets still within the window
+		long total = 0;
+		long failedTotal = 0;
+		long slowTotal = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			if (this.periods[i] > period - BUCKETS) {
+				total += this.requests[i];
+				failedTotal += this.failures[i];
+				slowTotal += this.slowCalls[i];
+			}
+		}
+		if (total < this.config.minRequests) {
+			return;
+		}
+		boolean failing = this.config.errorRate > 0 && failedTotal * 100 >= total * this.config.errorRate;
+		boolean slowing = this.slowCallNanos > 0 && this.config.slowCallRate > 0 &&
+		                  slowTotal * 100 >= total * this.config.slowCallRate;
+		if (failing || slowing) {
+			this.open(now);
+		}
+	}
+
+	private void open(long now) {
+		this.state = OPEN;
+		this.since = now;
+	}
+
+	private void close() {
+		this.state = CLOSED;
+		for (int i = 0; i < BUCKETS; i++) {
+			this.periods[i] = Long.MIN_VALUE;
+		}
+	}
+
+}
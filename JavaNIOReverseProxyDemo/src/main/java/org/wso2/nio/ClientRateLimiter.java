@@ -0,0 +1,163 @@
+package org.wso2.nio;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the request rate of each client address with a token bucket: a
+ * bucket holds up to <code>burst</code> tokens and fills up at
+ * <code>rate</code> tokens a second, and each request takes one.
+ *
+ * The buckets are shared by the listening ioReactors. A bucket is only locked
+ * by the requests of its own address. Once {@link #MAX_CLIENTS} addresses are
+ * tracked, a new address first sweeps at most {@link #SWEEP_BATCH} buckets,
+ * picking up where the last sweep left off, and drops those of addresses
+ * which have been quiet long enough to fill up again. If that frees no room,
+ * the new address is not tracked but shares a single overflow bucket with
+ * all other untracked addresses, so the map stays bounded and a flood of
+ * addresses is limited as one client.
+ *
+ * @author ravindra
+ *
+ */
+public class ClientRateLimiter {
+	// Addresses tracked before full buckets are dropped
+	static final int MAX_CLIENTS = 100000;
+	// Buckets looked at by a sweep at most
+	static final int SWEEP_BATCH = 64;
+
+	private final double rate;
+	private final double burst;
+	private final int maxClients;
+	private final ConcurrentHashMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<InetAddress, Bucket>();
+	private final Bucket overflow;
+
+	// Held by the thread sweeping, which alone uses the cursor
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	private Iterator<Map.Entry<InetAddress, Bucket>> cursor;
+
+	/**
+	 * @param rate
+	 *            requests a second each address may send
+	 * @param burst
+	 *            requests an address may send at once
+	 */
+	public ClientRateLimiter(double rate, double burst) {
+		this(rate, burst, MAX_CLIENTS);
+	}
+
+	ClientRateLimiter(double rate, double burst, int maxClients) {
+		if (rate <= 0 || burst < 1) {
+			throw new IllegalArgumentException("clientRateLimit must be positive and clientRateBurst at least 1");
+		}
+		this.rate = rate / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+		this.maxClients = maxClients;
+		this.overflow = new Bucket(burst, System.nanoTime());
+	}
+
+	/**
+	 * Takes a token for a request of the address. May be called from any
+	 * thread.
+	 *
+	 * @return <code>false</code> if the address has used up its tokens
+	 */
+	public boolean tryAcquire(InetAddress address, long now) {
+		while (true) {
+			Bucket bucket = this.bucketOf(address, now);
+			synchronized (bucket) {
+				if (bucket.removed) {
+					// Dropped by a sweep since it was looked up
+					continue;
+				}
+				bucket.refill(this.rate, this.burst, now);
+				if (bucket.tokens < 1) {
+					return false;
+				}
+				bucket.tokens--;
+				return true;
+			}
+		}
+	}
+
+	private Bucket bucketOf(InetAddress address, long now) {
+		Bucket bucket = this.buckets.get(address);
+		if (bucket != null) {
+			return bucket;
+		}
+		if (this.buckets.size() >= this.maxClients) {
+			this.sweep(now);
+			if (this.buckets.size() >= this.maxClients) {
+				return this.overflow;
+			}
+		}
+		Bucket created = new Bucket(this.burst, now);
+		bucket = this.buckets.putIfAbsent(address, created);
+		return bucket != null ? bucket : created;
+	}
+
+	/**
+	 * Drops the full buckets among the next {@link #SWEEP_BATCH}. Left to the
+	 * thread already sweeping, if there is one.
+	 */
+	private void sweep(long now) {
+		if (!this.sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			boolean restarted = false;
+			for (int i = 0; i < SWEEP_BATCH; i++) {
+				if (this.cursor == null || !this.cursor.hasNext()) {
+					if (restarted) {
+						// Looked at all of them already
+						break;
+					}
+					this.cursor = this.buckets.entrySet().iterator();
+					restarted = true;
+					if (!this.cursor.hasNext()) {
+						break;
+					}
+				}
+				Map.Entry<InetAddress, Bucket> entry = this.cursor.next();
+				Bucket bucket = entry.getValue();
+				synchronized (bucket) {
+					bucket.refill(this.rate, this.burst, now);
+					if (bucket.tokens >= this.burst && this.buckets.remove(entry.getKey(), bucket)) {
+						bucket.removed = true;
+					}
+				}
+			}
+		} finally {
+			this.sweeping.set(false);
+		}
+	}
+
+	int size() {
+		return this.buckets.size();
+	}
+
+	private static class Bucket {
+		double tokens;
+		long updated;
+		// Set once the bucket is out of the map, and no longer to be used
+		boolean removed;
+
+		Bucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.updated = now;
+		}
+
+		void refill(double rate, double burst, long now) {
+			long elapsed = now - this.updated;
+			if (elapsed > 0) {
+				this.tokens = Math.min(burst, this.tokens + elapsed * rate);
+				this.updated = now;
+			}
+		}
+	}
+
+}
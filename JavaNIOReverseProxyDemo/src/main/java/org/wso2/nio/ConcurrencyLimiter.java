@@ -0,0 +1,160 @@
+package org.wso2.nio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the requests in flight through the proxy. The limit is either fixed,
+ * or adapts to the latency the requests see, after the gradient algorithm:
+ *
+ * <ul>
+ * <li>a long term average of the latency stands for the latency of the
+ * backends when they are not queueing,</li>
+ * <li>the average of each {@link #SAMPLE_WINDOW_NANOS} window is compared to
+ * it, and their ratio, the gradient, scales the limit down as the latency
+ * grows,</li>
+ * <li>a headroom of the square root of the limit is added on top, so that the
+ * limit keeps probing for more while the latency holds.</li>
+ * </ul>
+ *
+ * The limit only moves by a fraction of the change per window, and only grows
+ * while at least half of it is in use. It stays between the minimum and
+ * maximum limits.
+ *
+ * Acquiring and releasing are lock free. The samples are added up under the
+ * lock of the limiter, which is held once per response to update a few
+ * fields.
+ *
+ * @author ravindra
+ *
+ */
+public class ConcurrencyLimiter {
+	// Length of the windows the latency samples are averaged over
+	static final long SAMPLE_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	// Samples the long term average is taken over
+	private static final int LONG_WINDOW = 600;
+	// Fraction of the change applied per window
+	private static final double SMOOTHING = 0.2;
+	// How much above the long term average the latency may go before the
+	// limit comes down
+	private static final double TOLERANCE = 1.5;
+
+	private final boolean adaptive;
+	private final int minLimit;
+	private final int maxLimit;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile int limit;
+
+	// Updated under the lock
+	private double estimatedLimit;
+	private double longRtt;
+	private long windowStart = System.nanoTime();
+	private long windowSum;
+	private int windowCount;
+	private int maxInFlight;
+
+	/**
+	 * A limiter with a fixed limit.
+	 */
+	public ConcurrencyLimiter(int limit) {
+		this(false, limit, limit, limit);
+	}
+
+	/**
+	 * A limiter adapting to the latency of the requests.
+	 */
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		this(true, initialLimit, minLimit, maxLimit);
+	}
+
+	private ConcurrencyLimiter(boolean adaptive, int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("Expected 1 <= minimum limit <= initial limit <= maximum limit");
+		}
+		this.adaptive = adaptive;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+		this.estimatedLimit = initialLimit;
+	}
+
+	/**
+	 * Takes a place for a request. May be called from any thread.
+	 *
+	 * @return <code>false</code> if the limit has been reached
+	 */
+	public boolean tryAcquire() {
+		while (true) {
+			int current = this.inFlight.get();
+			if (current >= this.limit) {
+				return false;
+			}
+			if (this.inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Gives the place of a request back once it is over. May be called from
+	 * any thread.
+	 *
+	 * @param latency
+	 *            nanoseconds the request took, -1 if it says nothing about
+	 *            the backends
+	 */
+	public void release(long latency) {
+		int current = this.inFlight.getAndDecrement();
+		if (this.adaptive && latency >= 0) {
+			this.sample(latency, current, System.nanoTime());
+		}
+	}
+
+	synchronized void sample(long latency, int inFlight, long now) {
+		this.windowSum += latency;
+		this.windowCount++;
+		this.maxInFlight = Math.max(this.maxInFlight, inFlight);
+		if (now - this.windowStart < SAMPLE_WINDOW_NANOS) {
+			return;
+		}
+
+		double shortRtt = (double) this.windowSum / this.windowCount;
+		int used = this.maxInFlight;
+		this.windowStart = now;
+		this.windowSum = 0;
+		this.windowCount = 0;
+		this.maxInFlight = 0;
+
+		if (this.longRtt == 0) {
+			this.longRtt = shortRtt;
+		} else {
+			double weight = 2.0 / (LONG_WINDOW + 1);
+			this.longRtt = this.longRtt * (1 - weight) + shortRtt * weight;
+		}
+		if (this.longRtt > 2 * shortRtt) {
+			// The latency has dropped for good, catch up faster
+			this.longRtt = shortRtt * 1.05;
+		}
+		if (used < this.estimatedLimit / 2) {
+			// Too few requests to tell whether the limit is right
+			return;
+		}
+
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * this.longRtt / shortRtt));
+		double next = this.estimatedLimit * gradient + Math.sqrt(this.estimatedLimit);
+		next = this.estimatedLimit * (1 - SMOOTHING) + next * SMOOTHING;
+		this.estimatedLimit = Math.max(this.minLimit, Math.min(this.maxLimit, next));
+		this.limit = (int) this.estimatedLimit;
+	}
+
+	public int getLimit() {
+		return this.limit;
+	}
+
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+}
@@ -1,57 +1,161 @@
 package org.wso2.nio;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.log4j.Logger;
 
 /**
  * Receives the connection requests and writes it to the back end service. Then
- * reads the response and send it back to the caller.
- * 
+ * reads the response and send it back to the caller. Each request goes to the
+ * backend its {@link UpstreamGroup} selects, and backend connections are kept
+ * alive and reused through a {@link BackendConnectionPool} per backend.
+ *
+ * The time from dispatching a request to the first bytes of its response is
+ * fed into the statistics of the backend, along with failures, so that the
+ * group steers traffic away from slow replicas.
+ *
+ * Request and response bodies are streamed in read sized chunks. Reading the
+ * response is paused while the client connection has more than
+ * {@link OutboundQueue#HIGH_WATERMARK} bytes waiting to be written, and
+ * resumed once it has drained.
+ *
+ * Responses are read into pooled direct buffers which are handed to the client
+ * connection as they are, without copying.
+ *
+ * Each backend connection carries a {@link Connection} on its selection key,
+ * holding its response parser and the request it is serving.
+ *
+ * With <code>secureBackend</code> set, backend connections talk TLS through a
+ * {@link TlsChannel}. The handshake starts as soon as a connection is
+ * established, and pooled connections resume their sessions from the shared
+ * client session cache.
+ *
+ * Connecting, waiting for the backend and whole responses are timed by a
+ * {@link TimingWheel} driven from the select loop, as the
+ * {@link TimeoutConfig} says. A request which times out fails with a 504
+ * Gateway Timeout, or has its client connection closed if the response has
+ * already started.
+ *
+ * A request finding no backend its {@link UpstreamGroup} considers healthy
+ * fails right away with a 503 Service Unavailable, and so do the requests
+ * waiting for a connection to a backend which has become unavailable, or
+ * finding more than <code>backendPoolMaxWaiters</code> requests waiting for a
+ * connection to its backend already. One of
+ * the connecting ioReactors also runs the {@link HealthCheck}s of the
+ * backends, if they are enabled.
+ *
+ * A request whose connection could not be established has not been sent, and
+ * goes to the next backend instead, up to <code>connectRetries</code> times.
+ * With <code>hedging</code> set, a GET, HEAD or OPTIONS request without a
+ * body which has not had the first bytes of its response after the
+ * <code>hedgeDelayPercentile</code> of the recent times to first byte gets a
+ * copy sent to the next backend. The attempt whose response starts first
+ * wins, and the other one is dropped along with its connection; an attempt
+ * which fails leaves the request to the other one. Hedges and retries are
+ * drawn from a {@link RetryBudget} of this reactor, and are timed on a wheel
+ * of their own with ticks of a millisecond.
+ *
  * @author ravindra
  *
  */
 public class ConnectingIOReactor implements Runnable {
 	private static final Logger LOGGER = Logger.getLogger(ConnectingIOReactor.class);
 
-	// The host:port combination to listen on
-	private InetAddress hostAddress;
-	private int port;
+	// How often idle connections are checked for expiry, in milliseconds
+	private static final long POOL_MAINTENANCE_INTERVAL = 1000;
+
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	// The backends requests are spread over
+	private final UpstreamGroup upstream;
 
 	// The selector we'll be monitoring
 	private final Selector selector;
 
-	// The buffer into which we'll read data when it's available
-	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+	private final BufferPool bufferPool = BufferPool.getDefault();
+	private final Metrics metrics = Metrics.getDefault();
+
+	// The buffer into which we'll read data when it's available. Replaced by
+	// a fresh one whenever a slice of it is still queued somewhere.
+	private PooledBuffer readBuffer = this.bufferPool.acquire(READ_BUFFER_SIZE);
+
+	// Scratch array for gathering writes, its length caps the number of
+	// buffers written per call
+	private final ByteBuffer[] writeVector;
+
+	// Requests handed over by the worker which are new, have more data to be
+	// written or have to be resumed
+	private final ChangeQueue<BackendRequest> pendingRequests;
+
+	// Connections whose delegated TLS handshake tasks have completed
+	private final ChangeQueue<Connection> handshakesReady;
+	private final ChangeQueue<HealthCheck> checksReady;
+
+	// Persistent connections to each backend, by backend index
+	private final BackendConnectionPool[] pools;
+
+	// Checks and closes the pooled connections through their TLS layer, if
+	// they have one
+	private final ByteBuffer probe = ByteBuffer.allocate(1);
+	private final BackendConnectionPool.Channels channels = new BackendConnectionPool.Channels() {
+		public boolean isStale(SocketChannel channel) {
+			return ConnectingIOReactor.this.isStale(connectionOf(channel));
+		}
+
+		public void close(SocketChannel channel) {
+			closeConnection(channel);
+		}
+	};
+
+	private final TlsConfig tlsConfig;
+
+	// The timeouts of the connections being established and the requests in
+	// flight
+	private final TimingWheel timeouts = new TimingWheel();
+	private final TimeoutConfig timeoutConfig;
 
-	private List<ChangeRequest> pendingChanges = new LinkedList<ChangeRequest>();
+	// Whether this reactor probes the health of the backends
+	private volatile boolean healthChecks;
 
-	// Maps a SocketChannel to a list of ByteBuffer instances
-	private Map<SocketChannel, List<ByteBuffer>> pendingData =
-	                                                           new HashMap<SocketChannel, List<ByteBuffer>>();
+	// When requests are sent a second time, and how many may be
+	private final RetryConfig retryConfig;
+	private final RetryBudget retryBudget;
 
-	// Maps a SocketChannel to a RspHandler
-	private Map<SocketChannel, RspHandler> rspHandlers =
-	                                                     Collections.synchronizedMap(new HashMap<SocketChannel, RspHandler>());
+	// The hedges due, and how long requests wait before they are hedged,
+	// null if they are not
+	private final TimingWheel hedgeTimers = new TimingWheel(1, TimingWheel.DEFAULT_WHEEL_SIZE, System.nanoTime());
+	private final HedgeDelay hedgeDelay;
 
-	ConnectingIOReactor(InetAddress hostAddress, int port) throws IOException {
-		this.hostAddress = hostAddress;
-		this.port = port;
+	private final LongAdder hedged = new LongAdder();
+	private final LongAdder retried = new LongAdder();
+
+	ConnectingIOReactor(UpstreamGroup upstream, ConnectionPoolConfig poolConfig, int maxBuffersPerWrite,
+	                    TlsConfig tlsConfig, TimeoutConfig timeoutConfig, RetryConfig retryConfig,
+	                    HedgeDelay hedgeDelay) throws IOException {
+		this.upstream = upstream;
+		this.writeVector = new ByteBuffer[maxBuffersPerWrite];
 		this.selector = initSelector();
+		this.pendingRequests = new ChangeQueue<BackendRequest>(this.selector);
+		this.handshakesReady = new ChangeQueue<Connection>(this.selector);
+		this.checksReady = new ChangeQueue<HealthCheck>(this.selector);
+		Backend[] backends = upstream.getBackends();
+		this.pools = new BackendConnectionPool[backends.length];
+		for (int i = 0; i < backends.length; i++) {
+			this.pools[i] = new BackendConnectionPool(backends[i].address, poolConfig, this.channels);
+		}
+		this.tlsConfig = tlsConfig;
+		this.timeoutConfig = timeoutConfig;
+		this.retryConfig = retryConfig;
+		this.hedgeDelay = hedgeDelay;
+		this.retryBudget = new RetryBudget(retryConfig.budgetPercent, retryConfig.budgetMinPerSecond, System.nanoTime());
 	}
 
 	private Selector initSelector() throws IOException {
@@ -61,28 +165,61 @@ public class ConnectingIOReactor implements Runnable {
 		return socketSelector;
 	}
 
+	/**
+	 * Makes this reactor probe the health of the backends once started, if
+	 * <code>healthCheckInterval</code> is set.
+	 */
+	public void enableHealthChecks() {
+		this.healthChecks = this.upstream.getHealthConfig().checkInterval > 0;
+	}
+
+	/**
+	 * @return <code>true</code> if the requests which may be sent twice are
+	 *         to be hedged
+	 */
+	public boolean isHedging() {
+		return this.hedgeDelay != null;
+	}
+
+	public long getHedgedCount() {
+		return this.hedged.sum();
+	}
+
+	public long getRetriedCount() {
+		return this.retried.sum();
+	}
+
 	public void run() {
+		if (this.healthChecks) {
+			for (Backend backend : this.upstream.getBackends()) {
+				new HealthCheck(backend, this.upstream.getHealthConfig(), this.selector, this.timeouts, this.tlsConfig,
+				                this.checksReady).start();
+			}
+		}
 		while (true) {
 			try {
-				// Process any pending changes
-				synchronized (this.pendingChanges) {
-					Iterator<ChangeRequest> changes = this.pendingChanges.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = changes.next();
-						switch (change.type) {
-							case ChangeRequest.CHANGEOPS:
-								SelectionKey key = change.socket.keyFor(this.selector);
-								key.interestOps(change.ops);
-								break;
-							case ChangeRequest.REGISTER:
-								change.socket.register(this.selector, change.ops);
-								break;
-						}
+				// Assign the new requests to backend connections
+				this.processPendingRequests();
+				this.processHandshakes();
+				this.maintainPools();
+				long now = System.nanoTime();
+				this.timeouts.expire(now);
+				this.hedgeTimers.expire(now);
+
+				// Wait for an event one of the registered channels, waking up
+				// periodically to evict expired idle connections and for the
+				// next tick of the timeouts
+				if (this.pendingRequests.isEmpty() && this.handshakesReady.isEmpty() && this.checksReady.isEmpty()) {
+					long timeout = this.timeouts.getSelectTimeout(now);
+					long hedgeTimeout = this.hedgeTimers.getSelectTimeout(now);
+					if (hedgeTimeout > 0 && (timeout == 0 || hedgeTimeout < timeout)) {
+						timeout = hedgeTimeout;
 					}
-					this.pendingChanges.clear();
+					this.selector.select(timeout > 0 ? Math.min(timeout, POOL_MAINTENANCE_INTERVAL)
+					                                 : POOL_MAINTENANCE_INTERVAL);
+				} else {
+					this.selector.selectNow();
 				}
-				// Wait for an event one of the registered channels
-				this.selector.select();
 				// Iterate over the set of keys for which events are available
 				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
 				while (selectedKeys.hasNext()) {
@@ -93,12 +230,20 @@ public class ConnectingIOReactor implements Runnable {
 						continue;
 					}
 
+					if (key.attachment() instanceof HealthCheck) {
+						((HealthCheck) key.attachment()).handle(key);
+						continue;
+					}
+
 					// Check what event is available and deal with it
 					if (key.isConnectable()) {
 						this.finishConnection(key);
-					} else if (key.isReadable()) {
+						continue;
+					}
+					if (key.isReadable()) {
 						this.read(key);
-					} else if (key.isWritable()) {
+					}
+					if (key.isValid() && key.isWritable()) {
 						this.write(key);
 					}
 
@@ -112,22 +257,37 @@ public class ConnectingIOReactor implements Runnable {
 	}
 
 	private void read(SelectionKey key) throws IOException {
-		LOGGER.info("Reading the response from the backend.");
-		SocketChannel socketChannel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+		this.readResponse(connection);
 
+		// A TLS connection may have decrypted more than fits the read buffer,
+		// keep going until it is all read unless reading has been paused
+		while (connection.request != null && !connection.request.readPaused && connection.hasBufferedInput()) {
+			this.readResponse(connection);
+		}
+		if (!connection.isClosed()) {
+			this.updateInterest(connection);
+		}
+	}
+
+	private void readResponse(Connection connection) throws IOException {
 		// Clear out our read buffer so it's ready for new data
-		this.readBuffer.clear();
+		if (this.readBuffer.refCnt() > 1) {
+			this.readBuffer.release();
+			this.readBuffer = this.bufferPool.acquire(READ_BUFFER_SIZE);
+		}
+		ByteBuffer buffer = this.readBuffer.buffer();
+		buffer.clear();
 
 		// Attempt to read off the channel
 		int numRead;
 		try {
-			numRead = socketChannel.read(this.readBuffer);
+			numRead = connection.read(buffer);
 		} catch (IOException e) {
 			LOGGER.error("ERROR while reading the response from the backend", e);
 			// The remote forcibly closed the connection, cancel
 			// the selection key and close the channel.
-			key.cancel();
-			socketChannel.close();
+			this.failConnection(connection);
 			return;
 		}
 
@@ -135,118 +295,888 @@ public class ConnectingIOReactor implements Runnable {
 			LOGGER.info("Backend service closes the connection gracefully.");
 			// Remote entity shut the socket down cleanly. Do the
 			// same from our end and cancel the channel.
-			key.channel().close();
-			key.cancel();
+			BackendRequest request = connection.request;
+			if (request != null && connection.parser.endOfStream()) {
+				// The response was delimited by the connection close
+				connection.request = null;
+				this.finish(request, false);
+				request.handler.responseCompleted(true);
+			}
+			this.failConnection(connection);
+			return;
+		}
+
+		if (numRead == 0) {
+			// Only TLS handshake or session data has been read
 			return;
 		}
+		this.metrics.backendBytesRead.add(numRead);
+
+		if (connection.request == null) {
+			// Nobody is waiting for data on an idle pooled connection
+			LOGGER.info("Unexpected data received on an idle backend connection.");
+			this.discardConnection(connection);
+			return;
+		}
+
+		BackendRequest request = connection.request;
+		this.touch(request);
+		if (!request.responseStarted) {
+			// Time to first byte, including any wait for a connection
+			request.responseStarted = true;
+			long timeToFirstByte = System.nanoTime() - request.dispatchTime;
+			request.backend.recordLatency(timeToFirstByte);
+			this.metrics.timeToFirstByte.record(timeToFirstByte);
+			if (this.hedgeDelay != null) {
+				this.hedgeDelay.record(timeToFirstByte);
+			}
+			if (request.sibling != null) {
+				// The first response wins
+				request.sibling.successor = request;
+				this.cancel(request.sibling);
+				request.sibling = null;
+				request.handler.backend = request.backend.index;
+			}
+		}
 
 		// Handle the response
-		this.handleResponse(socketChannel, this.readBuffer.array(), numRead);
+		buffer.flip();
+		this.handleResponse(connection);
 
 	}
 
-	private void handleResponse(SocketChannel socketChannel, byte[] data, int numRead)
-	                                                                                  throws IOException {
-		// Make a correctly sized copy of the data before handing it
-		// to the client
-		byte[] rspData = new byte[numRead];
-		System.arraycopy(data, 0, rspData, 0, numRead);
+	private void handleResponse(Connection connection) throws IOException {
+		final BackendRequest request = connection.request;
+		HttpMessageParser parser = connection.parser;
+		ByteBuffer buffer = this.readBuffer.buffer();
 
-		RspHandler handler = this.rspHandlers.get(socketChannel);
+		// Find out whether the response ends within this read. The parser
+		// skips over the body bytes without copying them.
+		boolean complete = false;
+		try {
+			while (!complete) {
+				int result = parser.parse(buffer);
+				if (result == HttpMessageParser.NEED_MORE) {
+					break;
+				}
+				if (result == HttpMessageParser.HEAD_COMPLETE) {
+					request.handler.responseHead(parser.getHead(), parser.getHeadLength());
+				}
+				if (result == HttpMessageParser.MESSAGE_COMPLETE) {
+					if (parser.getHead().isInterim()) {
+						// A 100 Continue or the like, the final response
+						// follows on the same connection
+						parser.reset();
+					} else {
+						complete = true;
+					}
+				}
+			}
+		} catch (ProtocolException e) {
+			LOGGER.error("Malformed response received from the backend.", e);
+			this.failConnection(connection);
+			return;
+		}
 
-		// And pass the response to it
-		if (handler.handleResponse(rspData)) {
-			// The handler has seen enough, close the connection
-			// TODO: Remove this in case if you need a TCP KeepAlive connection.
-			socketChannel.close();
-			socketChannel.keyFor(this.selector).cancel();
+		// Hand the response bytes of this read to the client without copying
+		// them
+		PooledBuffer rspData = this.readBuffer.retainedSlice(0, buffer.position());
+		boolean accepted = request.handler.handleResponse(rspData, new Runnable() {
+			public void run() {
+				resumeReading(request);
+			}
+		});
+		if (!complete) {
+			if (!accepted) {
+				// The client can not keep up, stop reading from the backend
+				// until its connection has drained
+				request.readPaused = true;
+				this.updateInterest(request);
+				// Waiting on the client says nothing about the backend
+				this.timeouts.cancel(request.timeout);
+			}
+			return;
+		}
+
+		HttpMessageHead head = parser.getHead();
+		boolean requestSent = request.data.isEnded() && request.data.isEmpty();
+		boolean reusable =
+		                   head.isKeepAlive() && head.status != 101 && requestSent &&
+		                           !buffer.hasRemaining() && !connection.hasBufferedInput();
+		connection.request = null;
+		this.finish(request, false);
+		if (!requestSent) {
+			// The backend answered before it got the whole request body, the
+			// rest of it is dropped
+			request.data.clear();
+		}
+		request.handler.responseCompleted(!head.isKeepAlive());
+		if (reusable) {
+			// Keep the connection alive for the next request
+			this.releaseConnection(connection);
+		} else {
+			this.discardConnection(connection);
 		}
 	}
 
 	private void write(SelectionKey key) throws IOException {
-		LOGGER.info("Writing the data from the Proxy service to the Backend.");
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		synchronized (pendingData) {
-			List<ByteBuffer> queue = pendingData.get(socketChannel);
-
-			// Write until there's not more data ...
-			while (!queue.isEmpty()) {
-				ByteBuffer buffer = queue.get(0);
-				socketChannel.write(buffer);
-
-				if (buffer.remaining() > 0) {
-					// ... or the socket's buffer fills up
-					break;
-				}
-				queue.remove(0);
+		Connection connection = (Connection) key.attachment();
+
+		// Write until there's not more data or the socket's buffer fills up.
+		// An idle connection only has its TLS handshake to carry on with.
+		try {
+			if (connection.request != null) {
+				connection.outbound.writeTo(connection.out(), this.writeVector, this.metrics.backendBytesWritten);
+				this.touch(connection.request);
+			} else if (connection.tls != null) {
+				connection.tls.handshake();
 			}
+		} catch (IOException e) {
+			LOGGER.error("ERROR while writing the request to the backend", e);
+			this.failConnection(connection);
+			return;
+		}
+
+		// Once we wrote away all data we're no longer interested in writing
+		// on this socket, only in reading the response.
+		if (connection.hasBufferedInput()) {
+			// The handshake has read response data along with its own
+			this.read(key);
+		} else {
+			this.updateInterest(connection);
+		}
+	}
 
-			if (queue.isEmpty()) {
-				// We wrote away all data, so we're no longer interested
-				// in writing on this socket. Switch back to waiting for
-				// data. Waiting to read the response here.
-				key.interestOps(SelectionKey.OP_READ);
+	/**
+	 * Carries on with the TLS handshakes, of connections and of health check
+	 * probes, whose delegated tasks have completed.
+	 */
+	private void processHandshakes() throws IOException {
+		this.handshakesReady.beforeDrain();
+		Connection connection;
+		for (int i = 0; i < ChangeQueue.DRAIN_BATCH_SIZE && (connection = this.handshakesReady.poll()) != null; i++) {
+			if (connection.isClosed() || !connection.key.isValid()) {
+				continue;
+			}
+			try {
+				connection.tls.handshake();
+			} catch (IOException e) {
+				LOGGER.error("TLS handshake with the backend failed", e);
+				this.failConnection(connection);
+				continue;
+			}
+			if (connection.hasBufferedInput()) {
+				this.read(connection.key);
+			} else {
+				this.updateInterest(connection);
 			}
 		}
 
+		this.checksReady.beforeDrain();
+		HealthCheck check;
+		for (int i = 0; i < ChangeQueue.DRAIN_BATCH_SIZE && (check = this.checksReady.poll()) != null; i++) {
+			check.resume();
+		}
 	}
 
-	private SocketChannel initiateConnection() throws IOException {
+	private Connection initiateConnection(Backend backend) throws IOException {
 		// Create a non-blocking socket channel
 		SocketChannel socketChannel = SocketChannel.open();
 		socketChannel.configureBlocking(false);
 
-		// Kick off connection establishment
-		socketChannel.connect(new InetSocketAddress(this.hostAddress, this.port));
+		// Kick off connection establishment and register an interest in
+		// connection events. These are raised when a channel is ready to
+		// complete connection establishment. On the loopback interface the
+		// connection may be established right away.
+		final Connection connection = new Connection(socketChannel);
+		connection.parser = new HttpMessageParser(false);
+		connection.backend = backend;
+		if (this.tlsConfig.isBackendSecure()) {
+			connection.tls = new TlsChannel(socketChannel, this.tlsConfig.createClientEngine(backend.host, backend.port),
+			                                this.bufferPool,
+			                                this.tlsConfig.getTaskExecutor(), new Runnable() {
+				                                public void run() {
+					                                handshakesReady.add(connection);
+				                                }
+			                                });
+		}
+		try {
+			connection.connectStarted = System.nanoTime();
+			boolean connected = socketChannel.connect(backend.address);
+			if (connected) {
+				this.metrics.connectTime.record(System.nanoTime() - connection.connectStarted);
+			}
+			connection.key = socketChannel.register(this.selector, connected ? 0 : SelectionKey.OP_CONNECT, connection);
+			if (!connected && this.timeoutConfig.connectTimeout > 0) {
+				connection.timeout = new TimingWheel.Timeout(new Runnable() {
+					public void run() {
+						connectTimedOut(connection);
+					}
+				});
+				this.timeouts.schedule(connection.timeout, this.timeoutConfig.connectTimeout, connection.connectStarted);
+			}
+		} catch (IOException e) {
+			socketChannel.close();
+			throw e;
+		}
+
+		return connection;
+	}
+
+	/**
+	 * @return number of requests or request changes handed to this reactor
+	 *         which it has not taken yet
+	 */
+	public long getQueueDepth() {
+		return this.pendingRequests.size();
+	}
 
-		// Queue a channel registration since the caller is not the
-		// selecting thread. As part of the registration we'll register
-		// an interest in connection events. These are raised when a channel
-		// is ready to complete connection establishment.
-		synchronized (this.pendingChanges) {
-			this.pendingChanges.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER,
-			                                          SelectionKey.OP_CONNECT));
+	/**
+	 * Notifies the selecting thread about a new request, or about more data
+	 * queued for, the abort of, or the resumption of a request it already
+	 * knows. May be called from any thread.
+	 */
+	public void send(BackendRequest request) {
+		// Queue the request since the caller is not the selecting thread. A
+		// connection is assigned to it the next time around the select loop.
+		// A request already waiting in the queue is picked up with all its
+		// changes anyway.
+		if (request.scheduled.compareAndSet(false, true)) {
+			this.pendingRequests.add(request);
 		}
+	}
 
-		return socketChannel;
+	private void resumeReading(BackendRequest request) {
+		request.resumeRequested = true;
+		this.send(request);
 	}
 
-	public void send(byte[] data, RspHandler handler) throws IOException {
-		// Start a new connection
-		SocketChannel socket = this.initiateConnection();
-		// Register the response handler
-		this.rspHandlers.put(socket, handler);
-		synchronized (this.pendingData) {
-			List<ByteBuffer> queue = pendingData.get(socket);
-			if (queue == null) {
-				queue = new ArrayList<ByteBuffer>();
-				this.pendingData.put(socket, queue);
+	private void processPendingRequests() {
+		this.pendingRequests.beforeDrain();
+		BackendRequest request;
+		for (int i = 0; i < ChangeQueue.DRAIN_BATCH_SIZE && (request = this.pendingRequests.poll()) != null; i++) {
+			// Changes made from now on queue the request again
+			request.scheduled.set(false);
+			if (!request.dispatched) {
+				request.dispatched = true;
+				this.dispatch(request);
+			} else {
+				if (request.successor != null && request.aborted) {
+					// The client has gone away, and the request is in the
+					// hands of the other attempt
+					request = request.successor;
+					request.aborted = true;
+				}
+				if (request.connection == null || request.connection.request != request) {
+					continue;
+				}
+				if (request.aborted) {
+					if (!request.handler.isShared()) {
+						// The client went away, the connection is in an
+						// unknown state
+						this.failConnection(request.connection);
+						continue;
+					}
+					// The clients of the identical requests sharing the
+					// response are still there
+					request.handler.aborted();
+					request.aborted = false;
+				}
+				if (request.resumeRequested) {
+					request.resumeRequested = false;
+					request.readPaused = false;
+					this.touch(request);
+					if (request.connection.hasBufferedInput()) {
+						// Decrypted response data is waiting, the socket is
+						// not going to signal it
+						try {
+							this.read(request.connection.key);
+						} catch (IOException e) {
+							this.failConnection(request.connection);
+						}
+						continue;
+					}
+				}
+				this.updateInterest(request);
 			}
-			queue.add(ByteBuffer.wrap(data));
+		}
+	}
+
+	private void dispatch(BackendRequest request) {
+		if (request.aborted) {
+			this.releaseReplay(request);
+			this.drop(request);
+			return;
+		}
 
-			// Finally, wake up our selecting thread so it can make the required
-			// changes
-			this.selector.wakeup();
+		Backend backend = this.upstream.select();
+		if (backend == null) {
+			// Every backend is down, fail fast rather than holding the
+			// request
+			LOGGER.error("No healthy backend is available.");
+			this.unavailable(request);
+			return;
+		}
+		this.retryBudget.deposit();
+		this.dispatchTo(request, backend);
+		if (this.hedgeDelay != null && request.replay != null && !request.finished && !request.responseStarted) {
+			this.scheduleHedge(request);
+		}
+	}
+
+	private void dispatchTo(BackendRequest request, Backend backend) {
+		request.backend = backend;
+		request.handler.backend = backend.index;
+		request.dispatchTime = System.nanoTime();
+		backend.requestStarted();
+		this.scheduleTimeouts(request);
+		BackendConnectionPool pool = this.pools[backend.index];
+
+		// Prefer an idle keep-alive connection ...
+		SocketChannel socketChannel = pool.lease();
+		if (socketChannel != null) {
+			this.assign(connectionOf(socketChannel), request);
+			return;
+		}
+
+		// ... then a new one, as long as the pool has room for it ...
+		if (pool.reserve()) {
+			this.connect(request);
+			return;
+		}
+
+		// ... otherwise wait until a connection is returned, unless too many
+		// requests are waiting already.
+		if (!pool.addWaiter(request)) {
+			LOGGER.error("Too many requests are waiting for backend " + backend + ".");
+			this.finish(request, false);
+			this.unavailable(request);
+		}
+	}
+
+	private void connect(BackendRequest request) {
+		try {
+			this.assign(this.initiateConnection(request.backend), request);
+		} catch (IOException e) {
+			LOGGER.error("An Exception was thrown while connecting to the backend.", e);
+			this.pools[request.backend.index].discard(null);
+			this.finish(request, true);
+			if (this.retryConnect(request)) {
+				return;
+			}
+			request.data.clear();
+			if (!this.handOver(request)) {
+				request.handler.failed();
+			}
+		}
+	}
+
+	/**
+	 * Fails a request which has not been sent to a backend, as none may take
+	 * it.
+	 */
+	private void unavailable(BackendRequest request) {
+		boolean handedOver = this.handOver(request);
+		request.finished = true;
+		this.releaseReplay(request);
+		request.data.clear();
+		if (!handedOver) {
+			request.aborted = true;
+			request.handler.unavailable();
+		}
+	}
+
+	/**
+	 * Drops a request which is not going to be sent, letting its handler
+	 * know unless the request has been left to another attempt at it.
+	 */
+	private void drop(BackendRequest request) {
+		request.data.clear();
+		if (request.sibling != null) {
+			// The client has gone away, the other attempt is of no use
+			// either
+			this.cancel(request.sibling);
+			request.sibling = null;
+		}
+		if (!request.cancelled) {
+			request.handler.aborted();
+		}
+	}
+
+	/**
+	 * Sends a request whose connection could not be established to the next
+	 * backend, if it has retries left and the budget allows. The request has
+	 * been finished on the backend it failed on.
+	 *
+	 * @return <code>false</code> if the request is not retried
+	 */
+	private boolean retryConnect(BackendRequest request) {
+		if (request.aborted || request.sibling != null || request.retries >= this.retryConfig.connectRetries ||
+		    !this.retryBudget.tryWithdraw(System.nanoTime())) {
+			return false;
+		}
+		Backend backend = this.upstream.selectOther(request.backend);
+		if (backend == null) {
+			return false;
+		}
+		LOGGER.info("Retrying a request on backend " + backend + " after failing to connect to backend " +
+		            request.backend + ".");
+		request.retries++;
+		request.finished = false;
+		request.connection = null;
+		this.retried.increment();
+		this.dispatchTo(request, backend);
+		return true;
+	}
+
+	/**
+	 * Schedules the hedge of a request which has just been dispatched for the
+	 * first time, once enough responses have been seen to tell how long is too
+	 * long.
+	 */
+	private void scheduleHedge(final BackendRequest request) {
+		long delay = this.hedgeDelay.get(request.dispatchTime);
+		if (delay == 0) {
+			this.releaseReplay(request);
+			return;
+		}
+		request.hedgeTimer = new TimingWheel.Timeout(new Runnable() {
+			public void run() {
+				hedge(request);
+			}
+		});
+		this.hedgeTimers.schedule(request.hedgeTimer, delay, request.dispatchTime);
+	}
+
+	/**
+	 * Sends a copy of a request whose response has not started in time to
+	 * the next backend, if the budget allows.
+	 */
+	private void hedge(BackendRequest request) {
+		if (request.finished || request.responseStarted || request.aborted || request.replay == null ||
+		    !this.retryBudget.tryWithdraw(System.nanoTime())) {
+			return;
+		}
+		Backend backend = this.upstream.selectOther(request.backend);
+		if (backend == null) {
+			return;
+		}
+		BackendRequest copy = new BackendRequest(request.handler);
+		copy.data.add(request.replay, null);
+		copy.data.end();
+		request.replay = null;
+		copy.dispatched = true;
+		copy.sibling = request;
+		request.sibling = copy;
+		this.hedged.increment();
+		this.dispatchTo(copy, backend);
+	}
+
+	/**
+	 * Gives up on the attempt at a request which has lost to the other one,
+	 * closing its connection if it has been assigned one. A waiting attempt
+	 * is skipped once its turn comes.
+	 */
+	private void cancel(BackendRequest request) {
+		request.sibling = null;
+		request.cancelled = true;
+		this.finish(request, false);
+		Connection connection = request.connection;
+		if (connection != null && connection.request == request) {
+			request.data.clear();
+			this.discardConnection(connection);
+		}
+	}
+
+	/**
+	 * Leaves a request which has failed to the other attempt at it, if one
+	 * is still in flight.
+	 *
+	 * @return <code>true</code> if the other attempt carries on, and the
+	 *         failure is not to be reported
+	 */
+	private boolean handOver(BackendRequest request) {
+		BackendRequest other = request.sibling;
+		if (other == null) {
+			return false;
+		}
+		request.sibling = null;
+		other.sibling = null;
+		if (request.aborted) {
+			// The client has gone away
+			this.cancel(other);
+			return false;
+		}
+		request.cancelled = true;
+		request.successor = other;
+		return true;
+	}
+
+	private void releaseReplay(BackendRequest request) {
+		if (request.replay != null) {
+			request.replay.release();
+			request.replay = null;
+		}
+	}
+
+	/**
+	 * Starts timing a request which has just been dispatched: the wait for
+	 * the backend, which is restarted whenever data goes either way, and the
+	 * whole response.
+	 */
+	private void scheduleTimeouts(final BackendRequest request) {
+		if (this.timeoutConfig.readTimeout == 0 && this.timeoutConfig.responseTimeout == 0) {
+			return;
+		}
+		Runnable task = new Runnable() {
+			public void run() {
+				requestTimedOut(request);
+			}
+		};
+		if (this.timeoutConfig.readTimeout > 0) {
+			request.timeout = new TimingWheel.Timeout(task);
+			this.timeouts.schedule(request.timeout, this.timeoutConfig.readTimeout, request.dispatchTime);
+		}
+		if (this.timeoutConfig.responseTimeout > 0) {
+			request.deadline = new TimingWheel.Timeout(task);
+			this.timeouts.schedule(request.deadline, this.timeoutConfig.responseTimeout, request.dispatchTime);
+		}
+	}
+
+	/**
+	 * Restarts the wait for the backend once data has gone either way.
+	 */
+	private void touch(BackendRequest request) {
+		if (request.timeout != null) {
+			this.timeouts.schedule(request.timeout, this.timeoutConfig.readTimeout, System.nanoTime());
+		}
+	}
+
+	private void requestTimedOut(BackendRequest request) {
+		if (request.finished) {
+			return;
+		}
+		LOGGER.error("Timed out waiting for backend " + request.backend + ".");
+		Connection connection = request.connection;
+		if (connection != null && connection.request == request) {
+			// The connection is in an unknown state
+			this.failConnection(connection, true);
+			return;
+		}
+		// Still waiting for a pooled connection, which is going to skip it
+		this.finish(request, true);
+		boolean handedOver = this.handOver(request);
+		request.data.clear();
+		if (!handedOver) {
+			request.aborted = true;
+			request.handler.timedOut();
+		}
+	}
+
+	private void connectTimedOut(Connection connection) {
+		LOGGER.error("Timed out connecting to backend " + connection.backend + ".");
+		if (connection.request == null) {
+			this.pools[connection.backend.index].warmingFinished();
+		}
+		this.failConnection(connection, true);
+	}
+
+	/**
+	 * Takes a request off the statistics of its backend once it is over. A
+	 * failure counts as a slow response.
+	 */
+	private void finish(BackendRequest request, boolean failed) {
+		if (request.finished) {
+			return;
+		}
+		request.finished = true;
+		if (request.timeout != null) {
+			this.timeouts.cancel(request.timeout);
+		}
+		if (request.deadline != null) {
+			this.timeouts.cancel(request.deadline);
+		}
+		if (request.hedgeTimer != null) {
+			this.hedgeTimers.cancel(request.hedgeTimer);
+		}
+		this.releaseReplay(request);
+		if (failed) {
+			request.backend.recordFailure();
+		} else if (request.responseStarted && !request.aborted) {
+			this.metrics.totalTime.record(System.nanoTime() - request.dispatchTime);
+		}
+		request.backend.requestFinished();
+	}
+
+	private void assign(Connection connection, BackendRequest request) {
+		// Register the request and reset the response parser
+		connection.request = request;
+		connection.outbound = request.data;
+		request.connection = connection;
+		connection.parser.reset();
+		connection.parser.setRequestMethod(request.handler.getRequestMethod());
+
+		// A connection which is still being established starts writing once
+		// finishConnection() completes it
+		this.updateInterest(request);
+	}
+
+	/**
+	 * Sets the interest ops of the request's connection: reads unless the
+	 * client has asked for a pause, writes while request data is queued.
+	 */
+	private void updateInterest(BackendRequest request) {
+		this.updateInterest(request.connection);
+	}
+
+	/**
+	 * Sets the interest ops of a connection. An idle connection only reads.
+	 * While a TLS handshake is in progress the connection writes only when
+	 * the handshake has data to send.
+	 */
+	private void updateInterest(Connection connection) {
+		SelectionKey key = connection.key;
+		if (!key.isValid() || !connection.channel.isConnected()) {
+			return;
+		}
+		BackendRequest request = connection.request;
+		TlsChannel tls = connection.tls;
+		int ops = request != null && request.readPaused ? 0 : SelectionKey.OP_READ;
+		if (tls != null && tls.isHandshaking()) {
+			ops |= SelectionKey.OP_READ;
+			if (tls.wantsWrite()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+		} else if ((request != null && !request.data.isEmpty()) || connection.hasPendingOutput()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+	}
+
+	private void releaseConnection(Connection connection) {
+		connection.outbound = null;
+		BackendConnectionPool pool = this.pools[connection.backend.index];
+
+		// Hand the connection straight to a waiting request, if any
+		BackendRequest waiter;
+		while ((waiter = pool.pollWaiter()) != null) {
+			if (!waiter.aborted && !waiter.cancelled) {
+				this.assign(connection, waiter);
+				return;
+			}
+			this.finish(waiter, false);
+			this.drop(waiter);
+		}
+
+		// Idle connections stay registered for reads so that a close from the
+		// backend is noticed and the connection evicted
+		if (pool.release(connection.channel)) {
+			connection.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Drops a broken connection, failing the request it was serving if any.
+	 */
+	private void failConnection(Connection connection) {
+		this.failConnection(connection, false);
+	}
+
+	/**
+	 * Drops a connection, failing the request it was serving if any.
+	 *
+	 * @param timedOut
+	 *            whether the connection is dropped because the backend took
+	 *            too long
+	 */
+	private void failConnection(Connection connection, boolean timedOut) {
+		BackendRequest request = connection.request;
+		connection.request = null;
+		// Nothing has been sent on a connection which was never established
+		boolean sent = connection.channel.isConnected();
+		this.discardConnection(connection);
+		if (request == null) {
+			return;
+		}
+		// A client going away says nothing about the backend
+		this.finish(request, !request.aborted);
+		if (!sent && this.retryConnect(request)) {
+			return;
+		}
+		request.data.clear();
+		if (this.handOver(request)) {
+			return;
+		}
+		if (request.aborted) {
+			request.handler.aborted();
+			if (!request.handler.isShared()) {
+				return;
+			}
+			// The response has broken off for the identical requests sharing
+			// it as well
+		}
+		if (timedOut) {
+			request.handler.timedOut();
+		} else {
+			request.handler.failed();
+		}
+	}
+
+	private void discardConnection(Connection connection) {
+		if (connection.timeout != null) {
+			this.timeouts.cancel(connection.timeout);
+		}
+		connection.request = null;
+		connection.outbound = null;
+		// Closed by the pool, through closeConnection()
+		this.pools[connection.backend.index].discard(connection.channel);
+	}
+
+	/**
+	 * Closes a backend connection on behalf of its pool.
+	 */
+	private void closeConnection(SocketChannel channel) {
+		Connection connection = connectionOf(channel);
+		if (connection != null) {
+			connection.markClosed();
+		}
+		try {
+			if (connection != null && connection.tls != null) {
+				// Say goodbye and return the TLS buffers to the pool
+				connection.tls.close();
+			} else {
+				// Closing the channel cancels its selection key as well
+				channel.close();
+			}
+		} catch (IOException e) {
+			LOGGER.error("IOException was thrown while closing a backend connection.", e);
+		}
+	}
+
+	/**
+	 * Probes an idle connection before it is leased. A TLS connection is
+	 * read through its TLS layer, which takes in records such as session
+	 * tickets without passing anything on.
+	 *
+	 * @return <code>true</code> if the backend has closed the connection or
+	 *         sent data nobody asked for
+	 */
+	private boolean isStale(Connection connection) {
+		if (connection == null || connection.isClosed()) {
+			return true;
+		}
+		this.probe.clear();
+		try {
+			return connection.read(this.probe) != 0;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private Connection connectionOf(SocketChannel socketChannel) {
+		SelectionKey key = socketChannel.keyFor(this.selector);
+		return key != null ? (Connection) key.attachment() : null;
+	}
+
+	private void maintainPools() {
+		Backend[] backends = this.upstream.getBackends();
+		for (int i = 0; i < backends.length; i++) {
+			this.maintainPool(backends[i], this.pools[i]);
+		}
+	}
+
+	private void maintainPool(Backend backend, BackendConnectionPool pool) {
+		pool.evictExpired(System.currentTimeMillis());
+
+		if (pool.hasWaiters() && !backend.isAvailable(System.nanoTime())) {
+			// Nothing is going to come of waiting for this backend
+			BackendRequest waiter;
+			while ((waiter = pool.pollWaiter()) != null) {
+				this.finish(waiter, false);
+				if (!waiter.aborted && !waiter.cancelled) {
+					this.unavailable(waiter);
+				} else {
+					this.drop(waiter);
+				}
+			}
+		}
+
+		// Open connections for requests which are waiting on the freed up
+		// room, and pre-start idle connections up to minIdle
+		while (pool.hasWaiters() && pool.reserve()) {
+			BackendRequest waiter = pool.pollWaiter();
+			if (waiter.aborted || waiter.cancelled) {
+				this.finish(waiter, false);
+				this.drop(waiter);
+				pool.discard(null);
+				continue;
+			}
+			this.connect(waiter);
+		}
+		for (int i = pool.idleDeficit(); i > 0 && pool.reserve(); i--) {
+			Connection connection;
+			try {
+				connection = this.initiateConnection(backend);
+			} catch (IOException e) {
+				LOGGER.error("An Exception was thrown while pre-starting a backend connection.", e);
+				pool.discard(null);
+				break;
+			}
+			pool.warmingStarted();
+			if (connection.channel.isConnected()) {
+				this.connectionEstablished(connection);
+			}
 		}
 	}
 
 	private void finishConnection(SelectionKey key) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
 
 		// Finish the connection. If the connection operation failed
 		// this will raise an IOException.
+		if (connection.timeout != null) {
+			this.timeouts.cancel(connection.timeout);
+		}
 		try {
-			socketChannel.finishConnect();
+			connection.channel.finishConnect();
 		} catch (IOException e) {
 			LOGGER.error("An Exception was thrown while establishing a connection between the proxy service and the backend.",
 			             e);
+			if (connection.request == null) {
+				this.pools[connection.backend.index].warmingFinished();
+			}
 			// Cancel the channel's registration with our selector
-			key.cancel();
+			this.failConnection(connection);
 			return;
 		}
+		this.metrics.connectTime.record(System.nanoTime() - connection.connectStarted);
+
+		this.connectionEstablished(connection);
+	}
 
-		// Register an interest in writing on this channel
-		key.interestOps(SelectionKey.OP_WRITE);
+	private void connectionEstablished(Connection connection) {
+		if (connection.tls != null) {
+			// Send the client hello right away
+			try {
+				connection.tls.handshake();
+			} catch (IOException e) {
+				LOGGER.error("TLS handshake with the backend failed", e);
+				if (connection.request == null) {
+					this.pools[connection.backend.index].warmingFinished();
+				}
+				this.failConnection(connection);
+				return;
+			}
+		}
+		BackendRequest request = connection.request;
+		if (request != null) {
+			// Register an interest in writing on this channel
+			this.updateInterest(request);
+		} else {
+			// A pre-started connection, put it in the pool
+			this.pools[connection.backend.index].warmingFinished();
+			this.releaseConnection(connection);
+		}
 	}
 
 }
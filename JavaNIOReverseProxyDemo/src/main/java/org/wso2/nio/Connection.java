@@ -0,0 +1,136 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * State of one socket channel served by a reactor, attached to the channel's
+ * {@link SelectionKey}. Everything the reactor knows about a connection hangs
+ * off this object, so an I/O event gets to it without any lookup and the state
+ * goes away with the connection.
+ *
+ * Apart from {@link #outbound}, which other threads queue data on, the fields
+ * are only touched by the selecting thread of the reactor owning the channel.
+ *
+ * @author ravindra
+ *
+ */
+public class Connection {
+	public final SocketChannel channel;
+
+	// Set once the channel has been registered with the reactor's selector
+	SelectionKey key;
+
+	// TLS layer of the channel, null on plain connections
+	TlsChannel tls;
+
+	// Data waiting to be written to the channel. A client connection has one
+	// for its lifetime, a backend connection writes the data of the request
+	// it is serving.
+	volatile OutboundQueue outbound;
+
+	// Parser of the messages read from the channel
+	HttpMessageParser parser;
+
+	// The request being relayed from a client connection, or the request a
+	// backend connection is serving
+	BackendRequest request;
+
+	// The backend a backend connection or tunnel goes to, and when the
+	// connection to it was initiated
+	Backend backend;
+	long connectStarted;
+
+	// The other end of a tunnel, the bytes read from this connection and
+	// whether they have all been passed on, in mode=tcp
+	Connection peer;
+	PooledBuffer inbound;
+	boolean inputEnded;
+	boolean endForwarded;
+
+	// Fires once the connection has been idle or stalled for too long, and
+	// the number of requests read from a client connection whose responses
+	// are not over yet
+	TimingWheel.Timeout timeout;
+	int pendingResponses;
+
+	// Puts the responses to the requests of a client connection in order
+	ResponseSequencer responses;
+
+	// The metrics counting the bytes read from the channel and written to it,
+	// in mode=tcp
+	LongAdder bytesRead;
+	LongAdder bytesWritten;
+
+	// Set once the reactor has closed the connection
+	private volatile boolean closed;
+
+	public Connection(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Reads from the channel, through the TLS layer if there is one.
+	 */
+	int read(ByteBuffer dst) throws IOException {
+		return tls != null ? tls.read(dst) : channel.read(dst);
+	}
+
+	/**
+	 * @return the channel queued data is written to, which is the TLS layer
+	 *         if there is one
+	 */
+	GatheringByteChannel out() {
+		return tls != null ? tls : channel;
+	}
+
+	/**
+	 * @return <code>true</code> if the TLS layer holds decrypted bytes which
+	 *         have not been read yet. No read event is going to be raised for
+	 *         them.
+	 */
+	boolean hasBufferedInput() {
+		return tls != null && tls.hasBufferedInput();
+	}
+
+	/**
+	 * @return <code>true</code> if the TLS layer holds encrypted bytes which
+	 *         have not been written yet
+	 */
+	boolean hasPendingOutput() {
+		return tls != null && tls.hasPendingOutput();
+	}
+
+	/**
+	 * Closes the channel, sending a TLS close_notify first if possible.
+	 */
+	void closeChannel() throws IOException {
+		if (tls != null) {
+			tls.close();
+		} else {
+			channel.close();
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Marks the connection closed.
+	 *
+	 * @return <code>false</code> if it had been closed already
+	 */
+	boolean markClosed() {
+		if (closed) {
+			return false;
+		}
+		closed = true;
+		return true;
+	}
+
+}
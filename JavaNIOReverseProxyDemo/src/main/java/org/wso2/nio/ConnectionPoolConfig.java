@@ -0,0 +1,44 @@
+package org.wso2.nio;
+
+import java.util.Properties;
+
+/**
+ * Settings of the persistent backend connection pool, read from the
+ * <code>backendPool*</code> entries of the config.properties file.
+ *
+ * @author ravindra
+ *
+ */
+public class ConnectionPoolConfig {
+	// Upper bound of open connections (idle, leased and connecting) per backend
+	public int maxTotal = 20;
+	// Idle connections kept open even when they exceed the idle timeout
+	public int minIdle = 0;
+	// Idle connections beyond this are closed as soon as they are returned
+	public int maxIdle = 10;
+	// Time an idle connection may stay in the pool before it is evicted
+	public long idleTimeout = 30000;
+	// Requests which may wait for a connection before more are turned away
+	public int maxWaiters = 1000;
+
+	public static ConnectionPoolConfig load(Properties prop) {
+		ConnectionPoolConfig config = new ConnectionPoolConfig();
+		config.maxTotal = Integer.parseInt(prop.getProperty("backendPoolMaxTotal", String.valueOf(config.maxTotal)));
+		config.minIdle = Integer.parseInt(prop.getProperty("backendPoolMinIdle", String.valueOf(config.minIdle)));
+		config.maxIdle = Integer.parseInt(prop.getProperty("backendPoolMaxIdle", String.valueOf(config.maxIdle)));
+		config.idleTimeout = Long.parseLong(prop.getProperty("backendPoolIdleTimeout", String.valueOf(config.idleTimeout)));
+		config.maxWaiters = Integer.parseInt(prop.getProperty("backendPoolMaxWaiters", String.valueOf(config.maxWaiters)));
+
+		if (config.maxTotal < 1) {
+			throw new IllegalArgumentException("backendPoolMaxTotal must be at least 1");
+		}
+		if (config.maxWaiters < 0) {
+			throw new IllegalArgumentException("backendPoolMaxWaiters must not be negative");
+		}
+		if (config.minIdle > config.maxIdle || config.maxIdle > config.maxTotal) {
+			throw new IllegalArgumentException("Expected backendPoolMinIdle <= backendPoolMaxIdle <= backendPoolMaxTotal");
+		}
+		return config;
+	}
+
+}
@@ -0,0 +1,43 @@
+package org.wso2.nio;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the responses the proxy service sends on its own behalf when a
+ * request can not be answered by the backend.
+ * 
+ * @author ravindra
+ *
+ */
+public class ErrorResponse {
+
+	private ErrorResponse() {
+	}
+
+	/**
+	 * @return a complete HTTP/1.1 response with a plain text body, asking the
+	 *         client to close the connection
+	 */
+	public static byte[] bytes(int status, String reason) {
+		String body = status + " " + reason + "\n";
+		String response =
+		                  "HTTP/1.1 " + status + " " + reason + "\r\n" +
+		                          "Content-Type: text/plain\r\n" + "Content-Length: " +
+		                          body.length() + "\r\n" + "Connection: close\r\n\r\n" + body;
+		return response.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return a complete HTTP/1.1 response with a plain text body, asking the
+	 *         client to try again after a second on the same connection
+	 */
+	public static byte[] retryLater(int status, String reason) {
+		String body = status + " " + reason + "\n";
+		String response =
+		                  "HTTP/1.1 " + status + " " + reason + "\r\n" +
+		                          "Content-Type: text/plain\r\n" + "Content-Length: " +
+		                          body.length() + "\r\n" + "Retry-After: 1\r\n\r\n" + body;
+		return response.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+}
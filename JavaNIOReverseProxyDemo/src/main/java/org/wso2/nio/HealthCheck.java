@@ -0,0 +1,286 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Probes the health of a backend every <code>healthCheckInterval</code> from
+ * the select loop of a connecting ioReactor, without blocking it. A probe
+ * connects to the backend and, with <code>healthCheckPath</code> set, sends a
+ * GET request for the path and expects a 2xx or 3xx status line back within
+ * <code>healthCheckTimeout</code>. Enough probes failing in a row take the
+ * backend out of rotation, and enough passing bring it back.
+ *
+ * With <code>secureBackend</code> set the request goes through a
+ * {@link TlsChannel}, so that the probe gets the handshake done first just as
+ * a request would. The delegated tasks of the handshake hand the probe back
+ * to the reactor through a {@link ChangeQueue} once they have completed.
+ *
+ * The probe connection is attached to its selection key in place of a
+ * {@link Connection}, and both the probe timeout and the wait for the next
+ * probe are a single {@link TimingWheel.Timeout} of the reactor.
+ *
+ * @author ravindra
+ *
+ */
+public class HealthCheck implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(HealthCheck.class);
+
+	// Room for the status line of the response
+	private static final int STATUS_LINE_SIZE = 64;
+
+	private final Backend backend;
+	private final HealthConfig config;
+	private final Selector selector;
+	private final TimingWheel timeouts;
+	private final TimingWheel.Timeout timer = new TimingWheel.Timeout(this);
+
+	// Where the probes talk TLS, and the queue of the probes whose handshake
+	// tasks have completed. The TLS config is null for plain backends.
+	private final TlsConfig tlsConfig;
+	private final ChangeQueue<HealthCheck> handshakesReady;
+
+	// The request sent by each probe, null if probes only connect
+	private final ByteBuffer request;
+	private final ByteBuffer response = ByteBuffer.allocate(STATUS_LINE_SIZE);
+
+	// The connection of the probe in progress, null between probes
+	private SocketChannel channel;
+	private SelectionKey key;
+	private TlsChannel tls;
+
+	// Probes in a row with the same verdict
+	private int passed;
+	private int failed;
+
+	public HealthCheck(Backend backend, HealthConfig config, Selector selector, TimingWheel timeouts) {
+		this(backend, config, selector, timeouts, null, null);
+	}
+
+	public HealthCheck(Backend backend, HealthConfig config, Selector selector, TimingWheel timeouts,
+	                   TlsConfig tlsConfig, ChangeQueue<HealthCheck> handshakesReady) {
+		this.backend = backend;
+		this.config = config;
+		this.selector = selector;
+		this.timeouts = timeouts;
+		this.tlsConfig = tlsConfig != null && tlsConfig.isBackendSecure() ? tlsConfig : null;
+		this.handshakesReady = handshakesReady;
+		if (config.checkPath != null) {
+			String head = "GET " + config.checkPath + " HTTP/1.1\r\nHost: " + backend + "\r\nConnection: close\r\n\r\n";
+			this.request = ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1));
+		} else {
+			this.request = null;
+		}
+	}
+
+	/**
+	 * Starts probing. Called by the selecting thread.
+	 */
+	public void start() {
+		this.probe();
+	}
+
+	/**
+	 * Fired by the timer: the probe in progress took too long, or the next
+	 * probe is due.
+	 */
+	public void run() {
+		if (this.channel != null) {
+			LOGGER.info("Health check of backend " + this.backend + " timed out.");
+			this.complete(false);
+		} else {
+			this.probe();
+		}
+	}
+
+	private void probe() {
+		this.timeouts.schedule(this.timer, this.config.checkTimeout, System.nanoTime());
+		try {
+			this.channel = SocketChannel.open();
+			this.channel.configureBlocking(false);
+			if (this.tlsConfig != null && this.request != null) {
+				this.tls = new TlsChannel(this.channel, this.tlsConfig.createClientEngine(this.backend.host,
+				                                                                         this.backend.port),
+				                          BufferPool.getDefault(), this.tlsConfig.getTaskExecutor(), new Runnable() {
+					                          public void run() {
+						                          handshakesReady.add(HealthCheck.this);
+					                          }
+				                          });
+			}
+			boolean connected = this.channel.connect(this.backend.address);
+			this.key = this.channel.register(this.selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+			if (connected) {
+				this.connected();
+			}
+		} catch (IOException e) {
+			LOGGER.info("Health check of backend " + this.backend + " failed: " + e.getMessage());
+			this.complete(false);
+		}
+	}
+
+	/**
+	 * Carries on with the probe once its connection is ready. Called by the
+	 * selecting thread.
+	 */
+	public void handle(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				this.channel.finishConnect();
+				this.connected();
+				return;
+			}
+			this.carryOn();
+		} catch (IOException e) {
+			LOGGER.info("Health check of backend " + this.backend + " failed: " + e.getMessage());
+			this.complete(false);
+		}
+	}
+
+	/**
+	 * Carries on with a probe whose delegated TLS handshake tasks have
+	 * completed. Called by the selecting thread.
+	 */
+	public void resume() {
+		if (this.tls == null) {
+			// The probe is over
+			return;
+		}
+		try {
+			this.carryOn();
+		} catch (IOException e) {
+			LOGGER.info("Health check of backend " + this.backend + " failed: " + e.getMessage());
+			this.complete(false);
+		}
+	}
+
+	private void connected() throws IOException {
+		if (this.request == null) {
+			this.complete(true);
+			return;
+		}
+		this.request.rewind();
+		this.response.clear();
+		// Send the request, or the client hello, right away
+		this.carryOn();
+	}
+
+	/**
+	 * Gets the handshake done, then sends the request and reads the status
+	 * line of the response, as far as it gets without waiting.
+	 */
+	private void carryOn() throws IOException {
+		if (this.tls != null && !this.tls.handshake()) {
+			// Waiting for the backend or for the delegated tasks
+			this.updateInterest();
+			return;
+		}
+		if (this.isSending()) {
+			if (this.tls != null) {
+				this.tls.write(this.request);
+			} else {
+				this.channel.write(this.request);
+			}
+		}
+		this.updateInterest();
+		if (!this.isSending()) {
+			this.read();
+		}
+	}
+
+	private boolean isSending() {
+		return this.request.hasRemaining() || (this.tls != null && this.tls.hasPendingOutput());
+	}
+
+	private void updateInterest() {
+		int ops;
+		if (this.tls != null && this.tls.isHandshaking()) {
+			ops = (this.tls.wantsRead() ? SelectionKey.OP_READ : 0) |
+			      (this.tls.wantsWrite() ? SelectionKey.OP_WRITE : 0);
+		} else {
+			ops = this.isSending() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+		}
+		this.key.interestOps(ops);
+	}
+
+	private void read() throws IOException {
+		int numRead;
+		int end;
+		do {
+			// Decrypted data left over from an earlier read is not signalled
+			// by the socket again
+			numRead = this.tls != null ? this.tls.read(this.response) : this.channel.read(this.response);
+			end = indexOfLineEnd();
+		} while (end < 0 && numRead > 0 && this.response.hasRemaining());
+		if (end < 0 && numRead != -1 && this.response.hasRemaining()) {
+			// The status line is not complete yet
+			return;
+		}
+		String line = new String(this.response.array(), 0, end < 0 ? this.response.position() : end,
+		                         StandardCharsets.ISO_8859_1);
+		// HTTP/1.1 200 OK
+		String[] parts = line.split(" ");
+		int status = 0;
+		if (parts.length >= 2 && parts[0].startsWith("HTTP/")) {
+			try {
+				status = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException e) {
+				status = 0;
+			}
+		}
+		if (status < 200 || status >= 400) {
+			LOGGER.info("Health check of backend " + this.backend + " got " + (status == 0 ? "no status" : status) +
+			            ".");
+		}
+		this.complete(status >= 200 && status < 400);
+	}
+
+	private int indexOfLineEnd() {
+		byte[] data = this.response.array();
+		for (int i = 0; i < this.response.position(); i++) {
+			if (data[i] == '\r' || data[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Ends the probe in progress and schedules the next one.
+	 */
+	private void complete(boolean ok) {
+		if (this.channel != null) {
+			try {
+				if (this.tls != null) {
+					this.tls.close();
+				} else {
+					this.channel.close();
+				}
+			} catch (IOException e) {
+				LOGGER.error("IOException was thrown while closing a health check connection.", e);
+			}
+			this.channel = null;
+			this.key = null;
+			this.tls = null;
+		}
+		this.timeouts.schedule(this.timer, this.config.checkInterval, System.nanoTime());
+
+		if (ok) {
+			this.failed = 0;
+			if (++this.passed >= this.config.healthyThreshold) {
+				this.backend.setHealthy(true);
+			}
+		} else {
+			this.passed = 0;
+			if (++this.failed >= this.config.unhealthyThreshold) {
+				this.backend.setHealthy(false);
+			}
+		}
+	}
+
+}
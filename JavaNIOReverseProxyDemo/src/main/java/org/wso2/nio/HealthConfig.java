@@ -0,0 +1,89 @@
+package org.wso2.nio;
+
+import java.util.Properties;
+
+/**
+ * How the health of the backends is judged, read from the
+ * <code>healthCheck*</code>, <code>circuitBreaker*</code> and
+ * <code>outlier*</code> entries of the config.properties file. Times are in
+ * milliseconds, rates in percent of the requests, and a value of 0 disables
+ * what it sets.
+ *
+ * @author ravindra
+ *
+ */
+public class HealthConfig {
+	// Time between two probes of a backend
+	public long checkInterval = 0;
+	// Time a probe may take before it counts as failed
+	public long checkTimeout = 2000;
+	// Path a probe sends a GET request for, or null to only connect
+	public String checkPath;
+	// Probes in a row which take a backend out of, and back into, rotation
+	public int unhealthyThreshold = 3;
+	public int healthyThreshold = 2;
+
+	// Failed requests, and requests slower than slowCallTime to the first
+	// byte, among the requests of the last window which open the circuit of
+	// a backend, once it has seen at least minRequests of them
+	public int errorRate = 50;
+	public long slowCallTime = 0;
+	public int slowCallRate = 50;
+	public long window = 10000;
+	public int minRequests = 20;
+	// Time an open circuit fails requests before letting a trial through
+	public long openTime = 5000;
+
+	// Failures in a row which eject a backend, for how long, and the largest
+	// share of the backends ejected at the same time
+	public int consecutiveFailures = 5;
+	public long ejectionTime = 30000;
+	public int maxEjectionPercent = 50;
+
+	public static HealthConfig load(Properties prop) {
+		HealthConfig config = new HealthConfig();
+		config.checkInterval = parse(prop, "healthCheckInterval", config.checkInterval);
+		config.checkTimeout = parse(prop, "healthCheckTimeout", config.checkTimeout);
+		String path = prop.getProperty("healthCheckPath");
+		config.checkPath = path == null || path.trim().isEmpty() ? null : path.trim();
+		config.unhealthyThreshold = (int) parse(prop, "healthCheckUnhealthyThreshold", config.unhealthyThreshold);
+		config.healthyThreshold = (int) parse(prop, "healthCheckHealthyThreshold", config.healthyThreshold);
+		config.errorRate = (int) parse(prop, "circuitBreakerErrorRate", config.errorRate);
+		config.slowCallTime = parse(prop, "circuitBreakerSlowCallTime", config.slowCallTime);
+		config.slowCallRate = (int) parse(prop, "circuitBreakerSlowCallRate", config.slowCallRate);
+		config.window = parse(prop, "circuitBreakerWindow", config.window);
+		config.minRequests = (int) parse(prop, "circuitBreakerMinRequests", config.minRequests);
+		config.openTime = parse(prop, "circuitBreakerOpenTime", config.openTime);
+		config.consecutiveFailures = (int) parse(prop, "outlierConsecutiveFailures", config.consecutiveFailures);
+		config.ejectionTime = parse(prop, "outlierEjectionTime", config.ejectionTime);
+		config.maxEjectionPercent = (int) parse(prop, "outlierMaxEjectionPercent", config.maxEjectionPercent);
+
+		if (config.checkInterval > 0 && (config.checkTimeout == 0 || config.unhealthyThreshold == 0 ||
+		                                 config.healthyThreshold == 0)) {
+			throw new IllegalArgumentException("healthCheckTimeout and the healthCheck thresholds must be at least 1");
+		}
+		if (config.errorRate > 100 || config.slowCallRate > 100 || config.maxEjectionPercent > 100) {
+			throw new IllegalArgumentException("Rates and percentages must not exceed 100");
+		}
+		if (config.isCircuitBreakerEnabled() && config.window == 0) {
+			throw new IllegalArgumentException("circuitBreakerWindow must be at least 1");
+		}
+		return config;
+	}
+
+	/**
+	 * @return <code>true</code> if the circuit of a backend may open at all
+	 */
+	public boolean isCircuitBreakerEnabled() {
+		return errorRate > 0 || (slowCallTime > 0 && slowCallRate > 0);
+	}
+
+	private static long parse(Properties prop, String name, long defaultValue) {
+		long value = Long.parseLong(prop.getProperty(name, String.valueOf(defaultValue)));
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(name + " must be between 0 and " + Integer.MAX_VALUE);
+		}
+		return value;
+	}
+
+}
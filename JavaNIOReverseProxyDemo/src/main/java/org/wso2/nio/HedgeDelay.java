@@ -0,0 +1,75 @@
+package org.wso2.nio;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a request waits for the first bytes of its response before it is
+ * hedged: the <code>hedgeDelayPercentile</code> of the recent times to first
+ * byte, but no less than <code>hedgeMinDelay</code>. The times are recorded
+ * by all connecting ioReactors into a {@link Histogram}, which is looked at
+ * every {@link #INTERVAL_NANOS}, and read and replaced once it holds
+ * {@link #MIN_SAMPLES} of them. Until then there is no delay, and nothing is
+ * hedged.
+ *
+ * Recording is lock free. The delay is taken afresh under the lock of this
+ * object, by the one thread which finds it due.
+ *
+ * @author ravindra
+ *
+ */
+public class HedgeDelay {
+	// How often the delay is taken afresh, and the responses it needs to be
+	// taken from
+	static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	static final int MIN_SAMPLES = 100;
+
+	private final RetryConfig config;
+
+	private volatile Histogram recent = new Histogram();
+	// In milliseconds, 0 until enough responses have been seen
+	private volatile long delay;
+	private volatile long updated;
+
+	public HedgeDelay(RetryConfig config, long now) {
+		this.config = config;
+		this.updated = now;
+	}
+
+	/**
+	 * Records the time to the first byte of a response. May be called from
+	 * any thread.
+	 */
+	public void record(long timeToFirstByte) {
+		this.recent.record(timeToFirstByte);
+	}
+
+	/**
+	 * @return the delay in milliseconds, or 0 if too few responses have been
+	 *         seen to tell how long is too long
+	 */
+	public long get(long now) {
+		if (now - this.updated >= INTERVAL_NANOS) {
+			this.update(now);
+		}
+		return this.delay;
+	}
+
+	private synchronized void update(long now) {
+		if (now - this.updated < INTERVAL_NANOS) {
+			// Another thread got here first
+			return;
+		}
+		this.updated = now;
+		Histogram histogram = this.recent;
+		if (histogram.getCount() < MIN_SAMPLES) {
+			// Keep recording into the same one
+			return;
+		}
+		long percentile = histogram.getValueAtPercentile(this.config.hedgeDelayPercentile);
+		// Round up to whole milliseconds, the ticks hedges are timed in
+		long millis = TimeUnit.NANOSECONDS.toMillis(percentile + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+		this.delay = Math.max(Math.max(1, this.config.hedgeMinDelay), millis);
+		this.recent = new Histogram();
+	}
+
+}
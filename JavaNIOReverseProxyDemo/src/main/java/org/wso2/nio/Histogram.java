@@ -0,0 +1,122 @@
+package org.wso2.nio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of non-negative values, such as latencies in
+ * nanoseconds, covering the whole range of a long with a bounded relative
+ * error. Values are bucketed by their highest set bit and the
+ * {@link #SUB_BUCKET_BITS} bits below it, so the buckets are exact up to
+ * {@link #SUB_BUCKETS} and grow in proportion to the values above: every
+ * value is off by less than 1 / {@link #SUB_BUCKETS} from the bucket it is
+ * counted in.
+ *
+ * Recording a value is a single increment of a slot in an array, and may be
+ * done by any number of threads at once. Percentiles are read off the counts
+ * while recording goes on, so they may miss the values recorded during the
+ * read.
+ *
+ * @author ravindra
+ *
+ */
+public class Histogram {
+	static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Values below SUB_BUCKETS have a bucket of their own, the others
+	// SUB_BUCKETS buckets per power of two up to the largest long
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the highest value of the bucket the given share of the recorded
+	 *         values are in or below of, 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		return getValuesAtPercentiles(percentile)[0];
+	}
+
+	/**
+	 * Reads several percentiles in one pass over the buckets.
+	 *
+	 * @param percentiles
+	 *            in ascending order, each between 0 and 100
+	 */
+	public long[] getValuesAtPercentiles(double... percentiles) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+
+		long[] values = new long[percentiles.length];
+		if (total == 0) {
+			return values;
+		}
+		long highest = max.get();
+		int p = 0;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS && p < percentiles.length; i++) {
+			seen += snapshot[i];
+			while (p < percentiles.length && seen > 0 && seen >= Math.ceil(total * percentiles[p] / 100)) {
+				values[p++] = Math.min(highestValueOf(i), highest);
+			}
+		}
+		while (p < percentiles.length) {
+			values[p++] = highest;
+		}
+		return values;
+	}
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.wso2.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The start line and the header fields of an HTTP/1.x request or response, as
+ * decoded by {@link HttpMessageParser}. Header names are matched case
+ * insensitively and keep the order in which they appeared on the wire.
+ *
+ * @author ravindra
+ *
+ */
+public class HttpMessageHead {
+	public static final String HTTP_1_0 = "HTTP/1.0";
+	public static final String HTTP_1_1 = "HTTP/1.1";
+
+	// Request line
+	public String method;
+	public String uri;
+
+	// Status line
+	public int status;
+	public String reason;
+
+	public String version;
+
+	private final boolean request;
+	private final List<String> names = new ArrayList<String>();
+	private final List<String> values = new ArrayList<String>();
+
+	public HttpMessageHead(boolean request) {
+		this.request = request;
+	}
+
+	public boolean isRequest() {
+		return request;
+	}
+
+	public void addHeader(String name, String value) {
+		names.add(name);
+		values.add(value);
+	}
+
+	public void setHeaderValue(int index, String value) {
+		values.set(index, value);
+	}
+
+	public int getHeaderCount() {
+		return names.size();
+	}
+
+	public String getHeaderName(int index) {
+		return names.get(index);
+	}
+
+	public String getHeaderValue(int index) {
+		return values.get(index);
+	}
+
+	/**
+	 * @return the value of the first header field with the given name, or
+	 *         <code>null</code> if there is none
+	 */
+	public String getHeader(String name) {
+		for (int i = 0; i < names.size(); i++) {
+			if (names.get(i).equalsIgnoreCase(name)) {
+				return values.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return all values of the header fields with the given name
+	 */
+	public List<String> getHeaders(String name) {
+		List<String> result = new ArrayList<String>(1);
+		for (int i = 0; i < names.size(); i++) {
+			if (names.get(i).equalsIgnoreCase(name)) {
+				result.add(values.get(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Checks whether a comma separated header field, such as Connection or
+	 * Transfer-Encoding, lists the given token.
+	 */
+	public boolean hasToken(String name, String token) {
+		for (String value : getHeaders(name)) {
+			for (String element : value.split(",")) {
+				if (element.trim().equalsIgnoreCase(token)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> if the connection may carry further messages
+	 *         after this one, as negotiated by the HTTP version and the
+	 *         Connection header
+	 */
+	public boolean isKeepAlive() {
+		if (hasToken("Connection", "close")) {
+			return false;
+		}
+		if (HTTP_1_0.equals(version)) {
+			return hasToken("Connection", "keep-alive");
+		}
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> for the 1xx responses which are followed by
+	 *         the final response to the same request
+	 */
+	public boolean isInterim() {
+		return !request && status >= 100 && status < 200 && status != 101;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		if (request) {
+			sb.append(method).append(' ').append(uri).append(' ').append(version);
+		} else {
+			sb.append(version).append(' ').append(status).append(' ').append(reason);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,456 @@
+package org.wso2.nio;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Resumable HTTP/1.1 message framing parser. The parser is fed whatever the
+ * last read returned and keeps its state between calls, so a message may be
+ * split across any number of reads and a read may hold the end of one message
+ * and the start of the next.
+ *
+ * Only the head (start line and header fields) is copied, into a bounded
+ * buffer, and decoded into a {@link HttpMessageHead}. Message bodies, whether
+ * delimited by Content-Length, by chunked transfer coding (including chunk
+ * extensions and trailers) or by the connection close, are merely skipped over
+ * in the caller's buffer, so the caller can relay them without copying.
+ *
+ * One parser instance is kept per connection and direction, and
+ * {@link #reset()} is called before each new message.
+ *
+ * @author ravindra
+ *
+ */
+public class HttpMessageParser {
+	// Result codes of parse(ByteBuffer)
+	public static final int NEED_MORE = 0;
+	public static final int HEAD_COMPLETE = 1;
+	public static final int MESSAGE_COMPLETE = 2;
+
+	public static final int DEFAULT_MAX_HEAD_SIZE = 16384;
+
+	private static final int START = 0;
+	private static final int HEAD = 1;
+	private static final int BODY_FIXED = 2;
+	private static final int BODY_UNTIL_CLOSE = 3;
+	private static final int CHUNK_SIZE = 4;
+	private static final int CHUNK_EXTENSION = 5;
+	private static final int CHUNK_DATA = 6;
+	private static final int CHUNK_DATA_END = 7;
+	private static final int TRAILERS = 8;
+	private static final int DONE = 9;
+
+	private final boolean request;
+	private final int maxHeadSize;
+
+	private int state = START;
+	private HttpMessageHead head;
+	private boolean headReported;
+
+	// Raw bytes of the head, kept until it has been decoded
+	private byte[] headBuffer;
+	private int headLength;
+
+	// Length of the current head or trailer line, line terminators excluded
+	private int lineLength;
+
+	// Body bytes left in the current fixed length body or chunk
+	private long remaining;
+	private boolean chunkSizeSeen;
+
+	// Method of the request a response is parsed for
+	private String requestMethod;
+
+	public HttpMessageParser(boolean request) {
+		this(request, DEFAULT_MAX_HEAD_SIZE);
+	}
+
+	public HttpMessageParser(boolean request, int maxHeadSize) {
+		this.request = request;
+		this.maxHeadSize = maxHeadSize;
+		this.headBuffer = new byte[Math.min(512, maxHeadSize)];
+	}
+
+	/**
+	 * Prepares the parser for the next message on the connection.
+	 */
+	public void reset() {
+		state = START;
+		head = null;
+		headReported = false;
+		headLength = 0;
+		lineLength = 0;
+		remaining = 0;
+		chunkSizeSeen = false;
+	}
+
+	/**
+	 * Sets the method of the request the next response answers. A response to
+	 * a HEAD request never has a body, whatever its headers say.
+	 */
+	public void setRequestMethod(String requestMethod) {
+		this.requestMethod = requestMethod;
+	}
+
+	/**
+	 * Consumes bytes of the current message from <code>src</code>, advancing
+	 * its position. Parsing stops right after the head, so that the caller can
+	 * act on it before the body is relayed, and right after the last byte of
+	 * the message; the bytes left in <code>src</code> then belong to the next
+	 * message.
+	 *
+	 * @return {@link #HEAD_COMPLETE} once the head is available from
+	 *         {@link #getHead()}, {@link #MESSAGE_COMPLETE} once the message is
+	 *         complete, or {@link #NEED_MORE} when <code>src</code> has been
+	 *         used up
+	 * @throws ProtocolException if the message is malformed
+	 */
+	public int parse(ByteBuffer src) throws ProtocolException {
+		while (true) {
+			switch (state) {
+				case START:
+				case HEAD:
+					if (!parseHead(src)) {
+						return NEED_MORE;
+					}
+					break;
+				case BODY_FIXED:
+				case CHUNK_DATA:
+					if (remaining > 0) {
+						int n = (int) Math.min(remaining, src.remaining());
+						src.position(src.position() + n);
+						remaining -= n;
+						if (remaining > 0) {
+							return NEED_MORE;
+						}
+					}
+					state = (state == BODY_FIXED) ? DONE : CHUNK_DATA_END;
+					break;
+				case BODY_UNTIL_CLOSE:
+					src.position(src.limit());
+					return NEED_MORE;
+				case CHUNK_SIZE:
+				case CHUNK_EXTENSION:
+				case CHUNK_DATA_END:
+				case TRAILERS:
+					if (!parseChunkFraming(src)) {
+						return NEED_MORE;
+					}
+					break;
+				case DONE:
+					return MESSAGE_COMPLETE;
+			}
+
+			if (head != null && !headReported) {
+				headReported = true;
+				return HEAD_COMPLETE;
+			}
+		}
+	}
+
+	/**
+	 * Tells the parser that the connection has been closed by the peer.
+	 *
+	 * @return <code>true</code> if this completes the current message, which
+	 *         is the case for a response delimited by the connection close
+	 */
+	public boolean endOfStream() {
+		if (state == BODY_UNTIL_CLOSE) {
+			state = DONE;
+		}
+		return state == DONE;
+	}
+
+	/**
+	 * @return the head of the current message, or <code>null</code> if it has
+	 *         not been received completely yet
+	 */
+	public HttpMessageHead getHead() {
+		return head;
+	}
+
+	/**
+	 * @return a copy of the raw bytes of the head of the current message, as
+	 *         received
+	 */
+	public byte[] getHeadBytes() {
+		byte[] copy = new byte[headLength];
+		System.arraycopy(headBuffer, 0, copy, 0, headLength);
+		return copy;
+	}
+
+	public int getHeadLength() {
+		return headLength;
+	}
+
+	/**
+	 * Copies the raw bytes of the head of the current message into the given
+	 * buffer, which needs {@link #getHeadLength()} bytes of room.
+	 */
+	public void copyHead(ByteBuffer dst) {
+		dst.put(headBuffer, 0, headLength);
+	}
+
+	/**
+	 * @return <code>true</code> if the current message has been read
+	 *         completely
+	 */
+	public boolean isComplete() {
+		return state == DONE;
+	}
+
+	/**
+	 * @return <code>true</code> if nothing of the current message has been
+	 *         consumed yet
+	 */
+	public boolean isIdle() {
+		return state == START;
+	}
+
+	/**
+	 * @return <code>true</code> if the end of the current message is only
+	 *         known once the connection gets closed
+	 */
+	public boolean isDelimitedByClose() {
+		return state == BODY_UNTIL_CLOSE;
+	}
+
+	private boolean parseHead(ByteBuffer src) throws ProtocolException {
+		while (src.hasRemaining()) {
+			byte b = src.get();
+			if (state == START) {
+				// Empty lines ahead of a request line are ignored
+				if (b == '\r' || b == '\n') {
+					continue;
+				}
+				state = HEAD;
+			}
+
+			if (headLength == maxHeadSize) {
+				throw new ProtocolException("HTTP message head exceeds " + maxHeadSize + " bytes");
+			}
+			if (headLength == headBuffer.length) {
+				byte[] grown = new byte[Math.min(headBuffer.length * 2, maxHeadSize)];
+				System.arraycopy(headBuffer, 0, grown, 0, headLength);
+				headBuffer = grown;
+			}
+			headBuffer[headLength++] = b;
+
+			if (b == '\n') {
+				if (lineLength == 0) {
+					// An empty line terminates the head
+					head = decodeHead();
+					state = bodyState();
+					lineLength = 0;
+					return true;
+				}
+				lineLength = 0;
+			} else if (b != '\r') {
+				lineLength++;
+			}
+		}
+		return false;
+	}
+
+	private boolean parseChunkFraming(ByteBuffer src) throws ProtocolException {
+		while (src.hasRemaining()) {
+			byte b = src.get();
+			switch (state) {
+				case CHUNK_SIZE:
+					int digit = Character.digit(b, 16);
+					if (digit >= 0) {
+						if (remaining > (Long.MAX_VALUE >> 4)) {
+							throw new ProtocolException("Chunk size out of range");
+						}
+						remaining = (remaining << 4) + digit;
+						chunkSizeSeen = true;
+					} else if (b == ';' || b == ' ' || b == '\t') {
+						state = CHUNK_EXTENSION;
+					} else if (b == '\n') {
+						return chunkSizeComplete();
+					} else if (b != '\r') {
+						throw new ProtocolException("Invalid chunk size");
+					}
+					break;
+				case CHUNK_EXTENSION:
+					if (b == '\n') {
+						return chunkSizeComplete();
+					}
+					break;
+				case CHUNK_DATA_END:
+					if (b == '\n') {
+						state = CHUNK_SIZE;
+						remaining = 0;
+						chunkSizeSeen = false;
+					} else if (b != '\r') {
+						throw new ProtocolException("Chunk data is not followed by CRLF");
+					}
+					break;
+				case TRAILERS:
+					if (b == '\n') {
+						if (lineLength == 0) {
+							state = DONE;
+							return true;
+						}
+						lineLength = 0;
+					} else if (b != '\r') {
+						if (++lineLength > maxHeadSize) {
+							throw new ProtocolException("HTTP trailer exceeds " + maxHeadSize + " bytes");
+						}
+					}
+					break;
+			}
+		}
+		return false;
+	}
+
+	private boolean chunkSizeComplete() throws ProtocolException {
+		if (!chunkSizeSeen) {
+			throw new ProtocolException("Missing chunk size");
+		}
+		if (remaining == 0) {
+			// The last chunk, followed by the optional trailer section
+			state = TRAILERS;
+			lineLength = 0;
+		} else {
+			state = CHUNK_DATA;
+		}
+		return true;
+	}
+
+	/**
+	 * Works out how the body of the message is delimited, following RFC 7230
+	 * section 3.3.3.
+	 */
+	private int bodyState() throws ProtocolException {
+		if (!request) {
+			if ("HEAD".equals(requestMethod) || head.status / 100 == 1 || head.status == 204 ||
+			    head.status == 304) {
+				return DONE;
+			}
+		}
+
+		if (head.getHeader("Transfer-Encoding") != null) {
+			if (request && head.getHeader("Content-Length") != null) {
+				// Framed one way here and maybe the other by the backend, the
+				// way requests are smuggled past a proxy
+				throw new ProtocolException("Request has both Transfer-Encoding and Content-Length");
+			}
+			if (isChunked()) {
+				remaining = 0;
+				chunkSizeSeen = false;
+				return CHUNK_SIZE;
+			}
+			if (request) {
+				throw new ProtocolException("Request body length can not be determined");
+			}
+			return BODY_UNTIL_CLOSE;
+		}
+
+		String contentLength = null;
+		for (String value : head.getHeaders("Content-Length")) {
+			if (contentLength != null && !contentLength.equals(value.trim())) {
+				throw new ProtocolException("Conflicting Content-Length headers");
+			}
+			contentLength = value.trim();
+		}
+		if (contentLength != null) {
+			try {
+				remaining = Long.parseLong(contentLength);
+			} catch (NumberFormatException e) {
+				throw new ProtocolException("Invalid Content-Length: " + contentLength);
+			}
+			if (remaining < 0) {
+				throw new ProtocolException("Invalid Content-Length: " + contentLength);
+			}
+			return remaining == 0 ? DONE : BODY_FIXED;
+		}
+
+		return request ? DONE : BODY_UNTIL_CLOSE;
+	}
+
+	private boolean isChunked() {
+		// chunked has to be the final transfer coding
+		String last = null;
+		for (String value : head.getHeaders("Transfer-Encoding")) {
+			for (String element : value.split(",")) {
+				if (element.trim().length() > 0) {
+					last = element.trim();
+				}
+			}
+		}
+		return "chunked".equalsIgnoreCase(last);
+	}
+
+	private HttpMessageHead decodeHead() throws ProtocolException {
+		HttpMessageHead decoded = new HttpMessageHead(request);
+		int pos = 0;
+		boolean startLine = true;
+		while (pos < headLength) {
+			int end = pos;
+			while (headBuffer[end] != '\n') {
+				end++;
+			}
+			int next = end + 1;
+			if (end > pos && headBuffer[end - 1] == '\r') {
+				end--;
+			}
+			if (end > pos) {
+				String line = new String(headBuffer, pos, end - pos, StandardCharsets.ISO_8859_1);
+				if (startLine) {
+					decodeStartLine(decoded, line);
+					startLine = false;
+				} else {
+					decodeHeader(decoded, line);
+				}
+			}
+			pos = next;
+		}
+		return decoded;
+	}
+
+	private void decodeStartLine(HttpMessageHead decoded, String line) throws ProtocolException {
+		String[] parts = line.split(" ", 3);
+		if (request) {
+			if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+				throw new ProtocolException("Malformed request line: " + line);
+			}
+			decoded.method = parts[0];
+			decoded.uri = parts[1];
+			decoded.version = parts[2];
+		} else {
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+				throw new ProtocolException("Malformed status line: " + line);
+			}
+			decoded.version = parts[0];
+			try {
+				decoded.status = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException e) {
+				throw new ProtocolException("Malformed status line: " + line);
+			}
+			decoded.reason = parts.length == 3 ? parts[2] : "";
+		}
+	}
+
+	private void decodeHeader(HttpMessageHead decoded, String line) throws ProtocolException {
+		char first = line.charAt(0);
+		if (first == ' ' || first == '\t') {
+			// Obsolete line folding continues the previous field value
+			int last = decoded.getHeaderCount() - 1;
+			if (last < 0) {
+				throw new ProtocolException("Unexpected folded header line");
+			}
+			String value = decoded.getHeaderValue(last) + " " + line.trim();
+			decoded.setHeaderValue(last, value);
+			return;
+		}
+
+		int colon = line.indexOf(':');
+		if (colon <= 0 || line.charAt(colon - 1) == ' ' || line.charAt(colon - 1) == '\t') {
+			throw new ProtocolException("Malformed header field: " + line);
+		}
+		decoded.addHeader(line.substring(0, colon), line.substring(colon + 1).trim());
+	}
+
+}
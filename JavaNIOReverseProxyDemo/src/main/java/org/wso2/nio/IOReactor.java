@@ -0,0 +1,39 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A selector thread the {@link Acceptor}s hand accepted client connections
+ * over to, or which accepts them from a server socket of its own.
+ * 
+ * @author ravindra
+ *
+ */
+public interface IOReactor extends Runnable {
+
+	/**
+	 * Hands an accepted client connection over to this reactor. May be called
+	 * from any thread.
+	 */
+	void register(SocketChannel socketChannel);
+
+	/**
+	 * Makes this reactor accept client connections from a server socket of
+	 * its own and serve them itself. Called before the reactor is started.
+	 */
+	void listen(ServerSocketChannel serverChannel) throws IOException;
+
+	/**
+	 * @return number of client connections currently served by this reactor
+	 */
+	int getActiveConnections();
+
+	/**
+	 * @return number of changes handed to this reactor which it has not
+	 *         applied yet
+	 */
+	long getQueueDepth();
+
+}
@@ -4,102 +4,230 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 /**
- * Defines the <code>ioReactor</code> which listens to the incoming client
- * connections and sends the requests to the connecting ioReactor. Also this
- * reactor is responsible for writing the response back to the caller/client.
- * 
+ * Defines the <code>ioReactor</code> which serves the client connections
+ * accepted by an {@link Acceptor} and sends the requests to the connecting
+ * ioReactor. Also this reactor is responsible for writing the response back to
+ * the caller/client. A connection stays on the reactor it was handed to for
+ * its whole lifetime; see {@link ReactorGroup} for how several of these share
+ * the load. With <code>reusePort</code> set the reactor accepts the
+ * connections itself, from a server socket of its own.
+ *
+ * Request bodies are relayed to the backend in chunks as they arrive. Reading
+ * from a client is paused while its backend connection has more than
+ * {@link OutboundQueue#HIGH_WATERMARK} bytes waiting to be written.
+ *
+ * Client data is read into pooled direct buffers and the body bytes are handed
+ * on as slices of them, so a request body is never copied inside the proxy.
+ *
+ * The state of each client connection is kept in a {@link Connection}
+ * attached to its selection key and dropped when the connection is closed.
+ *
+ * With <code>secureProxy</code> set, clients talk TLS to this reactor through
+ * a {@link TlsChannel} per connection. Handshakes are driven by the same read
+ * and write events as the requests, so a client in the middle of a handshake
+ * does not hold up the other clients of the reactor.
+ *
+ * A client may pipeline its requests. They are relayed to the backend as soon
+ * as they are read, all at once, and a {@link ResponseSequencer} per
+ * connection writes the responses back in the order of the requests, whatever
+ * order the backends answer in.
+ *
+ * A {@link TimingWheel} driven from the select loop closes connections which
+ * stay idle between requests for longer than <code>clientIdleTimeout</code>,
+ * and clients which take longer than <code>clientReadTimeout</code> to send
+ * the next bytes of a request or take the next bytes of a response. A client
+ * stalling in the middle of a request head gets a 408 Request Timeout first.
+ *
+ * Requests the {@link AdmissionControl} of the worker turns away are answered
+ * here at once, with a 429 or 503 and a <code>Retry-After</code>, so that an
+ * overload costs no more than reading the requests.
+ *
  * @author ravindra
  *
  */
-public class ListeningIOReactor implements Runnable {
+public class ListeningIOReactor implements IOReactor {
 	private static final Logger LOGGER = Logger.getLogger(ListeningIOReactor.class.getName());
 
-	private Worker worker;
+	private static final int READ_BUFFER_SIZE = 8192;
 
-	// The host:port combination to listen on
-	private InetAddress hostAddress;
-	private int localPort;
+	// The answers to the requests turned away by the admission control
+	private static final byte[] TOO_MANY_REQUESTS = ErrorResponse.retryLater(429, "Too Many Requests");
+	private static final byte[] SERVICE_UNAVAILABLE = ErrorResponse.retryLater(503, "Service Unavailable");
 
-	// The channel on which we'll accept connections
-	private ServerSocketChannel serverChannel;
+	private Worker worker;
 
 	// The selector we'll be monitoring
 	private final Selector selector;
 
-	// The buffer into which we'll read data when it's available
-	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+	private final BufferPool bufferPool = BufferPool.getDefault();
+	private final Metrics metrics = Metrics.getDefault();
+
+	// The buffer into which we'll read data when it's available. Replaced by
+	// a fresh one whenever a slice of it is still queued somewhere.
+	private PooledBuffer readBuffer = this.bufferPool.acquire(READ_BUFFER_SIZE);
+
+	// Scratch array for gathering writes, its length caps the number of
+	// buffers written per call
+	private final ByteBuffer[] writeVector;
+
+	private final ChangeQueue<ChangeRequest> changeRequests;
+
+	private final TlsConfig tlsConfig;
+
+	// Number of client connections currently registered with this reactor
+	private final AtomicInteger activeConnections = new AtomicInteger();
 
-	private List<ChangeRequest> changeRequests = new LinkedList<ChangeRequest>();
+	// The timeouts of the client connections
+	private final TimingWheel timeouts = new TimingWheel();
+	private final TimeoutConfig timeoutConfig;
 
-	// Maps a SocketChannel to a list of ByteBuffer instances
-	private Map<SocketChannel, List<ByteBuffer>> pendingData =
-	                                                           new HashMap<SocketChannel, List<ByteBuffer>>();
+	// Where the exchanges are recorded, null if they are not
+	private final AccessLog accessLog;
 
-	public ListeningIOReactor(InetAddress hostAddress, int localPort, Worker worker)
-	                                                                                throws IOException {
-		this.hostAddress = hostAddress;
-		this.localPort = localPort;
+	public ListeningIOReactor(Worker worker) throws IOException {
+		this(worker, OutboundQueue.DEFAULT_MAX_BUFFERS_PER_WRITE, new TlsConfig(), new TimeoutConfig(), null);
+	}
+
+	public ListeningIOReactor(Worker worker, int maxBuffersPerWrite, TlsConfig tlsConfig, TimeoutConfig timeoutConfig,
+	                          AccessLog accessLog) throws IOException {
 		this.selector = this.initSelector();
+		this.writeVector = new ByteBuffer[maxBuffersPerWrite];
+		this.changeRequests = new ChangeQueue<ChangeRequest>(this.selector);
 		this.worker = worker;
+		this.tlsConfig = tlsConfig;
+		this.timeoutConfig = timeoutConfig;
+		this.accessLog = accessLog;
 	}
 
 	private Selector initSelector() throws IOException {
 		LOGGER.info("Initializing the Selector.");
 		// Create a new selector
-		Selector socketSelector = SelectorProvider.provider().openSelector();
+		return SelectorProvider.provider().openSelector();
+	}
+
+	public void register(SocketChannel socketChannel) {
+		this.activeConnections.incrementAndGet();
+		// We'd like to be notified when there's data waiting to be read
+		this.changeRequests.add(new ChangeRequest(this.newConnection(socketChannel), ChangeRequest.REGISTER,
+		                                          SelectionKey.OP_READ));
+	}
 
-		// Create a new non-blocking server socket channel
-		this.serverChannel = ServerSocketChannel.open();
-		serverChannel.configureBlocking(false);
+	public void listen(ServerSocketChannel serverChannel) throws IOException {
+		serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+	}
 
-		// Bind the server socket to the specified address and port
-		InetSocketAddress isa = new InetSocketAddress(this.hostAddress, this.localPort);
-		serverChannel.socket().bind(isa);
+	private Connection newConnection(SocketChannel socketChannel) {
+		final Connection connection = new Connection(socketChannel);
+		connection.outbound = new OutboundQueue();
+		connection.parser = new HttpMessageParser(true);
+		connection.timeout = new TimingWheel.Timeout(new Runnable() {
+			public void run() {
+				timedOut(connection);
+			}
+		});
+		return connection;
+	}
 
-		// Register the server socket channel, indicating an interest in
-		// accepting new connections
-		serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
+	/**
+	 * Accepts the connections waiting on the server socket of this reactor
+	 * and registers them right away, on the selecting thread.
+	 */
+	private void accept(SelectionKey key) throws IOException {
+		ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+		SocketChannel socketChannel;
+		for (int i = 0; i < ChangeQueue.DRAIN_BATCH_SIZE && (socketChannel = serverChannel.accept()) != null; i++) {
+			this.metrics.accepted.mark();
+			socketChannel.configureBlocking(false);
+			this.activeConnections.incrementAndGet();
+			this.registerClient(this.newConnection(socketChannel), SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * @return the access log of the exchanges, or <code>null</code>
+	 */
+	AccessLog getAccessLog() {
+		return this.accessLog;
+	}
+
+	public int getActiveConnections() {
+		return this.activeConnections.get();
+	}
 
-		return socketSelector;
+	public long getQueueDepth() {
+		return this.changeRequests.size();
 	}
 
 	public void run() {
 		while (true) {
 			try {
 				// Process any pending changes
-				synchronized (this.changeRequests) {
-					Iterator<ChangeRequest> changes = this.changeRequests.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = changes.next();
-						switch (change.type) {
-							case ChangeRequest.CHANGEOPS:
-								SelectionKey key = change.socket.keyFor(this.selector);
+				this.changeRequests.beforeDrain();
+				ChangeRequest change;
+				for (int i = 0; i < ChangeQueue.DRAIN_BATCH_SIZE &&
+				                (change = this.changeRequests.poll()) != null; i++) {
+					SelectionKey key = change.connection.key;
+					switch (change.type) {
+						case ChangeRequest.CHANGEOPS:
+							// The client may have gone away while its
+							// response was in flight
+							if (key != null && key.isValid()) {
 								key.interestOps(change.ops);
-						}
+							}
+							break;
+						case ChangeRequest.ADDOPS:
+							if (key != null && key.isValid()) {
+								key.interestOps(key.interestOps() | change.ops);
+								if ((change.ops & SelectionKey.OP_READ) != 0 && change.connection.hasBufferedInput()) {
+									// Decrypted requests are waiting, the socket
+									// is not going to signal them
+									this.read(key);
+								} else {
+									this.updateTimeout(change.connection);
+								}
+							}
+							break;
+						case ChangeRequest.HANDSHAKE:
+							if (key != null && key.isValid()) {
+								this.handshake(key);
+							}
+							break;
+						case ChangeRequest.REGISTER:
+							this.registerClient(change.connection, change.ops);
+							break;
+						case ChangeRequest.RESPONDED:
+							change.connection.pendingResponses--;
+							if (key != null && key.isValid()) {
+								this.updateTimeout(change.connection);
+							}
+							break;
 					}
-					this.changeRequests.clear();
 				}
-				// Wait for an event one of the registered channels
-				this.selector.select();
+				long now = System.nanoTime();
+				this.timeouts.expire(now);
+
+				// Wait for an event one of the registered channels, or the next
+				// tick of the timeouts, unless there are changes left for the
+				// next round
+				if (this.changeRequests.isEmpty()) {
+					this.selector.select(this.timeouts.getSelectTimeout(now));
+				} else {
+					this.selector.selectNow();
+				}
 				// Iterate over the set of keys for which events are available
 				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
 				while (selectedKeys.hasNext()) {
@@ -113,9 +241,12 @@ public class ListeningIOReactor implements Runnable {
 					// Check what event is available and deal with it
 					if (key.isAcceptable()) {
 						this.accept(key);
-					} else if (key.isReadable()) {
+						continue;
+					}
+					if (key.isReadable()) {
 						this.read(key);
-					} else if (key.isWritable()) {
+					}
+					if (key.isValid() && key.isWritable()) {
 						this.write(key);
 					}
 
@@ -129,92 +260,285 @@ public class ListeningIOReactor implements Runnable {
 	}
 
 	private void write(SelectionKey key) throws IOException {
-		LOGGER.info("Writing the response back to the client.");
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		synchronized (pendingData) {
-			List<ByteBuffer> queue = pendingData.get(socketChannel);
-
-			// Write until there's not more data ...
-			while (!queue.isEmpty()) {
-				ByteBuffer buffer = queue.get(0);
-				socketChannel.write(buffer);
-
-				if (buffer.remaining() > 0) {
-					// ... or the socket's buffer fills up
-					break;
-				}
-				queue.remove(0);
-			}
+		Connection connection = (Connection) key.attachment();
+		OutboundQueue queue = connection.outbound;
 
-			if (queue.isEmpty()) {
-				// We wrote away all data, so we're no longer interested
-				// in writing on this socket. Switch back to waiting for
-				// data.
-				key.interestOps(SelectionKey.OP_READ);
+		// Write until there's not more data or the socket's buffer fills up
+		boolean drained;
+		try {
+			drained =
+			          queue.writeTo(connection.out(), this.writeVector, this.metrics.clientBytesWritten) &&
+			                  !connection.hasPendingOutput();
+		} catch (IOException e) {
+			this.close(key);
+			return;
+		}
+
+		if (drained) {
+			if (queue.isEnded()) {
+				// The last response has been written
+				this.close(key);
+				return;
 			}
+			// We wrote away all data, so we're no longer interested
+			// in writing on this socket.
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} else if (connection.tls != null && connection.tls.isHandshaking() && !connection.tls.wantsWrite()) {
+			// Nothing can be written before the client answers the handshake
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
 		}
 
+		if (connection.hasBufferedInput() && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+			// The handshake has read a request along with its own data
+			this.read(key);
+		} else {
+			this.updateTlsInterest(key);
+			this.updateTimeout(connection);
+		}
+	}
+
+	/**
+	 * Carries on with a TLS handshake once its delegated tasks have completed.
+	 */
+	private void handshake(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		try {
+			connection.tls.handshake();
+		} catch (IOException e) {
+			LOGGER.info("TLS handshake with a client failed: " + e.getMessage());
+			this.close(key);
+			return;
+		}
+		if (connection.hasBufferedInput() && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+			this.read(key);
+		} else {
+			this.updateTlsInterest(key);
+		}
+	}
+
+	/**
+	 * Selects for writes while the TLS layer of a connection has handshake
+	 * data to send, or queued data to write once a handshake has completed.
+	 */
+	private void updateTlsInterest(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		TlsChannel tls = connection.tls;
+		if (tls == null || !key.isValid()) {
+			return;
+		}
+		if (tls.wantsWrite() || (!tls.isHandshaking() && !connection.outbound.isEmpty())) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
 	}
 
 	private void read(SelectionKey key) throws IOException {
-		LOGGER.info("Reading data from the client.");
-		SocketChannel socketChannel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+
+		// A TLS connection may have decrypted more than fits the read buffer,
+		// keep going until it is all read unless reading has been paused
+		do {
+			// Clear out our read buffer so it's ready for new data
+			if (this.readBuffer.refCnt() > 1) {
+				this.readBuffer.release();
+				this.readBuffer = this.bufferPool.acquire(READ_BUFFER_SIZE);
+			}
+			ByteBuffer buffer = this.readBuffer.buffer();
+			buffer.clear();
 
-		// Clear out our read buffer so it's ready for new data
-		this.readBuffer.clear();
+			// Attempt to read off the channel
+			int numRead;
+			try {
+				numRead = connection.read(buffer);
+			} catch (IOException e) {
+				// The remote forcibly closed the connection, cancel
+				// the selection key and close the channel.
+				this.close(key);
+				return;
+			}
+
+			if (numRead == -1) {
+				// Remote entity shut the socket down cleanly. Do the
+				// same from our end and cancel the channel.
+				this.close(key);
+				return;
+			}
+			this.metrics.clientBytesRead.add(numRead);
 
-		// Attempt to read off the channel
-		int numRead;
+			// Hand the requests off to our worker
+			buffer.flip();
+			try {
+				this.processRequests(connection);
+			} catch (ProtocolException e) {
+				LOGGER.error("Malformed request received from the client.", e);
+				if (connection.request != null) {
+					// The body of the request being relayed will never be
+					// complete
+					this.worker.abort(connection.request);
+					connection.request = null;
+				}
+				ResponseSequencer.Slot slot = this.openResponse(connection);
+				slot.send(ErrorResponse.bytes(400, "Bad Request"));
+				slot.complete(true);
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				return;
+			}
+		} while (connection.hasBufferedInput() && (key.interestOps() & SelectionKey.OP_READ) != 0);
+
+		this.updateTlsInterest(key);
+		this.updateTimeout(connection);
+	}
+
+	/**
+	 * Arms the timeout of a client connection for what it is waiting on: the
+	 * client, to take the data queued for it or to send the rest of a
+	 * request, or the next request once the connection is idle. Nothing is
+	 * armed while only a backend is awaited, the connecting ioReactor times
+	 * that, nor while reading from the client is paused.
+	 */
+	private void updateTimeout(Connection connection) {
+		long delay;
+		if (!connection.outbound.isEmpty() || connection.hasPendingOutput()) {
+			delay = this.timeoutConfig.clientReadTimeout;
+		} else if (!connection.parser.isIdle()) {
+			boolean reading = (connection.key.interestOps() & SelectionKey.OP_READ) != 0;
+			delay = reading ? this.timeoutConfig.clientReadTimeout : 0;
+		} else if (connection.pendingResponses == 0) {
+			delay = this.timeoutConfig.clientIdleTimeout;
+		} else {
+			delay = 0;
+		}
+		if (delay > 0) {
+			this.timeouts.schedule(connection.timeout, delay, System.nanoTime());
+		} else {
+			this.timeouts.cancel(connection.timeout);
+		}
+	}
+
+	private void timedOut(Connection connection) {
+		SelectionKey key = connection.key;
+		if (!key.isValid()) {
+			return;
+		}
+		if (!connection.parser.isIdle() && connection.pendingResponses == 0 && connection.outbound.isEmpty()) {
+			// Part of a request head has been read, tell the client before
+			// giving up on it
+			LOGGER.info("Timed out reading a request from the client.");
+			ResponseSequencer.Slot slot = this.openResponse(connection);
+			slot.send(ErrorResponse.bytes(408, "Request Timeout"));
+			slot.complete(true);
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			return;
+		}
+		LOGGER.info("Closing a client connection which has been idle or stalled for too long.");
 		try {
-			numRead = socketChannel.read(this.readBuffer);
+			this.close(key);
 		} catch (IOException e) {
-			// The remote forcibly closed the connection, cancel
-			// the selection key and close the channel.
-			key.cancel();
-			socketChannel.close();
-			return;
+			LOGGER.error("IOException was thrown while closing a client connection.", e);
 		}
+	}
 
-		if (numRead == -1) {
-			// Remote entity shut the socket down cleanly. Do the
-			// same from our end and cancel the channel.
-			key.channel().close();
-			key.cancel();
-			return;
+	/**
+	 * Frames the requests in the read buffer. A request is handed to the
+	 * worker as soon as its head is complete and its body follows in chunks as
+	 * it is read; a read may also hold several pipelined requests.
+	 */
+	private void processRequests(final Connection connection) throws ProtocolException {
+		HttpMessageParser parser = connection.parser;
+		Runnable resume = new Runnable() {
+			public void run() {
+				resumeReading(connection);
+			}
+		};
+
+		ByteBuffer buffer = this.readBuffer.buffer();
+		boolean accepted = true;
+		while (true) {
+			int start = buffer.position();
+			int result = parser.parse(buffer);
+
+			BackendRequest request = connection.request;
+			if (request != null && buffer.position() > start) {
+				// Body bytes of the request being relayed
+				PooledBuffer chunk = this.readBuffer.retainedSlice(start, buffer.position());
+				accepted &= this.worker.processBody(request, chunk, resume);
+			}
+
+			if (result == HttpMessageParser.HEAD_COMPLETE) {
+				PooledBuffer headData = this.bufferPool.acquire(parser.getHeadLength());
+				parser.copyHead(headData.buffer());
+				headData.buffer().flip();
+				connection.request = this.worker.processData(this, connection, parser.getHead(), headData);
+			} else if (result == HttpMessageParser.MESSAGE_COMPLETE) {
+				this.worker.endOfRequest(connection.request);
+				connection.request = null;
+				parser.reset();
+			} else {
+				break;
+			}
 		}
 
-		// Hand the data off to our worker thread
-		this.worker.processData(this, socketChannel, this.readBuffer.array(), numRead);
+		if (!accepted) {
+			// The backend can not keep up, stop reading from the client until
+			// the queued request data has drained
+			connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
 
+	private void resumeReading(Connection connection) {
+		this.changeRequests.add(new ChangeRequest(connection, ChangeRequest.ADDOPS, SelectionKey.OP_READ));
 	}
 
-	private void accept(SelectionKey key) throws IOException {
-		LOGGER.info("Establishing a Connection between the Client and the Proxy service.");
-		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-		// Accept the connection and make it non-blocking
-		SocketChannel socketChannel = serverSocketChannel.accept();
-		// Socket socket = socketChannel.socket();
-		socketChannel.configureBlocking(false);
+	private void registerClient(final Connection connection, int ops) {
+		try {
+			connection.key = connection.channel.register(this.selector, ops, connection);
+			if (this.tlsConfig.isProxySecure()) {
+				connection.tls = new TlsChannel(connection.channel, this.tlsConfig.createServerEngine(), this.bufferPool,
+				                                this.tlsConfig.getTaskExecutor(), new Runnable() {
+					                                public void run() {
+						                                changeRequests.add(new ChangeRequest(connection,
+						                                                                     ChangeRequest.HANDSHAKE, 0));
+					                                }
+				                                });
+			}
+			this.updateTimeout(connection);
+		} catch (IOException e) {
+			LOGGER.error("Client connection could not be registered with the Selector.", e);
+			this.activeConnections.decrementAndGet();
+			connection.markClosed();
+			connection.outbound.clear();
+			try {
+				connection.channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
 
-		// Register the new SocketChannel with our Selector, indicating
-		// we'd like to be notified when there's data waiting to be read
-		socketChannel.register(this.selector, SelectionKey.OP_READ);
+	private void close(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		key.cancel();
+		this.timeouts.cancel(connection.timeout);
+		connection.closeChannel();
+		if (!connection.markClosed()) {
+			return;
+		}
+		this.activeConnections.decrementAndGet();
 
+		if (connection.request != null) {
+			// The request body will never be complete
+			this.worker.abort(connection.request);
+			connection.request = null;
+		}
+		// Data queued from now on is dropped right away
+		connection.outbound.clear();
+		if (connection.responses != null) {
+			connection.responses.clear();
+		}
 	}
 
 	public static void main(String[] args) {
 		try {
 			Properties prop = loadProperties();
-			final int localport = Integer.parseInt(prop.getProperty("localPort"));
-			final int remotePort = Integer.parseInt(prop.getProperty("remotePort"));
-			final String remoteHost = prop.getProperty("remoteHost");
-
-			Worker worker =
-			                new Worker(new ConnectingIOReactor(InetAddress.getByName(remoteHost),
-			                                                   remotePort));
-			new Thread(worker).start();
-
-			new Thread(new ListeningIOReactor(null, localport, worker)).start();
+			ReactorGroup.startEngine(prop);
 		} catch (IOException e) {
 			LOGGER.error("Exception was thrown while settingup the IOReactor", e);
 		}
@@ -236,27 +560,92 @@ public class ListeningIOReactor implements Runnable {
 		return prop;
 	}
 
-	public void send(SocketChannel socket, byte[] data) {
-		synchronized (this.changeRequests) {
-			// Indicate we want the interest ops set changed
-			this.changeRequests.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS,
-			                                          SelectionKey.OP_WRITE));
-
-			// And queue the data we want written
-			synchronized (this.pendingData) {
-				List<ByteBuffer> queue = this.pendingData.get(socket);
-				if (queue == null) {
-					queue = new ArrayList<ByteBuffer>();
-					this.pendingData.put(socket, queue);
-				}
-				queue.add(ByteBuffer.wrap(data));
-			}
+	/**
+	 * Opens the place of the response to the next request read from a
+	 * client, behind the responses to the requests before it. Called by the
+	 * selecting thread, in the order of the requests.
+	 */
+	public ResponseSequencer.Slot openResponse(Connection connection) {
+		if (connection.responses == null) {
+			connection.responses = new ResponseSequencer(this, connection, this.bufferPool);
 		}
+		connection.pendingResponses++;
+		return connection.responses.open();
+	}
 
-		// Finally, wake up our selecting thread so it can make the required
-		// changes
-		this.selector.wakeup();
+	/**
+	 * Answers a request turned away by the admission control, in its place
+	 * among the pipelined responses, without closing the connection. The
+	 * body of the request is read and dropped. Called by the selecting
+	 * thread.
+	 */
+	public void reject(Connection connection, HttpMessageHead head, int status) {
+		long started = System.nanoTime();
+		byte[] response = status == 429 ? TOO_MANY_REQUESTS : SERVICE_UNAVAILABLE;
+		ResponseSequencer.Slot slot = this.openResponse(connection);
+		slot.send(response);
+		slot.complete(!head.isKeepAlive());
+		if (this.accessLog != null) {
+			long elapsed = System.nanoTime() - started;
+			this.accessLog.log(RspHandler.remoteAddress(connection), head.method, head.uri, status, response.length,
+			                   -1, elapsed, elapsed, AccessLog.FLAG_REJECTED);
+		}
+	}
+
+	public void send(Connection connection, byte[] data) {
+		this.send(connection, this.bufferPool.wrap(data), null);
+	}
+
+	/**
+	 * Queues data to be written to a client. May be called from any thread.
+	 * The buffer is released once it has been written, or right away if the
+	 * client is gone.
+	 *
+	 * @param onDrained
+	 *            run once the queued data has drained, if this returns
+	 *            <code>false</code>
+	 * @return <code>false</code> if the caller has to stop producing data for
+	 *         this client until <code>onDrained</code> is run
+	 */
+	public boolean send(Connection connection, PooledBuffer data, Runnable onDrained) {
+		// Queue the data we want written. Once the client has gone away the
+		// queue drops it.
+		boolean accepted = connection.outbound.add(data, onDrained);
+		if (connection.isClosed()) {
+			return true;
+		}
+
+		// Indicate we want to write, and wake up our selecting thread so it
+		// can make the required changes
+		this.requestWrite(connection);
+		return accepted;
+	}
+
+	/**
+	 * Closes the connection once everything queued for it so far has been
+	 * written. May be called from any thread.
+	 */
+	public void closeAfterWrite(Connection connection) {
+		if (connection.isClosed()) {
+			return;
+		}
+		connection.outbound.end();
+		this.requestWrite(connection);
+	}
+
+	/**
+	 * Notes that a response to a client is over. May be called from any
+	 * thread.
+	 */
+	public void responseDone(Connection connection) {
+		if (connection.isClosed()) {
+			return;
+		}
+		this.changeRequests.add(new ChangeRequest(connection, ChangeRequest.RESPONDED, 0));
+	}
 
+	private void requestWrite(Connection connection) {
+		this.changeRequests.add(new ChangeRequest(connection, ChangeRequest.ADDOPS, SelectionKey.OP_WRITE));
 	}
 
 }
@@ -0,0 +1,238 @@
+package org.wso2.nio;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * The instrumentation of the proxy service, cheap enough to be always on.
+ * Events on the I/O paths are recorded into counters and {@link Histogram}s
+ * which never lock, and state which is already kept elsewhere, such as the
+ * connections of each reactor, is read through {@link Gauge}s only when the
+ * metrics are looked at.
+ *
+ * The metrics are published as an MBean named <code>org.wso2.nio:type=Metrics</code>
+ * and as plain text by the {@link AdminServer}, one sample per line.
+ * Latencies are reported in microseconds.
+ *
+ * @author ravindra
+ *
+ */
+public class Metrics implements DynamicMBean {
+	public static final String OBJECT_NAME = "org.wso2.nio:type=Metrics";
+
+	private static final Metrics DEFAULT = new Metrics();
+
+	// Percentiles reported for each histogram, with the labels they get
+	private static final double[] PERCENTILES = { 50, 99, 99.9 };
+	private static final String[] QUANTILES = { "0.5", "0.99", "0.999" };
+
+	public final Meter accepted = new Meter();
+
+	public final LongAdder clientBytesRead = new LongAdder();
+	public final LongAdder clientBytesWritten = new LongAdder();
+	public final LongAdder backendBytesRead = new LongAdder();
+	public final LongAdder backendBytesWritten = new LongAdder();
+
+	// Latencies of the backend exchanges in nanoseconds
+	public final Histogram connectTime = new Histogram();
+	public final Histogram timeToFirstByte = new Histogram();
+	public final Histogram totalTime = new Histogram();
+
+	// Replaced as a whole when a gauge is added, so that reading it needs no
+	// lock
+	private volatile Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+
+	public static Metrics getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Adds a value which is read whenever the metrics are.
+	 *
+	 * @param name
+	 *            the name of the sample, optionally followed by labels as in
+	 *            <code>active_connections{reactor="0"}</code>
+	 */
+	public synchronized void addGauge(String name, Gauge gauge) {
+		Map<String, Gauge> copy = new LinkedHashMap<String, Gauge>(gauges);
+		copy.put(name, gauge);
+		gauges = copy;
+	}
+
+	/**
+	 * @return the current value of every metric by its name, in a stable order
+	 */
+	public Map<String, Number> snapshot() {
+		Map<String, Number> samples = new LinkedHashMap<String, Number>();
+		samples.put("proxy_accepted_connections_total", accepted.getCount());
+		samples.put("proxy_accept_rate_per_second", accepted.getRate());
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			samples.put("proxy_" + gauge.getKey(), gauge.getValue().getValue());
+		}
+		samples.put("proxy_bytes_total{direction=\"client_in\"}", clientBytesRead.sum());
+		samples.put("proxy_bytes_total{direction=\"client_out\"}", clientBytesWritten.sum());
+		samples.put("proxy_bytes_total{direction=\"backend_in\"}", backendBytesRead.sum());
+		samples.put("proxy_bytes_total{direction=\"backend_out\"}", backendBytesWritten.sum());
+		addHistogram(samples, "proxy_backend_connect_time_us", connectTime);
+		addHistogram(samples, "proxy_backend_time_to_first_byte_us", timeToFirstByte);
+		addHistogram(samples, "proxy_backend_total_time_us", totalTime);
+		return samples;
+	}
+
+	/**
+	 * @return the metrics as plain text, one <code>name value</code> line per
+	 *         sample
+	 */
+	public String toText() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Number> sample : snapshot().entrySet()) {
+			sb.append(sample.getKey()).append(' ').append(sample.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+	}
+
+	private static void addHistogram(Map<String, Number> samples, String name, Histogram histogram) {
+		long[] values = histogram.getValuesAtPercentiles(PERCENTILES);
+		for (int i = 0; i < values.length; i++) {
+			samples.put(name + "{quantile=\"" + QUANTILES[i] + "\"}", values[i] / 1000);
+		}
+		samples.put(name + "_max", histogram.getMax() / 1000);
+		samples.put(name + "_sum", histogram.getSum() / 1000);
+		samples.put(name + "_count", histogram.getCount());
+	}
+
+	/**
+	 * @return the name of a sample as a JMX attribute, with the labels folded
+	 *         into it: <code>a{b="c.d"}</code> becomes <code>a_b_c_d</code>
+	 */
+	static String attributeName(String sample) {
+		return sample.replaceAll("\\{(\\w+)=\"([^\"]*)\"\\}", "_$1_$2").replaceAll("[^A-Za-z0-9_]", "_");
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		for (Map.Entry<String, Number> sample : snapshot().entrySet()) {
+			if (attributeName(sample.getKey()).equals(attribute)) {
+				return sample.getValue();
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> samples = new LinkedHashMap<String, Number>();
+		for (Map.Entry<String, Number> sample : snapshot().entrySet()) {
+			samples.put(attributeName(sample.getKey()), sample.getValue());
+		}
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			if (samples.containsKey(attribute)) {
+				list.add(new Attribute(attribute, samples.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Number> sample : snapshot().entrySet()) {
+			String type = sample.getValue().getClass().getName();
+			attributes.add(new MBeanAttributeInfo(attributeName(sample.getKey()), type, sample.getKey(), true, false,
+			                                      false));
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics of the proxy service",
+		                     attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+		                     new MBeanOperationInfo[0], null);
+	}
+
+	/**
+	 * A value read when the metrics are looked at. May be called from any
+	 * thread.
+	 */
+	public interface Gauge {
+		long getValue();
+	}
+
+	/**
+	 * Counts events and keeps a moving average of their rate over about a
+	 * minute. The average is brought up to date when it is read, so marking
+	 * an event only adds to two counters.
+	 */
+	public static class Meter {
+		static final long TICK_NANOS = 5000000000L;
+
+		// Weight of a tick's rate in a one minute moving average
+		private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder uncounted = new LongAdder();
+		private final AtomicLong lastTick;
+
+		// Events per tick, negative until the first tick
+		private volatile double rate = -1;
+
+		public Meter() {
+			this.lastTick = new AtomicLong(System.nanoTime());
+		}
+
+		public void mark() {
+			count.increment();
+			uncounted.increment();
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * @return the moving average in events per second
+		 */
+		public double getRate() {
+			tickIfNecessary(System.nanoTime());
+			return Math.max(0, rate) * 1e9 / TICK_NANOS;
+		}
+
+		void tickIfNecessary(long now) {
+			long last = lastTick.get();
+			long age = now - last;
+			// Only the thread moving the tick on updates the average
+			if (age >= TICK_NANOS && lastTick.compareAndSet(last, now - age % TICK_NANOS)) {
+				for (long i = age / TICK_NANOS; i > 0; i--) {
+					double instant = uncounted.sumThenReset();
+					rate = rate < 0 ? instant : rate + ALPHA * (instant - rate);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Data queued for writing to one socket channel. The queue is filled by the
+ * reactor relaying the data and drained by the reactor owning the channel, so
+ * all methods are thread safe.
+ *
+ * The queue is what bounds the memory a streamed message takes: once more than
+ * {@link #HIGH_WATERMARK} bytes are queued the producer is told to stop reading
+ * from its source, and the drain listener it left behind is run to resume it
+ * when the queue has been written down to {@link #LOW_WATERMARK} bytes.
+ *
+ * The queue takes over the reference to every {@link PooledBuffer} added to it
+ * and releases it once the buffer has been written or dropped. Buffers are
+ * kept in an array backed ring and written with gathering writes, so a head
+ * and the body chunks queued behind it go out in a single system call.
+ *
+ * @author ravindra
+ *
+ */
+public class OutboundQueue {
+	public static final int HIGH_WATERMARK = 65536;
+	public static final int LOW_WATERMARK = 16384;
+
+	// Default of the maximum number of buffers passed to one write call
+	public static final int DEFAULT_MAX_BUFFERS_PER_WRITE = 64;
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	// Ring of the queued buffers, its length always a power of two
+	private PooledBuffer[] buffers = new PooledBuffer[INITIAL_CAPACITY];
+	private int head;
+	private int size;
+
+	private int queuedBytes;
+	private Runnable drainListener;
+
+	// No more data is going to be added
+	private boolean ended;
+
+	/**
+	 * Queues a buffer. Data added after {@link #end()} is dropped.
+	 *
+	 * @param onDrained
+	 *            run once the queue has drained, if the producer has to pause
+	 * @return <code>false</code> if the producer has to pause until
+	 *         <code>onDrained</code> is run
+	 */
+	public synchronized boolean add(PooledBuffer buffer, Runnable onDrained) {
+		if (ended) {
+			buffer.release();
+			return true;
+		}
+		if (size == buffers.length) {
+			grow();
+		}
+		buffers[(head + size) & (buffers.length - 1)] = buffer;
+		size++;
+		queuedBytes += buffer.buffer().remaining();
+		if (queuedBytes > HIGH_WATERMARK && onDrained != null) {
+			drainListener = onDrained;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the end of the data. Whatever has been queued so far is still
+	 * written.
+	 */
+	public synchronized void end() {
+		ended = true;
+	}
+
+	public synchronized boolean isEnded() {
+		return ended;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Writes until there's no more data or the socket's buffer fills up.
+	 *
+	 * @param vector
+	 *            scratch array owned by the calling reactor; its length caps
+	 *            the number of buffers handed to a single write call
+	 * @return <code>true</code> if all queued data has been written
+	 */
+	public boolean writeTo(GatheringByteChannel channel, ByteBuffer[] vector) throws IOException {
+		return writeTo(channel, vector, null);
+	}
+
+	/**
+	 * Writes like {@link #writeTo(GatheringByteChannel, ByteBuffer[])}, adding
+	 * the number of bytes written to <code>bytesWritten</code> if not
+	 * <code>null</code>.
+	 */
+	public boolean writeTo(GatheringByteChannel channel, ByteBuffer[] vector, LongAdder bytesWritten)
+	        throws IOException {
+		Runnable listener = null;
+		boolean empty;
+		synchronized (this) {
+			try {
+				int count;
+				int written;
+				do {
+					int mask = buffers.length - 1;
+					count = Math.min(size, vector.length);
+					for (int i = 0; i < count; i++) {
+						vector[i] = buffers[(head + i) & mask].buffer();
+					}
+					int n = (int) channel.write(vector, 0, count);
+					queuedBytes -= n;
+					if (bytesWritten != null) {
+						bytesWritten.add(n);
+					}
+
+					// Release the buffers which have been written completely
+					written = 0;
+					while (size > 0 && !buffers[head].buffer().hasRemaining()) {
+						buffers[head].release();
+						buffers[head] = null;
+						head = (head + 1) & mask;
+						size--;
+						written++;
+					}
+					// Go on while the socket took everything it was offered
+				} while (written == count && size > 0);
+			} finally {
+				for (int i = 0; i < vector.length && vector[i] != null; i++) {
+					vector[i] = null;
+				}
+			}
+			if (drainListener != null && queuedBytes <= LOW_WATERMARK) {
+				listener = drainListener;
+				drainListener = null;
+			}
+			empty = size == 0;
+		}
+
+		// Resume the producer outside of the lock, it may add more data
+		if (listener != null) {
+			listener.run();
+		}
+		return empty;
+	}
+
+	/**
+	 * Drops the queued data once the channel is gone. A paused producer is
+	 * resumed so that it does not wait forever.
+	 */
+	public void clear() {
+		Runnable listener;
+		synchronized (this) {
+			while (size > 0) {
+				buffers[head].release();
+				buffers[head] = null;
+				head = (head + 1) & (buffers.length - 1);
+				size--;
+			}
+			queuedBytes = 0;
+			ended = true;
+			listener = drainListener;
+			drainListener = null;
+		}
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	private void grow() {
+		PooledBuffer[] grown = new PooledBuffer[buffers.length << 1];
+		for (int i = 0; i < size; i++) {
+			grown[i] = buffers[(head + i) & (buffers.length - 1)];
+		}
+		buffers = grown;
+		head = 0;
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.wso2.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted direct {@link ByteBuffer} handed out by a
+ * {@link BufferPool}. Whoever holds a reference calls {@link #release()} when
+ * done with it, and the buffer goes back to the pool once the last reference
+ * is gone.
+ *
+ * {@link #retainedSlice(int, int)} shares a region of the buffer without
+ * copying it, which is how data read by one reactor is handed to another: the
+ * slice keeps the whole buffer alive until it has been written and released.
+ *
+ * @author ravindra
+ *
+ */
+public class PooledBuffer {
+	private final BufferPool pool;
+	private final int sizeClass;
+	private final ByteBuffer buffer;
+
+	// The buffer this one is a slice of, null for a pooled buffer itself
+	private final PooledBuffer parent;
+	private final AtomicInteger refCnt;
+
+	// Where the buffer was acquired, recorded in leak detection mode only
+	Throwable allocationTrace;
+
+	PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer) {
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+		this.buffer = buffer;
+		this.parent = null;
+		this.refCnt = new AtomicInteger();
+	}
+
+	private PooledBuffer(PooledBuffer parent, ByteBuffer view) {
+		this.pool = parent.pool;
+		this.sizeClass = parent.sizeClass;
+		this.buffer = view;
+		this.parent = parent;
+		this.refCnt = null;
+	}
+
+	/**
+	 * @return the underlying buffer; its position and limit are the caller's
+	 *         to use
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return a slice sharing the bytes between the given positions of this
+	 *         buffer. The slice holds its own reference, which is given up by
+	 *         calling {@link #release()} on the slice.
+	 */
+	public PooledBuffer retainedSlice(int from, int to) {
+		PooledBuffer root = root();
+		root.retain();
+		ByteBuffer view = buffer.duplicate();
+		view.limit(to).position(from);
+		return new PooledBuffer(root, view);
+	}
+
+	public PooledBuffer retain() {
+		if (parent != null) {
+			parent.retain();
+			return this;
+		}
+		if (refCnt.getAndIncrement() <= 0) {
+			refCnt.getAndDecrement();
+			throw new IllegalStateException("Buffer has already been released");
+		}
+		return this;
+	}
+
+	public void release() {
+		if (parent != null) {
+			parent.release();
+			return;
+		}
+		int count = refCnt.decrementAndGet();
+		if (count == 0) {
+			pool.recycle(this);
+		} else if (count < 0) {
+			refCnt.incrementAndGet();
+			throw new IllegalStateException("Buffer has already been released");
+		}
+	}
+
+	public int refCnt() {
+		return root().refCnt.get();
+	}
+
+	int sizeClass() {
+		return sizeClass;
+	}
+
+	void acquired() {
+		refCnt.set(1);
+		buffer.clear();
+	}
+
+	private PooledBuffer root() {
+		return parent == null ? this : parent;
+	}
+
+}
@@ -0,0 +1,382 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Wires the proxy service together: <code>acceptorThreads</code> acceptors
+ * spread the incoming client connections over <code>ioThreads</code>
+ * listening ioReactors, each running its own selector thread. The backend side
+ * is sharded into <code>backendShards</code> connecting ioReactors, and each
+ * listening ioReactor always sends its requests to the same shard, so a client
+ * connection's backend traffic stays on the same pair of threads. The requests
+ * are spread over the backends of one {@link UpstreamGroup} shared by all
+ * threads.
+ * 
+ * With <code>reusePort</code> set there are no acceptors: each listening
+ * ioReactor accepts from a server socket of its own, all bound to
+ * <code>localPort</code> through {@link ReusePort}, and has a connecting
+ * ioReactor of its own. The kernel spreads the connections over the sockets,
+ * so accepting takes no shared lock and no handoff between threads.
+ * 
+ * With <code>mode=tcp</code> the ioReactors are {@link TcpTunnelReactor}s
+ * relaying raw bytes to a backend connection of their own, and there are no
+ * connecting ioReactors.
+ * 
+ * TLS towards the clients and the backend is set up from the same properties
+ * by {@link TlsConfig}, and applies to the http mode only.
+ * 
+ * The state of the threads is published through {@link Metrics}, and served
+ * as plain text on <code>adminPort</code> if set. The exchanges of the http
+ * mode are recorded in an {@link AccessLog} if <code>accessLog</code> is
+ * set. The requests the http mode takes on are governed by a single
+ * {@link AdmissionControl} shared by the listening ioReactors.
+ * 
+ * With <code>engine=virtual</code> the proxy runs on a
+ * {@link VirtualThreadEngine} instead, see {@link #startEngine(Properties)}.
+ * 
+ * @author ravindra
+ *
+ */
+public class ReactorGroup {
+	private static final Logger LOGGER = Logger.getLogger(ReactorGroup.class);
+
+	public static final String ROUND_ROBIN = "round-robin";
+	public static final String LEAST_LOADED = "least-loaded";
+
+	public static final String MODE_HTTP = "http";
+	public static final String MODE_TCP = "tcp";
+
+	public static final String ENGINE_NIO = "nio";
+	public static final String ENGINE_VIRTUAL = "virtual";
+
+	private final ServerSocketChannel[] serverChannels;
+	private final Acceptor[] acceptors;
+	private final IOReactor[] reactors;
+	private final ConnectingIOReactor[] shards;
+	private final boolean leastLoaded;
+	private final AdminServer adminServer;
+	private final AccessLog accessLog;
+
+	private final AtomicInteger nextReactor = new AtomicInteger();
+
+	public ReactorGroup(Properties prop) throws IOException {
+		final int localPort = Integer.parseInt(prop.getProperty("localPort"));
+		final int cores = Runtime.getRuntime().availableProcessors();
+		final int acceptorThreads = Integer.parseInt(prop.getProperty("acceptorThreads", "1"));
+		final int ioThreads = Integer.parseInt(prop.getProperty("ioThreads", String.valueOf(cores)));
+		final boolean reusePort = Boolean.parseBoolean(prop.getProperty("reusePort", "false"));
+		// Each sharded listener gets a connecting ioReactor of its own
+		final int backendShards =
+		                          reusePort ? ioThreads : Integer.parseInt(prop.getProperty("backendShards",
+		                                                                                    String.valueOf(ioThreads)));
+		final String balancing = prop.getProperty("ioBalancing", ROUND_ROBIN);
+		final String mode = prop.getProperty("mode", MODE_HTTP);
+		final int adminPort = Integer.parseInt(prop.getProperty("adminPort", "0"));
+		final int maxBuffersPerWrite =
+		                               Integer.parseInt(prop.getProperty("maxBuffersPerWrite",
+		                                                                 String.valueOf(OutboundQueue.DEFAULT_MAX_BUFFERS_PER_WRITE)));
+
+		if (acceptorThreads < 1 || ioThreads < 1 || backendShards < 1) {
+			throw new IllegalArgumentException("acceptorThreads, ioThreads and backendShards must be at least 1");
+		}
+		if (maxBuffersPerWrite < 1) {
+			throw new IllegalArgumentException("maxBuffersPerWrite must be at least 1");
+		}
+		if (!ROUND_ROBIN.equals(balancing) && !LEAST_LOADED.equals(balancing)) {
+			throw new IllegalArgumentException("Unknown ioBalancing strategy: " + balancing);
+		}
+		if (!MODE_HTTP.equals(mode) && !MODE_TCP.equals(mode)) {
+			throw new IllegalArgumentException("Unknown mode: " + mode);
+		}
+		if (reusePort && !ReusePort.isSupported()) {
+			throw new IllegalArgumentException("reusePort is not supported on this platform");
+		}
+		this.leastLoaded = LEAST_LOADED.equals(balancing);
+
+		UpstreamGroup upstream = UpstreamGroup.load(prop);
+		TimeoutConfig timeoutConfig = TimeoutConfig.load(prop);
+		Metrics metrics = Metrics.getDefault();
+		this.reactors = new IOReactor[ioThreads];
+		if (MODE_TCP.equals(mode)) {
+			this.shards = new ConnectingIOReactor[0];
+			this.accessLog = null;
+			for (int i = 0; i < ioThreads; i++) {
+				this.reactors[i] = new TcpTunnelReactor(upstream, timeoutConfig);
+			}
+		} else {
+			this.accessLog = AccessLog.load(prop);
+			ConnectionPoolConfig poolConfig = ConnectionPoolConfig.load(prop);
+			TlsConfig tlsConfig = TlsConfig.load(prop);
+			ResponseCache cache = ResponseCache.load(prop);
+			RequestCoalescer coalescer = RequestCoalescer.load(prop);
+			AdmissionControl admission = AdmissionControl.load(prop);
+			RetryConfig retryConfig = RetryConfig.load(prop);
+			HedgeDelay hedgeDelay = retryConfig.hedging ? new HedgeDelay(retryConfig, System.nanoTime()) : null;
+			addCacheGauges(metrics, cache, coalescer);
+			addAccessLogGauges(metrics, this.accessLog);
+			addAdmissionGauges(metrics, admission);
+			this.shards = new ConnectingIOReactor[backendShards];
+			for (int i = 0; i < backendShards; i++) {
+				this.shards[i] =
+				                 new ConnectingIOReactor(upstream, poolConfig, maxBuffersPerWrite, tlsConfig,
+				                                         timeoutConfig, retryConfig, hedgeDelay);
+			}
+			// The health of the backends is probed from a single thread
+			this.shards[0].enableHealthChecks();
+			addRetryGauges(metrics, this.shards);
+			for (int i = 0; i < ioThreads; i++) {
+				Worker worker = new Worker(this.shards[i % backendShards], cache, coalescer, admission);
+				this.reactors[i] =
+				                   new ListeningIOReactor(worker, maxBuffersPerWrite, tlsConfig, timeoutConfig,
+				                                          this.accessLog);
+			}
+		}
+
+		addReactorGauges(metrics, upstream);
+		this.adminServer = adminPort > 0 ? new AdminServer(adminPort, metrics) : null;
+
+		if (reusePort) {
+			// A server socket per listening ioReactor, sharing the port
+			this.serverChannels = new ServerSocketChannel[ioThreads];
+			for (int i = 0; i < ioThreads; i++) {
+				this.serverChannels[i] = ReusePort.open(localPort);
+				this.reactors[i].listen(this.serverChannels[i]);
+			}
+			this.acceptors = new Acceptor[0];
+		} else {
+			// Create a new non-blocking server socket channel and bind it to
+			// the specified port
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.socket().bind(new InetSocketAddress((InetAddress) null, localPort));
+			this.serverChannels = new ServerSocketChannel[] { serverChannel };
+
+			this.acceptors = new Acceptor[acceptorThreads];
+			for (int i = 0; i < acceptorThreads; i++) {
+				this.acceptors[i] = new Acceptor(serverChannel, this);
+			}
+		}
+	}
+
+	public void start() {
+		LOGGER.info("Starting " + this.acceptors.length + " acceptor(s), " + this.reactors.length +
+		            " listening ioReactor(s) and " + this.shards.length + " connecting ioReactor(s) on " +
+		            this.serverChannels.length + " server socket(s).");
+		for (int i = 0; i < this.shards.length; i++) {
+			startThread(this.shards[i], "connecting-ioreactor-" + i, true);
+		}
+		for (int i = 0; i < this.reactors.length; i++) {
+			startThread(this.reactors[i], "listening-ioreactor-" + i, false);
+		}
+		for (int i = 0; i < this.acceptors.length; i++) {
+			startThread(this.acceptors[i], "acceptor-" + i, false);
+		}
+
+		try {
+			Metrics.getDefault().registerMBean();
+		} catch (JMException e) {
+			LOGGER.error("The metrics could not be registered with the platform MBean server.", e);
+		}
+		if (this.accessLog != null) {
+			final Thread writer = startThread(this.accessLog, "access-log", true);
+			// Writes out the records still in memory when the proxy is stopped
+			Runtime.getRuntime().addShutdownHook(new Thread("access-log-shutdown") {
+				public void run() {
+					accessLog.close();
+					try {
+						writer.join(1000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		if (this.adminServer != null) {
+			LOGGER.info("Serving the metrics on port " + this.adminServer.getPort() + ".");
+			startThread(this.adminServer, "admin", true);
+		}
+	}
+
+	/**
+	 * Starts the proxy on the engine the <code>engine</code> property names:
+	 * the ioReactors wired up by a {@link ReactorGroup}, or a
+	 * {@link VirtualThreadEngine}.
+	 */
+	public static void startEngine(Properties prop) throws IOException {
+		String engine = prop.getProperty("engine", ENGINE_NIO);
+		if (ENGINE_NIO.equals(engine)) {
+			new ReactorGroup(prop).start();
+		} else if (ENGINE_VIRTUAL.equals(engine)) {
+			new VirtualThreadEngine(prop).start();
+		} else {
+			throw new IllegalArgumentException("Unknown engine: " + engine);
+		}
+	}
+
+	/**
+	 * Picks the ioReactor which is going to serve the next accepted client
+	 * connection.
+	 */
+	public IOReactor next() {
+		if (!this.leastLoaded) {
+			// Mask the sign bit off so that the counter may wrap around
+			int index = (this.nextReactor.getAndIncrement() & Integer.MAX_VALUE) % this.reactors.length;
+			return this.reactors[index];
+		}
+
+		IOReactor selected = this.reactors[0];
+		for (int i = 1; i < this.reactors.length; i++) {
+			if (this.reactors[i].getActiveConnections() < selected.getActiveConnections()) {
+				selected = this.reactors[i];
+			}
+		}
+		return selected;
+	}
+
+	private void addReactorGauges(Metrics metrics, UpstreamGroup upstream) {
+		for (int i = 0; i < this.reactors.length; i++) {
+			final IOReactor reactor = this.reactors[i];
+			metrics.addGauge("active_connections{reactor=\"" + i + "\"}", new Metrics.Gauge() {
+				public long getValue() {
+					return reactor.getActiveConnections();
+				}
+			});
+			metrics.addGauge("queue_depth{reactor=\"listening-" + i + "\"}", new Metrics.Gauge() {
+				public long getValue() {
+					return reactor.getQueueDepth();
+				}
+			});
+		}
+		for (int i = 0; i < this.shards.length; i++) {
+			final ConnectingIOReactor shard = this.shards[i];
+			metrics.addGauge("queue_depth{reactor=\"connecting-" + i + "\"}", new Metrics.Gauge() {
+				public long getValue() {
+					return shard.getQueueDepth();
+				}
+			});
+		}
+		for (final Backend backend : upstream.getBackends()) {
+			metrics.addGauge("backend_outstanding_requests{backend=\"" + backend + "\"}", new Metrics.Gauge() {
+				public long getValue() {
+					return backend.getOutstanding();
+				}
+			});
+			metrics.addGauge("backend_available{backend=\"" + backend + "\"}", new Metrics.Gauge() {
+				public long getValue() {
+					return backend.isAvailable(System.nanoTime()) ? 1 : 0;
+				}
+			});
+			metrics.addGauge("backend_circuit_state{backend=\"" + backend + "\"}", new Metrics.Gauge() {
+				public long getValue() {
+					return backend.getCircuitState();
+				}
+			});
+		}
+	}
+
+	private static void addCacheGauges(Metrics metrics, final ResponseCache cache, final RequestCoalescer coalescer) {
+		if (cache != null) {
+			metrics.addGauge("cache_hits_total", new Metrics.Gauge() {
+				public long getValue() {
+					return cache.getHitCount();
+				}
+			});
+			metrics.addGauge("cache_misses_total", new Metrics.Gauge() {
+				public long getValue() {
+					return cache.getMissCount();
+				}
+			});
+			metrics.addGauge("cache_bytes", new Metrics.Gauge() {
+				public long getValue() {
+					return cache.getSize();
+				}
+			});
+		}
+		if (coalescer != null) {
+			metrics.addGauge("coalesced_requests_total", new Metrics.Gauge() {
+				public long getValue() {
+					return coalescer.getJoinedCount();
+				}
+			});
+		}
+	}
+
+	private static void addAccessLogGauges(Metrics metrics, final AccessLog accessLog) {
+		if (accessLog != null) {
+			metrics.addGauge("access_log_dropped_total", new Metrics.Gauge() {
+				public long getValue() {
+					return accessLog.getDroppedCount();
+				}
+			});
+		}
+	}
+
+	private static void addRetryGauges(Metrics metrics, final ConnectingIOReactor[] shards) {
+		metrics.addGauge("hedged_requests_total", new Metrics.Gauge() {
+			public long getValue() {
+				long total = 0;
+				for (ConnectingIOReactor shard : shards) {
+					total += shard.getHedgedCount();
+				}
+				return total;
+			}
+		});
+		metrics.addGauge("retried_requests_total", new Metrics.Gauge() {
+			public long getValue() {
+				long total = 0;
+				for (ConnectingIOReactor shard : shards) {
+					total += shard.getRetriedCount();
+				}
+				return total;
+			}
+		});
+	}
+
+	private static void addAdmissionGauges(Metrics metrics, final AdmissionControl admission) {
+		metrics.addGauge("rejected_requests_total{reason=\"pipelined\"}", new Metrics.Gauge() {
+			public long getValue() {
+				return admission.getRejectedPipelinedCount();
+			}
+		});
+		metrics.addGauge("rejected_requests_total{reason=\"rate\"}", new Metrics.Gauge() {
+			public long getValue() {
+				return admission.getRejectedRateCount();
+			}
+		});
+		metrics.addGauge("rejected_requests_total{reason=\"concurrency\"}", new Metrics.Gauge() {
+			public long getValue() {
+				return admission.getRejectedConcurrencyCount();
+			}
+		});
+		final ConcurrencyLimiter limiter = admission.getLimiter();
+		if (limiter != null) {
+			metrics.addGauge("concurrency_limit", new Metrics.Gauge() {
+				public long getValue() {
+					return limiter.getLimit();
+				}
+			});
+			metrics.addGauge("requests_in_flight", new Metrics.Gauge() {
+				public long getValue() {
+					return limiter.getInFlight();
+				}
+			});
+		}
+	}
+
+	private static Thread startThread(Runnable runnable, String name, boolean daemon) {
+		Thread t = new Thread(runnable, name);
+		t.setDaemon(daemon);
+		t.start();
+		return t;
+	}
+
+}
@@ -0,0 +1,164 @@
+package org.wso2.nio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses identical concurrent requests into a single backend exchange. The
+ * first cacheable request for a resource leads a flight which later identical
+ * requests, from any listening ioReactor, join instead of going to the
+ * backend themselves. The flight takes joiners until the head of the leader's
+ * response arrives. Then the leader's {@link RspHandler} decides what each
+ * joiner gets:
+ *
+ * <ul>
+ * <li>if another client may see the response, the joiner is handed the same
+ * response buffers as the leader, each as a slice sharing the leader's memory,
+ * so the body is not copied per client,</li>
+ * <li>otherwise the joiner's request is sent to the backend on its own.</li>
+ * </ul>
+ *
+ * Requests arriving once the response has started are not held back; they go
+ * to the backend or, once the response is stored, to the
+ * {@link ResponseCache}.
+ *
+ * @author ravindra
+ *
+ */
+public class RequestCoalescer {
+	private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	private final AtomicLong joined = new AtomicLong();
+
+	public static RequestCoalescer load(Properties prop) {
+		if (!Boolean.parseBoolean(prop.getProperty("requestCoalescing", "true"))) {
+			return null;
+		}
+		return new RequestCoalescer();
+	}
+
+	/**
+	 * Attaches a request to the flight of an identical one, if there is a
+	 * flight still taking joiners. Called by the listening ioReactor owning the
+	 * client connection.
+	 *
+	 * @param headData
+	 *            the request head, kept in case the request has to be sent
+	 *            on its own after all
+	 * @return <code>true</code> if the request has joined a flight, in which
+	 *         case <code>handler</code> will get the response
+	 */
+	public boolean join(RspHandler handler, HttpMessageHead request, PooledBuffer headData, Worker worker) {
+		if (!isCoalescable(request)) {
+			return false;
+		}
+		Flight flight = flights.get(keyOf(request));
+		if (flight == null || !flight.add(new Joiner(handler, request, headData, worker))) {
+			return false;
+		}
+		joined.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Opens a flight for a request about to be sent to the backend, for
+	 * identical requests to join.
+	 *
+	 * @return the flight the handler leads, or <code>null</code> if the
+	 *         request is sent on its own
+	 */
+	public Flight lead(HttpMessageHead request) {
+		if (!isCoalescable(request)) {
+			return null;
+		}
+		Flight flight = new Flight(keyOf(request), request);
+		// Two requests may have missed each other's flight, in which case the
+		// second one simply goes to the backend on its own
+		return flights.putIfAbsent(flight.key, flight) == null ? flight : null;
+	}
+
+	/**
+	 * Closes a flight to new joiners.
+	 *
+	 * @return the requests which have joined it
+	 */
+	List<Joiner> land(Flight flight) {
+		flights.remove(flight.key, flight);
+		return flight.close();
+	}
+
+	/**
+	 * @return the number of requests which have been attached to the exchange
+	 *         of another
+	 */
+	public long getJoinedCount() {
+		return joined.get();
+	}
+
+	int getFlightCount() {
+		return flights.size();
+	}
+
+	private static boolean isCoalescable(HttpMessageHead request) {
+		return ResponseCache.isCacheable(request) && !request.hasToken("Cache-Control", "no-cache") &&
+		       !request.hasToken("Pragma", "no-cache");
+	}
+
+	private static String keyOf(HttpMessageHead request) {
+		// The same as the cache's, which includes the version, since it
+		// decides how the response is framed
+		return ResponseCache.keyOf(request);
+	}
+
+	/**
+	 * A backend exchange identical requests may still join.
+	 */
+	static class Flight {
+		final String key;
+		final HttpMessageHead request;
+
+		// Null once the flight takes no more joiners
+		private List<Joiner> joiners = new ArrayList<Joiner>();
+
+		Flight(String key, HttpMessageHead request) {
+			this.key = key;
+			this.request = request;
+		}
+
+		synchronized boolean add(Joiner joiner) {
+			if (joiners == null) {
+				return false;
+			}
+			joiners.add(joiner);
+			return true;
+		}
+
+		synchronized List<Joiner> close() {
+			List<Joiner> closed = joiners == null ? Collections.<Joiner> emptyList() : joiners;
+			joiners = null;
+			return closed;
+		}
+	}
+
+	/**
+	 * A request waiting on the flight of another.
+	 */
+	static class Joiner {
+		final RspHandler handler;
+		final HttpMessageHead request;
+		final PooledBuffer headData;
+		final Worker worker;
+
+		Joiner(RspHandler handler, HttpMessageHead request, PooledBuffer headData, Worker worker) {
+			this.handler = handler;
+			this.request = request;
+			this.headData = headData;
+			this.worker = worker;
+		}
+	}
+
+}
@@ -0,0 +1,570 @@
+package org.wso2.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Shared cache of backend responses to GET requests, consulted by the
+ * {@link Worker} before a request is sent to the backend. A hit is written to
+ * the client by the listening ioReactor straight away, without a backend
+ * connection being involved.
+ *
+ * Only responses the backend marks as fresh for a while, through
+ * <code>Cache-Control: max-age</code>, <code>s-maxage</code> or
+ * <code>Expires</code>, are stored, and they are served until they expire.
+ * Entries are keyed by HTTP version, method, host and URI, the version
+ * because it decides how the stored response is framed: a chunked response
+ * to an HTTP/1.1 request is never served to an HTTP/1.0 client. A response
+ * which varies on request headers is stored along with their values and is
+ * served only to requests with the same values; one variant is kept per URI.
+ *
+ * The response bytes are kept off-heap in a single direct buffer per entry,
+ * and a hit is written out as slices of it, so serving it copies nothing. The
+ * cache is bounded by the bytes of all entries, and split into
+ * {@link #SEGMENTS} independently locked segments, each evicting with a
+ * segmented LRU: new entries start out on probation, and move to the protected
+ * part once they are hit again, so a burst of one-off responses does not push
+ * the popular ones out.
+ *
+ * @author ravindra
+ *
+ */
+public class ResponseCache {
+	private static final Logger LOGGER = Logger.getLogger(ResponseCache.class);
+
+	static final int SEGMENTS = 16;
+
+	// Share of a segment's bytes reserved for entries which have been hit
+	private static final double PROTECTED_SHARE = 0.8;
+
+	// Headers which only apply to one connection and are not stored
+	private static final String[] HOP_BY_HOP_HEADERS =
+	                                                   { "Connection", "Keep-Alive", "Proxy-Connection", "TE",
+	                                                    "Upgrade", "Age" };
+
+	private final BufferPool bufferPool;
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final int maxEntrySize;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ResponseCache(long maxSize, int maxEntrySize, BufferPool bufferPool) {
+		long segmentSize = maxSize / SEGMENTS;
+		if (maxEntrySize > segmentSize) {
+			throw new IllegalArgumentException("responseCacheMaxEntrySize can be at most 1/" + SEGMENTS +
+			                                   " of responseCacheSize");
+		}
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(segmentSize);
+		}
+		this.maxEntrySize = maxEntrySize;
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * @return the cache configured by the <code>responseCache*</code>
+	 *         properties, or <code>null</code> if it is disabled
+	 */
+	public static ResponseCache load(Properties prop) {
+		long maxSize = Long.parseLong(prop.getProperty("responseCacheSize", "0"));
+		int maxEntrySize = Integer.parseInt(prop.getProperty("responseCacheMaxEntrySize", "1048576"));
+		if (maxSize <= 0) {
+			return null;
+		}
+		return new ResponseCache(maxSize, maxEntrySize, BufferPool.getDefault());
+	}
+
+	public int getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	/**
+	 * @return <code>true</code> if a response to the request may be taken
+	 *         from the cache or stored in it
+	 */
+	public static boolean isCacheable(HttpMessageHead request) {
+		if (!"GET".equals(request.method) || request.getHeader("Authorization") != null ||
+		    request.getHeader("Transfer-Encoding") != null) {
+			return false;
+		}
+		String length = request.getHeader("Content-Length");
+		if (length != null && !"0".equals(length.trim())) {
+			return false;
+		}
+		return !request.hasToken("Cache-Control", "no-store");
+	}
+
+	/**
+	 * Writes a fresh cached response to the request to the client, if there
+	 * is one, behind the responses to its earlier requests. Called by the
+	 * listening ioReactor owning the client connection.
+	 *
+	 * @return <code>true</code> if the request has been answered
+	 */
+	public boolean serve(ListeningIOReactor server, Connection client, HttpMessageHead request) {
+		long started = System.nanoTime();
+		if (!isCacheable(request) || request.hasToken("Cache-Control", "no-cache") ||
+		    request.hasToken("Pragma", "no-cache") || request.hasToken("Cache-Control", "max-age=0")) {
+			return false;
+		}
+		String key = keyOf(request);
+		long now = System.currentTimeMillis();
+		Entry entry = segmentFor(key).get(key, request, now);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return false;
+		}
+		hits.incrementAndGet();
+
+		// The stored head lacks the connection specific fields, which are
+		// added per client
+		boolean keepAlive = request.isKeepAlive();
+		StringBuilder sb = new StringBuilder();
+		sb.append("Age: ").append(entry.initialAge + (now - entry.storedAt) / 1000).append("\r\n");
+		if (!keepAlive) {
+			sb.append("Connection: close\r\n");
+		} else if (HttpMessageHead.HTTP_1_0.equals(request.version)) {
+			sb.append("Connection: keep-alive\r\n");
+		}
+		sb.append("\r\n");
+
+		byte[] fields = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+		long responseBytes = entry.data.buffer().limit() + fields.length;
+		ResponseSequencer.Slot slot = server.openResponse(client);
+		try {
+			ByteBuffer data = entry.data.buffer();
+			slot.send(entry.data.retainedSlice(0, entry.headLength), null);
+			slot.send(fields);
+			if (entry.headLength < data.limit()) {
+				slot.send(entry.data.retainedSlice(entry.headLength, data.limit()), null);
+			}
+		} finally {
+			// Let go of the reference taken by the lookup
+			entry.data.release();
+		}
+		slot.complete(!keepAlive);
+
+		AccessLog accessLog = server.getAccessLog();
+		if (accessLog != null) {
+			long elapsed = System.nanoTime() - started;
+			accessLog.log(RspHandler.remoteAddress(client), request.method, request.uri, entry.status, responseBytes,
+			              -1, elapsed, elapsed, AccessLog.FLAG_CACHE_HIT);
+		}
+		return true;
+	}
+
+	/**
+	 * Decides whether a response to the request is to be stored, once its
+	 * head has arrived.
+	 *
+	 * @return the time in milliseconds the response stays fresh, or 0 if it
+	 *         is not to be stored
+	 */
+	public static long freshnessLifetime(HttpMessageHead request, HttpMessageHead response, long now) {
+		if (!isCacheable(request) || !isCacheableStatus(response.status)) {
+			return 0;
+		}
+		if (!isShareable(response)) {
+			return 0;
+		}
+		if (response.getHeader("Content-Length") == null && !response.hasToken("Transfer-Encoding", "chunked")) {
+			// Delimited by the connection close, which is not replayed
+			return 0;
+		}
+
+		long lifetime = -1;
+		String maxAge = directive(response, "s-maxage");
+		if (maxAge == null) {
+			maxAge = directive(response, "max-age");
+		}
+		if (maxAge != null) {
+			try {
+				lifetime = Long.parseLong(maxAge) * 1000;
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		} else if (response.getHeader("Expires") != null) {
+			long expires = parseDate(response.getHeader("Expires"));
+			String dateValue = response.getHeader("Date");
+			long date = dateValue == null ? now : parseDate(dateValue);
+			if (expires < 0 || date < 0) {
+				return 0;
+			}
+			lifetime = expires - date;
+		}
+		return Math.max(0, lifetime - age(response) * 1000);
+	}
+
+	/**
+	 * @return <code>true</code> if a response to a cacheable request may be
+	 *         handed to other clients sending the same request
+	 */
+	public static boolean isShareable(HttpMessageHead response) {
+		return !response.hasToken("Cache-Control", "no-store") && !response.hasToken("Cache-Control", "no-cache") &&
+		       !response.hasToken("Cache-Control", "private") && response.getHeader("Set-Cookie") == null &&
+		       !response.hasToken("Vary", "*");
+	}
+
+	/**
+	 * @return <code>true</code> if the two requests agree on all the headers
+	 *         the response varies on
+	 */
+	public static boolean isSameVariant(HttpMessageHead request, HttpMessageHead other, HttpMessageHead response) {
+		String[] names = varyNames(response);
+		return Arrays.equals(varyValues(request, names), varyValues(other, names));
+	}
+
+	/**
+	 * Stores a complete response.
+	 *
+	 * @param parts
+	 *            the response bytes as received from the backend, starting
+	 *            with a head of <code>headLength</code> bytes. They are copied
+	 *            and stay owned by the caller.
+	 */
+	public void store(HttpMessageHead request, HttpMessageHead response, int headLength, List<PooledBuffer> parts,
+	                  long lifetime) {
+		byte[] head = storedHead(response);
+		int bodyLength = -headLength;
+		for (int i = 0; i < parts.size(); i++) {
+			bodyLength += parts.get(i).buffer().remaining();
+		}
+		if (bodyLength < 0 || head.length + bodyLength > maxEntrySize) {
+			return;
+		}
+
+		// One copy into a buffer of its own, leaving the read buffers the
+		// parts are slices of to the connecting ioReactor
+		PooledBuffer data = bufferPool.acquire(head.length + bodyLength);
+		ByteBuffer dst = data.buffer();
+		dst.put(head);
+		int skip = headLength;
+		for (int i = 0; i < parts.size(); i++) {
+			ByteBuffer src = parts.get(i).buffer().duplicate();
+			int n = Math.min(skip, src.remaining());
+			src.position(src.position() + n);
+			skip -= n;
+			dst.put(src);
+		}
+		dst.flip();
+
+		long now = System.currentTimeMillis();
+		Entry entry = new Entry(keyOf(request), data, head.length, now, now + lifetime, age(response));
+		entry.status = response.status;
+		String[] vary = varyNames(response);
+		entry.varyNames = vary;
+		entry.varyValues = varyValues(request, vary);
+		segmentFor(entry.key).put(entry);
+		LOGGER.info("Cached the response to " + request + " for " + lifetime + " ms");
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the bytes taken by all entries
+	 */
+	public long getSize() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.getSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Drops all entries.
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	static String keyOf(HttpMessageHead request) {
+		String host = request.getHeader("Host");
+		return request.version + ' ' + request.method + ' ' + (host == null ? "" : host.toLowerCase(Locale.ROOT)) + ' ' + request.uri;
+	}
+
+	private Segment segmentFor(String key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	private static boolean isCacheableStatus(int status) {
+		return status == 200 || status == 203 || status == 300 || status == 301 || status == 404 || status == 410;
+	}
+
+	/**
+	 * @return the value of a Cache-Control directive, or <code>null</code>
+	 */
+	private static String directive(HttpMessageHead message, String name) {
+		for (String value : message.getHeaders("Cache-Control")) {
+			for (String element : value.split(",")) {
+				String[] pair = element.trim().split("=", 2);
+				if (pair.length == 2 && pair[0].trim().equalsIgnoreCase(name)) {
+					return pair[1].trim().replace("\"", "");
+				}
+			}
+		}
+		return null;
+	}
+
+	private static long age(HttpMessageHead response) {
+		String age = response.getHeader("Age");
+		if (age == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Long.parseLong(age.trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the time of an HTTP date in milliseconds, or -1 if it is
+	 *         malformed
+	 */
+	private static long parseDate(String value) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(value.trim()).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	private static byte[] storedHead(HttpMessageHead response) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(response.version).append(' ').append(response.status).append(' ').append(response.reason)
+		  .append("\r\n");
+		for (int i = 0; i < response.getHeaderCount(); i++) {
+			String name = response.getHeaderName(i);
+			if (!isHopByHop(response, name)) {
+				sb.append(name).append(": ").append(response.getHeaderValue(i)).append("\r\n");
+			}
+		}
+		return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static boolean isHopByHop(HttpMessageHead response, String name) {
+		for (String header : HOP_BY_HOP_HEADERS) {
+			if (header.equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return response.hasToken("Connection", name);
+	}
+
+	private static String[] varyNames(HttpMessageHead response) {
+		List<String> names = new ArrayList<String>();
+		for (String value : response.getHeaders("Vary")) {
+			for (String element : value.split(",")) {
+				if (!element.trim().isEmpty()) {
+					names.add(element.trim());
+				}
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	private static String[] varyValues(HttpMessageHead request, String[] names) {
+		String[] values = new String[names.length];
+		for (int i = 0; i < names.length; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (String value : request.getHeaders(names[i])) {
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(value.trim());
+			}
+			values[i] = sb.toString();
+		}
+		return values;
+	}
+
+	/**
+	 * A stored response: the head without its terminating empty line,
+	 * followed by the body as received from the backend.
+	 */
+	static class Entry {
+		final String key;
+		final PooledBuffer data;
+		final int headLength;
+		final long storedAt;
+		final long expiresAt;
+		final long initialAge;
+		final int size;
+
+		// The request headers the response varies on and their values
+		String[] varyNames;
+		String[] varyValues;
+
+		// Whether the entry sits in the protected part of its segment
+		boolean protectedEntry;
+
+		// Status of the response, for the access log
+		int status;
+
+		Entry(String key, PooledBuffer data, int headLength, long storedAt, long expiresAt, long initialAge) {
+			this.key = key;
+			this.data = data;
+			this.headLength = headLength;
+			this.storedAt = storedAt;
+			this.expiresAt = expiresAt;
+			this.initialAge = initialAge;
+			this.size = data.buffer().capacity();
+		}
+
+		boolean matches(HttpMessageHead request) {
+			String[] values = varyValues(request, varyNames);
+			for (int i = 0; i < values.length; i++) {
+				if (!values[i].equals(varyValues[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * One lock's worth of entries, evicting with a segmented LRU. Both parts
+	 * are kept in access order, the least recently used entry first.
+	 */
+	static class Segment {
+		private final long maxSize;
+		private final long maxProtectedSize;
+
+		private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<String, Entry>(16, 0.75f,
+		                                                                                                true);
+		private long size;
+		private long protectedSize;
+
+		Segment(long maxSize) {
+			this.maxSize = maxSize;
+			this.maxProtectedSize = (long) (maxSize * PROTECTED_SHARE);
+		}
+
+		/**
+		 * @return a fresh entry matching the request, with a reference taken
+		 *         for the caller, or <code>null</code>
+		 */
+		synchronized Entry get(String key, HttpMessageHead request, long now) {
+			Entry entry = protectedEntries.get(key);
+			if (entry == null) {
+				entry = probation.get(key);
+			}
+			if (entry == null) {
+				return null;
+			}
+			if (entry.expiresAt <= now) {
+				remove(entry);
+				return null;
+			}
+			if (!entry.matches(request)) {
+				return null;
+			}
+			if (!entry.protectedEntry) {
+				// Hit again while on probation, promote it
+				probation.remove(key);
+				entry.protectedEntry = true;
+				protectedEntries.put(key, entry);
+				protectedSize += entry.size;
+				demoteProtected();
+			}
+			entry.data.retain();
+			return entry;
+		}
+
+		synchronized void put(Entry entry) {
+			Entry old = protectedEntries.get(entry.key);
+			if (old == null) {
+				old = probation.get(entry.key);
+			}
+			if (old != null) {
+				remove(old);
+			}
+			probation.put(entry.key, entry);
+			size += entry.size;
+			evict();
+		}
+
+		synchronized long getSize() {
+			return size;
+		}
+
+		synchronized void clear() {
+			for (Entry entry : probation.values()) {
+				entry.data.release();
+			}
+			for (Entry entry : protectedEntries.values()) {
+				entry.data.release();
+			}
+			probation.clear();
+			protectedEntries.clear();
+			size = 0;
+			protectedSize = 0;
+		}
+
+		private void remove(Entry entry) {
+			if (entry.protectedEntry) {
+				protectedEntries.remove(entry.key);
+				protectedSize -= entry.size;
+			} else {
+				probation.remove(entry.key);
+			}
+			size -= entry.size;
+			entry.data.release();
+		}
+
+		/**
+		 * Moves the least recently used protected entries back to probation
+		 * while the protected part is over its share.
+		 */
+		private void demoteProtected() {
+			Iterator<Map.Entry<String, Entry>> it = protectedEntries.entrySet().iterator();
+			while (protectedSize > maxProtectedSize && it.hasNext()) {
+				Entry entry = it.next().getValue();
+				it.remove();
+				protectedSize -= entry.size;
+				entry.protectedEntry = false;
+				probation.put(entry.key, entry);
+			}
+		}
+
+		/**
+		 * Drops entries from the least recently used end of probation, and
+		 * then of the protected part, until the segment fits.
+		 */
+		private void evict() {
+			while (size > maxSize) {
+				LinkedHashMap<String, Entry> victims = probation.isEmpty() ? protectedEntries : probation;
+				remove(victims.values().iterator().next());
+			}
+		}
+	}
+
+}
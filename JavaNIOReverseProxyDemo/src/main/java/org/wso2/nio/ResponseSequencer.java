@@ -0,0 +1,197 @@
+package org.wso2.nio;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Puts the responses to the pipelined requests of a client connection back
+ * into the order of the requests. The requests are relayed to the backends
+ * all at once, and their responses may complete in any order; each one gets
+ * a {@link Slot} when its request is read, and the slot at the head writes
+ * straight to the client while the ones behind it hold their data until they
+ * get to the head.
+ *
+ * A slot holding more than {@link OutboundQueue#HIGH_WATERMARK} bytes makes
+ * its producer pause, the same as a client which does not keep up, and
+ * resumes it once the data has been passed on to the client and drained.
+ *
+ * A response which closes the connection ends the sequence: the data of the
+ * responses behind it is dropped, as is everything once the connection is
+ * gone.
+ *
+ * Slots are opened by the selecting thread of the listening ioReactor, in
+ * the order of the requests, and fed by whichever thread produces the
+ * response.
+ *
+ * @author ravindra
+ *
+ */
+public class ResponseSequencer {
+	private final ListeningIOReactor server;
+	private final Connection client;
+	private final BufferPool bufferPool;
+
+	// Responses which are not over yet, oldest first
+	private final ArrayDeque<Slot> slots = new ArrayDeque<Slot>();
+
+	// Set once the connection is going to be closed
+	private boolean closing;
+
+	ResponseSequencer(ListeningIOReactor server, Connection client, BufferPool bufferPool) {
+		this.server = server;
+		this.client = client;
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Opens the slot of the next response.
+	 */
+	synchronized Slot open() {
+		Slot slot = new Slot();
+		this.slots.add(slot);
+		return slot;
+	}
+
+	/**
+	 * Drops the data held for the client once its connection is gone.
+	 */
+	void clear() {
+		List<Runnable> resumed = new ArrayList<Runnable>();
+		synchronized (this) {
+			this.closing = true;
+			this.dropHeld(resumed);
+		}
+		run(resumed);
+	}
+
+	private synchronized boolean send(Slot slot, PooledBuffer data, Runnable onDrained) {
+		if (this.closing) {
+			data.release();
+			return true;
+		}
+		if (slot == this.slots.peek()) {
+			return this.server.send(this.client, data, onDrained);
+		}
+		if (slot.held == null) {
+			slot.held = new ArrayList<PooledBuffer>();
+		}
+		slot.held.add(data);
+		slot.heldBytes += data.buffer().remaining();
+		if (slot.heldBytes > OutboundQueue.HIGH_WATERMARK && onDrained != null) {
+			slot.onDrained = onDrained;
+			return false;
+		}
+		return true;
+	}
+
+	private void complete(Slot slot, boolean close) {
+		List<Runnable> resumed = new ArrayList<Runnable>(1);
+		synchronized (this) {
+			slot.complete = true;
+			slot.close = close;
+			while (!this.closing && !this.slots.isEmpty() && this.slots.peek().complete) {
+				Slot done = this.slots.poll();
+				this.server.responseDone(this.client);
+				if (done.close) {
+					this.closing = true;
+					this.server.closeAfterWrite(this.client);
+					this.dropHeld(resumed);
+				} else if (!this.slots.isEmpty()) {
+					this.flush(this.slots.peek(), resumed);
+				}
+			}
+		}
+		run(resumed);
+	}
+
+	/**
+	 * Passes the data held by the slot which has got to the head on to the
+	 * client.
+	 */
+	private void flush(Slot slot, List<Runnable> resumed) {
+		if (slot.held == null) {
+			return;
+		}
+		Runnable onDrained = slot.onDrained;
+		boolean accepted = true;
+		for (int i = 0; i < slot.held.size(); i++) {
+			boolean last = i == slot.held.size() - 1;
+			accepted = this.server.send(this.client, slot.held.get(i), last ? onDrained : null);
+		}
+		if (onDrained != null && accepted) {
+			// The client takes it all without pausing the producer
+			resumed.add(onDrained);
+		}
+		slot.held = null;
+		slot.heldBytes = 0;
+		slot.onDrained = null;
+	}
+
+	private void dropHeld(List<Runnable> resumed) {
+		for (Slot slot : this.slots) {
+			if (slot.held != null) {
+				for (int i = 0; i < slot.held.size(); i++) {
+					slot.held.get(i).release();
+				}
+				slot.held = null;
+				slot.heldBytes = 0;
+			}
+			if (slot.onDrained != null) {
+				// Producers do not wait for a client which is gone
+				resumed.add(slot.onDrained);
+				slot.onDrained = null;
+			}
+		}
+		this.slots.clear();
+	}
+
+	private static void run(List<Runnable> runnables) {
+		for (int i = 0; i < runnables.size(); i++) {
+			runnables.get(i).run();
+		}
+	}
+
+	/**
+	 * The place of one response in the sequence.
+	 */
+	public class Slot {
+		// Data waiting for the slot to get to the head, and the producer to
+		// resume once it has drained
+		private List<PooledBuffer> held;
+		private int heldBytes;
+		private Runnable onDrained;
+
+		private boolean complete;
+		private boolean close;
+
+		/**
+		 * Queues a part of the response. Takes over the reference to the
+		 * buffer. May be called from any thread.
+		 *
+		 * @param onDrained
+		 *            run once the data has drained, if this returns
+		 *            <code>false</code>
+		 * @return <code>false</code> if the caller has to stop producing data
+		 *         until <code>onDrained</code> is run
+		 */
+		public boolean send(PooledBuffer data, Runnable onDrained) {
+			return ResponseSequencer.this.send(this, data, onDrained);
+		}
+
+		public void send(byte[] data) {
+			ResponseSequencer.this.send(this, ResponseSequencer.this.bufferPool.wrap(data), null);
+		}
+
+		/**
+		 * Ends the response. May be called from any thread.
+		 *
+		 * @param close
+		 *            whether the client connection is to be closed after it
+		 */
+		public void complete(boolean close) {
+			ResponseSequencer.this.complete(this, close);
+		}
+	}
+
+}
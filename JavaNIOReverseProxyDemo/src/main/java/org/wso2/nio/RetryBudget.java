@@ -0,0 +1,75 @@
+package org.wso2.nio;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the requests sent a second time, hedges and retries alike, so that
+ * they can not multiply the load on backends which are already struggling.
+ * Every request earns <code>retryBudgetPercent</code> hundredths of a second
+ * attempt, and <code>retryBudgetMinPerSecond</code> attempts are allowed on
+ * top of that so that a quiet proxy may still retry. Once the budget is spent
+ * requests are only sent once, however many fail.
+ *
+ * The earned attempts are capped at what {@link #MAX_REQUESTS} requests earn,
+ * and the attempts allowed per second at one second's worth, so a budget
+ * saved up while all is well runs out quickly in an outage.
+ *
+ * Owned by a connecting ioReactor and only used from its selecting thread.
+ *
+ * @author ravindra
+ *
+ */
+public class RetryBudget {
+	// Requests whose earnings are kept at most
+	static final int MAX_REQUESTS = 1000;
+
+	private final double ratio;
+	private final double minPerNanos;
+	private final double maxEarned;
+	private final double maxReserve;
+
+	// Attempts earned by the requests, and allowed by the passing time
+	private double earned;
+	private double reserve;
+	private long updated;
+
+	public RetryBudget(int percent, int minPerSecond, long now) {
+		this.ratio = percent / 100.0;
+		this.minPerNanos = (double) minPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.maxEarned = this.ratio * MAX_REQUESTS;
+		this.maxReserve = minPerSecond;
+		this.reserve = minPerSecond;
+		this.updated = now;
+	}
+
+	/**
+	 * Notes a request sent for the first time.
+	 */
+	public void deposit() {
+		this.earned = Math.min(this.maxEarned, this.earned + this.ratio);
+	}
+
+	/**
+	 * Takes an attempt out of the budget for a request about to be sent
+	 * again.
+	 *
+	 * @return <code>false</code> if the budget is spent
+	 */
+	public boolean tryWithdraw(long now) {
+		long elapsed = now - this.updated;
+		if (elapsed > 0) {
+			this.reserve = Math.min(this.maxReserve, this.reserve + elapsed * this.minPerNanos);
+			this.updated = now;
+		}
+		if (this.earned >= 1) {
+			this.earned--;
+			return true;
+		}
+		if (this.reserve >= 1) {
+			this.reserve--;
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,71 @@
+package org.wso2.nio;
+
+import java.util.Properties;
+
+/**
+ * When the connecting ioReactors send a request a second time, read from the
+ * <code>hedge*</code>, <code>connectRetries</code> and
+ * <code>retryBudget*</code> entries of the config.properties file. Times are
+ * in milliseconds.
+ *
+ * @author ravindra
+ *
+ */
+public class RetryConfig {
+	// Whether a request which may safely be sent twice gets a second copy
+	// once the first has been waiting for longer than most requests do
+	public boolean hedging = false;
+	// Percentile of the recent times to first byte past which the copy is
+	// sent, and the least time it waits for
+	public double hedgeDelayPercentile = 95;
+	public long hedgeMinDelay = 5;
+
+	// Times a request is sent again after its connection could not be
+	// established
+	public int connectRetries = 1;
+
+	// Hedges and retries allowed on top of the requests, in percent of them,
+	// and allowed anyway each second
+	public int budgetPercent = 20;
+	public int budgetMinPerSecond = 10;
+
+	public static RetryConfig load(Properties prop) {
+		RetryConfig config = new RetryConfig();
+		config.hedging = Boolean.parseBoolean(prop.getProperty("hedging", String.valueOf(config.hedging)));
+		config.hedgeDelayPercentile =
+		                              Double.parseDouble(prop.getProperty("hedgeDelayPercentile",
+		                                                                  String.valueOf(config.hedgeDelayPercentile)));
+		config.hedgeMinDelay = Long.parseLong(prop.getProperty("hedgeMinDelay", String.valueOf(config.hedgeMinDelay)));
+		config.connectRetries =
+		                        Integer.parseInt(prop.getProperty("connectRetries",
+		                                                          String.valueOf(config.connectRetries)));
+		config.budgetPercent =
+		                       Integer.parseInt(prop.getProperty("retryBudgetPercent",
+		                                                         String.valueOf(config.budgetPercent)));
+		config.budgetMinPerSecond =
+		                            Integer.parseInt(prop.getProperty("retryBudgetMinPerSecond",
+		                                                              String.valueOf(config.budgetMinPerSecond)));
+
+		if (config.hedgeDelayPercentile <= 0 || config.hedgeDelayPercentile >= 100) {
+			throw new IllegalArgumentException("hedgeDelayPercentile must be between 0 and 100");
+		}
+		if (config.hedgeMinDelay < 0 || config.connectRetries < 0 || config.budgetPercent < 0 ||
+		    config.budgetMinPerSecond < 0) {
+			throw new IllegalArgumentException("hedgeMinDelay, connectRetries and retryBudget* must not be negative");
+		}
+		return config;
+	}
+
+	/**
+	 * @return <code>true</code> if sending the request twice does no harm: a
+	 *         GET, HEAD or OPTIONS request without a body
+	 */
+	public static boolean isHedgeable(HttpMessageHead request) {
+		if (!"GET".equals(request.method) && !"HEAD".equals(request.method) && !"OPTIONS".equals(request.method)) {
+			return false;
+		}
+		String length = request.getHeader("Content-Length");
+		return (length == null || "0".equals(length.trim())) && request.getHeader("Transfer-Encoding") == null;
+	}
+
+}
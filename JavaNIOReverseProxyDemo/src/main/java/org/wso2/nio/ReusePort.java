@@ -0,0 +1,79 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Opens server sockets sharing a port through <code>SO_REUSEPORT</code>. The
+ * kernel spreads the incoming connections over all sockets bound to the port,
+ * so each ioReactor may accept from a socket of its own. The option is looked
+ * up reflectively, as it is only known to Java 9 and later, and supported by
+ * Linux and the BSDs.
+ *
+ * @author ravindra
+ *
+ */
+public final class ReusePort {
+
+	// SO_REUSEPORT, null if the JVM does not know it
+	private static final SocketOption<Boolean> SO_REUSEPORT = lookUp();
+
+	private ReusePort() {
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> lookUp() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (NoSuchFieldException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if server sockets may share a port on this
+	 *         JVM and platform
+	 */
+	public static boolean isSupported() {
+		if (SO_REUSEPORT == null) {
+			return false;
+		}
+		try {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				return channel.supportedOptions().contains(SO_REUSEPORT);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Opens a non-blocking server socket bound to the port along with the
+	 * other sockets opened by this method.
+	 */
+	public static ServerSocketChannel open(int port) throws IOException {
+		if (!isSupported()) {
+			throw new IllegalArgumentException("reusePort is not supported on this platform");
+		}
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.setOption(SO_REUSEPORT, Boolean.TRUE);
+			channel.configureBlocking(false);
+			channel.socket().bind(new InetSocketAddress((InetAddress) null, port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+}
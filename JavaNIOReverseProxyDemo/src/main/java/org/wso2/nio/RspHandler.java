@@ -1,6 +1,9 @@
 package org.wso2.nio;
 
-import java.nio.channels.SocketChannel;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -9,40 +12,406 @@ import org.apache.log4j.Logger;
  * to the listening ioReactor. This correlates the response channel
  * associated with each request.
  * 
+ * The handler is a completion callback invoked by the selecting thread of the
+ * connecting ioReactor, so no thread is parked while a request is in flight.
+ * 
+ * A response the {@link ResponseCache} may keep is captured on its way to the
+ * client, as slices of the buffers passed on, and stored once complete.
+ * 
+ * A handler leading a flight of the {@link RequestCoalescer} passes the
+ * response on to the handlers of the identical requests which have joined it
+ * as well, each getting slices of the same buffers. Should the client of the
+ * leader go away once the response has started, the response carries on for
+ * the others.
+ * 
+ * The response goes to the client through a slot of its
+ * {@link ResponseSequencer}, opened when the handler is created, so that the
+ * responses to pipelined requests are written in the order of the requests.
+ * 
+ * With an {@link AccessLog} each exchange is recorded once it is over.
+ * 
+ * A handler holding a place of the {@link AdmissionControl} gives it back
+ * exactly once, as its response completes or fails, or as the connecting
+ * ioReactor drops its request after the client went away. The time to the
+ * first byte of a complete response, or the time a request took to time out,
+ * is what an adaptive limit learns from.
+ * 
  * @author ravindra
  *
  */
 public class RspHandler {
 	private final static Logger LOGGER = Logger.getLogger(RspHandler.class);
 
-	private final SocketChannel responseChannel;
-	private final ListeningIOReactor listeningIOReactor;
-	private byte[] rsp = null;
+	private final ResponseSequencer.Slot slot;
+	private final HttpMessageHead request;
+	private final ResponseCache cache;
+
+	// Whether any part of the response has been passed on to the client
+	private boolean responseStarted;
+	// Set once the client has gone away, nothing more is passed on to it
+	private boolean detached;
+
+	// What the access log records: the client, when the request was read
+	// and the response started, its status and size, the backend which
+	// answered and whether the response was shared
+	private final AccessLog accessLog;
+	private final InetSocketAddress clientAddress;
+	private final long started;
+	private long firstByteTime = -1;
+	private int status;
+	private long responseBytes;
+	int backend = -1;
+	private boolean coalesced;
+
+	// The response being captured for the cache, null unless it is going to
+	// be stored
+	private List<PooledBuffer> captured;
+	private int capturedBytes;
+	private HttpMessageHead responseHead;
+	private int responseHeadLength;
+	private long lifetime;
+	// Set once an interim response has arrived. Its bytes may share a read
+	// with the final head, which the captured buffers would then not start
+	// with.
+	private boolean interim;
+
+	// The flight led until the response head arrives, and the handlers of the
+	// requests sharing the response after that
+	private RequestCoalescer coalescer;
+	private RequestCoalescer.Flight flight;
+	private List<RspHandler> followers;
+
+	// The admission control whose place the request holds, null once it has
+	// been given back or if it holds none
+	private AdmissionControl permit;
+
+	public RspHandler(Connection client, ListeningIOReactor listeningIOReactor, HttpMessageHead request) {
+		this(client, listeningIOReactor, request, null, null);
+	}
+
+	public RspHandler(Connection client, ListeningIOReactor listeningIOReactor, HttpMessageHead request,
+	                  ResponseCache cache) {
+		this(client, listeningIOReactor, request, cache, null);
+	}
+
+	public RspHandler(Connection client, ListeningIOReactor listeningIOReactor, HttpMessageHead request,
+	                  ResponseCache cache, AdmissionControl permit) {
+		// Created by the selecting thread of the listening ioReactor serving
+		// the client, as the request is read
+		this.slot = listeningIOReactor.openResponse(client);
+		this.request = request;
+		this.cache = cache;
+		this.accessLog = listeningIOReactor.getAccessLog();
+		this.clientAddress = accessLog != null ? remoteAddress(client) : null;
+		this.started = System.nanoTime();
+		this.permit = permit;
+	}
+
+	public String getRequestMethod() {
+		return request.method;
+	}
+
+	/**
+	 * Called by the connecting ioReactor once the head of a response has been
+	 * parsed, before the bytes holding it are passed on.
+	 */
+	public void responseHead(HttpMessageHead head, int headLength) {
+		if (flight != null) {
+			land(head);
+		}
+		if (!head.isInterim()) {
+			status = head.status;
+		}
+		if (cache == null) {
+			return;
+		}
+		if (head.isInterim()) {
+			interim = true;
+		}
+		if (interim || responseStarted) {
+			// Only a response on its own is replayed
+			releaseCaptured();
+			return;
+		}
+		lifetime = ResponseCache.freshnessLifetime(request, head, System.currentTimeMillis());
+		if (lifetime > 0) {
+			captured = new ArrayList<PooledBuffer>();
+			responseHead = head;
+			responseHeadLength = headLength;
+		}
+	}
+
+	/**
+	 * Makes the handler lead a flight of identical requests.
+	 */
+	void lead(RequestCoalescer coalescer, RequestCoalescer.Flight flight) {
+		this.coalescer = coalescer;
+		this.flight = flight;
+	}
+
+	/**
+	 * Closes the flight once the response head is known, and hands the
+	 * response to the requests which have joined it if they may see it.
+	 */
+	private void land(HttpMessageHead head) {
+		List<RequestCoalescer.Joiner> joiners = coalescer.land(flight);
+		flight = null;
+		boolean shareable = !head.isInterim() && !responseStarted && ResponseCache.isShareable(head);
+		for (RequestCoalescer.Joiner joiner : joiners) {
+			if (shareable && ResponseCache.isSameVariant(request, joiner.request, head)) {
+				if (followers == null) {
+					followers = new ArrayList<RspHandler>();
+				}
+				followers.add(joiner.handler);
+				joiner.handler.status = head.status;
+				joiner.handler.coalesced = true;
+				joiner.headData.release();
+			} else {
+				joiner.worker.forward(joiner.handler, joiner.headData);
+			}
+		}
+	}
+
+	/**
+	 * Called by the connecting ioReactor whenever a part of the response
+	 * arrives. Takes over the reference to the buffer.
+	 * 
+	 * @param onDrained
+	 *            run once the client has caught up, if this returns
+	 *            <code>false</code>
+	 * @return <code>false</code> if the client connection has too much data
+	 *         queued and reading from the backend has to pause
+	 */
+	public boolean handleResponse(PooledBuffer rsp, Runnable onDrained) {
+		// Sending the response back to the caller. This only queues the data
+		// and wakes up the listening ioReactor.
+		if (!responseStarted) {
+			firstByteTime = System.nanoTime() - started;
+		}
+		responseStarted = true;
+		responseBytes += rsp.buffer().remaining();
+		if (captured != null) {
+			capturedBytes += rsp.buffer().remaining();
+			if (capturedBytes - responseHeadLength > cache.getMaxEntrySize()) {
+				// Too large to be cached
+				releaseCaptured();
+			} else {
+				captured.add(rsp.retainedSlice(rsp.buffer().position(), rsp.buffer().limit()));
+			}
+		}
+		if (followers == null) {
+			return send(rsp, onDrained);
+		}
+		// Reading from the backend pauses until every client which could not
+		// take its part has caught up
+		Countdown countdown = new Countdown(onDrained);
+		boolean accepted = true;
+		for (int i = 0; i < followers.size(); i++) {
+			PooledBuffer slice = rsp.retainedSlice(rsp.buffer().position(), rsp.buffer().limit());
+			accepted &= countdown.counted(followers.get(i).handleResponse(slice, countdown.expect()));
+		}
+		accepted &= countdown.counted(send(rsp, countdown.expect()));
+		if (!accepted) {
+			countdown.run();
+		}
+		return accepted;
+	}
+
+	private boolean send(PooledBuffer rsp, Runnable onDrained) {
+		if (detached) {
+			rsp.release();
+			return true;
+		}
+		return slot.send(rsp, onDrained);
+	}
+
+	/**
+	 * Called by the connecting ioReactor once the whole response has been
+	 * passed to {@link #handleResponse(PooledBuffer, Runnable)}.
+	 * 
+	 * @param close
+	 *            whether the backend ended the response by closing the
+	 *            connection or asked for it to be closed
+	 */
+	public void responseCompleted(boolean close) {
+		if (captured != null) {
+			cache.store(request, responseHead, responseHeadLength, captured, lifetime);
+			releaseCaptured();
+		}
+		if (followers != null) {
+			for (int i = 0; i < followers.size(); i++) {
+				followers.get(i).responseCompleted(close);
+			}
+		}
+		if (detached) {
+			return;
+		}
+		slot.complete(close || !request.isKeepAlive());
+		log(status, 0);
+		releasePermit(firstByteTime);
+	}
+
+	/**
+	 * Called by the connecting ioReactor if no complete response could be
+	 * read from the backend.
+	 */
+	public void failed() {
+		LOGGER.info("No complete response received from the backend for " + request);
+		fail(502, "Bad Gateway", AccessLog.FLAG_FAILED);
+	}
 
-	public RspHandler(SocketChannel responseChannel, ListeningIOReactor listeningIOReactor) {
-		this.responseChannel = responseChannel;
-		this.listeningIOReactor = listeningIOReactor;
+	/**
+	 * Called by the connecting ioReactor if the backend took too long to
+	 * answer.
+	 */
+	public void timedOut() {
+		LOGGER.info("The backend timed out on " + request);
+		fail(504, "Gateway Timeout", AccessLog.FLAG_TIMED_OUT);
 	}
 
-	public synchronized boolean handleResponse(byte[] rsp) {
-		this.rsp = rsp;
-		this.notify();
-		return true;
+	/**
+	 * Called by the connecting ioReactor if no backend may take the request.
+	 */
+	public void unavailable() {
+		fail(503, "Service Unavailable", AccessLog.FLAG_REJECTED);
 	}
 
-	public synchronized void waitForResponse() {
-		while (this.rsp == null) {
-			try {
-				this.wait();
-			} catch (InterruptedException e) {
+	/**
+	 * Called by the connecting ioReactor when the client has gone away, or
+	 * sent a malformed request, before the response to it was complete. The
+	 * requests which have joined its flight are sent on their own, while the
+	 * handlers sharing a response which has started still get the rest of
+	 * it, see {@link #isShared()}. Calling this again has no effect.
+	 */
+	public void aborted() {
+		if (detached) {
+			return;
+		}
+		detached = true;
+		releaseCaptured();
+		if (flight != null) {
+			for (RequestCoalescer.Joiner joiner : coalescer.land(flight)) {
+				joiner.worker.forward(joiner.handler, joiner.headData);
 			}
+			flight = null;
 		}
+		// Lets whatever the client is owed after this response go out
+		slot.complete(true);
+		releasePermit(-1);
+	}
 
-		LOGGER.info(new String(rsp));
+	/**
+	 * @return <code>true</code> if the handlers of identical requests share
+	 *         the response, which is to be read on for them even once the
+	 *         client of this one has gone away
+	 */
+	boolean isShared() {
+		return followers != null;
+	}
 
-		// Sending the response back to the caller.
-		LOGGER.info("Writing the response back to the caller.");
-		listeningIOReactor.send(responseChannel, rsp);
+	private void fail(int status, String reason, int flag) {
+		releaseCaptured();
+		if (flight != null) {
+			// The requests which have joined get the same error rather than
+			// all trying the backend again
+			for (RequestCoalescer.Joiner joiner : coalescer.land(flight)) {
+				joiner.headData.release();
+				joiner.handler.fail(status, reason, flag);
+			}
+			flight = null;
+		}
+		if (followers != null) {
+			for (int i = 0; i < followers.size(); i++) {
+				followers.get(i).fail(status, reason, flag);
+			}
+		}
+		if (detached) {
+			return;
+		}
+		boolean truncated = responseStarted;
+		if (!truncated) {
+			slot.send(ErrorResponse.bytes(status, reason));
+		}
+		// A truncated response can only be signalled by closing the connection
+		slot.complete(true);
+		log(truncated ? this.status : status, flag);
+		// Only a timeout says how long the backend is taking
+		releasePermit(flag == AccessLog.FLAG_TIMED_OUT ? System.nanoTime() - started : -1);
+	}
+
+	private void releasePermit(long latency) {
+		if (permit != null) {
+			permit.release(latency);
+			permit = null;
+		}
+	}
 
+	private void log(int status, int flags) {
+		if (accessLog == null) {
+			return;
+		}
+		accessLog.log(clientAddress, request.method, request.uri, status, responseBytes, backend, firstByteTime,
+		              System.nanoTime() - started, coalesced ? flags | AccessLog.FLAG_COALESCED : flags);
+	}
+
+	static InetSocketAddress remoteAddress(Connection client) {
+		if (client.channel == null) {
+			return null;
+		}
+		return (InetSocketAddress) client.channel.socket().getRemoteSocketAddress();
+	}
+
+	/**
+	 * Resumes reading a shared response once the last of the clients which
+	 * could not take a part of it has caught up, rather than the first.
+	 */
+	private static class Countdown implements Runnable {
+		private final Runnable onDrained;
+		// The clients yet to catch up, and one more while the part is being
+		// handed out so that an early catch up does not resume too soon
+		private final AtomicInteger pending = new AtomicInteger(1);
+
+		Countdown(Runnable onDrained) {
+			this.onDrained = onDrained;
+		}
+
+		/**
+		 * Counts a client about to be handed a part.
+		 * 
+		 * @return what the client is to run once it has caught up
+		 */
+		Runnable expect() {
+			if (onDrained == null) {
+				return null;
+			}
+			pending.incrementAndGet();
+			return this;
+		}
+
+		/**
+		 * Stops counting a client which has taken its part.
+		 */
+		boolean counted(boolean accepted) {
+			if (accepted && onDrained != null) {
+				pending.decrementAndGet();
+			}
+			return accepted;
+		}
+
+		public void run() {
+			if (pending.decrementAndGet() == 0) {
+				onDrained.run();
+			}
+		}
+	}
+
+	private void releaseCaptured() {
+		if (captured == null) {
+			return;
+		}
+		for (int i = 0; i < captured.size(); i++) {
+			captured.get(i).release();
+		}
+		captured = null;
 	}
 }
@@ -0,0 +1,342 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves the client connections in <code>mode=tcp</code>, where the proxy
+ * relays opaque bytes instead of HTTP messages. Every client connection is
+ * paired with a backend connection of its own, opened by this reactor, and the
+ * two are served by the same selecting thread: no worker, no change requests
+ * between threads and no per-message objects.
+ *
+ * Each direction of a pair owns a single direct buffer. Bytes are read into it
+ * from one channel and written out of it to the other; reading stops while the
+ * buffer is full and resumes as soon as the peer has taken some of it. An end
+ * of stream is passed on as a half close once the buffer has drained, and the
+ * pair is closed when both directions have ended. The two ends are
+ * {@link Connection}s attached to the selection keys of their channels and
+ * pointing to each other.
+ *
+ * Each tunnel goes to the backend its {@link UpstreamGroup} selects. An open
+ * tunnel counts as an outstanding request of its backend, its connect time as
+ * the latency of the backend and a failed connect as a slow response. A client
+ * finding no healthy backend is closed right away.
+ *
+ * A tunnel whose backend connection takes longer than
+ * <code>backendConnectTimeout</code> to be established, or which goes
+ * <code>clientIdleTimeout</code> without a byte either way, is closed by a
+ * {@link TimingWheel} driven from the select loop.
+ *
+ * @author ravindra
+ *
+ */
+public class TcpTunnelReactor implements IOReactor {
+	private static final Logger LOGGER = Logger.getLogger(TcpTunnelReactor.class);
+
+	private static final int TUNNEL_BUFFER_SIZE = 16384;
+
+	// The backends tunnels are spread over
+	private final UpstreamGroup upstream;
+
+	// The selector we'll be monitoring
+	private final Selector selector;
+
+	private final BufferPool bufferPool = BufferPool.getDefault();
+	private final Metrics metrics = Metrics.getDefault();
+
+	// Accepted client connections waiting to be registered
+	private final ChangeQueue<SocketChannel> pendingClients;
+
+	// Number of client connections currently served by this reactor
+	private final AtomicInteger activeConnections = new AtomicInteger();
+
+	// The timeouts of the tunnels, one shared by both ends of each
+	private final TimingWheel timeouts = new TimingWheel();
+	private final TimeoutConfig timeoutConfig;
+
+	public TcpTunnelReactor(UpstreamGroup upstream, TimeoutConfig timeoutConfig) throws IOException {
+		this.upstream = upstream;
+		this.timeoutConfig = timeoutConfig;
+		this.selector = SelectorProvider.provider().openSelector();
+		this.pendingClients = new ChangeQueue<SocketChannel>(this.selector);
+	}
+
+	public void register(SocketChannel socketChannel) {
+		this.activeConnections.incrementAndGet();
+		this.pendingClients.add(socketChannel);
+	}
+
+	public void listen(ServerSocketChannel serverChannel) throws IOException {
+		serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Accepts the connections waiting on the server socket of this reactor
+	 * and opens their tunnels right away.
+	 */
+	private void accept(SelectionKey key) throws IOException {
+		ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+		SocketChannel client;
+		for (int i = 0; i < ChangeQueue.DRAIN_BATCH_SIZE && (client = serverChannel.accept()) != null; i++) {
+			this.metrics.accepted.mark();
+			client.configureBlocking(false);
+			this.activeConnections.incrementAndGet();
+			this.openTunnel(client);
+		}
+	}
+
+	public int getActiveConnections() {
+		return this.activeConnections.get();
+	}
+
+	public long getQueueDepth() {
+		return this.pendingClients.size();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				// Pair up the newly accepted clients
+				this.pendingClients.beforeDrain();
+				SocketChannel client;
+				for (int i = 0; i < ChangeQueue.DRAIN_BATCH_SIZE && (client = this.pendingClients.poll()) != null; i++) {
+					this.openTunnel(client);
+				}
+				long now = System.nanoTime();
+				this.timeouts.expire(now);
+
+				// Wait for an event one of the registered channels, or the next
+				// tick of the timeouts, unless there are clients left for the
+				// next round
+				if (this.pendingClients.isEmpty()) {
+					this.selector.select(this.timeouts.getSelectTimeout(now));
+				} else {
+					this.selector.selectNow();
+				}
+				// Iterate over the set of keys for which events are available
+				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						this.accept(key);
+						continue;
+					}
+
+					Connection connection = (Connection) key.attachment();
+					// Read up front, the key is cancelled if the pump fails
+					boolean connecting = key.isConnectable();
+					try {
+						if (connecting) {
+							connection.channel.finishConnect();
+							connection.backend.recordLatency(System.nanoTime() - connection.connectStarted);
+						} else {
+							if (key.isReadable()) {
+								this.pump(connection);
+							}
+							if (key.isValid() && key.isWritable()) {
+								this.pump(connection.peer);
+							}
+						}
+					} catch (IOException e) {
+						LOGGER.info("Tunnel closed by an I/O error: " + e.getMessage());
+						if (connecting) {
+							connection.backend.recordFailure();
+						}
+						this.close(connection);
+						continue;
+					}
+					this.updateInterest(connection);
+					this.updateTimeout(connection);
+				}
+
+			} catch (Exception e) {
+				LOGGER.error("Exception was thrown while Selecting IO Events.", e);
+			}
+		}
+	}
+
+	private void openTunnel(SocketChannel clientChannel) {
+		SocketChannel backendChannel = null;
+		Backend target = this.upstream.select();
+		if (target == null) {
+			LOGGER.error("No healthy backend is available, closing the client connection.");
+			this.activeConnections.decrementAndGet();
+			closeQuietly(clientChannel);
+			return;
+		}
+		target.requestStarted();
+		try {
+			backendChannel = SocketChannel.open();
+			backendChannel.configureBlocking(false);
+			long connectStarted = System.nanoTime();
+			boolean connected = backendChannel.connect(target.address);
+			if (connected) {
+				target.recordLatency(System.nanoTime() - connectStarted);
+			}
+
+			Connection client = new Connection(clientChannel);
+			Connection backend = new Connection(backendChannel);
+			client.backend = target;
+			backend.backend = target;
+			client.bytesRead = this.metrics.clientBytesRead;
+			client.bytesWritten = this.metrics.clientBytesWritten;
+			backend.bytesRead = this.metrics.backendBytesRead;
+			backend.bytesWritten = this.metrics.backendBytesWritten;
+			backend.connectStarted = connectStarted;
+			client.peer = backend;
+			backend.peer = client;
+			final Connection tunnel = client;
+			client.timeout = new TimingWheel.Timeout(new Runnable() {
+				public void run() {
+					timedOut(tunnel);
+				}
+			});
+			backend.timeout = client.timeout;
+			client.key = clientChannel.register(this.selector, 0, client);
+			backend.key = backendChannel.register(this.selector, connected ? 0 : SelectionKey.OP_CONNECT, backend);
+			client.inbound = this.bufferPool.acquire(TUNNEL_BUFFER_SIZE);
+			backend.inbound = this.bufferPool.acquire(TUNNEL_BUFFER_SIZE);
+			this.updateInterest(client);
+			this.updateTimeout(client);
+		} catch (IOException e) {
+			LOGGER.error("A tunnel to the backend could not be opened.", e);
+			target.recordFailure();
+			target.requestFinished();
+			this.activeConnections.decrementAndGet();
+			closeQuietly(clientChannel);
+			closeQuietly(backendChannel);
+		}
+	}
+
+	/**
+	 * Moves as many bytes as the sockets take from a connection to its peer.
+	 */
+	private void pump(Connection source) throws IOException {
+		Connection sink = source.peer;
+		ByteBuffer buffer = source.inbound.buffer();
+
+		// The buffer is kept in fill mode between events
+		if (!source.inputEnded && buffer.hasRemaining()) {
+			int numRead = source.channel.read(buffer);
+			if (numRead == -1) {
+				source.inputEnded = true;
+			} else {
+				source.bytesRead.add(numRead);
+			}
+		}
+		if (buffer.position() > 0) {
+			buffer.flip();
+			sink.bytesWritten.add(sink.channel.write(buffer));
+			buffer.compact();
+		}
+		if (source.inputEnded && buffer.position() == 0 && !source.endForwarded) {
+			// Everything the source sent has been passed on
+			sink.channel.socket().shutdownOutput();
+			source.endForwarded = true;
+		}
+	}
+
+	/**
+	 * Reads from each end of a tunnel while its buffer has room, and writes to
+	 * it while the buffer of the other end holds data.
+	 */
+	private void updateInterest(Connection connection) {
+		Connection peer = connection.peer;
+		if (connection.isClosed()) {
+			return;
+		}
+		if (connection.endForwarded && peer.endForwarded) {
+			// Both directions have ended
+			this.close(connection);
+			return;
+		}
+		if (!connection.channel.isConnected() || !peer.channel.isConnected()) {
+			// Nothing is read from the client before the backend is there
+			return;
+		}
+		setInterest(connection);
+		setInterest(peer);
+	}
+
+	/**
+	 * Restarts the timeout of a tunnel: the connect timeout until the backend
+	 * connection is established, the idle timeout after that.
+	 */
+	private void updateTimeout(Connection connection) {
+		if (connection.isClosed()) {
+			return;
+		}
+		boolean connected = connection.channel.isConnected() && connection.peer.channel.isConnected();
+		long delay = connected ? this.timeoutConfig.clientIdleTimeout : this.timeoutConfig.connectTimeout;
+		if (delay > 0) {
+			this.timeouts.schedule(connection.timeout, delay, System.nanoTime());
+		} else {
+			this.timeouts.cancel(connection.timeout);
+		}
+	}
+
+	private void timedOut(Connection connection) {
+		if (!connection.peer.channel.isConnected()) {
+			LOGGER.info("Timed out connecting a tunnel to backend " + connection.backend + ".");
+			connection.backend.recordFailure();
+		} else {
+			LOGGER.info("Closing a tunnel which has been idle for too long.");
+		}
+		this.close(connection);
+	}
+
+	private static void setInterest(Connection connection) {
+		int ops = 0;
+		if (!connection.inputEnded && connection.inbound.buffer().hasRemaining()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (connection.peer.inbound.buffer().position() > 0) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		SelectionKey key = connection.key;
+		if (key.isValid() && key.interestOps() != ops) {
+			key.interestOps(ops);
+		}
+	}
+
+	private void close(Connection connection) {
+		Connection peer = connection.peer;
+		if (!connection.markClosed()) {
+			return;
+		}
+		peer.markClosed();
+		this.timeouts.cancel(connection.timeout);
+		connection.backend.requestFinished();
+		this.activeConnections.decrementAndGet();
+		closeQuietly(connection.channel);
+		closeQuietly(peer.channel);
+		connection.inbound.release();
+		peer.inbound.release();
+	}
+
+	private static void closeQuietly(SocketChannel socketChannel) {
+		if (socketChannel == null) {
+			return;
+		}
+		try {
+			socketChannel.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+}
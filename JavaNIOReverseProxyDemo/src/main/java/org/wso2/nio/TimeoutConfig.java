@@ -0,0 +1,46 @@
+package org.wso2.nio;
+
+import java.util.Properties;
+
+/**
+ * Timeouts applied by the reactors, in milliseconds, read from the
+ * <code>*Timeout</code> entries of the config.properties file. A timeout of 0
+ * is disabled.
+ *
+ * @author ravindra
+ *
+ */
+public class TimeoutConfig {
+	// Time a backend connection may take to be established
+	public long connectTimeout = 10000;
+	// Time a request may wait for the backend without any data going either
+	// way: for a connection, for the backend to take the request or for the
+	// next bytes of the response
+	public long readTimeout = 60000;
+	// Time a whole response may take, from dispatching the request
+	public long responseTimeout = 0;
+	// Time a keep-alive client connection may stay idle between requests
+	public long clientIdleTimeout = 60000;
+	// Time a client may take to send the next bytes of a request it has
+	// started, or to take the next bytes of a response queued for it
+	public long clientReadTimeout = 30000;
+
+	public static TimeoutConfig load(Properties prop) {
+		TimeoutConfig config = new TimeoutConfig();
+		config.connectTimeout = parse(prop, "backendConnectTimeout", config.connectTimeout);
+		config.readTimeout = parse(prop, "backendReadTimeout", config.readTimeout);
+		config.responseTimeout = parse(prop, "backendResponseTimeout", config.responseTimeout);
+		config.clientIdleTimeout = parse(prop, "clientIdleTimeout", config.clientIdleTimeout);
+		config.clientReadTimeout = parse(prop, "clientReadTimeout", config.clientReadTimeout);
+		return config;
+	}
+
+	private static long parse(Properties prop, String name, long defaultValue) {
+		long value = Long.parseLong(prop.getProperty(name, String.valueOf(defaultValue)));
+		if (value < 0) {
+			throw new IllegalArgumentException(name + " must not be negative");
+		}
+		return value;
+	}
+
+}
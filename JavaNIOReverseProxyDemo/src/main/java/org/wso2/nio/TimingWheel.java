@@ -0,0 +1,187 @@
+package org.wso2.nio;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel holding the timeouts of one reactor. Time is cut into
+ * ticks, and a timeout goes into the bucket of the tick it is due in, modulo
+ * the number of buckets; a timeout further away than one turn of the wheel
+ * waits in its bucket for the turns in between. Scheduling and cancelling a
+ * timeout are O(1), whatever the number of timeouts pending, and a timeout
+ * fires at most one tick late.
+ *
+ * The wheel has no thread of its own. The selecting thread owning it bounds
+ * its selects by {@link #getSelectTimeout(long)} and calls
+ * {@link #expire(long)} each time around the loop, which runs the tasks of the
+ * timeouts which are due. It is not thread safe; the timeouts of a connection
+ * are only ever touched by the thread of the reactor serving it.
+ *
+ * Times are in nanoseconds as returned by {@link System#nanoTime()}, delays in
+ * milliseconds as configured.
+ *
+ * @author ravindra
+ *
+ */
+public class TimingWheel {
+	public static final long DEFAULT_TICK = 100;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private final long tickNanos;
+	private final Timeout[] buckets;
+	private final int mask;
+	private final long origin;
+
+	// The next tick to expire the bucket of
+	private long currentTick;
+	private int size;
+
+	public TimingWheel() {
+		this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE, System.nanoTime());
+	}
+
+	/**
+	 * @param tick
+	 *            milliseconds per tick
+	 * @param wheelSize
+	 *            number of buckets, rounded up to a power of two
+	 * @param now
+	 *            the time the first tick starts at
+	 */
+	public TimingWheel(long tick, int wheelSize, long now) {
+		if (tick < 1 || wheelSize < 1 || wheelSize > 1 << 30) {
+			throw new IllegalArgumentException("The tick must be at least a millisecond, the wheel size positive");
+		}
+		int buckets = Integer.highestOneBit(wheelSize);
+		if (buckets < wheelSize) {
+			buckets <<= 1;
+		}
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+		this.buckets = new Timeout[buckets];
+		this.mask = buckets - 1;
+		this.origin = now;
+	}
+
+	/**
+	 * Schedules a timeout to fire after the given delay, rescheduling it if it
+	 * is pending already.
+	 */
+	public void schedule(Timeout timeout, long delay, long now) {
+		if (timeout.scheduled) {
+			this.cancel(timeout);
+		}
+		// Round up, a timeout never fires early
+		long elapsed = now - this.origin + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+		long tick = (elapsed + this.tickNanos - 1) / this.tickNanos;
+		timeout.deadline = Math.max(tick, this.currentTick);
+
+		int index = (int) (timeout.deadline & this.mask);
+		Timeout head = this.buckets[index];
+		timeout.next = head;
+		timeout.prev = null;
+		if (head != null) {
+			head.prev = timeout;
+		}
+		this.buckets[index] = timeout;
+		timeout.scheduled = true;
+		this.size++;
+	}
+
+	/**
+	 * Cancels a timeout, if it is pending.
+	 */
+	public void cancel(Timeout timeout) {
+		if (!timeout.scheduled) {
+			return;
+		}
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			this.buckets[(int) (timeout.deadline & this.mask)] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.scheduled = false;
+		this.size--;
+	}
+
+	/**
+	 * Runs the tasks of the timeouts which are due. A task may schedule and
+	 * cancel timeouts, including its own.
+	 *
+	 * @return number of timeouts which have fired
+	 */
+	public int expire(long now) {
+		int expired = 0;
+		long lastTick = (now - this.origin) / this.tickNanos;
+		while (this.currentTick <= lastTick) {
+			if (this.size == 0) {
+				// Nothing to walk through, skip straight to the present
+				this.currentTick = lastTick + 1;
+				break;
+			}
+			int index = (int) (this.currentTick & this.mask);
+			Timeout timeout = this.buckets[index];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.deadline <= this.currentTick) {
+					this.cancel(timeout);
+					timeout.task.run();
+					expired++;
+					if (next != null && (!next.scheduled || (int) (next.deadline & this.mask) != index)) {
+						// The task has taken the next one out of the bucket
+						next = this.buckets[index];
+					}
+				}
+				timeout = next;
+			}
+			this.currentTick++;
+		}
+		return expired;
+	}
+
+	/**
+	 * @return milliseconds until the next tick is due, at least 1, or 0 if no
+	 *         timeout is pending; as {@link java.nio.channels.Selector#select(long)}
+	 *         takes them
+	 */
+	public long getSelectTimeout(long now) {
+		if (this.size == 0) {
+			return 0;
+		}
+		long wait = this.origin + this.currentTick * this.tickNanos - now;
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+	}
+
+	/**
+	 * @return number of pending timeouts
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * A timeout which can be scheduled on a wheel over and over, running its
+	 * task each time it fires. Kept by the connection or request it guards,
+	 * so that rescheduling it allocates nothing.
+	 */
+	public static class Timeout {
+		private final Runnable task;
+
+		private Timeout prev;
+		private Timeout next;
+		private long deadline;
+		private boolean scheduled;
+
+		public Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		public boolean isScheduled() {
+			return this.scheduled;
+		}
+	}
+
+}
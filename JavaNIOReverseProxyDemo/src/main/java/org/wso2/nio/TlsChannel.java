@@ -0,0 +1,421 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * TLS on top of a non-blocking socket channel, driven by the reactor owning
+ * the channel. Reads return decrypted bytes and writes take plain bytes, so
+ * the reactors use it in place of the socket channel itself.
+ *
+ * Nothing ever blocks: a read or write which can not make progress because the
+ * handshake waits for the peer returns 0, and {@link #wantsRead()} and
+ * {@link #wantsWrite()} tell the reactor which events to select for. The
+ * delegated tasks of a handshake run on the given executor, and the
+ * <code>onTasksDone</code> callback asks the reactor to carry on with the
+ * connection once they have finished, so a handshake never holds up the other
+ * connections of the reactor.
+ *
+ * Encrypted and decrypted bytes are kept in pooled direct buffers which are
+ * only held while they have data in them.
+ *
+ * @author ravindra
+ *
+ */
+public class TlsChannel implements GatheringByteChannel {
+	private static final Logger LOGGER = Logger.getLogger(TlsChannel.class);
+
+	private static final ByteBuffer[] EMPTY = new ByteBuffer[] { ByteBuffer.allocate(0) };
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final BufferPool bufferPool;
+	private final Executor taskExecutor;
+	private final Runnable onTasksDone;
+
+	// Bytes read off the socket but not unwrapped yet, bytes wrapped but not
+	// written to the socket yet and bytes unwrapped but not read yet. All in
+	// fill mode, and null while they are empty.
+	private PooledBuffer netIn;
+	private PooledBuffer netOut;
+	private PooledBuffer appIn;
+
+	// Set while the delegated tasks of a handshake are running
+	private volatile boolean tasksRunning;
+
+	// The initial handshake has been kicked off
+	private boolean started;
+
+	// The peer has closed its side of the connection
+	private boolean inputEnded;
+
+	// Complete records are left in netIn, which have to wait for the handshake
+	// or for appIn to be read
+	private boolean unwrapPending;
+
+	public TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool bufferPool, Executor taskExecutor,
+	                  Runnable onTasksDone) {
+		this.channel = channel;
+		this.engine = engine;
+		this.bufferPool = bufferPool;
+		this.taskExecutor = taskExecutor;
+		this.onTasksDone = onTasksDone;
+	}
+
+	/**
+	 * Reads decrypted bytes, carrying on with the handshake first if it is
+	 * not done.
+	 *
+	 * @return number of bytes read, possibly 0, or -1 once the peer has
+	 *         closed the connection and everything it sent has been read
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		int n = this.drainAppIn(dst);
+		if (n > 0) {
+			return n;
+		}
+		// Once the peer has sent its close_notify the engine only waits to
+		// answer it, which close() does
+		if (this.engine.isInboundDone() || this.handshake()) {
+			if (!this.inputEnded && this.fillNetIn() == -1) {
+				this.inputEnded = true;
+			}
+			this.unwrap();
+			n = this.drainAppIn(dst);
+			if (this.isHandshaking() && !this.engine.isInboundDone()) {
+				// The peer has asked for a new handshake or sent a key update
+				this.handshake();
+			}
+		}
+		if (n == 0 && (this.inputEnded || this.engine.isInboundDone()) && !this.hasBufferedInput()) {
+			return -1;
+		}
+		return n;
+	}
+
+	/**
+	 * Encrypts and writes as much of the given bytes as the socket takes.
+	 *
+	 * @return number of plain bytes consumed; 0 while the handshake is in
+	 *         progress or earlier output has not been written yet
+	 */
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		if (!this.flush() || !this.handshake()) {
+			return 0;
+		}
+		long consumed = 0;
+		while (true) {
+			SSLEngineResult result = this.engine.wrap(srcs, offset, length, this.netOut().buffer());
+			if (result.getStatus() == Status.CLOSED) {
+				throw new SSLException("TLS connection has been closed");
+			}
+			consumed += result.bytesConsumed();
+			if (!this.flush() || result.bytesConsumed() == 0 || !hasRemaining(srcs, offset, length)) {
+				break;
+			}
+		}
+		return consumed;
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return this.write(srcs, 0, srcs.length);
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		return (int) this.write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	/**
+	 * Carries the handshake on as far as it gets without waiting.
+	 *
+	 * @return <code>true</code> once no handshake is in progress
+	 */
+	public boolean handshake() throws IOException {
+		if (!this.started) {
+			this.engine.beginHandshake();
+			this.started = true;
+		}
+		while (true) {
+			if (this.tasksRunning) {
+				return false;
+			}
+			HandshakeStatus status = this.engine.getHandshakeStatus();
+			switch (status) {
+				case NOT_HANDSHAKING:
+				case FINISHED:
+					return true;
+				case NEED_TASK:
+					this.runTasks();
+					return false;
+				case NEED_WRAP:
+					if (!this.flush()) {
+						return false;
+					}
+					SSLEngineResult result = this.engine.wrap(EMPTY, this.netOut().buffer());
+					if (result.getStatus() == Status.CLOSED && !this.flush()) {
+						return false;
+					}
+					if (!this.flush()) {
+						return false;
+					}
+					if (result.getStatus() == Status.CLOSED) {
+						throw new SSLException("TLS connection has been closed during the handshake");
+					}
+					break;
+				default:
+					// NEED_UNWRAP, or NEED_UNWRAP_AGAIN on newer JDKs
+					if (this.unwrap() == 0 && this.engine.getHandshakeStatus() == status) {
+						if (this.inputEnded) {
+							throw new SSLException("Connection closed during the TLS handshake");
+						}
+						int read = this.fillNetIn();
+						if (read == -1) {
+							this.inputEnded = true;
+							throw new SSLException("Connection closed during the TLS handshake");
+						}
+						if (read == 0) {
+							return false;
+						}
+					}
+					break;
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> while a handshake is in progress. Application
+	 *         data is neither read nor written meanwhile.
+	 */
+	public boolean isHandshaking() {
+		if (this.tasksRunning) {
+			return true;
+		}
+		HandshakeStatus status = this.engine.getHandshakeStatus();
+		return !this.started || (status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED);
+	}
+
+	/**
+	 * @return <code>true</code> if the handshake waits for bytes from the
+	 *         peer
+	 */
+	public boolean wantsRead() {
+		if (this.tasksRunning) {
+			return false;
+		}
+		HandshakeStatus status = this.engine.getHandshakeStatus();
+		return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED &&
+		       status != HandshakeStatus.NEED_TASK && status != HandshakeStatus.NEED_WRAP;
+	}
+
+	/**
+	 * @return <code>true</code> if encrypted bytes wait for the socket to
+	 *         take them, or the handshake has bytes to send
+	 */
+	public boolean wantsWrite() {
+		return this.hasPendingOutput() ||
+		       (!this.tasksRunning && this.engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP);
+	}
+
+	public boolean hasPendingOutput() {
+		return this.netOut != null;
+	}
+
+	/**
+	 * @return <code>true</code> if bytes have been read off the socket which
+	 *         have not been returned by {@link #read(ByteBuffer)} yet. The
+	 *         socket will not signal them again, so the reactor has to keep
+	 *         reading until they are gone.
+	 */
+	public boolean hasBufferedInput() {
+		return this.appIn != null || this.unwrapPending;
+	}
+
+	public boolean isOpen() {
+		return this.channel.isOpen();
+	}
+
+	/**
+	 * Sends a close_notify if the socket takes it right away, then closes the
+	 * socket and returns the buffers to the pool.
+	 */
+	public void close() throws IOException {
+		try {
+			if (this.channel.isOpen() && this.channel.isConnected()) {
+				this.engine.closeOutbound();
+				if (this.flush()) {
+					this.engine.wrap(EMPTY, this.netOut().buffer());
+					this.flush();
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.info("close_notify could not be sent: " + e.getMessage());
+		} finally {
+			this.channel.close();
+			this.netIn = release(this.netIn);
+			this.netOut = release(this.netOut);
+			this.appIn = release(this.appIn);
+		}
+	}
+
+	private void runTasks() {
+		this.tasksRunning = true;
+		this.taskExecutor.execute(new Runnable() {
+			public void run() {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				tasksRunning = false;
+				onTasksDone.run();
+			}
+		});
+	}
+
+	/**
+	 * Unwraps the records in {@link #netIn} for as long as there is room for
+	 * them.
+	 *
+	 * @return number of bytes consumed
+	 */
+	private int unwrap() throws IOException {
+		if (this.netIn == null) {
+			return 0;
+		}
+		int consumed = 0;
+		ByteBuffer src = this.netIn.buffer();
+		src.flip();
+		this.unwrapPending = false;
+		try {
+			while (src.hasRemaining()) {
+				if (this.appIn == null) {
+					this.appIn = this.bufferPool.acquire(this.engine.getSession().getApplicationBufferSize());
+				}
+				SSLEngineResult result = this.engine.unwrap(src, this.appIn.buffer());
+				consumed += result.bytesConsumed();
+				if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+					// The rest of the record is still on its way
+					break;
+				}
+				if (result.getStatus() != Status.OK) {
+					// BUFFER_OVERFLOW waits for appIn to be read, CLOSED for
+					// nothing
+					this.unwrapPending = result.getStatus() == Status.BUFFER_OVERFLOW;
+					break;
+				}
+				HandshakeStatus status = result.getHandshakeStatus();
+				if (status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED &&
+				    status != HandshakeStatus.NEED_UNWRAP) {
+					// The handshake has to wrap or run tasks first
+					this.unwrapPending = src.hasRemaining();
+					break;
+				}
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+					break;
+				}
+			}
+		} finally {
+			src.compact();
+			if (src.position() == 0) {
+				this.netIn = release(this.netIn);
+			}
+			if (this.appIn != null && this.appIn.buffer().position() == 0) {
+				this.appIn = release(this.appIn);
+			}
+		}
+		return consumed;
+	}
+
+	/**
+	 * @return number of bytes read off the socket, or -1 at its end
+	 */
+	private int fillNetIn() throws IOException {
+		if (this.netIn == null) {
+			this.netIn = this.bufferPool.acquire(this.engine.getSession().getPacketBufferSize());
+		}
+		ByteBuffer buffer = this.netIn.buffer();
+		if (!buffer.hasRemaining()) {
+			return 0;
+		}
+		int read = this.channel.read(buffer);
+		if (buffer.position() == 0) {
+			this.netIn = release(this.netIn);
+		}
+		return read;
+	}
+
+	private int drainAppIn(ByteBuffer dst) {
+		if (this.appIn == null) {
+			return 0;
+		}
+		ByteBuffer src = this.appIn.buffer();
+		src.flip();
+		int n = Math.min(src.remaining(), dst.remaining());
+		int limit = src.limit();
+		src.limit(src.position() + n);
+		dst.put(src);
+		src.limit(limit);
+		src.compact();
+		if (src.position() == 0) {
+			this.appIn = release(this.appIn);
+		}
+		return n;
+	}
+
+	/**
+	 * Writes the encrypted bytes waiting in {@link #netOut}.
+	 *
+	 * @return <code>true</code> if nothing is left to be written
+	 */
+	private boolean flush() throws IOException {
+		if (this.netOut == null) {
+			return true;
+		}
+		ByteBuffer buffer = this.netOut.buffer();
+		buffer.flip();
+		try {
+			this.channel.write(buffer);
+		} finally {
+			buffer.compact();
+		}
+		if (buffer.position() == 0) {
+			this.netOut = release(this.netOut);
+			return true;
+		}
+		return false;
+	}
+
+	private PooledBuffer netOut() {
+		if (this.netOut == null) {
+			this.netOut = this.bufferPool.acquire(this.engine.getSession().getPacketBufferSize());
+		}
+		return this.netOut;
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (srcs[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static PooledBuffer release(PooledBuffer buffer) {
+		if (buffer != null) {
+			buffer.release();
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,168 @@
+package org.wso2.nio;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS settings of the proxy, read from the <code>secureProxy</code>,
+ * <code>secureBackend</code>, <code>keystore</code>, <code>truststore</code>
+ * and <code>tls*</code> entries of the config.properties file.
+ *
+ * Client connections are served with the key in the keystore when
+ * <code>secureProxy</code> is set, backend connections are verified against
+ * the truststore when <code>secureBackend</code> is set. Both sides keep a
+ * session cache and use session tickets where the JDK supports them, so
+ * returning clients and new backend connections get abbreviated handshakes.
+ *
+ * The CPU heavy parts of a handshake run on a small pool of
+ * <code>tls-task</code> threads instead of the reactors.
+ *
+ * @author ravindra
+ *
+ */
+public class TlsConfig {
+	// Enable stateless resumption on JDKs which support it (13 and later)
+	private static final String SERVER_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+	private static final String CLIENT_TICKETS_PROPERTY = "jdk.tls.client.enableSessionTicketExtension";
+
+	// Sessions cached per side and how long they may be resumed, in seconds
+	public int sessionCacheSize = 10000;
+	public int sessionTimeout = 86400;
+
+	private SSLContext serverContext;
+	private SSLContext clientContext;
+	private ExecutorService taskExecutor;
+
+	public static TlsConfig load(Properties prop) throws IOException {
+		TlsConfig config = new TlsConfig();
+		config.sessionCacheSize =
+		                          Integer.parseInt(prop.getProperty("tlsSessionCacheSize",
+		                                                            String.valueOf(config.sessionCacheSize)));
+		config.sessionTimeout =
+		                        Integer.parseInt(prop.getProperty("tlsSessionTimeout",
+		                                                          String.valueOf(config.sessionTimeout)));
+		boolean secureProxy = Boolean.parseBoolean(prop.getProperty("secureProxy", "false"));
+		boolean secureBackend = Boolean.parseBoolean(prop.getProperty("secureBackend", "false"));
+		if (!secureProxy && !secureBackend) {
+			return config;
+		}
+
+		if (System.getProperty(SERVER_TICKETS_PROPERTY) == null) {
+			System.setProperty(SERVER_TICKETS_PROPERTY, "true");
+		}
+		if (System.getProperty(CLIENT_TICKETS_PROPERTY) == null) {
+			System.setProperty(CLIENT_TICKETS_PROPERTY, "true");
+		}
+
+		try {
+			if (secureProxy) {
+				KeyStore keyStore = loadKeyStore(prop.getProperty("keystore"), prop.getProperty("keystorepassword"));
+				KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				kmf.init(keyStore, password(prop.getProperty("keystorepassword")));
+				config.serverContext = SSLContext.getInstance("TLS");
+				config.serverContext.init(kmf.getKeyManagers(), null, null);
+				configureSessions(config.serverContext.getServerSessionContext(), config);
+			}
+			if (secureBackend) {
+				// Without a truststore the JDK's default trusted certificates
+				// apply
+				TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+				String truststore = prop.getProperty("truststore");
+				tmf.init(truststore == null || truststore.isEmpty() ? null
+				                                                    : loadKeyStore(truststore,
+				                                                                   prop.getProperty("truststorepassword")));
+				config.clientContext = SSLContext.getInstance("TLS");
+				config.clientContext.init(null, tmf.getTrustManagers(), null);
+				configureSessions(config.clientContext.getClientSessionContext(), config);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IOException("TLS could not be set up", e);
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+		config.taskExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+		                                                   new ThreadFactory() {
+			                                                   public Thread newThread(Runnable r) {
+				                                                   Thread t = new Thread(r, "tls-task-" + count.getAndIncrement());
+				                                                   t.setDaemon(true);
+				                                                   return t;
+			                                                   }
+		                                                   });
+		return config;
+	}
+
+	public boolean isProxySecure() {
+		return serverContext != null;
+	}
+
+	public boolean isBackendSecure() {
+		return clientContext != null;
+	}
+
+	/**
+	 * @return an engine for a newly accepted client connection
+	 */
+	public SSLEngine createServerEngine() {
+		SSLEngine engine = serverContext.createSSLEngine();
+		engine.setUseClientMode(false);
+		return engine;
+	}
+
+	/**
+	 * @return an engine for a new backend connection. Engines for the same
+	 *         host and port share the session cache, and the backend
+	 *         certificate is checked against the host name.
+	 */
+	public SSLEngine createClientEngine(String host, int port) {
+		SSLEngine engine = clientContext.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		SSLParameters params = engine.getSSLParameters();
+		params.setEndpointIdentificationAlgorithm("HTTPS");
+		engine.setSSLParameters(params);
+		return engine;
+	}
+
+	/**
+	 * @return the threads the delegated handshake tasks run on
+	 */
+	public ExecutorService getTaskExecutor() {
+		return taskExecutor;
+	}
+
+	private static void configureSessions(SSLSessionContext sessions, TlsConfig config) {
+		sessions.setSessionCacheSize(config.sessionCacheSize);
+		sessions.setSessionTimeout(config.sessionTimeout);
+	}
+
+	private static KeyStore loadKeyStore(String location, String password) throws IOException,
+	                                                                        GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		InputStream in = new FileInputStream(location);
+		try {
+			keyStore.load(in, password(password));
+		} finally {
+			in.close();
+		}
+		return keyStore;
+	}
+
+	private static char[] password(String password) {
+		return password == null ? null : password.toCharArray();
+	}
+
+}
@@ -0,0 +1,202 @@
+package org.wso2.nio;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The backends requests are spread over, read from the <code>backends</code>
+ * entry of the config.properties file, or from <code>remoteHost</code> and
+ * <code>remotePort</code> for a single backend. The group is shared by all
+ * connecting ioReactors, which pick a backend per request with
+ * {@link #select()}, and for a hedged or retried request with
+ * {@link #selectOther(Backend)}:
+ *
+ * <ul>
+ * <li><code>round-robin</code> takes the backends in turn,</li>
+ * <li><code>least-outstanding</code> takes the backend with the fewest requests
+ * in flight,</li>
+ * <li><code>ewma</code> compares two backends picked at random and takes the
+ * one with the lower latency average, scaled by its requests in flight.</li>
+ * </ul>
+ *
+ * Backends whose health rules them out, as judged by the
+ * {@link HealthConfig} of the group, are skipped by every strategy. When
+ * none is left {@link #select()} returns <code>null</code>, and the request
+ * fails right away instead of waiting on a backend which is down. The group
+ * ejects no more than <code>outlierMaxEjectionPercent</code> of its backends
+ * at a time, but always at least one.
+ *
+ * @author ravindra
+ *
+ */
+public class UpstreamGroup {
+	public static final String ROUND_ROBIN = "round-robin";
+	public static final String LEAST_OUTSTANDING = "least-outstanding";
+	public static final String EWMA = "ewma";
+
+	private final Backend[] backends;
+	private final String strategy;
+	private final HealthConfig healthConfig;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	public UpstreamGroup(Backend[] backends, String strategy) {
+		this(backends, strategy, new HealthConfig());
+	}
+
+	public UpstreamGroup(Backend[] backends, String strategy, HealthConfig healthConfig) {
+		if (backends.length == 0) {
+			throw new IllegalArgumentException("At least one backend is required");
+		}
+		if (!ROUND_ROBIN.equals(strategy) && !LEAST_OUTSTANDING.equals(strategy) && !EWMA.equals(strategy)) {
+			throw new IllegalArgumentException("Unknown backendBalancing strategy: " + strategy);
+		}
+		this.backends = backends;
+		this.strategy = strategy;
+		this.healthConfig = healthConfig;
+		for (Backend backend : backends) {
+			backend.setHealth(this, healthConfig);
+		}
+	}
+
+	public static UpstreamGroup load(Properties prop) throws UnknownHostException {
+		String list = prop.getProperty("backends");
+		if (list == null || list.trim().isEmpty()) {
+			list = prop.getProperty("remoteHost") + ":" + prop.getProperty("remotePort");
+		}
+		String[] entries = list.split(",");
+		Backend[] backends = new Backend[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			String entry = entries[i].trim();
+			int colon = entry.lastIndexOf(':');
+			if (colon <= 0 || colon == entry.length() - 1) {
+				throw new IllegalArgumentException("Expected host:port in backends, got " + entry);
+			}
+			String host = entry.substring(0, colon);
+			int port = Integer.parseInt(entry.substring(colon + 1));
+			backends[i] = new Backend(i, host, port, new InetSocketAddress(InetAddress.getByName(host), port));
+		}
+		return new UpstreamGroup(backends, prop.getProperty("backendBalancing", ROUND_ROBIN), HealthConfig.load(prop));
+	}
+
+	public Backend[] getBackends() {
+		return backends;
+	}
+
+	public HealthConfig getHealthConfig() {
+		return healthConfig;
+	}
+
+	/**
+	 * Picks the backend for the next request. May be called from any thread.
+	 *
+	 * @return <code>null</code> if no backend may take a request
+	 */
+	public Backend select() {
+		long now = System.nanoTime();
+		if (backends.length == 1) {
+			return backends[0].tryAcquire(now) ? backends[0] : null;
+		}
+		Backend selected = null;
+		if (LEAST_OUTSTANDING.equals(strategy)) {
+			selected = leastOutstanding(now);
+		} else if (EWMA.equals(strategy)) {
+			selected = powerOfTwoChoices(now);
+		}
+		if (selected != null && selected.tryAcquire(now)) {
+			return selected;
+		}
+		return firstAvailable(now);
+	}
+
+	/**
+	 * Picks the backend for a second attempt at a request: the next backend
+	 * after the one the first attempt went to which may take it, or that same
+	 * backend if no other may. May be called from any thread.
+	 *
+	 * @return <code>null</code> if no backend may take a request
+	 */
+	public Backend selectOther(Backend previous) {
+		long now = System.nanoTime();
+		for (int i = 1; i < backends.length; i++) {
+			Backend candidate = backends[(previous.index + i) % backends.length];
+			if (candidate.tryAcquire(now)) {
+				return candidate;
+			}
+		}
+		return previous.tryAcquire(now) ? previous : null;
+	}
+
+	/**
+	 * Takes the backends in turn, skipping the ones which may not take a
+	 * request.
+	 */
+	private Backend firstAvailable(long now) {
+		// Mask the sign bit off so that the counter may wrap around
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % backends.length;
+		for (int i = 0; i < backends.length; i++) {
+			Backend candidate = backends[(start + i) % backends.length];
+			if (candidate.tryAcquire(now)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	private Backend leastOutstanding(long now) {
+		// Start at a different backend each time so that ties are spread
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % backends.length;
+		Backend selected = null;
+		for (int i = 0; i < backends.length; i++) {
+			Backend candidate = backends[(start + i) % backends.length];
+			if (candidate.isAvailable(now) &&
+			    (selected == null || candidate.getOutstanding() < selected.getOutstanding())) {
+				selected = candidate;
+			}
+		}
+		return selected;
+	}
+
+	private Backend powerOfTwoChoices(long now) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int a = random.nextInt(backends.length);
+		int b = random.nextInt(backends.length - 1);
+		if (b >= a) {
+			b++;
+		}
+		boolean availableA = backends[a].isAvailable(now);
+		boolean availableB = backends[b].isAvailable(now);
+		if (availableA && availableB) {
+			return backends[a].cost(now) <= backends[b].cost(now) ? backends[a] : backends[b];
+		}
+		return availableA ? backends[a] : availableB ? backends[b] : null;
+	}
+
+	/**
+	 * Ejects a backend which has failed too often in a row, unless too many
+	 * are ejected already.
+	 *
+	 * @return <code>true</code> if the backend has been ejected
+	 */
+	synchronized boolean eject(Backend backend, long now) {
+		if (backend.isEjected(now) || healthConfig.maxEjectionPercent == 0) {
+			return false;
+		}
+		int ejected = 0;
+		for (Backend b : backends) {
+			if (b.isEjected(now)) {
+				ejected++;
+			}
+		}
+		if (ejected >= Math.max(1, backends.length * healthConfig.maxEjectionPercent / 100)) {
+			return false;
+		}
+		backend.eject(now);
+		return true;
+	}
+
+}
@@ -0,0 +1,596 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves the proxy with <code>engine=virtual</code>: a thread per client
+ * connection doing blocking I/O, in place of the selector loops of the
+ * ioReactors. On a JVM with virtual threads (Java 21 and later) each
+ * connection gets a virtual thread, so parking one on a socket costs next to
+ * nothing; elsewhere the connections are served by platform threads from a
+ * cached pool. The JVM is asked reflectively, so the proxy still runs on
+ * Java 8.
+ *
+ * The thread of a client connection relays its requests one after the other:
+ * it takes a backend connection from the {@link BackendConnectionPool} of the
+ * backend the {@link UpstreamGroup} selects, writes the request head and body,
+ * then copies the response back to the client as it is read. The pools are
+ * the ones of the connecting ioReactors, shared between the threads under a
+ * lock, and a thread finding a pool full waits for a connection to be
+ * returned. Idle connections are evicted when the pool is next used;
+ * <code>backendPoolMinIdle</code> does not pre-start any.
+ *
+ * With <code>mode=tcp</code> every client connection is tunnelled to a backend
+ * connection of its own, one thread per direction.
+ *
+ * Requests and bytes are recorded in the same {@link Metrics} as with the
+ * ioReactors. TLS, the response cache and request coalescing are not
+ * available with this engine.
+ *
+ * @author ravindra
+ *
+ */
+public class VirtualThreadEngine implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(VirtualThreadEngine.class);
+
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	private final ServerSocketChannel serverChannel;
+	private final ExecutorService executor;
+	private final UpstreamGroup upstream;
+	private final boolean tunnel;
+	private final AdminServer adminServer;
+	private final Metrics metrics = Metrics.getDefault();
+
+	// Persistent connections to each backend, by backend index
+	private final SharedPool[] pools;
+
+	// Number of client connections currently served
+	private final AtomicInteger activeConnections = new AtomicInteger();
+
+	public VirtualThreadEngine(Properties prop) throws IOException {
+		final int localPort = Integer.parseInt(prop.getProperty("localPort"));
+		final String mode = prop.getProperty("mode", ReactorGroup.MODE_HTTP);
+		final int adminPort = Integer.parseInt(prop.getProperty("adminPort", "0"));
+
+		if (!ReactorGroup.MODE_HTTP.equals(mode) && !ReactorGroup.MODE_TCP.equals(mode)) {
+			throw new IllegalArgumentException("Unknown mode: " + mode);
+		}
+		if (Boolean.parseBoolean(prop.getProperty("secureProxy", "false")) ||
+		    Boolean.parseBoolean(prop.getProperty("secureBackend", "false"))) {
+			throw new IllegalArgumentException("secureProxy and secureBackend are not supported by engine=virtual");
+		}
+		if (Long.parseLong(prop.getProperty("responseCacheSize", "0")) > 0) {
+			throw new IllegalArgumentException("responseCacheSize is not supported by engine=virtual");
+		}
+		this.tunnel = ReactorGroup.MODE_TCP.equals(mode);
+
+		this.upstream = UpstreamGroup.load(prop);
+		ConnectionPoolConfig poolConfig = ConnectionPoolConfig.load(prop);
+		Backend[] backends = this.upstream.getBackends();
+		this.pools = new SharedPool[backends.length];
+		for (int i = 0; i < backends.length; i++) {
+			this.pools[i] = new SharedPool(new BackendConnectionPool(backends[i].address, poolConfig));
+		}
+
+		addGauges();
+		this.adminServer = adminPort > 0 ? new AdminServer(adminPort, this.metrics) : null;
+		this.executor = newExecutor();
+
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().bind(new InetSocketAddress((InetAddress) null, localPort));
+	}
+
+	/**
+	 * @return an executor running each task on a virtual thread of its own,
+	 *         or on a pooled platform thread if the JVM has no virtual threads
+	 */
+	static ExecutorService newExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			LOGGER.info("Virtual threads are not available, serving connections on platform threads.");
+		} catch (IllegalAccessException e) {
+			LOGGER.info("Virtual threads are not accessible, serving connections on platform threads.");
+		} catch (InvocationTargetException e) {
+			// A preview feature which has not been enabled
+			LOGGER.info("Virtual threads are not enabled, serving connections on platform threads.");
+		}
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread t = new Thread(runnable, "connection-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public void start() {
+		LOGGER.info("Starting the virtual thread engine in " + (this.tunnel ? "tcp" : "http") + " mode.");
+		Thread acceptor = new Thread(this, "acceptor-0");
+		acceptor.start();
+
+		try {
+			this.metrics.registerMBean();
+		} catch (JMException e) {
+			LOGGER.error("The metrics could not be registered with the platform MBean server.", e);
+		}
+		if (this.adminServer != null) {
+			LOGGER.info("Serving the metrics on port " + this.adminServer.getPort() + ".");
+			Thread t = new Thread(this.adminServer, "admin");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public int getPort() {
+		return this.serverChannel.socket().getLocalPort();
+	}
+
+	public int getActiveConnections() {
+		return this.activeConnections.get();
+	}
+
+	/**
+	 * Stops accepting connections. The connections being served carry on
+	 * until they are closed.
+	 */
+	public void close() throws IOException {
+		this.serverChannel.close();
+		this.executor.shutdown();
+		if (this.adminServer != null) {
+			this.adminServer.close();
+		}
+	}
+
+	public void run() {
+		while (this.serverChannel.isOpen()) {
+			final SocketChannel client;
+			try {
+				client = this.serverChannel.accept();
+			} catch (IOException e) {
+				if (this.serverChannel.isOpen()) {
+					LOGGER.error("Exception was thrown while accepting client connections.", e);
+				}
+				continue;
+			}
+			this.metrics.accepted.mark();
+			this.activeConnections.incrementAndGet();
+			this.executor.execute(new Runnable() {
+				public void run() {
+					try {
+						if (tunnel) {
+							serveTunnel(client);
+						} else {
+							serve(client);
+						}
+					} finally {
+						activeConnections.decrementAndGet();
+						closeQuietly(client);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Relays the requests of a client connection until either side closes it.
+	 */
+	private void serve(SocketChannel client) {
+		HttpMessageParser parser = new HttpMessageParser(true);
+		ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		in.flip();
+		try {
+			while (true) {
+				// Wait for the head of the next request, which may have been
+				// read along with the previous one
+				while (parser.parse(in) == HttpMessageParser.NEED_MORE) {
+					if (!this.readClient(client, in)) {
+						return;
+					}
+				}
+				if (!this.relay(client, parser, in)) {
+					return;
+				}
+				parser.reset();
+			}
+		} catch (IOException e) {
+			Throwable cause = e instanceof ClientException ? e.getCause() : e;
+			if (cause instanceof ProtocolException) {
+				LOGGER.error("Malformed request received from the client.", cause);
+				try {
+					writeFully(client, ByteBuffer.wrap(ErrorResponse.bytes(400, "Bad Request")),
+					           this.metrics.clientBytesWritten);
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Relays the request whose head has just been parsed and its response.
+	 *
+	 * @return <code>true</code> if the client connection stays open for the
+	 *         next request
+	 * @throws ClientException
+	 *             if the client sent a malformed request or its connection
+	 *             failed
+	 */
+	private boolean relay(SocketChannel client, HttpMessageParser parser, ByteBuffer in) throws IOException {
+		HttpMessageHead head = parser.getHead();
+		ByteBuffer headData = ByteBuffer.allocate(parser.getHeadLength());
+		parser.copyHead(headData);
+		headData.flip();
+
+		Backend backend = this.upstream.select();
+		if (backend == null) {
+			// Every backend is down, fail fast
+			LOGGER.error("No healthy backend is available.");
+			writeClient(client, ByteBuffer.wrap(ErrorResponse.bytes(503, "Service Unavailable")));
+			return false;
+		}
+		SharedPool pool = this.pools[backend.index];
+		long dispatchTime = System.nanoTime();
+		backend.requestStarted();
+		SocketChannel channel = null;
+		boolean responseStarted = false;
+		try {
+			channel = pool.lease(backend);
+
+			// Stream the request body, as far as it has been read, and then
+			// the rest of it as it arrives
+			writeFully(channel, headData, this.metrics.backendBytesWritten);
+			while (true) {
+				int start = in.position();
+				int result;
+				try {
+					result = parser.parse(in);
+				} catch (ProtocolException e) {
+					throw new ClientException(e);
+				}
+				if (in.position() > start) {
+					ByteBuffer chunk = in.duplicate();
+					chunk.position(start).limit(in.position());
+					writeFully(channel, chunk, this.metrics.backendBytesWritten);
+				}
+				if (result == HttpMessageParser.MESSAGE_COMPLETE) {
+					break;
+				}
+				if (!this.readClient(client, in)) {
+					// The request will never be complete
+					pool.discard(channel);
+					return false;
+				}
+			}
+
+			// Copy the response back as it is read
+			HttpMessageParser responseParser = new HttpMessageParser(false);
+			responseParser.setRequestMethod(head.method);
+			ByteBuffer out = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			boolean complete = false;
+			boolean close = false;
+			while (!complete) {
+				out.clear();
+				int numRead = channel.read(out);
+				if (numRead == -1) {
+					if (!responseParser.endOfStream()) {
+						throw new ProtocolException("The backend closed the connection before the response was complete");
+					}
+					// The response was delimited by the connection close
+					close = true;
+					break;
+				}
+				this.metrics.backendBytesRead.add(numRead);
+				if (!responseStarted) {
+					// Time to first byte, including any wait for a connection
+					responseStarted = true;
+					long timeToFirstByte = System.nanoTime() - dispatchTime;
+					backend.recordLatency(timeToFirstByte);
+					this.metrics.timeToFirstByte.record(timeToFirstByte);
+				}
+
+				// Find out whether the response ends within this read
+				out.flip();
+				while (!complete) {
+					int result = responseParser.parse(out);
+					if (result == HttpMessageParser.NEED_MORE) {
+						break;
+					}
+					if (result == HttpMessageParser.MESSAGE_COMPLETE) {
+						if (responseParser.getHead().isInterim()) {
+							// A 100 Continue or the like, the final response
+							// follows on the same connection
+							responseParser.reset();
+						} else {
+							complete = true;
+						}
+					}
+				}
+				ByteBuffer chunk = out.duplicate();
+				chunk.flip();
+				writeClient(client, chunk);
+			}
+
+			HttpMessageHead responseHead = responseParser.getHead();
+			close |= !responseHead.isKeepAlive() || responseHead.status == 101 || out.hasRemaining();
+			this.metrics.totalTime.record(System.nanoTime() - dispatchTime);
+			if (close) {
+				pool.discard(channel);
+			} else {
+				pool.release(channel);
+			}
+			return !close && head.isKeepAlive();
+		} catch (ClientException e) {
+			// The backend connection is in an unknown state
+			if (channel != null) {
+				pool.discard(channel);
+			}
+			throw e;
+		} catch (IOException e) {
+			LOGGER.error("No complete response received from the backend for " + head, e);
+			backend.recordFailure();
+			if (channel != null) {
+				pool.discard(channel);
+			}
+			if (!responseStarted) {
+				writeClient(client, ByteBuffer.wrap(ErrorResponse.bytes(502, "Bad Gateway")));
+			}
+			// A truncated response can only be signalled by closing the
+			// connection
+			return false;
+		} finally {
+			backend.requestFinished();
+		}
+	}
+
+	/**
+	 * Tunnels a client connection to a backend connection of its own.
+	 */
+	private void serveTunnel(SocketChannel client) {
+		Backend backend = this.upstream.select();
+		if (backend == null) {
+			LOGGER.error("No healthy backend is available, closing the client connection.");
+			return;
+		}
+		backend.requestStarted();
+		try {
+			final SocketChannel channel;
+			long connectStarted = System.nanoTime();
+			try {
+				channel = SocketChannel.open(backend.address);
+			} catch (IOException e) {
+				LOGGER.error("An Exception was thrown while connecting to the backend.", e);
+				backend.recordFailure();
+				return;
+			}
+			this.metrics.connectTime.record(System.nanoTime() - connectStarted);
+			backend.recordLatency(System.nanoTime() - connectStarted);
+			try {
+				// The backend to client direction on a thread of its own
+				final SocketChannel from = channel;
+				final SocketChannel to = client;
+				Future<?> downstream = this.executor.submit(new Runnable() {
+					public void run() {
+						pump(from, to, metrics.backendBytesRead, metrics.clientBytesWritten);
+					}
+				});
+				pump(client, channel, this.metrics.clientBytesRead, this.metrics.backendBytesWritten);
+				downstream.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				LOGGER.error("Exception was thrown while tunnelling to the backend.", e);
+			} finally {
+				closeQuietly(channel);
+			}
+		} finally {
+			backend.requestFinished();
+		}
+	}
+
+	/**
+	 * Copies one direction of a tunnel until its end of stream, which is
+	 * passed on as a half close.
+	 */
+	private static void pump(SocketChannel from, SocketChannel to, LongAdder bytesRead, LongAdder bytesWritten) {
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		try {
+			int numRead;
+			while ((numRead = from.read(buffer)) != -1) {
+				bytesRead.add(numRead);
+				buffer.flip();
+				writeFully(to, buffer, bytesWritten);
+				buffer.clear();
+			}
+			to.shutdownOutput();
+		} catch (IOException e) {
+			// Either side gone, take the other one down with it
+			closeQuietly(from);
+			closeQuietly(to);
+		}
+	}
+
+	/**
+	 * Reads more of the client's data behind what is left in
+	 * <code>in</code>.
+	 *
+	 * @return <code>false</code> at the end of stream
+	 * @throws ClientException
+	 *             if the connection failed or the data does not fit
+	 */
+	private boolean readClient(SocketChannel client, ByteBuffer in) throws ClientException {
+		in.compact();
+		try {
+			if (!in.hasRemaining()) {
+				throw new ClientException(new ProtocolException("The request head does not fit the read buffer"));
+			}
+			int numRead = client.read(in);
+			if (numRead == -1) {
+				return false;
+			}
+			this.metrics.clientBytesRead.add(numRead);
+			return true;
+		} catch (IOException e) {
+			throw new ClientException(e);
+		} finally {
+			in.flip();
+		}
+	}
+
+	private void writeClient(SocketChannel client, ByteBuffer data) throws ClientException {
+		try {
+			writeFully(client, data, this.metrics.clientBytesWritten);
+		} catch (IOException e) {
+			throw new ClientException(e);
+		}
+	}
+
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer, LongAdder bytesWritten)
+	        throws IOException {
+		while (buffer.hasRemaining()) {
+			bytesWritten.add(channel.write(buffer));
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private void addGauges() {
+		this.metrics.addGauge("active_connections{reactor=\"virtual\"}", new Metrics.Gauge() {
+			public long getValue() {
+				return activeConnections.get();
+			}
+		});
+		for (final Backend backend : this.upstream.getBackends()) {
+			this.metrics.addGauge("backend_outstanding_requests{backend=\"" + backend + "\"}", new Metrics.Gauge() {
+				public long getValue() {
+					return backend.getOutstanding();
+				}
+			});
+		}
+	}
+
+	/**
+	 * A {@link BackendConnectionPool} shared by the connection threads. Idle
+	 * connections are kept in non-blocking mode, which the pool needs to
+	 * probe them, and switched to blocking mode while leased.
+	 */
+	private final class SharedPool {
+		private final BackendConnectionPool pool;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition returned = this.lock.newCondition();
+
+		SharedPool(BackendConnectionPool pool) {
+			this.pool = pool;
+		}
+
+		/**
+		 * @return a connection in blocking mode, idle or newly opened
+		 */
+		SocketChannel lease(Backend backend) throws IOException {
+			this.lock.lock();
+			try {
+				while (true) {
+					this.pool.evictExpired(System.currentTimeMillis());
+					SocketChannel channel = this.pool.lease();
+					if (channel != null) {
+						channel.configureBlocking(true);
+						return channel;
+					}
+					if (this.pool.reserve()) {
+						break;
+					}
+					this.returned.await();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a backend connection");
+			} finally {
+				this.lock.unlock();
+			}
+
+			long connectStarted = System.nanoTime();
+			SocketChannel channel;
+			try {
+				channel = SocketChannel.open(backend.address);
+			} catch (IOException e) {
+				this.discard(null);
+				throw e;
+			}
+			metrics.connectTime.record(System.nanoTime() - connectStarted);
+			return channel;
+		}
+
+		void release(SocketChannel channel) {
+			try {
+				channel.configureBlocking(false);
+			} catch (IOException e) {
+				this.discard(channel);
+				return;
+			}
+			this.lock.lock();
+			try {
+				this.pool.release(channel);
+				this.returned.signal();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Drops a connection, or a reservation which could not be turned into
+		 * a connection.
+		 */
+		void discard(SocketChannel channel) {
+			this.lock.lock();
+			try {
+				this.pool.discard(channel);
+				this.returned.signal();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * A failure on the client side of an exchange, which says nothing about
+	 * the backend.
+	 */
+	private static class ClientException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ClientException(IOException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+
+}
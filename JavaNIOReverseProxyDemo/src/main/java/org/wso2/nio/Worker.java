@@ -1,84 +1,136 @@
 package org.wso2.nio;
 
-import java.io.IOException;
-import java.net.UnknownHostException;
-import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
-import java.util.List;
-
-import org.apache.log4j.Logger;
-
 /**
- * Worker thread which processes client requests at the Listening ioReactor
- * level.
+ * Hands client requests over from the Listening ioReactor to the Connecting
+ * ioReactor. The handoff never blocks: the request is queued at the
+ * connecting ioReactor together with a {@link RspHandler} which is called
+ * back with the response, so any number of requests can be in flight at once.
+ * The request body follows the head in chunks as it is read from the client.
+ * 
+ * With a {@link ResponseCache} the cache is looked up first, and a hit is
+ * answered by the listening ioReactor without involving the backend. With a
+ * {@link RequestCoalescer} a request identical to one already in flight waits
+ * for the response to that one instead of being sent again.
+ * 
+ * With an {@link AdmissionControl} a request it turns away is answered right
+ * away by the listening ioReactor, and an admitted request holds its place
+ * until its {@link RspHandler} is done with it.
  * 
  * @author ravindra
  *
  */
-public class Worker implements Runnable {
-	private static final Logger LOGGER = Logger.getLogger(Worker.class);
-	private List<ServerDataEvent> queue = new LinkedList<ServerDataEvent>();
-
+public class Worker {
 	private final ConnectingIOReactor client;
+	private final ResponseCache cache;
+	private final RequestCoalescer coalescer;
+	private final AdmissionControl admission;
 
 	public Worker(ConnectingIOReactor connectingIOReactor) {
-		this.client = connectingIOReactor;
-
-		Thread t = new Thread(client);
-		t.setDaemon(true);
-		t.start();
+		this(connectingIOReactor, null, null, null);
 	}
 
-	public void processData(ListeningIOReactor server, SocketChannel socket, byte[] data, int count) {
-		LOGGER.info("Request Processing ...");
-		byte[] dataCopy = new byte[count];
-		System.arraycopy(data, 0, dataCopy, 0, count);
-		synchronized (queue) {
-			queue.add(new ServerDataEvent(server, socket, dataCopy));
-			queue.notify();
-		}
+	public Worker(ConnectingIOReactor connectingIOReactor, ResponseCache cache, RequestCoalescer coalescer) {
+		this(connectingIOReactor, cache, coalescer, null);
 	}
 
-	public void run() {
-		ServerDataEvent dataEvent;
+	public Worker(ConnectingIOReactor connectingIOReactor, ResponseCache cache, RequestCoalescer coalescer,
+	              AdmissionControl admission) {
+		this.client = connectingIOReactor;
+		this.cache = cache;
+		this.coalescer = coalescer;
+		this.admission = admission;
+	}
 
-		while (true) {
-			// Wait for data to become available
-			synchronized (queue) {
-				while (queue.isEmpty()) {
-					try {
-						queue.wait();
-					} catch (InterruptedException e) {
-					}
-				}
-				dataEvent = (ServerDataEvent) queue.remove(0);
+	/**
+	 * Starts relaying a request whose head has been received.
+	 * 
+	 * @return the request the body is to be streamed into, or
+	 *         <code>null</code> if the request has been turned away, answered
+	 *         from the cache or waits on an identical one
+	 */
+	public BackendRequest processData(ListeningIOReactor server, Connection connection, HttpMessageHead head,
+	                                  PooledBuffer headData) {
+		AdmissionControl permit = null;
+		if (admission != null) {
+			int status = admission.admit(connection);
+			if (status != AdmissionControl.ADMITTED) {
+				headData.release();
+				server.reject(connection, head, status);
+				return null;
 			}
+			permit = admission.isLimited() ? admission : null;
+		}
 
-			// Return to sender
-			// LOGGER.info("Returning the response back to the client.");
-			// dataEvent.server.send(dataEvent.socket, dataEvent.data);
+		if (cache != null && cache.serve(server, connection, head)) {
+			headData.release();
+			if (permit != null) {
+				permit.release(-1);
+			}
+			return null;
+		}
 
-			// Send the request data to the connecting ioReactor.
-			sendRequestToBackend(dataEvent.data, dataEvent.socket, dataEvent.server);
+		RspHandler handler = new RspHandler(connection, server, head, cache, permit);
+		if (coalescer != null) {
+			if (coalescer.join(handler, head, headData, this)) {
+				return null;
+			}
+			RequestCoalescer.Flight flight = coalescer.lead(head);
+			if (flight != null) {
+				handler.lead(coalescer, flight);
+			}
 		}
 
+		// Send the request data to the connecting ioReactor.
+		BackendRequest request = new BackendRequest(handler);
+		if (client.isHedging() && RetryConfig.isHedgeable(head)) {
+			request.replay = headData.retainedSlice(headData.buffer().position(), headData.buffer().limit());
+		}
+		request.data.add(headData, null);
+		client.send(request);
+		return request;
 	}
 
-	private void sendRequestToBackend(final byte[] data, final SocketChannel socket,
-	                                  final ListeningIOReactor listeningIOReactor) {
-
-		try {
-			LOGGER.info("Sending the request to the Connecting side of the Proxy service.");
+	/**
+	 * Relays the next chunk of a request body. The chunk is released once it
+	 * has been written to the backend.
+	 * 
+	 * @return <code>false</code> if the backend connection has too much data
+	 *         queued and reading from the client has to pause until
+	 *         <code>onDrained</code> is run
+	 */
+	public boolean processBody(BackendRequest request, PooledBuffer chunk, Runnable onDrained) {
+		boolean accepted = request.data.add(chunk, onDrained);
+		client.send(request);
+		return accepted;
+	}
 
-			RspHandler handler = new RspHandler(socket, listeningIOReactor);
-			client.send(data, handler);
-			handler.waitForResponse();
-		} catch (UnknownHostException e) {
-			LOGGER.error("Unknown Host while sending the request to the backend", e);
-		} catch (IOException e) {
-			LOGGER.error("IOException was thrown while sending the request to the backend", e);
+	public void endOfRequest(BackendRequest request) {
+		if (request == null) {
+			// Answered from the cache, or by the flight it has joined
+			return;
 		}
+		request.data.end();
+		client.send(request);
+	}
+
+	/**
+	 * Sends a request without a body to the backend on its own, after its
+	 * flight has turned out to have a response it may not share. May be
+	 * called from any thread.
+	 */
+	void forward(RspHandler handler, PooledBuffer headData) {
+		BackendRequest request = new BackendRequest(handler);
+		request.data.add(headData, null);
+		request.data.end();
+		client.send(request);
+	}
 
+	/**
+	 * Gives up on a request whose client connection has been closed.
+	 */
+	public void abort(BackendRequest request) {
+		request.aborted = true;
+		client.send(request);
 	}
 
 }
@@ -0,0 +1,99 @@
+package org.wso2.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link AccessLog} and {@link AccessLogReader}.
+ */
+public class AccessLogTest extends TestCase {
+	private File file;
+
+	protected void setUp() throws IOException {
+		file = File.createTempFile("access", ".log");
+		file.delete();
+	}
+
+	protected void tearDown() {
+		file.delete();
+	}
+
+	public void testRecordsAreRenderedAsText() throws IOException {
+		AccessLog log = new AccessLog(file, 16);
+		assertTrue(log.log(new InetSocketAddress("127.0.0.1", 50312), "GET", "/index.html", 200, 5120, 1, 1204000,
+		                   3877000, 0));
+		assertTrue(log.log(new InetSocketAddress("::1", 8080), "BREW", "/pot", 504, 0, -1, -1, 2000000,
+		                   AccessLog.FLAG_TIMED_OUT | AccessLog.FLAG_COALESCED));
+		assertEquals(2, log.drain());
+		log.close();
+		log.run();
+
+		String[] lines = print().split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0], lines[0].endsWith(" 127.0.0.1:50312 \"GET /index.html\" 200 5120 backend=1" +
+		                                       " ttfb=1.204ms total=3.877ms"));
+		assertTrue(lines[1], lines[1].endsWith(":1]:8080 \"OTHER /pot\" 504 0 backend=- ttfb=- total=2.000ms" +
+		                                       " coalesced timed-out"));
+	}
+
+	public void testLongUriIsTruncated() throws IOException {
+		StringBuilder uri = new StringBuilder("/");
+		while (uri.length() < 200) {
+			uri.append('a');
+		}
+		AccessLog log = new AccessLog(file, 1);
+		log.log(null, "GET", uri.toString(), 200, 0, 0, 0, 0, AccessLog.FLAG_CACHE_HIT);
+		log.close();
+		log.run();
+
+		String line = print().trim();
+		assertTrue(line, line.contains(" \"GET " + uri.substring(0, AccessLog.MAX_URI_LENGTH) + "...\" 200 "));
+		assertTrue(line, line.endsWith(" cache-hit"));
+	}
+
+	public void testRecordsAreDroppedWhenTheWriterFallsBehind() throws IOException {
+		AccessLog log = new AccessLog(file, 3);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(log.log(null, "GET", "/" + i, 200, 0, 0, 0, 0, 0));
+		}
+		assertFalse(log.log(null, "GET", "/4", 200, 0, 0, 0, 0, 0));
+		assertEquals(1, log.getDroppedCount());
+
+		// Draining makes room again
+		assertEquals(4, log.drain());
+		assertTrue(log.log(null, "GET", "/5", 200, 0, 0, 0, 0, 0));
+		log.close();
+		log.run();
+		assertEquals(5, print().split("\n").length);
+	}
+
+	public void testReopenedFileIsAppendedTo() throws IOException {
+		AccessLog log = new AccessLog(file, 4);
+		log.log(null, "GET", "/first", 200, 0, 0, 0, 0, 0);
+		log.close();
+		log.run();
+
+		log = new AccessLog(file, 4);
+		log.log(null, "GET", "/second", 200, 0, 0, 0, 0, 0);
+		log.close();
+		log.run();
+
+		String[] lines = print().split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[1], lines[1].contains("/second"));
+	}
+
+	private String print() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrintStream ps = new PrintStream(out, true, "ISO-8859-1");
+		AccessLogReader.print(file.getPath(), ps);
+		return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+}
@@ -0,0 +1,122 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link AdmissionControl} and the answer the listening
+ * ioReactor gives to a request it turns away.
+ */
+public class AdmissionControlTest extends TestCase {
+	private BufferPool pool = new BufferPool(true);
+	private ListeningIOReactor server;
+	private ServerSocketChannel listener;
+	private SocketChannel peer;
+	private Connection client;
+
+	protected void setUp() throws IOException {
+		server = new ListeningIOReactor(null);
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		peer = SocketChannel.open(listener.socket().getLocalSocketAddress());
+		client = new Connection(listener.accept());
+		client.outbound = new OutboundQueue();
+	}
+
+	protected void tearDown() throws IOException {
+		client.outbound.clear();
+		client.channel.close();
+		peer.close();
+		listener.close();
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	public void testClientOverItsRateIsToldToRetryLater() throws IOException {
+		AdmissionControl admission = new AdmissionControl(0, null, new ClientRateLimiter(0.001, 2));
+		Worker worker = new Worker(null, null, null, admission);
+		InetAddress address = ((InetSocketAddress) client.channel.socket().getRemoteSocketAddress()).getAddress();
+		assertEquals(AdmissionControl.ADMITTED, admission.admit(address, 0));
+		assertEquals(AdmissionControl.ADMITTED, admission.admit(address, 0));
+
+		// The burst is used up, the next request is answered without going
+		// anywhere near a backend
+		assertNull(worker.processData(server, client, request(), pool.wrap(new byte[16])));
+		String response = drain();
+		assertTrue(response, response.startsWith("HTTP/1.1 429 Too Many Requests\r\n"));
+		assertTrue(response, response.contains("\r\nRetry-After: 1\r\n"));
+		assertEquals(1, admission.getRejectedRateCount());
+
+		// Another client is not held up by this one
+		assertEquals(AdmissionControl.ADMITTED, admission.admit(InetAddress.getByName("10.0.0.1"), 0));
+	}
+
+	public void testManyClientsKeepTheRateLimiterBounded() throws IOException {
+		ClientRateLimiter rateLimiter = new ClientRateLimiter(0.001, 1, 16);
+		AdmissionControl admission = new AdmissionControl(0, null, rateLimiter);
+		byte[] ip = { 10, 0, 0, 0 };
+		int admitted = 0;
+		for (int i = 0; i < 1000; i++) {
+			ip[2] = (byte) (i >> 8);
+			ip[3] = (byte) i;
+			if (admission.admit(InetAddress.getByAddress(ip), 0) == AdmissionControl.ADMITTED) {
+				admitted++;
+			}
+		}
+		assertEquals(16, rateLimiter.size());
+
+		// The addresses which are not tracked share a bucket rather than
+		// getting a burst each
+		assertEquals(17, admitted);
+		assertEquals(1000 - 17, admission.getRejectedRateCount());
+	}
+
+	private String drain() throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		client.outbound.writeTo(new GatheringByteChannel() {
+			public long write(ByteBuffer[] srcs, int offset, int length) {
+				long total = 0;
+				for (int i = offset; i < offset + length; i++) {
+					while (srcs[i].hasRemaining()) {
+						sb.append((char) (srcs[i].get() & 0xff));
+						total++;
+					}
+				}
+				return total;
+			}
+
+			public long write(ByteBuffer[] srcs) {
+				return write(srcs, 0, srcs.length);
+			}
+
+			public int write(ByteBuffer src) {
+				return (int) write(new ByteBuffer[] { src }, 0, 1);
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() {
+			}
+		}, new ByteBuffer[8]);
+		return sb.toString();
+	}
+
+	private static HttpMessageHead request() {
+		HttpMessageHead head = new HttpMessageHead(true);
+		head.method = "GET";
+		head.uri = "/a";
+		head.version = HttpMessageHead.HTTP_1_1;
+		head.addHeader("Host", "example.com");
+		return head;
+	}
+
+}
@@ -0,0 +1,159 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link BackendConnectionPool}, run against a loopback
+ * server socket.
+ */
+public class BackendConnectionPoolTest extends TestCase {
+	private ServerSocketChannel server;
+	private List<SocketChannel> accepted = new ArrayList<SocketChannel>();
+	private ConnectionPoolConfig config;
+	private BackendConnectionPool pool;
+
+	protected void setUp() throws Exception {
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		config = new ConnectionPoolConfig();
+		config.maxTotal = 2;
+		config.minIdle = 1;
+		config.maxIdle = 1;
+		config.idleTimeout = 100;
+		pool = new BackendConnectionPool((InetSocketAddress) server.getLocalAddress(), config);
+	}
+
+	protected void tearDown() throws Exception {
+		for (SocketChannel channel : accepted) {
+			channel.close();
+		}
+		server.close();
+	}
+
+	public void testReserveIsBoundedByMaxTotal() throws IOException {
+		assertTrue(pool.reserve());
+		assertTrue(pool.reserve());
+		assertFalse(pool.reserve());
+
+		pool.discard(null);
+		assertTrue(pool.reserve());
+	}
+
+	public void testReleasedConnectionIsLeasedAgain() throws IOException {
+		SocketChannel channel = connect();
+		assertTrue(pool.release(channel));
+		assertEquals(1, pool.getIdleCount());
+
+		assertSame(channel, pool.lease());
+		assertNull(pool.lease());
+	}
+
+	public void testReleaseBeyondMaxIdleCloses() throws IOException {
+		SocketChannel first = connect();
+		SocketChannel second = connect();
+		assertTrue(pool.release(first));
+		assertFalse(pool.release(second));
+		assertFalse(second.isOpen());
+		assertEquals(1, pool.getTotalCount());
+	}
+
+	public void testConnectionClosedByBackendIsNotLeased() throws Exception {
+		SocketChannel channel = connect();
+		pool.release(channel);
+
+		// Close the backend side and give the FIN time to arrive
+		accepted.get(0).close();
+		Thread.sleep(50);
+
+		assertNull(pool.lease());
+		assertFalse(channel.isOpen());
+		assertEquals(0, pool.getTotalCount());
+	}
+
+	public void testEvictionKeepsMinIdle() throws Exception {
+		config.maxIdle = 2;
+		SocketChannel first = connect();
+		SocketChannel second = connect();
+		pool.release(first);
+		pool.release(second);
+
+		pool.evictExpired(System.currentTimeMillis());
+		assertEquals(2, pool.getIdleCount());
+
+		pool.evictExpired(System.currentTimeMillis() + config.idleTimeout);
+		assertEquals(1, pool.getIdleCount());
+		// The least recently returned connection goes first
+		assertFalse(first.isOpen());
+		assertTrue(second.isOpen());
+	}
+
+	public void testConnectionsAreCheckedAndClosedThroughTheChannels() throws Exception {
+		final List<SocketChannel> closed = new ArrayList<SocketChannel>();
+		final List<SocketChannel> stale = new ArrayList<SocketChannel>();
+		config.maxIdle = 2;
+		config.minIdle = 0;
+		pool = new BackendConnectionPool(pool.getAddress(), config, new BackendConnectionPool.Channels() {
+			public boolean isStale(SocketChannel channel) {
+				return stale.contains(channel);
+			}
+
+			public void close(SocketChannel channel) {
+				closed.add(channel);
+			}
+		});
+		SocketChannel first = connect();
+		SocketChannel second = connect();
+		pool.release(first);
+		pool.release(second);
+
+		stale.add(second);
+		assertSame(first, pool.lease());
+		assertEquals(1, closed.size());
+		assertSame(second, closed.get(0));
+
+		pool.release(first);
+		pool.evictExpired(System.currentTimeMillis() + config.idleTimeout);
+		assertEquals(2, closed.size());
+		assertSame(first, closed.get(1));
+		assertEquals(0, pool.getTotalCount());
+		first.close();
+		second.close();
+	}
+
+	public void testWaitersAreServedInOrder() {
+		BackendRequest first = new BackendRequest(null);
+		BackendRequest second = new BackendRequest(null);
+		pool.addWaiter(first);
+		pool.addWaiter(second);
+
+		assertSame(first, pool.pollWaiter());
+		assertSame(second, pool.pollWaiter());
+		assertFalse(pool.hasWaiters());
+	}
+
+	public void testWaitersAreBounded() {
+		config.maxWaiters = 1;
+		assertTrue(pool.addWaiter(new BackendRequest(null)));
+		assertFalse(pool.addWaiter(new BackendRequest(null)));
+
+		pool.pollWaiter();
+		assertTrue(pool.addWaiter(new BackendRequest(null)));
+	}
+
+	private SocketChannel connect() throws IOException {
+		assertTrue(pool.reserve());
+		SocketChannel channel = SocketChannel.open(pool.getAddress());
+		channel.configureBlocking(false);
+		accepted.add(server.accept());
+		return channel;
+	}
+
+}
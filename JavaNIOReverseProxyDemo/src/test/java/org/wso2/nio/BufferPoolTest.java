@@ -0,0 +1,99 @@
+package org.wso2.nio;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link BufferPool} and {@link PooledBuffer}, run in leak
+ * detection mode.
+ */
+public class BufferPoolTest extends TestCase {
+	private BufferPool pool = new BufferPool(true);
+
+	public void testBuffersAreSizeClassedAndDirect() {
+		PooledBuffer small = pool.acquire(10);
+		PooledBuffer medium = pool.acquire(5000);
+		PooledBuffer large = pool.acquire(BufferPool.MAX_SIZE + 1);
+
+		assertEquals(BufferPool.MIN_SIZE, small.buffer().capacity());
+		assertEquals(8192, medium.buffer().capacity());
+		assertEquals(BufferPool.MAX_SIZE + 1, large.buffer().capacity());
+		assertTrue(small.buffer().isDirect());
+
+		small.release();
+		medium.release();
+		large.release();
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	public void testReleasedBufferIsReused() {
+		PooledBuffer buffer = pool.acquire(1000);
+		buffer.buffer().put((byte) 1);
+		buffer.release();
+
+		PooledBuffer again = pool.acquire(1000);
+		assertSame(buffer, again);
+		assertEquals(0, again.buffer().position());
+		assertEquals(1, again.refCnt());
+		again.release();
+	}
+
+	public void testSliceKeepsBufferAlive() {
+		PooledBuffer buffer = pool.wrap("hello world".getBytes());
+		PooledBuffer slice = buffer.retainedSlice(6, 11);
+		buffer.release();
+		assertEquals(1, pool.getOutstandingCount());
+
+		byte[] data = new byte[slice.buffer().remaining()];
+		slice.buffer().get(data);
+		assertEquals("world", new String(data));
+
+		slice.release();
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	public void testDoubleReleaseFails() {
+		PooledBuffer buffer = pool.acquire(100);
+		buffer.release();
+		try {
+			buffer.release();
+			fail("Released twice");
+		} catch (IllegalStateException expected) {
+		}
+	}
+
+	public void testLeaksAreReportedWithTheAcquiringStack() {
+		PooledBuffer buffer = pool.acquire(100);
+		assertEquals(1, pool.getLeaks().size());
+		StackTraceElement caller = pool.getLeaks().get(0).getStackTrace()[1];
+		assertEquals("testLeaksAreReportedWithTheAcquiringStack", caller.getMethodName());
+		buffer.release();
+		assertTrue(pool.getLeaks().isEmpty());
+	}
+
+	public void testBuffersReleasedOnAnotherThreadAreReused() throws InterruptedException {
+		final PooledBuffer[] buffers = new PooledBuffer[200];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = pool.acquire(1000);
+		}
+		Thread releaser = new Thread() {
+			public void run() {
+				for (PooledBuffer buffer : buffers) {
+					buffer.release();
+				}
+			}
+		};
+		releaser.start();
+		releaser.join();
+
+		// The releasing thread's cache overflowed into the shared stash
+		PooledBuffer buffer = pool.acquire(1000);
+		boolean reused = false;
+		for (PooledBuffer released : buffers) {
+			reused |= released == buffer;
+		}
+		assertTrue(reused);
+		buffer.release();
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+}
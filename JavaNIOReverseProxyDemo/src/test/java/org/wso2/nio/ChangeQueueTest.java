@@ -0,0 +1,84 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ChangeQueue}.
+ */
+public class ChangeQueueTest extends TestCase {
+	private Selector selector;
+	private ChangeQueue<Integer> queue;
+
+	protected void setUp() throws Exception {
+		selector = Selector.open();
+		queue = new ChangeQueue<Integer>(selector);
+	}
+
+	protected void tearDown() throws Exception {
+		selector.close();
+	}
+
+	public void testChangesAreTakenInOrder() {
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+
+		queue.add(1);
+		queue.add(2);
+		assertFalse(queue.isEmpty());
+		assertEquals(Integer.valueOf(1), queue.poll());
+		assertEquals(Integer.valueOf(2), queue.poll());
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	public void testAddWakesUpTheSelector() throws IOException {
+		queue.beforeDrain();
+		queue.add(1);
+		queue.add(2);
+		// The pending wakeup makes the select return right away
+		assertEquals(0, selector.select(10000));
+
+		queue.beforeDrain();
+		queue.add(3);
+		assertEquals(0, selector.select(10000));
+	}
+
+	public void testConcurrentProducers() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 10000;
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int base = p * perProducer;
+			threads[p] = new Thread() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						queue.add(base + i);
+					}
+				}
+			};
+			threads[p].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Every change arrives once, in order per producer
+		int[] last = new int[producers];
+		for (int p = 0; p < producers; p++) {
+			last[p] = p * perProducer - 1;
+		}
+		Integer change;
+		int count = 0;
+		while ((change = queue.poll()) != null) {
+			int p = change / perProducer;
+			assertEquals(last[p] + 1, change.intValue());
+			last[p] = change;
+			count++;
+		}
+		assertEquals(producers * perProducer, count);
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.wso2.nio;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest extends TestCase {
+	private static final long MS = 1000000L;
+
+	private HealthConfig config = new HealthConfig();
+
+	protected void setUp() {
+		config.minRequests = 4;
+		config.errorRate = 50;
+		config.window = 1000;
+		config.openTime = 100;
+	}
+
+	public void testOpensOnceTheErrorRateIsReached() {
+		CircuitBreaker breaker = new CircuitBreaker(config);
+		breaker.onSuccess(MS, 0);
+		breaker.onFailure(0);
+		breaker.onSuccess(MS, 0);
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+
+		// Two of four requests have failed
+		breaker.onFailure(MS);
+		assertEquals(CircuitBreaker.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest(50 * MS));
+		assertFalse(breaker.isAvailable(50 * MS));
+	}
+
+	public void testOldSamplesLeaveTheWindow() {
+		CircuitBreaker breaker = new CircuitBreaker(config);
+		breaker.onFailure(0);
+		breaker.onFailure(0);
+		breaker.onFailure(0);
+		// A second later only this one counts
+		breaker.onFailure(1000 * MS);
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+	}
+
+	public void testHalfOpenCircuitLetsOneTrialThrough() {
+		CircuitBreaker breaker = new CircuitBreaker(config);
+		for (int i = 0; i < 4; i++) {
+			breaker.onFailure(0);
+		}
+		assertTrue(breaker.isAvailable(100 * MS));
+		assertTrue(breaker.allowRequest(100 * MS));
+		assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest(150 * MS));
+
+		// The trial fails, so the circuit opens again
+		breaker.onFailure(160 * MS);
+		assertEquals(CircuitBreaker.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest(200 * MS));
+
+		assertTrue(breaker.allowRequest(260 * MS));
+		breaker.onSuccess(MS, 270 * MS);
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest(270 * MS));
+	}
+
+	public void testLostTrialIsReplaced() {
+		CircuitBreaker breaker = new CircuitBreaker(config);
+		for (int i = 0; i < 4; i++) {
+			breaker.onFailure(0);
+		}
+		assertTrue(breaker.allowRequest(100 * MS));
+		assertFalse(breaker.allowRequest(199 * MS));
+		assertTrue(breaker.allowRequest(200 * MS));
+	}
+
+	public void testOpensOnSlowResponses() {
+		config.errorRate = 0;
+		config.slowCallTime = 100;
+		config.slowCallRate = 75;
+		CircuitBreaker breaker = new CircuitBreaker(config);
+		breaker.onSuccess(MS, 0);
+		breaker.onSuccess(200 * MS, 0);
+		breaker.onSuccess(200 * MS, 0);
+		breaker.onFailure(0);
+		for (int i = 0; i < 3; i++) {
+			breaker.onSuccess(200 * MS, 0);
+		}
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+
+		// Six of eight responses have been slow
+		breaker.onSuccess(200 * MS, 0);
+		assertEquals(CircuitBreaker.OPEN, breaker.getState());
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.wso2.nio;
+
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ClientRateLimiter}.
+ */
+public class ClientRateLimiterTest extends TestCase {
+	private static final long SECOND = 1000000000L;
+
+	public void testBurstThenRate() throws Exception {
+		ClientRateLimiter limiter = new ClientRateLimiter(2, 3);
+		InetAddress client = InetAddress.getByName("10.0.0.1");
+		for (int i = 0; i < 3; i++) {
+			assertTrue(limiter.tryAcquire(client, 0));
+		}
+		assertFalse(limiter.tryAcquire(client, 0));
+
+		// Half a second buys one more request
+		assertTrue(limiter.tryAcquire(client, SECOND / 2));
+		assertFalse(limiter.tryAcquire(client, SECOND / 2));
+	}
+
+	public void testClientsHaveBucketsOfTheirOwn() throws Exception {
+		ClientRateLimiter limiter = new ClientRateLimiter(1, 1);
+		assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.0.1"), 0));
+		assertFalse(limiter.tryAcquire(InetAddress.getByName("10.0.0.1"), 0));
+		assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.0.2"), 0));
+		assertEquals(2, limiter.size());
+	}
+
+	public void testAddressesBeyondTheMaximumShareABucket() throws Exception {
+		ClientRateLimiter limiter = new ClientRateLimiter(1, 1, 4);
+		for (int i = 1; i <= 4; i++) {
+			assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.0." + i), 0));
+		}
+
+		// None of the buckets is full again, so the next addresses are not
+		// tracked, and get one token between them
+		assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.1.1"), 0));
+		assertFalse(limiter.tryAcquire(InetAddress.getByName("10.0.1.2"), 0));
+		assertEquals(4, limiter.size());
+
+		// Once they are full, a sweep makes room
+		assertTrue(limiter.tryAcquire(InetAddress.getByName("10.0.1.3"), 2 * SECOND));
+		assertTrue(limiter.size() <= 4);
+		assertFalse(limiter.tryAcquire(InetAddress.getByName("10.0.1.3"), 2 * SECOND));
+	}
+
+	public void testMapStaysBoundedWithManyAddresses() throws Exception {
+		ClientRateLimiter limiter = new ClientRateLimiter(1, 1);
+		byte[] ip = new byte[4];
+		ip[0] = 10;
+		for (int i = 0; i < ClientRateLimiter.MAX_CLIENTS + 1000; i++) {
+			ip[1] = (byte) (i >> 16);
+			ip[2] = (byte) (i >> 8);
+			ip[3] = (byte) i;
+			limiter.tryAcquire(InetAddress.getByAddress(ip), 0);
+		}
+		assertEquals(ClientRateLimiter.MAX_CLIENTS, limiter.size());
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.wso2.nio;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ConcurrencyLimiter}.
+ */
+public class ConcurrencyLimiterTest extends TestCase {
+	private static final long MS = 1000000L;
+	private static final long WINDOW = ConcurrencyLimiter.SAMPLE_WINDOW_NANOS;
+
+	private long now = System.nanoTime();
+
+	public void testFixedLimit() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		assertEquals(2, limiter.getInFlight());
+
+		limiter.release(10 * MS);
+		assertTrue(limiter.tryAcquire());
+		assertEquals(2, limiter.getLimit());
+	}
+
+	public void testLimitGrowsWhileTheLatencyHolds() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 8, 100);
+		for (int i = 0; i < 10; i++) {
+			sample(limiter, 10 * MS, limiter.getLimit());
+		}
+		assertTrue(limiter.getLimit() > 20);
+	}
+
+	public void testLimitComesDownAsTheLatencyGrows() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 8, 100);
+		for (int i = 0; i < 5; i++) {
+			sample(limiter, 10 * MS, 20);
+		}
+		int limit = limiter.getLimit();
+		sample(limiter, 40 * MS, limit);
+		assertTrue(limiter.getLimit() < limit);
+
+		for (int i = 0; i < 50; i++) {
+			sample(limiter, 40 * MS, limiter.getLimit());
+		}
+		assertEquals(8, limiter.getLimit());
+	}
+
+	public void testLimitStaysWhileLittleOfItIsUsed() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 8, 100);
+		for (int i = 0; i < 10; i++) {
+			sample(limiter, 10 * MS, 2);
+		}
+		assertEquals(20, limiter.getLimit());
+	}
+
+	/**
+	 * Closes a window holding a single sample.
+	 */
+	private void sample(ConcurrencyLimiter limiter, long latency, int inFlight) {
+		now += WINDOW;
+		limiter.sample(latency, inFlight, now);
+	}
+
+}
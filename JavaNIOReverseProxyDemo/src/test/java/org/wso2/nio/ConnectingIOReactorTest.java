@@ -0,0 +1,418 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the hedges and retries of {@link ConnectingIOReactor},
+ * relaying to loopback backends which answer every request with their name,
+ * some of them after a delay.
+ */
+public class ConnectingIOReactorTest extends TestCase {
+	// How long the tests wait for something which is bound to happen, well
+	// below the delay of the slow backends
+	private static final long TIMEOUT = 2000;
+	private static final int SLOW = 5000;
+
+	private final List<StubBackend> stubs = new ArrayList<StubBackend>();
+	private ListeningIOReactor server;
+	private Connection client = new Connection(null);
+	private ConnectingIOReactor reactor;
+
+	protected void setUp() throws IOException {
+		server = new ListeningIOReactor(null);
+		client.outbound = new OutboundQueue();
+	}
+
+	protected void tearDown() throws IOException {
+		for (StubBackend stub : stubs) {
+			stub.close();
+		}
+	}
+
+	public void testHedgeGoesToTheOtherBackendAndWinsOnce() throws Exception {
+		StubBackend slow = stub("slow", SLOW);
+		StubBackend fast = stub("fast", 0);
+		start(hedging(), slow.port(), fast.port());
+
+		Recorder handler = send("/a", true);
+		assertTrue(handler.await());
+		assertEquals(response("fast"), handler.body());
+		assertEquals(1, reactor.getHedgedCount());
+
+		// The losing connection is closed rather than pooled, long before the
+		// slow backend would have answered, and the client gets nothing more
+		assertTrue(slow.awaitClosed(1));
+		assertEquals(1, handler.completed.get());
+		assertEquals(0, handler.failed.get());
+		assertEquals(response("fast"), handler.body());
+		assertEquals(0, fast.closed.get());
+	}
+
+	public void testClientAbortCancelsBothAttempts() throws Exception {
+		StubBackend first = stub("first", SLOW);
+		StubBackend second = stub("second", SLOW);
+		start(hedging(), first.port(), second.port());
+
+		Recorder handler = send("/a", true);
+		assertTrue(second.awaitRequests(1));
+		assertEquals(1, first.requests.get());
+
+		// The client goes away while both attempts wait for their responses
+		handler.request.aborted = true;
+		reactor.send(handler.request);
+		assertTrue(first.awaitClosed(1));
+		assertTrue(second.awaitClosed(1));
+		assertEquals(0, handler.completed.get());
+	}
+
+	public void testClientAbortGoesToTheHedgeWhichWon() throws Exception {
+		StubBackend slow = stub("slow", SLOW);
+		StubBackend stalling = stub("stalling", 0);
+		stalling.partial = true;
+		start(hedging(), slow.port(), stalling.port());
+
+		// The response to the hedge starts, and the first attempt is given up
+		Recorder handler = send("/a", true);
+		assertTrue(slow.awaitClosed(1));
+		assertTrue(handler.awaitBody("stalling"));
+
+		// The client goes away while the rest of the response is still to
+		// come, and only knows the first attempt
+		handler.request.aborted = true;
+		reactor.send(handler.request);
+		assertTrue(stalling.awaitClosed(1));
+		assertEquals(1, handler.aborted.get());
+		assertEquals(0, handler.completed.get());
+		assertEquals(0, handler.failed.get());
+	}
+
+	public void testFailedConnectIsRetriedOnTheNextBackend() throws Exception {
+		StubBackend live = stub("live", 0);
+		start(new RetryConfig(), closedPort(), live.port());
+
+		Recorder handler = send("/a", false);
+		assertTrue(handler.await());
+		assertEquals(response("live"), handler.body());
+		assertEquals(1, reactor.getRetriedCount());
+	}
+
+	public void testFailedConnectIsRetriedAtMostConnectRetriesTimes() throws Exception {
+		RetryConfig config = new RetryConfig();
+		config.connectRetries = 1;
+		start(config, closedPort(), closedPort(), closedPort());
+
+		Recorder handler = send("/a", false);
+		assertTrue(handler.await());
+		assertEquals(1, handler.failed.get());
+		assertEquals(1, reactor.getRetriedCount());
+	}
+
+	public void testRetriesStopOnceTheBudgetIsSpent() throws Exception {
+		// Every other request earns a retry, and none are allowed anyway
+		RetryConfig config = new RetryConfig();
+		config.connectRetries = 5;
+		config.budgetPercent = 50;
+		config.budgetMinPerSecond = 0;
+		start(config, closedPort(), closedPort());
+
+		for (int i = 0; i < 4; i++) {
+			Recorder handler = send("/" + i, false);
+			assertTrue(handler.await());
+			assertEquals(1, handler.failed.get());
+		}
+		assertEquals(2, reactor.getRetriedCount());
+	}
+
+	private StubBackend stub(String name, int delay) throws IOException {
+		StubBackend stub = new StubBackend(name, delay);
+		stubs.add(stub);
+		Thread t = new Thread(stub);
+		t.setDaemon(true);
+		t.start();
+		return stub;
+	}
+
+	private void start(RetryConfig config, int... ports) throws IOException {
+		Backend[] backends = new Backend[ports.length];
+		for (int i = 0; i < ports.length; i++) {
+			InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), ports[i]);
+			backends[i] = new Backend(i, "127.0.0.1", ports[i], address);
+		}
+		// Keep the backends which refuse connections in the group
+		HealthConfig health = new HealthConfig();
+		health.errorRate = 0;
+		health.consecutiveFailures = 0;
+		UpstreamGroup upstream = new UpstreamGroup(backends, UpstreamGroup.ROUND_ROBIN, health);
+
+		HedgeDelay hedgeDelay = null;
+		if (config.hedging) {
+			// Enough quick responses have been seen for anything taking
+			// longer than hedgeMinDelay to be hedged
+			hedgeDelay = new HedgeDelay(config, System.nanoTime() - HedgeDelay.INTERVAL_NANOS);
+			for (int i = 0; i < HedgeDelay.MIN_SAMPLES; i++) {
+				hedgeDelay.record(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+		}
+		reactor =
+		          new ConnectingIOReactor(upstream, new ConnectionPoolConfig(),
+		                                  OutboundQueue.DEFAULT_MAX_BUFFERS_PER_WRITE, TlsConfig.load(new Properties()),
+		                                  new TimeoutConfig(), config, hedgeDelay);
+		Thread t = new Thread(reactor);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static RetryConfig hedging() {
+		RetryConfig config = new RetryConfig();
+		config.hedging = true;
+		config.hedgeMinDelay = 50;
+		return config;
+	}
+
+	private Recorder send(String uri, boolean hedgeable) throws IOException {
+		HttpMessageHead head = new HttpMessageHead(true);
+		head.method = "GET";
+		head.uri = uri;
+		head.version = HttpMessageHead.HTTP_1_1;
+		head.addHeader("Host", "localhost");
+		byte[] bytes = ("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+		Recorder handler = new Recorder(head);
+		BackendRequest request = new BackendRequest(handler);
+		if (hedgeable) {
+			request.replay = BufferPool.getDefault().wrap(bytes);
+		}
+		request.data.add(BufferPool.getDefault().wrap(bytes), null);
+		request.data.end();
+		handler.request = request;
+		reactor.send(request);
+		return handler;
+	}
+
+	private static int closedPort() throws IOException {
+		ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		int port = probe.getLocalPort();
+		probe.close();
+		return port;
+	}
+
+	private static String response(String body) {
+		return "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+	}
+
+	private static boolean await(AtomicInteger counter, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (counter.get() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Records what the connecting ioReactor hands on to the client.
+	 */
+	private class Recorder extends RspHandler {
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger aborted = new AtomicInteger();
+		private final StringBuilder body = new StringBuilder();
+		private final CountDownLatch done = new CountDownLatch(1);
+		BackendRequest request;
+
+		Recorder(HttpMessageHead head) {
+			super(client, server, head);
+		}
+
+		public void responseHead(HttpMessageHead head, int headLength) {
+		}
+
+		public boolean handleResponse(PooledBuffer rsp, Runnable onDrained) {
+			ByteBuffer data = rsp.buffer();
+			synchronized (body) {
+				while (data.hasRemaining()) {
+					body.append((char) (data.get() & 0xff));
+				}
+			}
+			rsp.release();
+			return true;
+		}
+
+		public void responseCompleted(boolean close) {
+			completed.incrementAndGet();
+			done.countDown();
+		}
+
+		public void failed() {
+			failed.incrementAndGet();
+			done.countDown();
+		}
+
+		public void timedOut() {
+			failed();
+		}
+
+		public void unavailable() {
+			failed();
+		}
+
+		public void aborted() {
+			aborted.incrementAndGet();
+		}
+
+		boolean await() throws InterruptedException {
+			return done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+
+		boolean awaitBody(String part) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (!body().contains(part)) {
+				if (System.currentTimeMillis() > deadline) {
+					return false;
+				}
+				Thread.sleep(10);
+			}
+			return true;
+		}
+
+		String body() {
+			synchronized (body) {
+				return body.toString();
+			}
+		}
+	}
+
+	/**
+	 * A backend answering each request with its name once it has waited for
+	 * its delay, and noting the connections the proxy closes on it. A partial
+	 * backend sends its name as the first part of a longer body, and never
+	 * the rest of it.
+	 */
+	private static class StubBackend implements Runnable {
+		final String name;
+		final int delay;
+		final ServerSocket socket;
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicInteger closed = new AtomicInteger();
+		volatile boolean partial;
+
+		StubBackend(String name, int delay) throws IOException {
+			this.name = name;
+			this.delay = delay;
+			this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		}
+
+		int port() {
+			return socket.getLocalPort();
+		}
+
+		boolean awaitRequests(int count) throws InterruptedException {
+			return ConnectingIOReactorTest.await(requests, count);
+		}
+
+		boolean awaitClosed(int count) throws InterruptedException {
+			return ConnectingIOReactorTest.await(closed, count);
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket connection = socket.accept();
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							serve(connection);
+						}
+					});
+					t.setDaemon(true);
+					t.start();
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+
+		private void serve(Socket connection) {
+			HttpMessageParser parser = new HttpMessageParser(true);
+			ByteBuffer in = ByteBuffer.allocate(4096);
+			try {
+				InputStream input = connection.getInputStream();
+				OutputStream output = connection.getOutputStream();
+				while (true) {
+					int numRead = input.read(in.array(), in.position(), in.remaining());
+					if (numRead == -1) {
+						closed.incrementAndGet();
+						break;
+					}
+					in.position(in.position() + numRead);
+					in.flip();
+					int result;
+					while ((result = parser.parse(in)) != HttpMessageParser.NEED_MORE) {
+						if (result == HttpMessageParser.MESSAGE_COMPLETE) {
+							requests.incrementAndGet();
+							parser.reset();
+							if (!this.waitOut(connection, input)) {
+								closed.incrementAndGet();
+								return;
+							}
+							String response =
+							                  partial ? "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n" + name
+							                          : response(name);
+							output.write(response.getBytes(StandardCharsets.ISO_8859_1));
+						}
+					}
+					in.compact();
+				}
+			} catch (IOException e) {
+				// The proxy went away
+			} finally {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					// Closed already
+				}
+			}
+		}
+
+		/**
+		 * @return <code>false</code> if the proxy closed the connection while
+		 *         the backend was taking its time
+		 */
+		private boolean waitOut(Socket connection, InputStream input) throws IOException {
+			if (delay == 0) {
+				return true;
+			}
+			connection.setSoTimeout(delay);
+			try {
+				return input.read() != -1;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} finally {
+				connection.setSoTimeout(0);
+			}
+		}
+	}
+
+}
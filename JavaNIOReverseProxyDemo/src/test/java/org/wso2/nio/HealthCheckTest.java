@@ -0,0 +1,136 @@
+package org.wso2.nio;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link HealthCheck}, probing a loopback backend which talks
+ * TLS with the self-signed certificate in test-keystore.jks.
+ */
+public class HealthCheckTest extends TestCase {
+	private static final long TIMEOUT = 10000;
+
+	private String keystore;
+	private SSLServerSocket socket;
+	private final AtomicInteger probes = new AtomicInteger();
+
+	protected void setUp() throws Exception {
+		keystore = getClass().getResource("/test-keystore.jks").getPath();
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		InputStream in = new FileInputStream(keystore);
+		try {
+			keyStore.load(in, "changeit".toCharArray());
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, "changeit".toCharArray());
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), null, null);
+		socket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0, 50,
+		                                                                              InetAddress.getLoopbackAddress());
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+
+	protected void tearDown() throws IOException {
+		socket.close();
+	}
+
+	public void testProbesGoThroughTlsToSecureBackends() throws Exception {
+		Properties prop = new Properties();
+		prop.setProperty("secureBackend", "true");
+		prop.setProperty("truststore", keystore);
+		prop.setProperty("truststorepassword", "changeit");
+		HealthConfig health = new HealthConfig();
+		health.checkInterval = 50;
+		health.checkPath = "/health";
+		health.healthyThreshold = 1;
+		health.unhealthyThreshold = 1;
+
+		int port = socket.getLocalPort();
+		Backend backend =
+		                  new Backend(0, "localhost", port, new InetSocketAddress(InetAddress.getLoopbackAddress(),
+		                                                                           port));
+		backend.setHealthy(false);
+		ConnectingIOReactor reactor =
+		                              new ConnectingIOReactor(new UpstreamGroup(new Backend[] { backend },
+		                                                                        UpstreamGroup.ROUND_ROBIN, health),
+		                                                      new ConnectionPoolConfig(),
+		                                                      OutboundQueue.DEFAULT_MAX_BUFFERS_PER_WRITE,
+		                                                      TlsConfig.load(prop), new TimeoutConfig(),
+		                                                      new RetryConfig(), null);
+		reactor.enableHealthChecks();
+		Thread t = new Thread(reactor);
+		t.setDaemon(true);
+		t.start();
+
+		// The backend comes back once a probe has had its answer, and stays
+		// in rotation as the probes go on
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (probes.get() < 3) {
+			assertTrue("The backend has not been probed", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		Thread.sleep(2 * health.checkInterval);
+		assertTrue(backend.isHealthy());
+	}
+
+	/**
+	 * Answers every health check request with a 200 and closes the
+	 * connection.
+	 */
+	private void serve() {
+		try {
+			while (true) {
+				Socket connection = socket.accept();
+				try {
+					BufferedReader reader =
+					                        new BufferedReader(new InputStreamReader(connection.getInputStream(),
+					                                                                 StandardCharsets.ISO_8859_1));
+					String requestLine = reader.readLine();
+					String line;
+					while ((line = reader.readLine()) != null && !line.isEmpty()) {
+						// Skip the headers
+					}
+					if ("GET /health HTTP/1.1".equals(requestLine)) {
+						probes.incrementAndGet();
+					}
+					OutputStream out = connection.getOutputStream();
+					out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+					        .getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+				} catch (IOException e) {
+					// The probe went away
+				} finally {
+					connection.close();
+				}
+			}
+		} catch (IOException e) {
+			// Closed
+		}
+	}
+
+}
@@ -0,0 +1,56 @@
+package org.wso2.nio;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link HedgeDelay}.
+ */
+public class HedgeDelayTest extends TestCase {
+	private static final long MILLIS = 1000000L;
+	private static final long SECOND = 1000000000L;
+
+	public void testNoDelayUntilEnoughResponsesHaveBeenSeen() {
+		HedgeDelay delay = new HedgeDelay(config(5), 0);
+		for (int i = 0; i < HedgeDelay.MIN_SAMPLES - 1; i++) {
+			delay.record(40 * MILLIS);
+		}
+		assertEquals(0, delay.get(SECOND));
+
+		// The responses seen so far count towards the next look, which is
+		// not due for another interval
+		delay.record(40 * MILLIS);
+		assertEquals(0, delay.get(SECOND + SECOND / 2));
+		assertDelay(40, delay.get(2 * SECOND));
+	}
+
+	public void testDelayIsThePercentileButNoLessThanTheMinimum() {
+		HedgeDelay delay = new HedgeDelay(config(5), 0);
+		for (int i = 0; i < 96; i++) {
+			delay.record(MILLIS);
+		}
+		for (int i = 0; i < 4; i++) {
+			delay.record(500 * MILLIS);
+		}
+		assertEquals(5, delay.get(SECOND));
+
+		// Taken afresh from the responses since the last look
+		for (int i = 0; i < HedgeDelay.MIN_SAMPLES; i++) {
+			delay.record(40 * MILLIS);
+		}
+		assertEquals(5, delay.get(SECOND + 1));
+		assertDelay(40, delay.get(2 * SECOND));
+	}
+
+	private static RetryConfig config(long minDelay) {
+		RetryConfig config = new RetryConfig();
+		config.hedging = true;
+		config.hedgeMinDelay = minDelay;
+		return config;
+	}
+
+	private static void assertDelay(long expected, long actual) {
+		// Rounded up to whole milliseconds, off by the error of the histogram
+		assertTrue("Delay of " + actual + " ms", actual >= expected && actual <= expected + 2);
+	}
+
+}
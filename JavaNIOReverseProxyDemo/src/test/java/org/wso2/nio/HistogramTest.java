@@ -0,0 +1,79 @@
+package org.wso2.nio;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link Histogram}.
+ */
+public class HistogramTest extends TestCase {
+
+	public void testBucketsBoundTheRelativeError() {
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			long value = random.nextLong() >>> (1 + random.nextInt(63));
+			int bucket = Histogram.bucketOf(value);
+			long highest = Histogram.highestValueOf(bucket);
+			assertTrue(value <= highest);
+			assertTrue(bucket == 0 || Histogram.highestValueOf(bucket - 1) < value);
+			assertTrue((double) (highest - value) / Math.max(1, value) < 1.0 / Histogram.SUB_BUCKETS);
+		}
+		assertEquals(Long.MAX_VALUE, Histogram.highestValueOf(Histogram.bucketOf(Long.MAX_VALUE)));
+	}
+
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for (long i = 1; i <= 100000; i++) {
+			histogram.record(i * 1000);
+		}
+		long[] values = histogram.getValuesAtPercentiles(50, 99, 99.9, 100);
+		assertWithin(50000000, values[0]);
+		assertWithin(99000000, values[1]);
+		assertWithin(99900000, values[2]);
+		assertEquals(100000000, values[3]);
+		assertEquals(100000, histogram.getCount());
+		assertEquals(100000000, histogram.getMax());
+		assertEquals(1000L * 100000 * 100001 / 2, histogram.getSum());
+	}
+
+	public void testOutliersShowInTheHighPercentiles() {
+		Histogram histogram = new Histogram();
+		for (int i = 0; i < 9990; i++) {
+			histogram.record(1000);
+		}
+		for (int i = 0; i < 10; i++) {
+			histogram.record(5000000000L);
+		}
+		assertWithin(1000, histogram.getValueAtPercentile(99));
+		assertWithin(1000, histogram.getValueAtPercentile(99.9));
+		assertWithin(5000000000L, histogram.getValueAtPercentile(99.95));
+	}
+
+	public void testConcurrentRecording() throws InterruptedException {
+		final Histogram histogram = new Histogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 100000; i++) {
+						histogram.record(i);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(400000, histogram.getCount());
+		assertEquals(99999, histogram.getMax());
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("expected about " + expected + " but was " + actual,
+		           Math.abs(actual - expected) <= expected / Histogram.SUB_BUCKETS);
+	}
+
+}
@@ -0,0 +1,152 @@
+package org.wso2.nio;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link HttpMessageParser}.
+ */
+public class HttpMessageParserTest extends TestCase {
+
+	public void testRequestWithoutBody() throws ProtocolException {
+		HttpMessageParser parser = new HttpMessageParser(true);
+		ByteBuffer src = bytes("GET /currencyconvertor.asmx HTTP/1.1\r\nHost: www.webservicex.net\r\n\r\n");
+
+		assertEquals(HttpMessageParser.HEAD_COMPLETE, parser.parse(src));
+		HttpMessageHead head = parser.getHead();
+		assertEquals("GET", head.method);
+		assertEquals("/currencyconvertor.asmx", head.uri);
+		assertEquals("HTTP/1.1", head.version);
+		assertEquals("www.webservicex.net", head.getHeader("host"));
+		assertTrue(head.isKeepAlive());
+
+		assertEquals(HttpMessageParser.MESSAGE_COMPLETE, parser.parse(src));
+		assertFalse(src.hasRemaining());
+	}
+
+	public void testContentLengthBodyIsSkippedInPlace() throws ProtocolException {
+		HttpMessageParser parser = new HttpMessageParser(true);
+		ByteBuffer src = bytes("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET");
+
+		assertEquals(HttpMessageParser.HEAD_COMPLETE, parser.parse(src));
+		int bodyStart = src.position();
+		assertEquals(HttpMessageParser.MESSAGE_COMPLETE, parser.parse(src));
+		assertEquals(5, src.position() - bodyStart);
+		// The next pipelined message is left in the buffer
+		assertEquals(3, src.remaining());
+	}
+
+	public void testChunkedResponseWithExtensionsAndTrailers() throws ProtocolException {
+		String message = "HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip, chunked\r\n\r\n" +
+		                 "5;name=value\r\nhello\r\n" + "A\r\n0123456789\r\n" + "0\r\n" +
+		                 "Expires: never\r\n\r\n";
+		HttpMessageParser parser = new HttpMessageParser(false);
+		ByteBuffer src = bytes(message + "HTTP/1.1");
+
+		assertEquals(HttpMessageParser.HEAD_COMPLETE, parser.parse(src));
+		assertEquals(200, parser.getHead().status);
+		assertEquals(HttpMessageParser.MESSAGE_COMPLETE, parser.parse(src));
+		assertEquals(message.length(), src.position());
+	}
+
+	public void testMessageSplitAtEveryByte() throws ProtocolException {
+		String message = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nX-Folded: a\r\n b\r\n\r\n" +
+		                 "3\r\nabc\r\n0\r\n\r\n";
+		HttpMessageParser parser = new HttpMessageParser(false);
+		byte[] data = message.getBytes(StandardCharsets.ISO_8859_1);
+
+		int heads = 0;
+		int completed = -1;
+		for (int i = 0; i < data.length; i++) {
+			ByteBuffer src = ByteBuffer.wrap(data, i, 1);
+			int result;
+			while ((result = parser.parse(src)) != HttpMessageParser.NEED_MORE) {
+				if (result == HttpMessageParser.HEAD_COMPLETE) {
+					heads++;
+				} else {
+					completed = i;
+					break;
+				}
+			}
+		}
+		assertEquals(1, heads);
+		assertEquals(data.length - 1, completed);
+		assertEquals("a b", parser.getHead().getHeader("X-Folded"));
+	}
+
+	public void testResponseToHeadHasNoBody() throws ProtocolException {
+		HttpMessageParser parser = new HttpMessageParser(false);
+		parser.setRequestMethod("HEAD");
+		ByteBuffer src = bytes("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n");
+
+		assertEquals(HttpMessageParser.HEAD_COMPLETE, parser.parse(src));
+		assertEquals(HttpMessageParser.MESSAGE_COMPLETE, parser.parse(src));
+	}
+
+	public void testResponseDelimitedByClose() throws ProtocolException {
+		HttpMessageParser parser = new HttpMessageParser(false);
+		ByteBuffer src = bytes("HTTP/1.0 200 OK\r\n\r\nsome body");
+
+		assertEquals(HttpMessageParser.HEAD_COMPLETE, parser.parse(src));
+		assertFalse(parser.getHead().isKeepAlive());
+		assertEquals(HttpMessageParser.NEED_MORE, parser.parse(src));
+		assertTrue(parser.isDelimitedByClose());
+		assertTrue(parser.endOfStream());
+	}
+
+	public void testInterimResponseIsAMessageOfItsOwn() throws ProtocolException {
+		HttpMessageParser parser = new HttpMessageParser(false);
+		ByteBuffer src = bytes("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 204 No Content\r\n\r\n");
+
+		assertEquals(HttpMessageParser.HEAD_COMPLETE, parser.parse(src));
+		assertTrue(parser.getHead().isInterim());
+		assertEquals(HttpMessageParser.MESSAGE_COMPLETE, parser.parse(src));
+
+		parser.reset();
+		assertEquals(HttpMessageParser.HEAD_COMPLETE, parser.parse(src));
+		assertEquals(204, parser.getHead().status);
+		assertEquals(HttpMessageParser.MESSAGE_COMPLETE, parser.parse(src));
+	}
+
+	public void testMalformedMessagesAreRejected() {
+		assertRejected(true, "GET /\r\n\r\n");
+		assertRejected(true, "POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n");
+		assertRejected(true, "POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n");
+		assertRejected(true, "GET / HTTP/1.1\r\nHost : example.com\r\n\r\n");
+		assertRejected(false, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n");
+	}
+
+	public void testRequestWithTransferEncodingAndContentLengthIsRejected() {
+		assertRejected(true, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n" +
+		                     "0\r\n\r\nGET /smuggled HTTP/1.1\r\n\r\n");
+		assertRejected(true, "POST / HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+	}
+
+	public void testHeadSizeIsBounded() {
+		HttpMessageParser parser = new HttpMessageParser(true, 64);
+		try {
+			parser.parse(bytes("GET / HTTP/1.1\r\nX-Large: " + new String(new char[100]).replace('\0', 'x')));
+			fail("Expected a ProtocolException");
+		} catch (ProtocolException expected) {
+		}
+	}
+
+	private static void assertRejected(boolean request, String message) {
+		HttpMessageParser parser = new HttpMessageParser(request);
+		ByteBuffer src = bytes(message);
+		try {
+			while (parser.parse(src) != HttpMessageParser.NEED_MORE && !parser.isComplete()) {
+			}
+			fail("Expected a ProtocolException for " + message);
+		} catch (ProtocolException expected) {
+		}
+	}
+
+	private static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.wso2.nio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link Metrics} and the {@link AdminServer} publishing them.
+ */
+public class MetricsTest extends TestCase {
+	private Metrics metrics = new Metrics();
+
+	public void testSamplesAreNamedAndLabelled() throws AttributeNotFoundException {
+		metrics.accepted.mark();
+		metrics.clientBytesRead.add(100);
+		metrics.timeToFirstByte.record(2000000);
+		metrics.addGauge("active_connections{reactor=\"0\"}", new Metrics.Gauge() {
+			public long getValue() {
+				return 7;
+			}
+		});
+
+		Map<String, Number> samples = metrics.snapshot();
+		assertEquals(1L, samples.get("proxy_accepted_connections_total"));
+		assertEquals(7L, samples.get("proxy_active_connections{reactor=\"0\"}"));
+		assertEquals(100L, samples.get("proxy_bytes_total{direction=\"client_in\"}"));
+		long p99 = samples.get("proxy_backend_time_to_first_byte_us{quantile=\"0.99\"}").longValue();
+		assertTrue(p99 >= 2000 && p99 < 2100);
+		assertEquals(1L, samples.get("proxy_backend_time_to_first_byte_us_count"));
+		assertTrue(metrics.toText().contains("proxy_active_connections{reactor=\"0\"} 7\n"));
+
+		assertEquals("proxy_backend_total_time_us_quantile_0_999",
+		             Metrics.attributeName("proxy_backend_total_time_us{quantile=\"0.999\"}"));
+		assertEquals(7L, metrics.getAttribute("proxy_active_connections_reactor_0"));
+		assertEquals(samples.size(), metrics.getMBeanInfo().getAttributes().length);
+	}
+
+	public void testMetricsArePublishedAsAnMBean() throws JMException {
+		metrics.accepted.mark();
+		metrics.registerMBean();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+		try {
+			assertEquals(1L, server.getAttribute(name, "proxy_accepted_connections_total"));
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+
+	public void testMeterAveragesTheRatePerSecond() {
+		Metrics.Meter meter = new Metrics.Meter();
+		for (int i = 0; i < 50; i++) {
+			meter.mark();
+		}
+		assertEquals(0.0, meter.getRate());
+		meter.tickIfNecessary(System.nanoTime() + Metrics.Meter.TICK_NANOS);
+		assertEquals(10.0, meter.getRate(), 0.01);
+		assertEquals(50, meter.getCount());
+	}
+
+	public void testAdminServerServesTheMetrics() throws IOException {
+		metrics.accepted.mark();
+		AdminServer server = new AdminServer(0, metrics);
+		Thread thread = new Thread(server);
+		thread.start();
+		try {
+			assertTrue(get(server.getPort(), "/metrics").contains("proxy_accepted_connections_total 1\n"));
+			assertTrue(get(server.getPort(), "/other").startsWith("HTTP/1.1 404"));
+		} finally {
+			server.close();
+		}
+	}
+
+	private static String get(int port, String path) throws IOException {
+		Socket socket = new Socket("127.0.0.1", port);
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			BufferedReader reader =
+			                        new BufferedReader(new InputStreamReader(socket.getInputStream(),
+			                                                                 StandardCharsets.ISO_8859_1));
+			StringBuilder sb = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				sb.append(line).append('\n');
+			}
+			return sb.toString();
+		} finally {
+			socket.close();
+		}
+	}
+
+}
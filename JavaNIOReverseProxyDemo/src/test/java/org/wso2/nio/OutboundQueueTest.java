@@ -0,0 +1,141 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link OutboundQueue}, written to a channel which takes a
+ * limited number of bytes, like a socket whose send buffer fills up.
+ */
+public class OutboundQueueTest extends TestCase {
+	private BufferPool pool = new BufferPool(true);
+	private OutboundQueue queue = new OutboundQueue();
+	private RecordingChannel channel = new RecordingChannel();
+	private ByteBuffer[] vector = new ByteBuffer[4];
+
+	public void testBuffersAreGatheredUpToTheVectorLength() throws IOException {
+		for (int i = 0; i < 10; i++) {
+			queue.add(pool.wrap(new byte[] { (byte) i }), null);
+		}
+		assertTrue(queue.writeTo(channel, vector));
+
+		assertEquals(3, channel.calls);
+		assertEquals(4, channel.maxBuffersPerCall);
+		assertEquals(10, channel.written.position());
+		assertEquals(0, pool.getOutstandingCount());
+		assertNull(vector[0]);
+	}
+
+	public void testPartialWriteKeepsTheRest() throws IOException {
+		channel.budget = 5;
+		for (int i = 0; i < 20; i++) {
+			queue.add(pool.wrap(new byte[] { (byte) i, (byte) i }), null);
+		}
+		assertFalse(queue.writeTo(channel, vector));
+		assertEquals(5, channel.written.position());
+		// Two buffers written completely and half of the third
+		assertEquals(18, pool.getOutstandingCount());
+
+		channel.budget = Integer.MAX_VALUE;
+		assertTrue(queue.writeTo(channel, vector));
+		ByteBuffer written = channel.written;
+		written.flip();
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i, written.get());
+			assertEquals(i, written.get());
+		}
+	}
+
+	public void testRingWrapsAndGrows() throws IOException {
+		byte next = 0;
+		byte expected = 0;
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < round * 3; i++) {
+				queue.add(pool.wrap(new byte[] { next++ }), null);
+			}
+			channel.budget = 2;
+			queue.writeTo(channel, vector);
+		}
+		channel.budget = Integer.MAX_VALUE;
+		assertTrue(queue.writeTo(channel, vector));
+
+		ByteBuffer written = channel.written;
+		written.flip();
+		while (written.hasRemaining()) {
+			assertEquals(expected++, written.get());
+		}
+		assertEquals(next, expected);
+	}
+
+	public void testProducerIsResumedAtTheLowWatermark() throws IOException {
+		final boolean[] resumed = new boolean[1];
+		Runnable onDrained = new Runnable() {
+			public void run() {
+				resumed[0] = true;
+			}
+		};
+		boolean accepted = true;
+		while (accepted) {
+			accepted = queue.add(pool.wrap(new byte[8192]), onDrained);
+		}
+
+		channel.budget = OutboundQueue.HIGH_WATERMARK - OutboundQueue.LOW_WATERMARK;
+		queue.writeTo(channel, vector);
+		assertFalse(resumed[0]);
+		channel.budget = Integer.MAX_VALUE;
+		queue.writeTo(channel, vector);
+		assertTrue(resumed[0]);
+	}
+
+	public void testClearReleasesAndDropsLaterData() {
+		queue.add(pool.wrap(new byte[10]), null);
+		queue.clear();
+		assertTrue(queue.isEnded());
+		queue.add(pool.wrap(new byte[10]), null);
+		assertTrue(queue.isEmpty());
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	/**
+	 * Collects what is written, taking at most <code>budget</code> bytes.
+	 */
+	private static class RecordingChannel implements GatheringByteChannel {
+		ByteBuffer written = ByteBuffer.allocate(1 << 20);
+		int budget = Integer.MAX_VALUE;
+		int calls;
+		int maxBuffersPerCall;
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			calls++;
+			maxBuffersPerCall = Math.max(maxBuffersPerCall, length);
+			long total = 0;
+			for (int i = offset; i < offset + length && budget > 0; i++) {
+				while (srcs[i].hasRemaining() && budget > 0) {
+					written.put(srcs[i].get());
+					total++;
+					budget--;
+				}
+			}
+			return total;
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public int write(ByteBuffer src) {
+			return (int) write(new ByteBuffer[] { src }, 0, 1);
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,209 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link RequestCoalescer} and the fan out of a response by
+ * the {@link RspHandler} leading a flight.
+ */
+public class RequestCoalescerTest extends TestCase {
+	private static final String HEAD = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\n";
+
+	private BufferPool pool = new BufferPool(true);
+	private RequestCoalescer coalescer = new RequestCoalescer();
+	private ListeningIOReactor server;
+
+	protected void setUp() throws IOException {
+		server = new ListeningIOReactor(null);
+	}
+
+	public void testJoinersShareTheLeadersResponse() throws IOException {
+		Connection leaderClient = client();
+		RspHandler leader = new RspHandler(leaderClient, server, request("/a"));
+		RequestCoalescer.Flight flight = coalescer.lead(request("/a"));
+		assertNotNull(flight);
+		leader.lead(coalescer, flight);
+
+		// Identical requests join, others do not
+		Connection[] joinerClients = { client(), client() };
+		for (Connection joinerClient : joinerClients) {
+			assertTrue(join(joinerClient, request("/a")));
+		}
+		assertFalse(join(client(), request("/b")));
+		HttpMessageHead http10 = request("/a");
+		http10.version = HttpMessageHead.HTTP_1_0;
+		assertFalse(join(client(), http10));
+		assertNull(coalescer.lead(request("/a")));
+
+		leader.responseHead(response(), HEAD.length());
+		assertEquals(0, coalescer.getFlightCount());
+		assertFalse(join(client(), request("/a")));
+
+		leader.handleResponse(pool.wrap(HEAD.getBytes(StandardCharsets.ISO_8859_1)), null);
+		leader.handleResponse(pool.wrap("hello".getBytes(StandardCharsets.ISO_8859_1)), null);
+		leader.responseCompleted(false);
+		assertEquals(HEAD + "hello", drain(leaderClient));
+		for (Connection joinerClient : joinerClients) {
+			assertEquals(HEAD + "hello", drain(joinerClient));
+		}
+		assertEquals(2, coalescer.getJoinedCount());
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	public void testJoinersGetTheLeadersFailure() throws IOException {
+		RspHandler leader = new RspHandler(client(), server, request("/a"));
+		leader.lead(coalescer, coalescer.lead(request("/a")));
+		Connection joinerClient = client();
+		assertTrue(join(joinerClient, request("/a")));
+
+		leader.failed();
+		assertTrue(drain(joinerClient).startsWith("HTTP/1.1 502 Bad Gateway"));
+		assertEquals(0, coalescer.getFlightCount());
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	public void testJoinersKeepTheResponseWhenTheLeaderGoesAway() throws IOException {
+		Connection leaderClient = client();
+		RspHandler leader = new RspHandler(leaderClient, server, request("/a"));
+		leader.lead(coalescer, coalescer.lead(request("/a")));
+		Connection joinerClient = client();
+		assertTrue(join(joinerClient, request("/a")));
+		leader.responseHead(response(), HEAD.length());
+		leader.handleResponse(pool.wrap(HEAD.getBytes(StandardCharsets.ISO_8859_1)), null);
+
+		// The leader's client goes away while the body is still to come
+		leader.aborted();
+		assertTrue(leader.isShared());
+		leader.handleResponse(pool.wrap("hello".getBytes(StandardCharsets.ISO_8859_1)), null);
+		leader.responseCompleted(false);
+		assertEquals(HEAD, drain(leaderClient));
+		assertEquals(HEAD + "hello", drain(joinerClient));
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	public void testReadingResumesOnceEveryClientHasCaughtUp() throws IOException {
+		Connection leaderClient = client();
+		RspHandler leader = new RspHandler(leaderClient, server, request("/a"));
+		leader.lead(coalescer, coalescer.lead(request("/a")));
+		Connection[] joinerClients = { client(), client() };
+		for (Connection joinerClient : joinerClients) {
+			assertTrue(join(joinerClient, request("/a")));
+		}
+		leader.responseHead(response(), HEAD.length());
+
+		final AtomicInteger resumed = new AtomicInteger();
+		Runnable onDrained = new Runnable() {
+			public void run() {
+				resumed.incrementAndGet();
+			}
+		};
+		byte[] large = new byte[OutboundQueue.HIGH_WATERMARK + 1];
+		assertFalse(leader.handleResponse(pool.wrap(large), onDrained));
+
+		drain(joinerClients[0]);
+		drain(leaderClient);
+		assertEquals(0, resumed.get());
+		drain(joinerClients[1]);
+		assertEquals(1, resumed.get());
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	public void testOnlyCacheableRequestsAreCoalesced() {
+		HttpMessageHead post = request("/a");
+		post.method = "POST";
+		assertNull(coalescer.lead(post));
+		HttpMessageHead noCache = request("/a");
+		noCache.addHeader("Cache-Control", "no-cache");
+		assertNull(coalescer.lead(noCache));
+		HttpMessageHead authorized = request("/a");
+		authorized.addHeader("Authorization", "Basic eDp5");
+		assertNull(coalescer.lead(authorized));
+	}
+
+	public void testPrivateResponsesAreNotShared() {
+		HttpMessageHead response = response();
+		assertTrue(ResponseCache.isShareable(response));
+		response.addHeader("Set-Cookie", "session=1");
+		assertFalse(ResponseCache.isShareable(response));
+
+		HttpMessageHead varying = response();
+		varying.addHeader("Vary", "Accept-Encoding");
+		HttpMessageHead gzip = request("/a");
+		gzip.addHeader("Accept-Encoding", "gzip");
+		assertFalse(ResponseCache.isSameVariant(gzip, request("/a"), varying));
+		assertTrue(ResponseCache.isSameVariant(gzip, gzip, varying));
+	}
+
+	private boolean join(Connection joinerClient, HttpMessageHead request) {
+		PooledBuffer headData = pool.wrap(new byte[16]);
+		boolean joined = coalescer.join(new RspHandler(joinerClient, server, request), request, headData, null);
+		if (!joined) {
+			headData.release();
+		}
+		return joined;
+	}
+
+	private static Connection client() {
+		Connection connection = new Connection(null);
+		connection.outbound = new OutboundQueue();
+		return connection;
+	}
+
+	private static String drain(Connection connection) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		connection.outbound.writeTo(new GatheringByteChannel() {
+			public long write(ByteBuffer[] srcs, int offset, int length) {
+				long total = 0;
+				for (int i = offset; i < offset + length; i++) {
+					while (srcs[i].hasRemaining()) {
+						sb.append((char) (srcs[i].get() & 0xff));
+						total++;
+					}
+				}
+				return total;
+			}
+
+			public long write(ByteBuffer[] srcs) {
+				return write(srcs, 0, srcs.length);
+			}
+
+			public int write(ByteBuffer src) {
+				return (int) write(new ByteBuffer[] { src }, 0, 1);
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() {
+			}
+		}, new ByteBuffer[8]);
+		connection.outbound.clear();
+		return sb.toString();
+	}
+
+	private static HttpMessageHead request(String uri) {
+		HttpMessageHead head = new HttpMessageHead(true);
+		head.method = "GET";
+		head.uri = uri;
+		head.version = HttpMessageHead.HTTP_1_1;
+		head.addHeader("Host", "example.com");
+		return head;
+	}
+
+	private static HttpMessageHead response() {
+		HttpMessageHead head = new HttpMessageHead(false);
+		head.version = HttpMessageHead.HTTP_1_1;
+		head.status = 200;
+		head.reason = "OK";
+		head.addHeader("Content-Length", "5");
+		return head;
+	}
+
+}
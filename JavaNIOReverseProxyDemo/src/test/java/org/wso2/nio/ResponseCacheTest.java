@@ -0,0 +1,278 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ResponseCache}: which responses are stored, how they
+ * are served and how the segments evict.
+ */
+public class ResponseCacheTest extends TestCase {
+	private static final String RESPONSE =
+	                                       "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nCache-Control: max-age=60\r\n" +
+	                                               "Connection: keep-alive\r\n\r\nhello";
+
+	private BufferPool pool = new BufferPool(true);
+	private ResponseCache cache = new ResponseCache(1 << 20, 4096, pool);
+	private ListeningIOReactor server;
+	private Connection client = new Connection(null);
+
+	protected void setUp() throws IOException {
+		server = new ListeningIOReactor(null);
+		client.outbound = new OutboundQueue();
+	}
+
+	protected void tearDown() {
+		cache.clear();
+		client.outbound.clear();
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	public void testFreshnessLifetime() {
+		HttpMessageHead request = request("/a");
+		long now = System.currentTimeMillis();
+		assertEquals(60000, ResponseCache.freshnessLifetime(request, response(200, "Cache-Control", "max-age=60"), now));
+		assertEquals(10000, ResponseCache.freshnessLifetime(request,
+		                                                    response(200, "Cache-Control", "max-age=60, s-maxage=10"),
+		                                                    now));
+		assertEquals(50000, ResponseCache.freshnessLifetime(request, response(200, "Cache-Control", "max-age=60",
+		                                                                      "Age", "10"), now));
+		assertEquals(3600000, ResponseCache.freshnessLifetime(request, response(200, "Date",
+		                                                                        "Sun, 06 Nov 1994 08:49:37 GMT",
+		                                                                        "Expires",
+		                                                                        "Sun, 06 Nov 1994 09:49:37 GMT"), now));
+
+		// Not to be stored
+		assertEquals(0, ResponseCache.freshnessLifetime(request, response(200), now));
+		assertEquals(0, ResponseCache.freshnessLifetime(request, response(500, "Cache-Control", "max-age=60"), now));
+		assertEquals(0, ResponseCache.freshnessLifetime(request, response(200, "Cache-Control", "private, max-age=60"),
+		                                                now));
+		assertEquals(0, ResponseCache.freshnessLifetime(request, response(200, "Cache-Control", "no-store"), now));
+		assertEquals(0, ResponseCache.freshnessLifetime(request, response(200, "Cache-Control", "max-age=60",
+		                                                                  "Set-Cookie", "a=b"), now));
+		assertEquals(0, ResponseCache.freshnessLifetime(request, response(200, "Cache-Control", "max-age=60", "Vary",
+		                                                                  "*"), now));
+		assertEquals(0, ResponseCache.freshnessLifetime(request, response(200, "Expires", "0"), now));
+		HttpMessageHead closeDelimited = new HttpMessageHead(false);
+		closeDelimited.status = 200;
+		closeDelimited.addHeader("Cache-Control", "max-age=60");
+		assertEquals(0, ResponseCache.freshnessLifetime(request, closeDelimited, now));
+		HttpMessageHead post = request("/a");
+		post.method = "POST";
+		assertEquals(0, ResponseCache.freshnessLifetime(post, response(200, "Cache-Control", "max-age=60"), now));
+	}
+
+	public void testStoredResponseIsServedWithoutHopByHopHeaders() throws IOException {
+		HttpMessageHead request = request("/a");
+		assertFalse(cache.serve(server, client, request));
+		store(request, response(200, "Cache-Control", "max-age=60", "Connection", "keep-alive"));
+
+		assertTrue(cache.serve(server, client, request("/a")));
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nCache-Control: max-age=60\r\nAge: 0\r\n\r\nhello",
+		             drain());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		// A client closing its connection is told so
+		HttpMessageHead close = request("/a");
+		close.addHeader("Connection", "close");
+		assertTrue(cache.serve(server, client, close));
+		assertTrue(drain().contains("Age: 0\r\nConnection: close\r\n\r\nhello"));
+	}
+
+	public void testRequestsOptOutOfTheCache() {
+		store(request("/a"), response(200, "Cache-Control", "max-age=60"));
+		HttpMessageHead noCache = request("/a");
+		noCache.addHeader("Cache-Control", "no-cache");
+		assertFalse(cache.serve(server, client, noCache));
+		HttpMessageHead otherHost = request("/a");
+		otherHost.setHeaderValue(0, "other");
+		assertFalse(cache.serve(server, client, otherHost));
+	}
+
+	public void testVariantsAreMatchedOnTheVaryHeaders() throws IOException {
+		HttpMessageHead gzip = request("/a");
+		gzip.addHeader("Accept-Encoding", "gzip");
+		store(gzip, response(200, "Cache-Control", "max-age=60", "Vary", "Accept-Encoding"));
+
+		assertFalse(cache.serve(server, client, request("/a")));
+		HttpMessageHead again = request("/a");
+		again.addHeader("accept-encoding", "gzip");
+		assertTrue(cache.serve(server, client, again));
+		drain();
+	}
+
+	public void testChunkedResponseIsNotServedToHttp10Clients() throws IOException {
+		String chunked =
+		                 "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nCache-Control: max-age=60\r\n\r\n" +
+		                         "5\r\nhello\r\n0\r\n\r\n";
+		HttpMessageHead response = new HttpMessageHead(false);
+		response.version = HttpMessageHead.HTTP_1_1;
+		response.status = 200;
+		response.reason = "OK";
+		response.addHeader("Transfer-Encoding", "chunked");
+		response.addHeader("Cache-Control", "max-age=60");
+		HttpMessageHead request = request("/a");
+		List<PooledBuffer> parts = new ArrayList<PooledBuffer>();
+		parts.add(pool.wrap(chunked.getBytes(StandardCharsets.ISO_8859_1)));
+		cache.store(request, response, chunked.indexOf("5\r\n"), parts,
+		            ResponseCache.freshnessLifetime(request, response, System.currentTimeMillis()));
+		parts.get(0).release();
+
+		// An HTTP/1.0 client can not decode the chunks, and goes to the backend
+		HttpMessageHead http10 = request("/a");
+		http10.version = HttpMessageHead.HTTP_1_0;
+		http10.addHeader("Connection", "keep-alive");
+		assertFalse(cache.serve(server, client, http10));
+
+		assertTrue(cache.serve(server, client, request("/a")));
+		assertTrue(drain().endsWith("Age: 0\r\n\r\n5\r\nhello\r\n0\r\n\r\n"));
+	}
+
+	public void testResponseAfterAnInterimOneIsNotStored() throws IOException {
+		String interim = "HTTP/1.1 100 Continue\r\n\r\n";
+		HttpMessageHead continueHead = new HttpMessageHead(false);
+		continueHead.version = HttpMessageHead.HTTP_1_1;
+		continueHead.status = 100;
+		continueHead.reason = "Continue";
+
+		// Both heads arrive in the same read
+		RspHandler handler = new RspHandler(client, server, request("/a"), cache);
+		handler.responseHead(continueHead, interim.length());
+		handler.responseHead(response(200, "Cache-Control", "max-age=60", "Connection", "keep-alive"),
+		                     RESPONSE.length() - 5);
+		handler.handleResponse(pool.wrap((interim + RESPONSE).getBytes(StandardCharsets.ISO_8859_1)), null);
+		handler.responseCompleted(false);
+		assertEquals(interim + RESPONSE, drain());
+		assertEquals(0, cache.getSize());
+
+		// The same response on its own is stored
+		handler = new RspHandler(client, server, request("/a"), cache);
+		handler.responseHead(response(200, "Cache-Control", "max-age=60", "Connection", "keep-alive"),
+		                     RESPONSE.length() - 5);
+		handler.handleResponse(pool.wrap(RESPONSE.getBytes(StandardCharsets.ISO_8859_1)), null);
+		handler.responseCompleted(false);
+		drain();
+		assertTrue(cache.serve(server, client, request("/a")));
+		assertTrue(drain().endsWith("Age: 0\r\n\r\nhello"));
+	}
+
+	public void testExpiredEntriesAreDropped() throws InterruptedException {
+		HttpMessageHead request = request("/a");
+		HttpMessageHead response = response(200, "Cache-Control", "max-age=60");
+		List<PooledBuffer> parts = new ArrayList<PooledBuffer>();
+		parts.add(pool.wrap(RESPONSE.getBytes(StandardCharsets.ISO_8859_1)));
+		cache.store(request, response, RESPONSE.length() - 5, parts, 1);
+		parts.get(0).release();
+
+		Thread.sleep(5);
+		assertFalse(cache.serve(server, client, request));
+		assertEquals(0, cache.getSize());
+	}
+
+	public void testSegmentKeepsEntriesWhichAreHitAgain() {
+		ResponseCache.Segment segment = new ResponseCache.Segment(4096);
+		long now = System.currentTimeMillis();
+		segment.put(entry("popular", 1024));
+		HttpMessageHead request = request("/");
+		segment.get("popular", request, now).data.release();
+
+		// A burst of one-off entries goes through probation only
+		for (int i = 0; i < 10; i++) {
+			segment.put(entry("once-" + i, 1024));
+		}
+		assertTrue(segment.getSize() <= 4096);
+		ResponseCache.Entry popular = segment.get("popular", request, now);
+		assertNotNull(popular);
+		popular.data.release();
+		assertNull(segment.get("once-0", request, now));
+		segment.clear();
+	}
+
+	private ResponseCache.Entry entry(String key, int size) {
+		PooledBuffer data = pool.acquire(size);
+		data.buffer().flip();
+		ResponseCache.Entry entry = new ResponseCache.Entry(key, data, 0, 0, Long.MAX_VALUE, 0);
+		entry.varyNames = new String[0];
+		entry.varyValues = new String[0];
+		return entry;
+	}
+
+	private void store(HttpMessageHead request, HttpMessageHead response) {
+		byte[] bytes = RESPONSE.getBytes(StandardCharsets.ISO_8859_1);
+		List<PooledBuffer> parts = new ArrayList<PooledBuffer>();
+		// Split the response so that the head spans two parts
+		parts.add(pool.wrap(Arrays.copyOfRange(bytes, 0, 20)));
+		parts.add(pool.wrap(Arrays.copyOfRange(bytes, 20, bytes.length)));
+		long lifetime = ResponseCache.freshnessLifetime(request, response, System.currentTimeMillis());
+		cache.store(request, response, bytes.length - 5, parts, lifetime);
+		for (PooledBuffer part : parts) {
+			part.release();
+		}
+	}
+
+	private String drain() throws IOException {
+		Sink sink = new Sink();
+		client.outbound.writeTo(sink, new ByteBuffer[8]);
+		return sink.sb.toString();
+	}
+
+	private static HttpMessageHead request(String uri) {
+		HttpMessageHead head = new HttpMessageHead(true);
+		head.method = "GET";
+		head.uri = uri;
+		head.version = HttpMessageHead.HTTP_1_1;
+		head.addHeader("Host", "example.com");
+		return head;
+	}
+
+	private static HttpMessageHead response(int status, String... headers) {
+		HttpMessageHead head = new HttpMessageHead(false);
+		head.version = HttpMessageHead.HTTP_1_1;
+		head.status = status;
+		head.reason = status == 200 ? "OK" : "Error";
+		head.addHeader("Content-Length", "5");
+		for (int i = 0; i < headers.length; i += 2) {
+			head.addHeader(headers[i], headers[i + 1]);
+		}
+		return head;
+	}
+
+	private static class Sink implements GatheringByteChannel {
+		StringBuilder sb = new StringBuilder();
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long total = 0;
+			for (int i = offset; i < offset + length; i++) {
+				while (srcs[i].hasRemaining()) {
+					sb.append((char) (srcs[i].get() & 0xff));
+					total++;
+				}
+			}
+			return total;
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public int write(ByteBuffer src) {
+			return (int) write(new ByteBuffer[] { src }, 0, 1);
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ResponseSequencer}.
+ */
+public class ResponseSequencerTest extends TestCase {
+	private BufferPool pool = new BufferPool(true);
+	private ListeningIOReactor server;
+	private Connection client = new Connection(null);
+
+	protected void setUp() throws IOException {
+		server = new ListeningIOReactor(null);
+		client.outbound = new OutboundQueue();
+	}
+
+	protected void tearDown() {
+		client.outbound.clear();
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	public void testResponsesAreWrittenInRequestOrder() throws IOException {
+		ResponseSequencer.Slot first = server.openResponse(client);
+		ResponseSequencer.Slot second = server.openResponse(client);
+		ResponseSequencer.Slot third = server.openResponse(client);
+
+		// The later responses complete first
+		third.send(buffer("3"), null);
+		third.complete(false);
+		second.send(buffer("2a"), null);
+		first.send(buffer("1a"), null);
+		assertEquals("1a", drain());
+
+		second.send(buffer("2b"), null);
+		first.send(buffer("1b"), null);
+		first.complete(false);
+		assertEquals("1b2a2b", drain());
+		second.complete(false);
+		assertEquals("3", drain());
+		assertFalse(client.outbound.isEnded());
+		assertEquals(3, client.pendingResponses);
+	}
+
+	public void testClosingResponseDropsTheOnesBehindIt() throws IOException {
+		ResponseSequencer.Slot first = server.openResponse(client);
+		ResponseSequencer.Slot second = server.openResponse(client);
+		second.send(buffer("dropped"), null);
+
+		first.send(buffer("last"), null);
+		first.complete(true);
+		assertTrue(client.outbound.isEnded());
+		assertEquals("last", drain());
+
+		second.send(buffer("dropped"), null);
+		second.complete(false);
+		assertEquals("", drain());
+	}
+
+	public void testHeldResponsePausesItsProducer() throws IOException {
+		ResponseSequencer.Slot first = server.openResponse(client);
+		ResponseSequencer.Slot second = server.openResponse(client);
+		final boolean[] resumed = new boolean[1];
+		Runnable onDrained = new Runnable() {
+			public void run() {
+				resumed[0] = true;
+			}
+		};
+
+		assertTrue(second.send(pool.wrap(new byte[OutboundQueue.HIGH_WATERMARK]), onDrained));
+		assertFalse(second.send(buffer("more"), onDrained));
+
+		// Passed on to the client, which has not drained it yet
+		first.complete(false);
+		assertFalse(resumed[0]);
+		assertEquals(OutboundQueue.HIGH_WATERMARK + 4, drain().length());
+		assertTrue(resumed[0]);
+	}
+
+	public void testGoneClientReleasesHeldData() {
+		ResponseSequencer.Slot first = server.openResponse(client);
+		ResponseSequencer.Slot second = server.openResponse(client);
+		second.send(buffer("held"), null);
+
+		client.responses.clear();
+		first.send(buffer("late"), null);
+		first.complete(false);
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	private PooledBuffer buffer(String data) {
+		return pool.wrap(data.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private String drain() throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		client.outbound.writeTo(new GatheringByteChannel() {
+			public long write(ByteBuffer[] srcs, int offset, int length) {
+				long total = 0;
+				for (int i = offset; i < offset + length; i++) {
+					while (srcs[i].hasRemaining()) {
+						sb.append((char) (srcs[i].get() & 0xff));
+						total++;
+					}
+				}
+				return total;
+			}
+
+			public long write(ByteBuffer[] srcs) {
+				return write(srcs, 0, srcs.length);
+			}
+
+			public int write(ByteBuffer src) {
+				return (int) write(new ByteBuffer[] { src }, 0, 1);
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() {
+			}
+		}, new ByteBuffer[64]);
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,49 @@
+package org.wso2.nio;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link RetryBudget}.
+ */
+public class RetryBudgetTest extends TestCase {
+	private static final long SECOND = 1000000000L;
+
+	public void testRequestsEarnRetries() {
+		RetryBudget budget = new RetryBudget(20, 0, 0);
+		assertFalse(budget.tryWithdraw(0));
+		// Enough for two retries, not for three
+		for (int i = 0; i < 14; i++) {
+			budget.deposit();
+		}
+		assertTrue(budget.tryWithdraw(0));
+		assertTrue(budget.tryWithdraw(0));
+		assertFalse(budget.tryWithdraw(0));
+	}
+
+	public void testMinimumRetriesPerSecond() {
+		RetryBudget budget = new RetryBudget(0, 2, 0);
+		assertTrue(budget.tryWithdraw(0));
+		assertTrue(budget.tryWithdraw(0));
+		assertFalse(budget.tryWithdraw(0));
+
+		assertTrue(budget.tryWithdraw(SECOND / 2));
+		assertFalse(budget.tryWithdraw(SECOND / 2));
+		// No more than a second's worth is saved up
+		assertTrue(budget.tryWithdraw(10 * SECOND));
+		assertTrue(budget.tryWithdraw(10 * SECOND));
+		assertFalse(budget.tryWithdraw(10 * SECOND));
+	}
+
+	public void testEarnedRetriesAreCapped() {
+		RetryBudget budget = new RetryBudget(50, 0, 0);
+		for (int i = 0; i < 10 * RetryBudget.MAX_REQUESTS; i++) {
+			budget.deposit();
+		}
+		int retries = 0;
+		while (budget.tryWithdraw(0)) {
+			retries++;
+		}
+		assertEquals(RetryBudget.MAX_REQUESTS / 2, retries);
+	}
+
+}
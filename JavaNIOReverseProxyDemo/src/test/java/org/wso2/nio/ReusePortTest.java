@@ -0,0 +1,57 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ReusePort}.
+ */
+public class ReusePortTest extends TestCase {
+
+	public void testSocketsShareThePort() throws IOException {
+		if (!ReusePort.isSupported()) {
+			return;
+		}
+		ServerSocketChannel first = ReusePort.open(0);
+		int port = first.socket().getLocalPort();
+		ServerSocketChannel second = ReusePort.open(port);
+		Selector selector = Selector.open();
+		try {
+			assertEquals(port, second.socket().getLocalPort());
+			first.register(selector, SelectionKey.OP_ACCEPT);
+			second.register(selector, SelectionKey.OP_ACCEPT);
+
+			// Every connection is accepted by one of the two sockets
+			SocketChannel[] clients = new SocketChannel[8];
+			for (int i = 0; i < clients.length; i++) {
+				clients[i] = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+			}
+			int accepted = 0;
+			while (accepted < clients.length && selector.select(5000) > 0) {
+				for (SelectionKey key : selector.selectedKeys()) {
+					SocketChannel channel;
+					while ((channel = ((ServerSocketChannel) key.channel()).accept()) != null) {
+						channel.close();
+						accepted++;
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+			assertEquals(clients.length, accepted);
+			for (SocketChannel client : clients) {
+				client.close();
+			}
+		} finally {
+			selector.close();
+			first.close();
+			second.close();
+		}
+	}
+
+}
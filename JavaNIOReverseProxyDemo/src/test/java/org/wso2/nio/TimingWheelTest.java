@@ -0,0 +1,99 @@
+package org.wso2.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link TimingWheel}, on a clock of its own.
+ */
+public class TimingWheelTest extends TestCase {
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	// 10 ms ticks, 8 buckets
+	private final TimingWheel wheel = new TimingWheel(10, 8, 0);
+	private final List<String> fired = new ArrayList<String>();
+
+	public void testTimeoutFiresOnceDueAndNeverEarly() {
+		TimingWheel.Timeout timeout = timeout("a");
+		wheel.schedule(timeout, 25, 0);
+		assertTrue(timeout.isScheduled());
+
+		assertEquals(0, wheel.expire(24 * MS));
+		assertTrue(fired.isEmpty());
+		assertEquals(1, wheel.expire(30 * MS));
+		assertEquals("[a]", fired.toString());
+		assertFalse(timeout.isScheduled());
+		assertEquals(0, wheel.size());
+	}
+
+	public void testTimeoutsBeyondOneTurnWaitForTheirRound() {
+		wheel.schedule(timeout("far"), 100, 0);
+		wheel.schedule(timeout("near"), 20, 0);
+
+		wheel.expire(20 * MS);
+		assertEquals("[near]", fired.toString());
+		// 100 ms falls into the bucket of 20 ms on the previous turn
+		wheel.expire(99 * MS);
+		assertEquals("[near]", fired.toString());
+		wheel.expire(100 * MS);
+		assertEquals("[near, far]", fired.toString());
+	}
+
+	public void testCancelledAndRescheduledTimeouts() {
+		TimingWheel.Timeout a = timeout("a");
+		TimingWheel.Timeout b = timeout("b");
+		wheel.schedule(a, 10, 0);
+		wheel.schedule(b, 10, 0);
+		wheel.cancel(a);
+		wheel.cancel(a);
+		assertEquals(1, wheel.size());
+
+		// Restarted on activity, as the reactors do
+		wheel.schedule(b, 10, 5 * MS);
+		wheel.expire(10 * MS);
+		assertTrue(fired.isEmpty());
+		wheel.expire(20 * MS);
+		assertEquals("[b]", fired.toString());
+	}
+
+	public void testTaskMayCancelOthersInTheSameBucket() {
+		final TimingWheel.Timeout victim = timeout("victim");
+		TimingWheel.Timeout killer = new TimingWheel.Timeout(new Runnable() {
+			public void run() {
+				fired.add("killer");
+				wheel.cancel(victim);
+			}
+		});
+		wheel.schedule(victim, 10, 0);
+		// Scheduled last, so it is first in the bucket
+		wheel.schedule(killer, 10, 0);
+
+		assertEquals(1, wheel.expire(10 * MS));
+		assertEquals("[killer]", fired.toString());
+		assertEquals(0, wheel.size());
+	}
+
+	public void testSelectTimeoutReachesTheNextTick() {
+		assertEquals(0, wheel.getSelectTimeout(0));
+		wheel.schedule(timeout("a"), 50, 0);
+		// The reactors expire before they select
+		wheel.expire(0);
+		assertEquals(10, wheel.getSelectTimeout(0));
+		wheel.expire(13 * MS);
+		assertEquals(7, wheel.getSelectTimeout(13 * MS));
+		// Never 0, which would block the selector
+		assertEquals(1, wheel.getSelectTimeout(20 * MS - 1));
+	}
+
+	private TimingWheel.Timeout timeout(final String name) {
+		return new TimingWheel.Timeout(new Runnable() {
+			public void run() {
+				fired.add(name);
+			}
+		});
+	}
+
+}
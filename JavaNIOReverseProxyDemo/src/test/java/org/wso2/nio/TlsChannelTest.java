@@ -0,0 +1,119 @@
+package org.wso2.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link TlsChannel}, run over a loopback connection with the
+ * self-signed certificate in test-keystore.jks. Both ends are non-blocking and
+ * driven by polling them in turns, the way a reactor would on its events.
+ */
+public class TlsChannelTest extends TestCase {
+	private static final long TIMEOUT = 10000;
+
+	private BufferPool pool = new BufferPool(true);
+	private TlsConfig config;
+	private ServerSocketChannel listener;
+	private TlsChannel client;
+	private TlsChannel server;
+
+	protected void setUp() throws IOException {
+		String keystore = getClass().getResource("/test-keystore.jks").getPath();
+		Properties prop = new Properties();
+		prop.setProperty("secureProxy", "true");
+		prop.setProperty("secureBackend", "true");
+		prop.setProperty("keystore", keystore);
+		prop.setProperty("keystorepassword", "changeit");
+		prop.setProperty("truststore", keystore);
+		prop.setProperty("truststorepassword", "changeit");
+		config = TlsConfig.load(prop);
+
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		SocketChannel clientChannel = SocketChannel.open(listener.socket().getLocalSocketAddress());
+		SocketChannel serverChannel = listener.accept();
+		clientChannel.configureBlocking(false);
+		serverChannel.configureBlocking(false);
+
+		Runnable ignored = new Runnable() {
+			public void run() {
+			}
+		};
+		client = new TlsChannel(clientChannel, config.createClientEngine("localhost", 443), pool, config.getTaskExecutor(), ignored);
+		server = new TlsChannel(serverChannel, config.createServerEngine(), pool, config.getTaskExecutor(), ignored);
+	}
+
+	protected void tearDown() throws IOException {
+		client.close();
+		server.close();
+		listener.close();
+		assertEquals(0, pool.getOutstandingCount());
+	}
+
+	public void testHandshakeCompletesWithoutBlocking() throws IOException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		boolean clientDone = false;
+		boolean serverDone = false;
+		while (!(clientDone && serverDone)) {
+			assertTrue("handshake timed out", System.currentTimeMillis() < deadline);
+			clientDone = client.handshake() && !client.hasPendingOutput();
+			serverDone = server.handshake() && !server.hasPendingOutput();
+		}
+		assertFalse(client.isHandshaking());
+		assertFalse(server.isHandshaking());
+	}
+
+	public void testDataIsRelayedBothWays() throws IOException {
+		byte[] request = new byte[100000];
+		for (int i = 0; i < request.length; i++) {
+			request[i] = (byte) i;
+		}
+		assertTrue(Arrays.equals(request, transfer(client, server, request)));
+		byte[] response = "HTTP/1.1 200 OK\r\n\r\n".getBytes();
+		assertTrue(Arrays.equals(response, transfer(server, client, response)));
+	}
+
+	public void testEndOfStreamIsReported() throws IOException {
+		transfer(client, server, new byte[] { 1 });
+		client.close();
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		ByteBuffer dst = ByteBuffer.allocate(16);
+		int read;
+		while ((read = server.read(dst)) == 0) {
+			assertTrue("end of stream not seen", System.currentTimeMillis() < deadline);
+		}
+		assertEquals(-1, read);
+	}
+
+	/**
+	 * Writes the data to one end and reads it off the other, driving both at
+	 * the same time like two reactors would.
+	 */
+	private static byte[] transfer(TlsChannel from, TlsChannel to, byte[] data) throws IOException {
+		ByteBuffer src = ByteBuffer.wrap(data);
+		ByteBuffer dst = ByteBuffer.allocate(data.length);
+		ByteBuffer scratch = ByteBuffer.allocate(0);
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (dst.hasRemaining()) {
+			assertTrue("transfer timed out", System.currentTimeMillis() < deadline);
+			from.write(src);
+			if (!src.hasRemaining()) {
+				// Flush what is left and answer the handshake, if any
+				from.write(scratch);
+			}
+			to.read(dst);
+			to.write(scratch);
+		}
+		return dst.array();
+	}
+
+}
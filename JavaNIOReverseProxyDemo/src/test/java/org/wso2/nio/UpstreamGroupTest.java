@@ -0,0 +1,129 @@
+package org.wso2.nio;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the backend selection strategies of {@link UpstreamGroup}.
+ */
+public class UpstreamGroupTest extends TestCase {
+
+	public void testRoundRobinTakesTheBackendsInTurn() {
+		Backend[] backends = backends(3);
+		UpstreamGroup group = new UpstreamGroup(backends, UpstreamGroup.ROUND_ROBIN);
+		for (int i = 0; i < 6; i++) {
+			assertSame(backends[i % 3], group.select());
+		}
+	}
+
+	public void testLeastOutstandingAvoidsBusyBackends() {
+		Backend[] backends = backends(3);
+		UpstreamGroup group = new UpstreamGroup(backends, UpstreamGroup.LEAST_OUTSTANDING);
+		backends[0].requestStarted();
+		backends[0].requestStarted();
+		backends[2].requestStarted();
+		for (int i = 0; i < 5; i++) {
+			assertSame(backends[1], group.select());
+		}
+		backends[0].requestFinished();
+		backends[0].requestFinished();
+		backends[1].requestStarted();
+		backends[1].requestStarted();
+		assertSame(backends[0], group.select());
+	}
+
+	public void testEwmaMovesTrafficAwayFromSlowBackends() {
+		Backend[] backends = backends(2);
+		UpstreamGroup group = new UpstreamGroup(backends, UpstreamGroup.EWMA);
+		backends[0].recordLatency(1000000);
+		backends[1].recordLatency(200000000);
+		for (int i = 0; i < 20; i++) {
+			assertSame(backends[0], group.select());
+		}
+
+		// Failures count as slow responses
+		backends[0].recordFailure();
+		assertSame(backends[1], group.select());
+	}
+
+	public void testSlowSamplesCountRightAwayAndFastOnesGradually() {
+		Backend backend = backends(1)[0];
+		backend.recordLatency(1000);
+		backend.recordLatency(5000000);
+		long now = System.nanoTime();
+		assertTrue(backend.getLatency(now) > 4000000);
+		backend.recordLatency(1000);
+		assertTrue(backend.getLatency(now) > 1000000);
+	}
+
+	public void testBackendsAreReadFromTheProperties() throws UnknownHostException {
+		Properties prop = new Properties();
+		prop.setProperty("backends", "127.0.0.1:9001, localhost:9002");
+		prop.setProperty("backendBalancing", UpstreamGroup.EWMA);
+		Backend[] backends = UpstreamGroup.load(prop).getBackends();
+		assertEquals(2, backends.length);
+		assertEquals(9001, backends[0].address.getPort());
+		assertEquals("localhost", backends[1].host);
+		assertEquals(1, backends[1].index);
+
+		prop = new Properties();
+		prop.setProperty("remoteHost", "127.0.0.1");
+		prop.setProperty("remotePort", "9000");
+		backends = UpstreamGroup.load(prop).getBackends();
+		assertEquals(1, backends.length);
+		assertEquals(9000, backends[0].port);
+	}
+
+	public void testUnavailableBackendsAreSkipped() {
+		HealthConfig config = new HealthConfig();
+		config.consecutiveFailures = 2;
+		config.maxEjectionPercent = 50;
+		Backend[] backends = backends(3);
+		UpstreamGroup group = new UpstreamGroup(backends, UpstreamGroup.ROUND_ROBIN, config);
+		backends[1].recordFailure();
+		backends[1].recordFailure();
+		backends[2].setHealthy(false);
+		for (int i = 0; i < 6; i++) {
+			assertSame(backends[0], group.select());
+		}
+
+		// No more than half of the backends, but at least one, are ejected
+		backends[0].recordFailure();
+		backends[0].recordFailure();
+		assertSame(backends[0], group.select());
+
+		backends[0].setHealthy(false);
+		assertNull(group.select());
+	}
+
+	public void testSecondAttemptGoesToAnotherBackend() {
+		Backend[] backends = backends(3);
+		UpstreamGroup group = new UpstreamGroup(backends, UpstreamGroup.ROUND_ROBIN);
+		assertSame(backends[2], group.selectOther(backends[1]));
+		assertSame(backends[0], group.selectOther(backends[2]));
+
+		backends[2].setHealthy(false);
+		backends[0].setHealthy(false);
+		assertSame(backends[1], group.selectOther(backends[1]));
+	}
+
+	public void testUnknownStrategyIsRejected() {
+		try {
+			new UpstreamGroup(backends(2), "random");
+			fail("expected an IllegalArgumentException");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	private static Backend[] backends(int count) {
+		Backend[] backends = new Backend[count];
+		for (int i = 0; i < count; i++) {
+			backends[i] = new Backend(i, "127.0.0.1", 9000 + i, new InetSocketAddress("127.0.0.1", 9000 + i));
+		}
+		return backends;
+	}
+
+}
@@ -0,0 +1,149 @@
+package org.wso2.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link VirtualThreadEngine}, relaying to a loopback backend
+ * which answers every request with its URI.
+ */
+public class VirtualThreadEngineTest extends TestCase {
+	private ServerSocketChannel backend;
+	private VirtualThreadEngine engine;
+
+	protected void setUp() throws Exception {
+		backend = ServerSocketChannel.open();
+		backend.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						serveBackend(backend.accept());
+					}
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+
+	protected void tearDown() throws Exception {
+		if (engine != null) {
+			engine.close();
+		}
+		backend.close();
+	}
+
+	public void testRequestsAreAnsweredInOrderOverKeepAlive() throws IOException {
+		startEngine(backend.socket().getLocalPort());
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), engine.getPort());
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(request("/first"));
+			assertEquals(response("/first"), read(socket.getInputStream(), response("/first").length()));
+
+			// Pipelined, with a request body in between
+			String post = "POST /second HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4\r\n\r\nbody";
+			ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+			pipelined.write(post.getBytes(StandardCharsets.ISO_8859_1));
+			pipelined.write(request("/third"));
+			out.write(pipelined.toByteArray());
+			String expected = response("/second") + response("/third");
+			assertEquals(expected, read(socket.getInputStream(), expected.length()));
+		} finally {
+			socket.close();
+		}
+	}
+
+	public void testUnreachableBackendIsABadGateway() throws IOException {
+		ServerSocket probe = new ServerSocket(0);
+		int closedPort = probe.getLocalPort();
+		probe.close();
+		startEngine(closedPort);
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), engine.getPort());
+		try {
+			socket.getOutputStream().write(request("/"));
+			String expected = new String(ErrorResponse.bytes(502, "Bad Gateway"), StandardCharsets.ISO_8859_1);
+			assertEquals(expected, read(socket.getInputStream(), expected.length()));
+			assertEquals(-1, socket.getInputStream().read());
+		} finally {
+			socket.close();
+		}
+	}
+
+	private void startEngine(int backendPort) throws IOException {
+		Properties prop = new Properties();
+		prop.setProperty("localPort", "0");
+		prop.setProperty("remoteHost", "127.0.0.1");
+		prop.setProperty("remotePort", String.valueOf(backendPort));
+		engine = new VirtualThreadEngine(prop);
+		// Only the accept loop, leaving the platform MBean server alone
+		new Thread(engine).start();
+	}
+
+	private static byte[] request(String uri) {
+		return ("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static String response(String body) {
+		return "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+	}
+
+	private static String read(InputStream in, int length) throws IOException {
+		byte[] data = new byte[length];
+		int n = 0;
+		while (n < length) {
+			int numRead = in.read(data, n, length - n);
+			if (numRead == -1) {
+				break;
+			}
+			n += numRead;
+		}
+		return new String(data, 0, n, StandardCharsets.ISO_8859_1);
+	}
+
+	private static void serveBackend(final SocketChannel channel) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				HttpMessageParser parser = new HttpMessageParser(true);
+				ByteBuffer in = ByteBuffer.allocate(4096);
+				try {
+					while (channel.read(in) != -1) {
+						in.flip();
+						int result;
+						while ((result = parser.parse(in)) != HttpMessageParser.NEED_MORE) {
+							if (result == HttpMessageParser.MESSAGE_COMPLETE) {
+								byte[] rsp = response(parser.getHead().uri).getBytes(StandardCharsets.ISO_8859_1);
+								channel.write(ByteBuffer.wrap(rsp));
+								parser.reset();
+							}
+						}
+						in.compact();
+					}
+					channel.close();
+				} catch (IOException e) {
+					// The proxy went away
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+
+}